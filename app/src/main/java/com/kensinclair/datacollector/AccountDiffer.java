@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Remembers the last stored account set, so that an update which doesn't
+ * change it writes nothing and one which does writes only the accounts
+ * added and removed.
+ *
+ * <p>The set and an order-independent hash of it are kept in memory and in
+ * shared preferences, so they survive restarts. An update is first compared
+ * by hash, which needs no allocation. Only when the hash differs is the set
+ * built and diffed. With no set remembered, such as on first run, the whole
+ * set is written as snapshot rows. Not thread-safe.</p>
+ *
+ * <p>A diffed set is pending until its rows commit, and later updates are
+ * diffed against it, so an update arriving before the commit writes nothing
+ * twice. Only committed sets are saved. If the rows are lost, the pending
+ * set is undone and the next update is diffed against the last committed
+ * set again.</p>
+ *
+ * @see com.kensinclair.datacollector.AccountsUpdaterService
+ *
+ * @author Ken Sinclair
+ */
+
+final class AccountDiffer {
+    private static final String PREFS        = "account_set";
+    private static final String KEY_HASH     = "hash";
+    private static final String KEY_ACCOUNTS = "accounts";  // Each as type, '\n', name.
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME  = 0x100000001b3L;
+
+    private final SharedPreferences mPrefs;
+
+    private Set<String> mAccounts;                          // null when none is remembered.
+    private long        mHash;
+    private Set<String> mPending;                           // null when none is being written.
+    private long        mPendingHash;
+
+    private long mUpdates;
+    private long mUnchanged;
+
+    /**
+     * Loads the remembered account set.
+     *
+     * @param c the context of the caller
+     */
+    AccountDiffer(Context c) {
+        mPrefs = c.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+
+        Set<String> accounts = mPrefs.getStringSet(KEY_ACCOUNTS, null);
+        if(accounts != null) {
+            mAccounts = new HashSet<>(accounts);            // The returned set mustn't change.
+            mHash     = mPrefs.getLong(KEY_HASH, 0);
+        }
+    }
+
+    /**
+     * Diffs an update against the pending account set, or the remembered one
+     * if none is pending. A changed set becomes the pending one.
+     *
+     * @param accounts the accounts now
+     * @param time     the time of data collection
+     * @return         the rows to write, or <code>null</code> if the set is unchanged
+     */
+    IngestionQueue.AccountsEntry diff(Account[] accounts, long time) {
+        mUpdates++;
+
+        Set<String> last     = mPending != null ? mPending : mAccounts;
+        long        lastHash = mPending != null ? mPendingHash : mHash;
+        long        hash     = hash(accounts);
+        if(last != null && hash == lastHash) {
+            mUnchanged++;
+            return null;
+        }
+
+        Set<String> current = new HashSet<>(accounts.length * 2);
+        for(Account account:accounts) current.add(key(account.type, account.name));
+
+        List<String> added   = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for(String key:current) if(last == null || !last.contains(key)) added.add(key);
+        if(last != null)
+            for(String key:last) if(!current.contains(key)) removed.add(key);
+
+        int      n      = added.size() + removed.size();
+        String[] names  = new String[n];
+        String[] types  = new String[n];
+        int[]    events = new int[n];
+        for(int i = 0; i < n; i++) {
+            boolean isAdded = i < added.size();
+            String  key     = isAdded ? added.get(i) : removed.get(i - added.size());
+            int     split   = key.indexOf('\n');
+
+            types[i]  = key.substring(0, split);
+            names[i]  = key.substring(split + 1);
+            events[i] = !isAdded          ? DataDumpContract.AccountsTable.EVENT_REMOVED
+                      : last != null ? DataDumpContract.AccountsTable.EVENT_ADDED
+                      :                DataDumpContract.AccountsTable.EVENT_SNAPSHOT;
+        }
+        mPending     = current;
+        mPendingHash = hash;
+        return new IngestionQueue.AccountsEntry(names, types, events, time);
+    }
+
+    /**
+     * Remembers and saves an account set once its rows are committed. It stays
+     * pending if a newer set is.
+     *
+     * @param accounts the accounts passed to <code>diff</code>
+     */
+    void commit(Account[] accounts) {
+        Set<String> current = new HashSet<>(accounts.length * 2);
+        for(Account account:accounts) current.add(key(account.type, account.name));
+
+        mAccounts = current;
+        mHash     = hash(accounts);
+        mPrefs.edit().putStringSet(KEY_ACCOUNTS, current).putLong(KEY_HASH, mHash).apply();
+
+        if(mPending != null && mPendingHash == mHash && mPending.equals(current)) mPending = null;
+    }
+
+    /**
+     * Undoes the pending set once rows diffed from it are lost, so that the
+     * next update is diffed against the remembered set and writes them again.
+     */
+    void undo() { mPending = null; }
+
+    /** @return updates diffed */
+    long getUpdateCount() { return mUpdates; }
+
+    /** @return updates which left the set unchanged, and so wrote nothing */
+    long getUnchangedCount() { return mUnchanged; }
+
+    private static String key(String type, String name) { return type + '\n' + name; }
+
+    /**
+     * Hashes an account set regardless of order: the sum of each account's
+     * FNV-1a hash, taken over its type, a newline and its name.
+     */
+    private static long hash(Account[] accounts) {
+        long sum = accounts.length;
+
+        for(Account account:accounts) {
+            long h = FNV_OFFSET;
+
+            h = fnv(h, account.type);
+            h = (h ^ '\n') * FNV_PRIME;
+            h = fnv(h, account.name);
+            sum += h;
+        }
+        return sum;
+    }
+
+    private static long fnv(long h, String s) {
+        if(s == null) return h;
+        for(int i = 0, n = s.length(); i < n; i++) h = (h ^ s.charAt(i)) * FNV_PRIME;
+        return h;
+    }
+}
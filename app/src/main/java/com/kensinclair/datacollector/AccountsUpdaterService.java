@@ -20,6 +20,7 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.OnAccountsUpdateListener;
 import android.content.Intent;
+import android.os.Handler;
 import android.util.Log;
 
 /**
@@ -36,8 +37,11 @@ public class AccountsUpdaterService extends    UpdaterService
     private static final boolean LOCAL_LOGV = false;
     private static final String  TAG        = AccountsUpdaterService.class.getSimpleName();
 
+    private final Handler mHandler = new Handler();     // The main thread's.
+
     private AccountManager mAccountManager;
-    private DbUpdater      mDbUpdater;
+    private IngestionQueue mIngestionQueue;
+    private AccountDiffer  mAccountDiffer;
 
     /**
      * Starts sticky service and assigns itself as a
@@ -51,7 +55,8 @@ public class AccountsUpdaterService extends    UpdaterService
     @Override public int onStartCommand(Intent intent, int flags, int startId) {
         if(LOCAL_LOGV) sLg.log("In onStartCommand.");
 
-        mDbUpdater = new DbUpdater(getBaseContext());
+        mIngestionQueue = IngestionQueue.getInstance(this);
+        if(mAccountDiffer == null) mAccountDiffer = new AccountDiffer(this);
 
         try {
             sLg.setLevel(Log.DEBUG);
@@ -71,17 +76,46 @@ public class AccountsUpdaterService extends    UpdaterService
     }
 
     /**
-     * Calls database updater.
+     * Queues the accounts added and removed since the last stored
+     * account set for the database. Writes nothing if the set is unchanged.
+     * The new set is saved once its rows commit, and undone if they are lost,
+     * so that the next update writes them again.
      *
      * @param accounts provided by system
      */
-    @Override public void onAccountsUpdated(Account[] accounts) {
+    @Override public void onAccountsUpdated(final Account[] accounts) {
+        long time = System.currentTimeMillis();
+
+        IngestionQueue.AccountsEntry changes = mAccountDiffer.diff(accounts, time);
+
         sLg.setLevel(Log.DEBUG);
-        if(LOCAL_LOGD) sLg.log("Updating accounts.");
+        if(LOCAL_LOGD) sLg.log(changes == null
+                ? "Accounts unchanged (" + mAccountDiffer.getUnchangedCount() + " of "
+                        + mAccountDiffer.getUpdateCount() + " updates)."
+                : "Updating accounts: " + changes.mNames.length + " changes.");
         sLg.setLevel(Log.VERBOSE);
 
-        long time = System.currentTimeMillis();
-        mDbUpdater.updateTable(accounts, time);
+        if(changes == null) return;
+        if(changes.mNames.length == 0) {
+            mAccountDiffer.commit(accounts);
+            return;
+        }
+
+        changes.setOnCommit(new Runnable() {           // On the writer thread.
+            @Override public void run() {
+                mHandler.post(new Runnable() {
+                    @Override public void run() { mAccountDiffer.commit(accounts); }
+                });
+            }
+        });
+        changes.setOnLost(new Runnable() {
+            @Override public void run() {
+                mHandler.post(new Runnable() {
+                    @Override public void run() { mAccountDiffer.undo(); }
+                });
+            }
+        });
+        mIngestionQueue.enqueue(changes);
     }
 
     /** Removes accounts updated listener. */
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.kensinclair.logger.MyLog;
+
+/**
+ * Collapses bursts of network state broadcasts into one row each.
+ *
+ * <p>During a handover, connectivity and WiFi state broadcasts arrive within
+ * milliseconds of each other. Each broadcast only (re)starts its channel's quiet
+ * window. Once no broadcast has arrived for <code>QUIET_WINDOW</code>, the state
+ * is read from the system service once, so only the final state of the burst is
+ * stored, under the time the burst's first broadcast arrived. A state equal to
+ * the last one queued on its channel is not stored again. A burst which never
+ * goes quiet is read <code>MAX_DELAY</code> after its first broadcast anyway.</p>
+ *
+ * <p>The receiver returns as soon as the broadcast is noted. The burst's state
+ * is read on the coalescer's own thread, while <code>NetworkUpdaterService</code>,
+ * which registers the receiver, keeps the process alive.</p>
+ *
+ * <p>The last queued states are kept in memory only, so the first state after
+ * a restart is always stored.</p>
+ *
+ * @see com.kensinclair.datacollector.NetworkReceiver
+ *
+ * @author Ken Sinclair
+ */
+
+final class BroadcastCoalescer {
+    private static final boolean LOCAL_LOGD = true;
+    private static final String  TAG        = BroadcastCoalescer.class.getSimpleName();
+
+    private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
+
+    static final long QUIET_WINDOW = 500;           // Milliseconds.
+    static final long MAX_DELAY    = 2000;          // From a burst's first broadcast.
+
+    static final int CHANNEL_NETWORK = 0;           // CONNECTIVITY_ACTION.
+    static final int CHANNEL_WIFI    = 1;           // NETWORK_STATE_CHANGED_ACTION.
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    private static BroadcastCoalescer sInstance;
+
+    private final Context        mContext;
+    private final IngestionQueue mIngestionQueue;
+    private final Handler        mHandler;
+    private final long           mQuietWindow;
+    private final Runnable[]     mFlushes   = new Runnable[2];
+    private final long[]         mFirstSeen = { NONE, NONE };      // Guarded by this.
+    private final long[]         mFirstElapsed = new long[2];       // Guarded by this.
+
+    private IngestionQueue.NetworkEntry        mLastNetwork;    // The handler thread's only.
+    private IngestionQueue.WifiConnectionEntry mLastWifi;
+
+    private volatile long mReceived;
+    private volatile long mQueued;
+    private volatile long mDuplicates;
+
+    /**
+     * Constructs the coalescer and starts its thread.
+     *
+     * @param context     the application context
+     * @param quietWindow how long a channel must be quiet before its state is read,
+     *                    in milliseconds
+     */
+    private BroadcastCoalescer(Context context, long quietWindow) {
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+
+        mContext        = context;
+        mIngestionQueue = IngestionQueue.getInstance(context);
+        mHandler        = new Handler(thread.getLooper());
+        mQuietWindow    = quietWindow;
+
+        for(int i = 0; i < mFlushes.length; i++) {
+            final int channel = i;
+
+            mFlushes[i] = new Runnable() {
+                @Override public void run() { flush(channel); }
+            };
+        }
+    }
+
+    /**
+     * Gets the process-wide coalescer, creating it on first use.
+     *
+     * @param c any context. Only its application context is kept
+     * @return  the shared <code>BroadcastCoalescer</code>
+     */
+    static synchronized BroadcastCoalescer getInstance(Context c) {
+        if(sInstance == null)
+            sInstance = new BroadcastCoalescer(c.getApplicationContext(), QUIET_WINDOW);
+        return sInstance;
+    }
+
+    /**
+     * Notes a broadcast, restarting its channel's quiet window, but never
+     * past <code>MAX_DELAY</code> from the burst's first broadcast.
+     *
+     * @param channel one of the <code>CHANNEL_</code> constants
+     * @param time    the time the broadcast was received
+     */
+    synchronized void onBroadcast(int channel, long time) {
+        long now = SystemClock.elapsedRealtime();
+
+        mReceived++;
+        if(mFirstSeen[channel] == NONE) {
+            mFirstSeen[channel]    = time;
+            mFirstElapsed[channel] = now;
+        }
+
+        mHandler.removeCallbacks(mFlushes[channel]);
+        mHandler.postDelayed(mFlushes[channel], Math.max(0,
+                Math.min(mQuietWindow, mFirstElapsed[channel] + MAX_DELAY - now)));
+    }
+
+    /** @return broadcasts received */
+    long getReceivedCount() { return mReceived; }
+
+    /** @return rows queued */
+    long getQueuedCount() { return mQueued; }
+
+    /** @return bursts whose final state equalled the last one queued */
+    long getDuplicateCount() { return mDuplicates; }
+
+    /** Reads a channel's state at the end of a burst and queues it if it changed. */
+    private void flush(int channel) {
+        long time;
+
+        synchronized (this) {
+            time                = mFirstSeen[channel];
+            mFirstSeen[channel] = NONE;
+        }
+        if(time != NONE) queue(channel, time);
+    }
+
+    /** Reads a channel's state and queues it if it changed. */
+    private void queue(int channel, long time) {
+        boolean queued;
+        if(channel == CHANNEL_NETWORK) {
+            ConnectivityManager conManager = (ConnectivityManager)
+                    mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            IngestionQueue.NetworkEntry entry =
+                    new IngestionQueue.NetworkEntry(conManager.getActiveNetworkInfo(), time);
+
+            if(entry.sameState(mLastNetwork)) {
+                mDuplicates++;
+                return;
+            }
+            queued = mIngestionQueue.enqueue(entry);
+            if(queued) mLastNetwork = entry;
+        } else {
+            WifiManager wifiManager = (WifiManager)
+                    mContext.getSystemService(Context.WIFI_SERVICE);
+            IngestionQueue.WifiConnectionEntry entry =
+                    new IngestionQueue.WifiConnectionEntry(wifiManager.getConnectionInfo(), time);
+
+            if(entry.sameState(mLastWifi)) {
+                mDuplicates++;
+                return;
+            }
+            queued = mIngestionQueue.enqueue(entry);
+            if(queued) mLastWifi = entry;
+        }
+        if(queued) mQueued++;
+
+        if(LOCAL_LOGD) sLg.log("Burst flushed on channel " + channel + ". " + mReceived
+                + " broadcasts received, " + mQueued + " rows queued, " + mDuplicates
+                + " duplicates suppressed.");
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.kensinclair.logger.MyLog;
+
+import java.io.File;
+
+/**
+ * Checkpoints the write-ahead log on a background thread, once the WAL has
+ * grown past the durability profile's threshold and no commit has arrived
+ * for its idle time, so that the copy back into the database doesn't land
+ * on whichever commit happens to cross SQLite's own threshold.
+ *
+ * <p>Each commit (re)starts the idle wait. A WAL grown to <code>FORCE_FACTOR</code>
+ * times the threshold is checkpointed without waiting, so a steady stream of
+ * commits can't grow it without bound. The checkpoint holds the write lock, so
+ * it never runs inside a transaction.</p>
+ *
+ * @see com.kensinclair.datacollector.DurabilityProfile
+ *
+ * @author Ken Sinclair
+ */
+
+final class CheckpointScheduler {
+    private static final boolean LOCAL_LOGD = true;
+    private static final String  TAG        = CheckpointScheduler.class.getSimpleName();
+
+    private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
+
+    private static final int    FORCE_FACTOR   = 2;
+    private static final String SQL_CHECKPOINT = "PRAGMA wal_checkpoint(RESTART)";
+
+    private final Object   mWriteLock;
+    private final Handler  mHandler;
+    private final Runnable mCheck = new Runnable() {
+        @Override public void run() { check(); }
+    };
+
+    private volatile DurabilityProfile mProfile;
+
+    private SQLiteDatabase mDb;             // Guarded by this.
+    private long           mLastCommit;     // Elapsed realtime. Guarded by this.
+    private boolean        mPosted;         // Guarded by this.
+
+    private volatile long mCheckpoints;     // Written by the scheduler thread only.
+    private volatile long mBusy;
+    private volatile long mLastDuration = -1;
+    private volatile long mMaxDuration;
+    private volatile long mTotalDuration;
+    private volatile long mWalBytes;
+    private volatile long mMaxWalBytes;
+
+    /**
+     * Constructs the scheduler and starts its thread.
+     *
+     * @param writeLock the <code>DbManager</code> write lock
+     * @param profile   the durability profile in force
+     */
+    CheckpointScheduler(Object writeLock, DurabilityProfile profile) {
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+
+        mWriteLock = writeLock;
+        mHandler   = new Handler(thread.getLooper());
+        mProfile   = profile;
+    }
+
+    /**
+     * Switches to another profile's threshold and idle time.
+     *
+     * @param profile the durability profile now in force
+     */
+    void setProfile(DurabilityProfile profile) { mProfile = profile; }
+
+    /**
+     * Notes a commit, restarting the idle wait.
+     *
+     * @param db the database committed to
+     */
+    synchronized void onCommit(SQLiteDatabase db) {
+        mDb         = db;
+        mLastCommit = SystemClock.elapsedRealtime();
+
+        if(!mPosted) {
+            mPosted = true;
+            mHandler.postDelayed(mCheck, mProfile.mCheckpointIdle);
+        }
+    }
+
+    /** @return the number of checkpoints run */
+    long getCheckpointCount() { return mCheckpoints; }
+
+    /** @return the number of checkpoints which couldn't finish because of readers */
+    long getBusyCount() { return mBusy; }
+
+    /** @return how long the last checkpoint took, in milliseconds, or -1 if none ran */
+    long getLastDuration() { return mLastDuration; }
+
+    /** @return how long the longest checkpoint took, in milliseconds */
+    long getMaxDuration() { return mMaxDuration; }
+
+    /** @return the WAL size at the last check, in bytes */
+    long getWalBytes() { return mWalBytes; }
+
+    /** @return the largest WAL size seen, in bytes */
+    long getMaxWalBytes() { return mMaxWalBytes; }
+
+    /** @return the checkpoint durations and WAL sizes so far, for the log */
+    String summarize() {
+        long checkpoints = mCheckpoints;
+
+        return mProfile + " profile, " + checkpoints + " checkpoints (" + mBusy + " busy), "
+                + (checkpoints == 0 ? 0 : mTotalDuration / checkpoints) + " ms mean, "
+                + mMaxDuration + " ms max, WAL " + mWalBytes / 1024 + " KiB now, "
+                + mMaxWalBytes / 1024 + " KiB max";
+    }
+
+    /**
+     * Checkpoints if it is due, then waits out the rest of the idle time
+     * while commits keep arriving. Runs on the scheduler's thread.
+     */
+    private void check() {
+        DurabilityProfile profile = mProfile;
+        SQLiteDatabase    db;
+        long              idle;
+
+        synchronized (this) {
+            db   = mDb;
+            idle = SystemClock.elapsedRealtime() - mLastCommit;
+        }
+
+        long wal = new File(db.getPath() + "-wal").length();
+        mWalBytes    = wal;
+        mMaxWalBytes = Math.max(mMaxWalBytes, wal);
+
+        boolean due   = wal >= profile.mCheckpointBytes;
+        boolean force = wal >= FORCE_FACTOR * profile.mCheckpointBytes;
+        if(due && (idle >= profile.mCheckpointIdle || force)) checkpoint(db, wal);
+
+        synchronized (this) {
+            long wait = profile.mCheckpointIdle - (SystemClock.elapsedRealtime() - mLastCommit);
+
+            if(wait <= 0) {                     // Idle. The next commit starts the wait again.
+                mPosted = false;
+                return;
+            }
+            mHandler.postDelayed(mCheck, wait);
+        }
+    }
+
+    private void checkpoint(SQLiteDatabase db, long wal) {
+        synchronized (mWriteLock) {
+            if(!db.isOpen()) return;            // DbManager closed it since the commit.
+
+            long    start = SystemClock.elapsedRealtime();
+            boolean busy;
+            try {
+                Cursor cursor = db.rawQuery(SQL_CHECKPOINT, null);
+                try {
+                    busy = cursor.moveToFirst() && cursor.getInt(0) != 0;
+                } finally { cursor.close(); }
+            } catch (SQLException e) {
+                Log.e(TAG, "Error checkpointing: " + e.getMessage());
+                return;
+            }
+            long duration = SystemClock.elapsedRealtime() - start;
+
+            mCheckpoints++;
+            if(busy) mBusy++;
+            mLastDuration   = duration;
+            mMaxDuration    = Math.max(mMaxDuration, duration);
+            mTotalDuration += duration;
+            mWalBytes       = new File(db.getPath() + "-wal").length();
+
+            if(LOCAL_LOGD) sLg.log("Checkpointed " + wal / 1024 + " KiB of WAL in " + duration
+                    + " ms" + (busy ? ", blocked by readers" : "") + ". " + summarize() + ".");
+        }
+    }
+}
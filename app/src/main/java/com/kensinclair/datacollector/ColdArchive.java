@@ -0,0 +1,645 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import com.kensinclair.logger.MyLog;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Moves location, network and WiFi scan rows older than a few days out of
+ * their partitions into compressed block files, and reads them back for
+ * <code>RangeQuery</code>.
+ *
+ * <p>Rows are archived oldest first, up to <code>BLOCK_ROWS</code> to a block.
+ * A block holds the rows as <code>RangeQuery</code> reads them, strings
+ * included, each value tagged with its type, deflated at the fastest level.
+ * It is appended to its kind's file for the UTC day of its first row, behind
+ * a header repeating its row count, time range, length and CRC-32, and synced.
+ * Then, in one transaction, it is indexed in <code>archive_blocks</code> and
+ * its rows are deleted. A crash in between leaves the rows live and the block
+ * unindexed, and so never read. <code>sweep</code> cuts such blocks off the
+ * ends of their files, and deletes the files holding no indexed block.</p>
+ *
+ * <p>A delta export only covers live rows, so once one has run, a partition's
+ * rows are only archived up to its watermark, however old those above it are.
+ * Until the first delta export, rows are archived by age alone, and are left
+ * to the full and columnar exports, which read the archive too. While one of
+ * those holds the archive, no more rows are moved, so its snapshot of the
+ * partitions and the blocks stays consistent. Partitions left empty are
+ * dropped. A block which fails its CRC is skipped when read, and logged.
+ * Archiving and sweeping run on the <code>RetentionEngine</code> thread only;
+ * reading is safe from any thread.</p>
+ *
+ * @see com.kensinclair.datacollector.DataDumpContract.ArchiveBlocksTable
+ *
+ * @author Ken Sinclair
+ */
+
+final class ColdArchive {
+    private static final boolean LOCAL_LOGD = true;
+    private static final String  TAG        = ColdArchive.class.getSimpleName();
+
+    private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
+
+    private static final int    BLOCK_ROWS = 4096;
+    private static final int    MAGIC      = 0x44434142;           // "DCAB".
+    private static final int    HEADER     = 32;                   // Bytes before the data.
+    private static final String EXTENSION  = ".arc";
+
+    private static final int TYPE_NULL   = 0;
+    private static final int TYPE_LONG   = 1;
+    private static final int TYPE_DOUBLE = 2;
+    private static final int TYPE_STRING = 3;
+
+    private static final String COLUMNS =
+            DataDumpContract.ArchiveBlocksTable._ID + ", " +
+            DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_KIND + ", " +
+            DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_START + ", " +
+            DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_END + ", " +
+            DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_ROWS + ", " +
+            DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_FILE + ", " +
+            DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_OFFSET + ", " +
+            DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_LENGTH + ", " +
+            DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_CRC;
+    private static final String SQL_LIST =
+            "SELECT " + COLUMNS + " FROM " + DataDumpContract.ArchiveBlocksTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_KIND + " = ? AND " +
+                        DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_END + " >= ? AND " +
+                        DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_START + " < ?" +
+            " ORDER BY " + DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_START;
+    private static final String SQL_INDEX = DataDumpContract.insertSql(
+            DataDumpContract.ArchiveBlocksTable.TABLE_NAME,
+            DataDumpContract.ArchiveBlocksTable.INSERT_COLUMNS);
+    private static final String SQL_ANY_MARK =
+            "SELECT 1 FROM " + DataDumpContract.ExportMarksTable.TABLE_NAME + " LIMIT 1";
+    private static final String SQL_MARK =
+            "SELECT " + DataDumpContract.ExportMarksTable.COLUMN_NAME_LAST_ID +
+            " FROM "  + DataDumpContract.ExportMarksTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.ExportMarksTable.COLUMN_NAME_NAME + " = ?";
+    private static final String SQL_EXPIRED_FILES =
+            "SELECT DISTINCT " + DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_FILE +
+            " FROM "  + DataDumpContract.ArchiveBlocksTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_KIND + " = ? AND " +
+                        DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_END + " < ?";
+    private static final String SQL_UNINDEX =
+            "DELETE FROM " + DataDumpContract.ArchiveBlocksTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_KIND + " = ? AND " +
+                        DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_END + " < ?";
+    private static final String SQL_FILE_USED =
+            "SELECT EXISTS (SELECT 1 FROM " + DataDumpContract.ArchiveBlocksTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_FILE + " = ?)";
+    private static final String SQL_FILE_ENDS =
+            "SELECT " + DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_FILE + ", MAX(" +
+                        DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_OFFSET + " + " +
+                        DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_LENGTH + ")" +
+            " FROM "  + DataDumpContract.ArchiveBlocksTable.TABLE_NAME +
+            " GROUP BY " + DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_FILE;
+
+    private final DbManager mDbManager;
+    private final File      mDir;
+    private final Deflater  mDeflater = new Deflater(Deflater.BEST_SPEED);  // Reused per block.
+
+    private volatile long mBlocksWritten;   // Written by the archiving thread only.
+    private volatile long mRowsArchived;
+    private volatile long mBytesWritten;
+    private volatile long mBadBlocks;       // Counted by readers. May miss a concurrent one.
+
+    private int mHolds;                     // Guarded by the write lock.
+
+    /**
+     * @param dbManager the manager owning the database and its write lock
+     * @param dir       the directory the block files are kept in
+     */
+    ColdArchive(DbManager dbManager, File dir) {
+        mDbManager = dbManager;
+        mDir       = dir;
+    }
+
+    /** @return the number of blocks written */
+    long getBlocksWritten() { return mBlocksWritten; }
+
+    /** @return the number of rows archived */
+    long getRowsArchived() { return mRowsArchived; }
+
+    /** @return the compressed bytes written, not counting block headers */
+    long getBytesWritten() { return mBytesWritten; }
+
+    /** @return the number of blocks skipped as unreadable or damaged */
+    long getBadBlocks() { return mBadBlocks; }
+
+    /**
+     * Stops rows being moved into the archive until <code>release</code>,
+     * so an export's snapshot of the partitions and the blocks agree.
+     * Must be called with the write lock held.
+     */
+    void hold() { mHolds++; }
+
+    /**
+     * Lets rows be moved into the archive again, once every
+     * <code>hold</code> is released.
+     */
+    void release() {
+        synchronized (mDbManager.getWriteLock()) {
+            mHolds--;
+        }
+    }
+
+    /**
+     * Moves a kind's rows older than a time into the archive, but none a delta
+     * export has yet to copy.
+     *
+     * @param kind   one of the <code>PartitionsTable.KIND_</code> constants
+     * @param cutoff the time, in epoch milliseconds
+     * @return       the number of rows archived
+     */
+    int archive(String kind, long cutoff) {
+        SQLiteDatabase db      = mDbManager.getDatabase();
+        long           start   = SystemClock.elapsedRealtime();
+        String[]       columns = PartitionManager.readColumns(kind);
+        String         time    = PartitionManager.COLUMN_TIME;
+        int            rows    = 0;
+        int            blocks  = 0;
+        long           bytes   = 0;
+
+        for(PartitionManager.Partition partition:
+                PartitionManager.list(db, kind, Long.MIN_VALUE, cutoff)) {
+            String table = partition.getDataTable();
+            long   maxId = Math.min(exportedId(db, table),
+                    queryLong(db, "SELECT MAX(" + BaseColumns._ID + ") FROM " + table, null));
+
+            if(maxId <= 0) continue;
+
+            StringBuilder select = new StringBuilder("SELECT ").append(BaseColumns._ID);
+            for(String column:columns) select.append(',').append(column);
+            select.append(" FROM ").append(partition.getReadTable())
+                  .append(" WHERE ").append(time).append(" < ? AND ").append(BaseColumns._ID)
+                  .append(" <= ? AND (").append(time).append(" > ? OR (").append(time)
+                  .append(" = ? AND ").append(BaseColumns._ID).append(" > ?))")
+                  .append(" ORDER BY ").append(time).append(',').append(BaseColumns._ID)
+                  .append(" LIMIT ").append(BLOCK_ROWS);
+            String delete = "DELETE FROM " + table + " WHERE " + BaseColumns._ID + " <= ? AND ("
+                    + time + " < ? OR (" + time + " = ? AND " + BaseColumns._ID + " <= ?))";
+
+            long lastTime = Long.MIN_VALUE;
+            long lastId   = -1;
+            while(true) {
+                Block block;
+
+                Cursor c = db.rawQuery(select.toString(), new String[] {
+                        Long.toString(cutoff),   Long.toString(maxId),
+                        Long.toString(lastTime), Long.toString(lastTime),
+                        Long.toString(lastId) });
+                try {
+                    if(!c.moveToFirst()) break;
+                    block = write(kind, c);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error archiving " + table + ": " + e.getMessage());
+                    return rows;
+                } finally { c.close(); }
+
+                synchronized (mDbManager.getWriteLock()) {
+                    if(mHolds > 0) {            // An export started meanwhile.
+                        truncate(block.mFile, block.mOffset);
+                        if(LOCAL_LOGD) sLg.log("Held by an export after " + rows + " rows.");
+                        return rows;
+                    }
+
+                    db.beginTransactionNonExclusive();
+                    try {
+                        SQLiteStatement index = mDbManager.getStatement(SQL_INDEX);
+                        index.bindString(1, kind);
+                        index.bindLong(2, block.mStart);
+                        index.bindLong(3, block.mEnd);
+                        index.bindLong(4, block.mRows);
+                        index.bindString(5, block.mFile);
+                        index.bindLong(6, block.mOffset);
+                        index.bindLong(7, block.mLength);
+                        index.bindLong(8, block.mCrc);
+                        index.executeInsert();
+
+                        SQLiteStatement rowsOut = mDbManager.getStatement(delete);
+                        rowsOut.bindLong(1, maxId);
+                        rowsOut.bindLong(2, block.mEnd);
+                        rowsOut.bindLong(3, block.mEnd);
+                        rowsOut.bindLong(4, block.mLastId);
+                        rowsOut.executeUpdateDelete();
+                        db.setTransactionSuccessful();
+                    } catch (SQLException e) {
+                        truncate(block.mFile, block.mOffset);   // Never indexed.
+                        throw e;
+                    } finally {
+                        db.endTransaction();
+                    }
+                    mDbManager.getCheckpointScheduler().onCommit(db);
+                }
+
+                rows    += block.mRows;
+                blocks++;
+                bytes   += block.mLength;
+                lastTime = block.mEnd;
+                lastId   = block.mLastId;
+                if(block.mRows < BLOCK_ROWS) break;
+            }
+        }
+        dropEmptyPartitions(db, kind, cutoff);
+
+        mBlocksWritten += blocks;
+        mRowsArchived  += rows;
+        mBytesWritten  += bytes;
+        if(LOCAL_LOGD && rows > 0) sLg.log("Archived " + rows + " " + kind + " rows in "
+                + blocks + " blocks of " + bytes / 1024 + " KiB in "
+                + (SystemClock.elapsedRealtime() - start) + " ms.");
+        return rows;
+    }
+
+    /**
+     * Deletes a kind's archived blocks whose rows are all older than a time,
+     * and the files left holding none.
+     *
+     * @param kind one of the <code>PartitionsTable.KIND_</code> constants
+     * @param time the time, in epoch milliseconds
+     * @return     the number of blocks deleted
+     */
+    int dropBefore(String kind, long time) {
+        SQLiteDatabase db    = mDbManager.getDatabase();
+        String[]       args  = { kind, Long.toString(time) };
+        List<String>   files = new ArrayList<>();
+        int            blocks;
+
+        synchronized (mDbManager.getWriteLock()) {
+            Cursor c = db.rawQuery(SQL_EXPIRED_FILES, args);
+            try {
+                while(c.moveToNext()) files.add(c.getString(0));
+            } finally { c.close(); }
+            if(files.isEmpty()) return 0;
+
+            SQLiteStatement unindex = mDbManager.getStatement(SQL_UNINDEX);
+            unindex.bindString(1, kind);
+            unindex.bindLong(2, time);
+            blocks = unindex.executeUpdateDelete();
+            mDbManager.getCheckpointScheduler().onCommit(db);
+        }
+
+        for(String file:files) {                // Unless later blocks are stored in it too.
+            if(queryLong(db, SQL_FILE_USED, new String[] { file }) == 0
+                    && !new File(mDir, file).delete())
+                Log.e(TAG, "Error deleting " + file + ".");
+        }
+        if(LOCAL_LOGD) sLg.log("Dropped " + blocks + " archived " + kind + " blocks ending by "
+                + Timestamps.format(time) + ".");
+        return blocks;
+    }
+
+    /**
+     * Cuts the blocks left unindexed by a crash off the end of their files,
+     * and deletes the files holding no indexed block, or any other file.
+     *
+     * @return the number of files deleted or cut
+     */
+    int sweep() {
+        File[] files = mDir.listFiles();
+        if(files == null) return 0;
+
+        Map<String, Long> ends = new HashMap<>();
+        Cursor            c    = mDbManager.getDatabase().rawQuery(SQL_FILE_ENDS, null);
+        try {
+            while(c.moveToNext()) ends.put(c.getString(0), c.getLong(1) + HEADER);
+        } finally { c.close(); }
+
+        int swept = 0;
+        for(File file:files) {
+            Long end = ends.get(file.getName());
+
+            if(end == null) {
+                if(file.delete()) swept++;
+                else              Log.e(TAG, "Error deleting " + file + ".");
+            } else if(file.length() > end) {
+                if(truncate(file.getName(), end)) swept++;
+            }
+        }
+        if(LOCAL_LOGD && swept > 0) sLg.log("Swept " + swept + " of " + files.length
+                + " archive files.");
+        return swept;
+    }
+
+    /**
+     * Lists the archived blocks of a kind holding rows in a time window.
+     *
+     * @param db   the database
+     * @param kind one of the <code>PartitionsTable.KIND_</code> constants
+     * @param from the start of the window, inclusive, in epoch milliseconds
+     * @param to   the end of the window, exclusive, in epoch milliseconds
+     * @return     the blocks, oldest first
+     */
+    static List<Block> list(SQLiteDatabase db, String kind, long from, long to) {
+        List<Block> blocks = new ArrayList<>();
+
+        Cursor c = db.rawQuery(SQL_LIST,
+                new String[] { kind, Long.toString(from), Long.toString(to) });
+        try {
+            while(c.moveToNext()) blocks.add(new Block(c));
+        } finally { c.close(); }
+        return blocks;
+    }
+
+    /**
+     * Reads a block's rows in a time window back, in the columns
+     * <code>RangeQuery</code> reads from the kind's partitions.
+     *
+     * @param block the block
+     * @param from  the start of the window, inclusive, in epoch milliseconds
+     * @param to    the end of the window, exclusive, in epoch milliseconds
+     * @return      the rows, oldest first. None if the block couldn't be read
+     */
+    Cursor read(Block block, long from, long to) {
+        String[] columns = PartitionManager.readColumns(block.mKind);
+        String[] names   = new String[columns.length + 1];
+
+        names[0] = BaseColumns._ID;
+        System.arraycopy(columns, 0, names, 1, columns.length);
+
+        MatrixCursor rows = new MatrixCursor(names, block.mRows);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(new ByteArrayInputStream(load(block)))));
+            int      count  = in.readInt();
+            Object[] row    = new Object[names.length];
+            long     id     = 0;
+            long     time   = 0;
+
+            if(count != names.length) throw new IOException("Has " + count + " columns");
+            for(int i = 0; i < block.mRows; i++) {
+                id   += in.readLong();
+                time += in.readLong();
+                row[0] = id;
+                row[1] = time;
+                for(int j = 2; j < row.length; j++) row[j] = readValue(in);
+
+                if(time >= from && time < to) rows.addRow(row);
+            }
+        } catch (IOException e) {
+            mBadBlocks++;
+            Log.e(TAG, "Error reading archived block " + block.mId + " of " + block.mFile
+                    + ": " + e.getMessage());
+            return new MatrixCursor(names, 0);
+        }
+        return rows;
+    }
+
+    /**
+     * Finds the latest WiFi scan keyframe archived at or before a time.
+     *
+     * @param db   the database
+     * @param time the time, in epoch milliseconds
+     * @return     the keyframe's time, or <code>Long.MIN_VALUE</code> if there is none
+     */
+    long lastKeyframe(SQLiteDatabase db, long time) {
+        List<Block> blocks = list(db, DataDumpContract.PartitionsTable.KIND_WIFI_SCAN,
+                                  Long.MIN_VALUE, time + 1);
+
+        for(int i = blocks.size() - 1; i >= 0; i--) {              // Newest block first.
+            Cursor c = read(blocks.get(i), Long.MIN_VALUE, time + 1);
+            try {
+                int event = c.getColumnIndex(DataDumpContract.WifiScanTable.COLUMN_NAME_EVENT);
+
+                for(boolean row = c.moveToLast(); row; row = c.moveToPosition(c.getPosition() - 1))
+                    if(c.getInt(event) == DataDumpContract.WifiScanTable.EVENT_KEYFRAME)
+                        return c.getLong(1);
+            } finally { c.close(); }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /** Encodes, compresses and appends a block of rows, and syncs the file. */
+    private Block write(String kind, Cursor c) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream      out        = new DataOutputStream(
+                new DeflaterOutputStream(compressed, mDeflater, 8192));
+        int                   columns    = c.getColumnCount();
+        int                   rows       = 0;
+        long                  start      = c.getLong(1);
+        long                  id         = 0;
+        long                  time       = 0;
+
+        mDeflater.reset();
+        out.writeInt(columns);
+        do {                                    // _ID and time as deltas, which deflate well.
+            out.writeLong(c.getLong(0) - id);
+            out.writeLong(c.getLong(1) - time);
+            id   = c.getLong(0);
+            time = c.getLong(1);
+            for(int j = 2; j < columns; j++) writeValue(out, c, j);
+            rows++;
+        } while(c.moveToNext());
+        out.close();
+
+        byte[] bytes = compressed.toByteArray();
+        CRC32  crc   = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        String name   = kind + "-" + start / RetentionPolicy.DAY + EXTENSION;
+        File   file   = new File(mDir, name);
+        if(!mDir.isDirectory() && !mDir.mkdirs()) throw new IOException("Can't create " + mDir);
+
+        long             offset = file.length();
+        FileOutputStream stream = new FileOutputStream(file, true);
+        try {
+            DataOutputStream header = new DataOutputStream(stream);
+            header.writeInt(MAGIC);
+            header.writeInt(rows);
+            header.writeLong(start);
+            header.writeLong(time);
+            header.writeInt(bytes.length);
+            header.writeInt((int) crc.getValue());
+            header.write(bytes);
+            stream.getFD().sync();
+        } finally { stream.close(); }
+
+        return new Block(-1, kind, start, time, rows, name, offset, bytes.length,
+                         (int) crc.getValue(), id);
+    }
+
+    /** Cuts a file back to a length, dropping the blocks appended past it. */
+    private boolean truncate(String name, long length) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(new File(mDir, name), "rw");
+            try {
+                file.setLength(length);
+                file.getFD().sync();
+            } finally { file.close(); }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error truncating " + name + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Reads a block's compressed bytes, checking them against its index row. */
+    private byte[] load(Block block) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(mDir, block.mFile), "r");
+        try {
+            file.seek(block.mOffset);
+            if(file.readInt() != MAGIC)        throw new IOException("No block header");
+            if(file.readInt() != block.mRows)  throw new IOException("Row count differs");
+            file.readLong();                    // The time range, as indexed.
+            file.readLong();
+            if(file.readInt() != block.mLength) throw new IOException("Length differs");
+            int    expected = file.readInt();
+            byte[] bytes    = new byte[block.mLength];
+            file.readFully(bytes);
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            if((int) crc.getValue() != expected || expected != block.mCrc)
+                throw new IOException("Bad CRC");
+            return bytes;
+        } finally { file.close(); }
+    }
+
+    /** Drops the oldest partitions left empty, up to the first holding rows. */
+    private void dropEmptyPartitions(SQLiteDatabase db, String kind, long cutoff) {
+        synchronized (mDbManager.getWriteLock()) {  // No row may land in them meanwhile.
+            long end = Long.MIN_VALUE;
+
+            for(PartitionManager.Partition partition:
+                    PartitionManager.list(db, kind, Long.MIN_VALUE, cutoff)) {
+                if(partition.mEnd > cutoff || queryLong(db, "SELECT EXISTS (SELECT 1 FROM "
+                        + partition.getDataTable() + ")", null) != 0) break;
+                end = partition.mEnd;
+            }
+            if(end != Long.MIN_VALUE) mDbManager.getPartitionManager().dropBefore(kind, end);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Cursor c, int column)
+            throws IOException {
+        switch(c.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                out.writeByte(TYPE_NULL);
+                break;
+            case Cursor.FIELD_TYPE_INTEGER:
+                out.writeByte(TYPE_LONG);
+                out.writeLong(c.getLong(column));
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                out.writeByte(TYPE_DOUBLE);
+                out.writeDouble(c.getDouble(column));
+                break;
+            default:                            // No collected column is a BLOB.
+                out.writeByte(TYPE_STRING);
+                out.writeUTF(c.getString(column));
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte();
+
+        switch(type) {
+            case TYPE_NULL:   return null;
+            case TYPE_LONG:   return in.readLong();
+            case TYPE_DOUBLE: return in.readDouble();
+            case TYPE_STRING: return in.readUTF();
+            default:          throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    /** @return the first column of the first row, or <code>Long.MIN_VALUE</code> if none */
+    /**
+     * Finds how far delta exports have copied a table.
+     *
+     * @param db    the database
+     * @param table the partition's data table
+     * @return      the highest <code>_ID</code> copied, 0 if none has been, or
+     *              <code>Long.MAX_VALUE</code> if no delta export has run
+     */
+    private static long exportedId(SQLiteDatabase db, String table) {
+        if(queryLong(db, SQL_ANY_MARK, null) == Long.MIN_VALUE) return Long.MAX_VALUE;
+
+        long mark = queryLong(db, SQL_MARK, new String[] { table });
+        return mark == Long.MIN_VALUE ? 0 : mark;
+    }
+
+    private static long queryLong(SQLiteDatabase db, String sql, String[] args) {
+        Cursor c = db.rawQuery(sql, args);
+        try {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : Long.MIN_VALUE;
+        } finally { c.close(); }
+    }
+
+    /**
+     * One archived block.
+     */
+    static final class Block {
+        final long   mId;
+        final String mKind;
+        final long   mStart;                // Inclusive.
+        final long   mEnd;                  // Inclusive.
+        final int    mRows;
+        final String mFile;                 // In the archive directory.
+        final long   mOffset;
+        final int    mLength;               // Compressed, without the header.
+        final int    mCrc;
+
+        private final long mLastId;         // While archiving only.
+
+        private Block(long id, String kind, long start, long end, int rows, String file,
+                      long offset, int length, int crc, long lastId) {
+            mId     = id;
+            mKind   = kind;
+            mStart  = start;
+            mEnd    = end;
+            mRows   = rows;
+            mFile   = file;
+            mOffset = offset;
+            mLength = length;
+            mCrc    = crc;
+            mLastId = lastId;
+        }
+
+        /** Reads a row of the archive blocks table, in the order of <code>COLUMNS</code>. */
+        private Block(Cursor c) {
+            this(c.getLong(0), c.getString(1), c.getLong(2), c.getLong(3), c.getInt(4),
+                 c.getString(5), c.getLong(6), c.getInt(7), c.getInt(8), -1);
+        }
+    }
+}
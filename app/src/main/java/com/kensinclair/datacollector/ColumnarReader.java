@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams a file written by <code>ColumnarWriter</code>, one table and one
+ * block at a time. Blocks outside a requested time range are skipped
+ * by their length without being decoded.
+ *
+ * <pre>
+ *     while(reader.nextTable()) {
+ *         ColumnarReader.Block block;
+ *         while((block = reader.nextBlock(from, to)) != null) { ... }
+ *     }
+ * </pre>
+ *
+ * @see com.kensinclair.datacollector.ColumnarWriter
+ *
+ * @author Ken Sinclair
+ */
+
+final class ColumnarReader implements Closeable {
+    private final DataInputStream mIn;
+
+    private boolean  mInTable;
+    private boolean  mEof;
+    private String   mTableName;
+    private String[] mColumns;
+    private int[]    mTypes;
+    private double[] mScales;
+    private int      mTimeColumn;
+    private long     mBlocksRead;
+    private long     mBlocksSkipped;
+
+    /**
+     * Opens a file.
+     *
+     * @param in the file. Buffer it
+     * @throws IOException if it is not a file this reader understands
+     */
+    ColumnarReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(in);
+
+        if(mIn.readInt() != ColumnarWriter.MAGIC) throw new IOException("Not a columnar export.");
+
+        long version = readVarLong(mIn);
+        if(version != ColumnarWriter.VERSION)
+            throw new IOException("Unsupported columnar export version " + version + ".");
+    }
+
+    /**
+     * Moves to the next table, skipping whatever is left of the current one.
+     *
+     * @return <code>false</code> at the end of the file
+     * @throws IOException if the file could not be read
+     */
+    boolean nextTable() throws IOException {
+        while(mInTable) nextBlock(Long.MIN_VALUE, Long.MIN_VALUE);   // An empty range.
+        if(mEof) return false;
+
+        int mark = mIn.readUnsignedByte();
+        if(mark == ColumnarWriter.MARK_EOF) {
+            mEof = true;
+            return false;
+        }
+        if(mark != ColumnarWriter.MARK_TABLE) throw new IOException("Bad table mark " + mark + ".");
+
+        mTableName = readString(mIn);
+
+        int columns = (int) readVarLong(mIn);
+        mColumns = new String[columns];
+        mTypes   = new int[columns];
+        mScales  = new double[columns];
+        for(int i = 0; i < columns; i++) {
+            mColumns[i] = readString(mIn);
+            mTypes[i]   = mIn.readUnsignedByte();
+            if(mTypes[i] == ColumnarWriter.TYPE_SCALED) mScales[i] = Math.pow(10, readVarLong(mIn));
+        }
+        mTimeColumn = (int) readVarLong(mIn) - 1;
+        mInTable    = true;
+        return true;
+    }
+
+    /** @return the current table's name */
+    String getTableName() { return mTableName; }
+
+    /** @return the current table's column names */
+    String[] getColumnNames() { return mColumns; }
+
+    /** @return the index of the current table's time column, or -1 if it has none */
+    int getTimeColumn() { return mTimeColumn; }
+
+    /** @return blocks decoded so far */
+    long getBlocksRead() { return mBlocksRead; }
+
+    /** @return blocks skipped so far without being decoded */
+    long getBlocksSkipped() { return mBlocksSkipped; }
+
+    /**
+     * Reads the current table's next block holding any time in a range.
+     * The block may also hold rows outside the range.
+     *
+     * @param from the start of the range, inclusive
+     * @param to   the end of the range, exclusive
+     * @return     the block, or <code>null</code> at the end of the table
+     * @throws IOException if the file could not be read
+     */
+    Block nextBlock(long from, long to) throws IOException {
+        while(mInTable) {
+            int mark = mIn.readUnsignedByte();
+            if(mark == ColumnarWriter.MARK_END) {
+                mInTable = false;
+                break;
+            }
+            if(mark != ColumnarWriter.MARK_BLOCK)
+                throw new IOException("Bad block mark " + mark + " in " + mTableName + ".");
+
+            int  rows    = (int) readVarLong(mIn);
+            long minTime = mIn.readLong();
+            long maxTime = mIn.readLong();
+            int  length  = (int) readVarLong(mIn);
+
+            if(mTimeColumn >= 0 && (maxTime < from || minTime >= to)) {
+                skipFully(length);
+                mBlocksSkipped++;
+                continue;
+            }
+            mBlocksRead++;
+            return readBlock(rows, minTime, maxTime);
+        }
+        return null;
+    }
+
+    @Override public void close() throws IOException { mIn.close(); }
+
+    /** Decodes a block's columns. */
+    private Block readBlock(int rows, long minTime, long maxTime) throws IOException {
+        Block block = new Block(this, rows, minTime, maxTime);
+
+        for(int i = 0; i < mColumns.length; i++) {
+            boolean[] nulls = new boolean[rows];
+
+            if(readVarLong(mIn) > 0) {
+                for(int r = 0; r < rows; r += 8) {
+                    int bits = mIn.readUnsignedByte();
+
+                    for(int b = 0; b < 8 && r + b < rows; b++)
+                        nulls[r + b] = (bits & 1 << b) != 0;
+                }
+            }
+            block.mNulls[i] = nulls;
+
+            switch(mTypes[i]) {
+                case ColumnarWriter.TYPE_LONG:
+                case ColumnarWriter.TYPE_SCALED: {
+                    long[] values = new long[rows];
+                    long   prev   = 0;
+
+                    for(int r = 0; r < rows; r++) {
+                        if(nulls[r]) continue;
+                        prev     += unzigzag(readVarLong(mIn));
+                        values[r] = prev;
+                    }
+                    block.mLongs[i] = values;
+                    break;
+                }
+                case ColumnarWriter.TYPE_DOUBLE: {
+                    double[] values = new double[rows];
+                    for(int r = 0; r < rows; r++) if(!nulls[r]) values[r] = mIn.readDouble();
+                    block.mDoubles[i] = values;
+                    break;
+                }
+                case ColumnarWriter.TYPE_STRING: {
+                    String[] dictionary = new String[(int) readVarLong(mIn)];
+                    String[] values     = new String[rows];
+
+                    for(int d = 0; d < dictionary.length; d++) dictionary[d] = readString(mIn);
+                    for(int r = 0; r < rows; r++)
+                        if(!nulls[r]) values[r] = dictionary[(int) readVarLong(mIn)];
+                    block.mStrings[i] = values;
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown column type " + mTypes[i] + ".");
+            }
+        }
+        return block;
+    }
+
+    /** Skips bytes, which <code>skipBytes</code> may not do all at once. */
+    private void skipFully(int length) throws IOException {
+        while(length > 0) {
+            int skipped = mIn.skipBytes(length);
+
+            if(skipped <= 0) {
+                mIn.readByte();                     // Throws at the end of the file.
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    /**
+     * Reverses <code>ColumnarWriter.zigzag</code>.
+     *
+     * @param value an encoded value
+     * @return      the signed value
+     */
+    static long unzigzag(long value) { return (value >>> 1) ^ -(value & 1); }
+
+    /**
+     * Reads a value written by <code>ColumnarWriter.writeVarLong</code>.
+     *
+     * @param in where it is read from
+     * @return   the value
+     * @throws IOException if it could not be read or is malformed
+     */
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint.");
+    }
+
+    /** Reads a string written as its UTF-8 length and bytes. */
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, ColumnarWriter.UTF_8);
+    }
+
+    /**
+     * A decoded block of rows from one table.
+     */
+    static final class Block {
+        final int  mRows;
+        final long mMinTime;
+        final long mMaxTime;
+
+        private final int[]       mTypes;
+        private final double[]    mScales;
+        private final int         mTimeColumn;
+        private final boolean[][] mNulls;
+        private final long[][]    mLongs;
+        private final double[][]  mDoubles;
+        private final String[][]  mStrings;
+
+        private Block(ColumnarReader reader, int rows, long minTime, long maxTime) {
+            int columns = reader.mColumns.length;
+
+            mRows       = rows;
+            mMinTime    = minTime;
+            mMaxTime    = maxTime;
+            mTypes      = reader.mTypes;
+            mScales     = reader.mScales;
+            mTimeColumn = reader.mTimeColumn;
+            mNulls      = new boolean[columns][];
+            mLongs      = new long[columns][];
+            mDoubles    = new double[columns][];
+            mStrings    = new String[columns][];
+        }
+
+        boolean isNull(int column, int row) { return mNulls[column][row]; }
+
+        long getLong(int column, int row) {
+            if(mTypes[column] == ColumnarWriter.TYPE_LONG) return mLongs[column][row];
+            return (long) getDouble(column, row);
+        }
+
+        double getDouble(int column, int row) {
+            switch(mTypes[column]) {
+                case ColumnarWriter.TYPE_SCALED: return mLongs[column][row] / mScales[column];
+                case ColumnarWriter.TYPE_DOUBLE: return mDoubles[column][row];
+                case ColumnarWriter.TYPE_STRING: return Double.parseDouble(mStrings[column][row]);
+                default:                         return mLongs[column][row];
+            }
+        }
+
+        String getString(int column, int row) {
+            if(mTypes[column] == ColumnarWriter.TYPE_STRING) return mStrings[column][row];
+            if(mNulls[column][row])                          return null;
+            return mTypes[column] == ColumnarWriter.TYPE_LONG
+                    ? Long.toString(mLongs[column][row])
+                    : Double.toString(getDouble(column, row));
+        }
+
+        /**
+         * @param row the row in the block
+         * @return    the row's time, or <code>Long.MIN_VALUE</code> if it has none
+         */
+        long getTime(int row) {
+            if(mTimeColumn < 0 || mNulls[mTimeColumn][row]) return Long.MIN_VALUE;
+            return mLongs[mTimeColumn][row];
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.Cursor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes tables in a compact, column-oriented binary format.
+ *
+ * <p>Each table is written as a header followed by blocks of up to
+ * <code>BLOCK_ROWS</code> rows. A block starts with its row count, the least
+ * and greatest value of the table's time column and its length, so a reader can
+ * skip it without decoding. Inside a block the values are stored column by
+ * column, each column led by a bitmap of its nulls when it has any:</p>
+ * <ul>
+ *     <li><code>TYPE_LONG</code>: the difference from the previous value,
+ *         zigzag-encoded then written as a varint.</li>
+ *     <li><code>TYPE_SCALED</code>: a REAL multiplied by a power of ten and
+ *         rounded, then encoded like <code>TYPE_LONG</code>. Lossy below the scale.</li>
+ *     <li><code>TYPE_DOUBLE</code>: a REAL as its 8 raw bytes.</li>
+ *     <li><code>TYPE_STRING</code>: the block's distinct values once, then each
+ *         row's index among them as a varint. Addresses stored as INTEGER
+ *         are written formatted by <code>MacAddresses</code>.</li>
+ * </ul>
+ * <p>Every block is self-contained: deltas and dictionaries start over in each.</p>
+ *
+ * @see com.kensinclair.datacollector.ColumnarReader
+ *
+ * @author Ken Sinclair
+ */
+
+final class ColumnarWriter implements Closeable {
+    static final int MAGIC   = 0x44434346;     // "DCCF"
+    static final int VERSION = 1;
+
+    static final int MARK_TABLE = 'T';
+    static final int MARK_BLOCK = 'B';
+    static final int MARK_END   = 'E';        // Ends a table.
+    static final int MARK_EOF   = 'Z';
+
+    static final int TYPE_LONG   = 1;
+    static final int TYPE_SCALED = 2;
+    static final int TYPE_DOUBLE = 3;
+    static final int TYPE_STRING = 4;
+
+    static final int     BLOCK_ROWS = 4096;
+    static final Charset UTF_8      = Charset.forName("UTF-8");
+
+    private final DataOutputStream      mOut;
+    private final ByteArrayOutputStream mBlock    = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream      mBlockOut = new DataOutputStream(mBlock);
+
+    private int[]       mTypes;
+    private boolean[]   mAddresses;
+    private double[]    mScales;
+    private int         mTimeColumn;
+    private int         mRows;
+    private boolean[][] mNulls;
+    private long[][]    mLongs;
+    private double[][]  mDoubles;
+    private String[][]  mStrings;
+
+    /**
+     * Starts a file.
+     *
+     * @param out where the file is written. Buffer it
+     * @throws IOException if it could not be written
+     */
+    ColumnarWriter(OutputStream out) throws IOException {
+        mOut = new DataOutputStream(out);
+        mOut.writeInt(MAGIC);
+        writeVarLong(mOut, VERSION);
+    }
+
+    /**
+     * Starts a table.
+     *
+     * @param name       the table name
+     * @param columns    the column names
+     * @param types      each column's <code>TYPE_</code> constant
+     * @param scales     each <code>TYPE_SCALED</code> column's decimal digits. Ignored otherwise
+     * @param timeColumn the index of the time column, or -1 if there is none
+     * @throws IOException if it could not be written
+     */
+    void beginTable(String name, String[] columns, int[] types, int[] scales, int timeColumn)
+            throws IOException {
+        mOut.writeByte(MARK_TABLE);
+        writeString(mOut, name);
+        writeVarLong(mOut, columns.length);
+        for(int i = 0; i < columns.length; i++) {
+            writeString(mOut, columns[i]);
+            mOut.writeByte(types[i]);
+            if(types[i] == TYPE_SCALED) writeVarLong(mOut, scales[i]);
+        }
+        writeVarLong(mOut, timeColumn + 1);
+
+        mTypes      = types;
+        mAddresses  = new boolean[columns.length];
+        mScales     = new double[columns.length];
+        mTimeColumn = timeColumn;
+        mRows       = 0;
+        mNulls      = new boolean[columns.length][BLOCK_ROWS];
+        mLongs      = new long[columns.length][];
+        mDoubles    = new double[columns.length][];
+        mStrings    = new String[columns.length][];
+
+        for(int i = 0; i < columns.length; i++) {
+            mAddresses[i] = MacAddresses.isAddressColumn(columns[i]);
+            switch(types[i]) {
+                case TYPE_SCALED: mScales[i] = Math.pow(10, scales[i]);  // Falls through.
+                case TYPE_LONG:   mLongs[i]   = new long[BLOCK_ROWS];   break;
+                case TYPE_DOUBLE: mDoubles[i] = new double[BLOCK_ROWS]; break;
+                case TYPE_STRING: mStrings[i] = new String[BLOCK_ROWS]; break;
+            }
+        }
+    }
+
+    /**
+     * Adds a row to the current table.
+     *
+     * @param row a cursor positioned on the row, with the table's columns in order
+     * @throws IOException if a full block could not be written
+     */
+    void addRow(Cursor row) throws IOException {
+        for(int i = 0; i < mTypes.length; i++) {
+            boolean isNull = row.isNull(i);
+
+            mNulls[i][mRows] = isNull;
+            if(isNull) continue;
+
+            switch(mTypes[i]) {
+                case TYPE_LONG:   mLongs[i][mRows]   = row.getLong(i);   break;
+                case TYPE_DOUBLE: mDoubles[i][mRows] = row.getDouble(i); break;
+                case TYPE_STRING: mStrings[i][mRows] = getString(row, i); break;
+                default:          mLongs[i][mRows]   = Math.round(row.getDouble(i) * mScales[i]);
+            }
+        }
+        if(++mRows == BLOCK_ROWS) writeBlock();
+    }
+
+    /** Reads a value as text, formatting an address stored as its bits. */
+    private String getString(Cursor row, int column) {
+        if(mAddresses[column] && row.getType(column) == Cursor.FIELD_TYPE_INTEGER)
+            return MacAddresses.format(row.getLong(column));
+        return row.getString(column);
+    }
+
+    /**
+     * Ends the current table.
+     *
+     * @throws IOException if it could not be written
+     */
+    void endTable() throws IOException {
+        if(mRows > 0) writeBlock();
+        mOut.writeByte(MARK_END);
+    }
+
+    /**
+     * Ends the file and flushes it, leaving the stream open so the caller
+     * can sync it.
+     *
+     * @throws IOException if it could not be written
+     */
+    void finish() throws IOException {
+        mOut.writeByte(MARK_EOF);
+        mOut.flush();
+    }
+
+    /**
+     * Ends the file and closes the stream.
+     *
+     * @throws IOException if it could not be written
+     */
+    @Override public void close() throws IOException {
+        try {
+            finish();
+        } finally { mOut.close(); }
+    }
+
+    /** Writes the buffered rows as a block. */
+    private void writeBlock() throws IOException {
+        long minTime = Long.MAX_VALUE;              // Left inverted when no row has a time,
+        long maxTime = Long.MIN_VALUE;              //  so the block matches no time range.
+
+        if(mTimeColumn >= 0) {
+            for(int r = 0; r < mRows; r++) {
+                if(mNulls[mTimeColumn][r]) continue;
+                minTime = Math.min(minTime, mLongs[mTimeColumn][r]);
+                maxTime = Math.max(maxTime, mLongs[mTimeColumn][r]);
+            }
+        }
+
+        mBlock.reset();
+        for(int i = 0; i < mTypes.length; i++) writeColumn(i);
+        mBlockOut.flush();
+
+        mOut.writeByte(MARK_BLOCK);
+        writeVarLong(mOut, mRows);
+        mOut.writeLong(minTime);
+        mOut.writeLong(maxTime);
+        writeVarLong(mOut, mBlock.size());
+        mBlock.writeTo(mOut);
+
+        mRows = 0;
+    }
+
+    /** Encodes one column of the buffered rows into the block. */
+    private void writeColumn(int column) throws IOException {
+        boolean[] nulls     = mNulls[column];
+        int       nullCount = 0;
+
+        for(int r = 0; r < mRows; r++) if(nulls[r]) nullCount++;
+        writeVarLong(mBlockOut, nullCount);
+        if(nullCount > 0) {
+            for(int r = 0; r < mRows; r += 8) {
+                int bits = 0;
+                for(int b = 0; b < 8 && r + b < mRows; b++) if(nulls[r + b]) bits |= 1 << b;
+                mBlockOut.writeByte(bits);
+            }
+        }
+
+        switch(mTypes[column]) {
+            case TYPE_LONG:
+            case TYPE_SCALED: {
+                long[] values = mLongs[column];
+                long   prev   = 0;
+
+                for(int r = 0; r < mRows; r++) {
+                    if(nulls[r]) continue;
+                    writeVarLong(mBlockOut, zigzag(values[r] - prev));
+                    prev = values[r];
+                }
+                break;
+            }
+            case TYPE_DOUBLE: {
+                double[] values = mDoubles[column];
+                for(int r = 0; r < mRows; r++) if(!nulls[r]) mBlockOut.writeDouble(values[r]);
+                break;
+            }
+            case TYPE_STRING: {
+                String[]             values     = mStrings[column];
+                Map<String, Integer> dictionary = new HashMap<>();
+                int[]                indexes    = new int[mRows];
+
+                for(int r = 0; r < mRows; r++) {
+                    if(nulls[r]) continue;
+
+                    Integer index = dictionary.get(values[r]);
+                    if(index == null) {
+                        index = dictionary.size();
+                        dictionary.put(values[r], index);
+                    }
+                    indexes[r] = index;
+                }
+
+                String[] entries = new String[dictionary.size()];
+                for(Map.Entry<String, Integer> entry:dictionary.entrySet())
+                    entries[entry.getValue()] = entry.getKey();
+
+                writeVarLong(mBlockOut, entries.length);
+                for(String entry:entries) writeString(mBlockOut, entry);
+                for(int r = 0; r < mRows; r++) if(!nulls[r]) writeVarLong(mBlockOut, indexes[r]);
+
+                for(int r = 0; r < mRows; r++) values[r] = null;  // Don't hold on to strings.
+                break;
+            }
+        }
+    }
+
+    /**
+     * Maps signed values to unsigned so that small magnitudes stay small.
+     *
+     * @param value a signed value
+     * @return      0, -1, 1, -2, 2... as 0, 1, 2, 3, 4...
+     */
+    static long zigzag(long value) { return (value << 1) ^ (value >> 63); }
+
+    /**
+     * Writes an unsigned value seven bits per byte, least significant first,
+     * the high bit set on every byte but the last.
+     *
+     * @param out   where it is written
+     * @param value the value, taken as unsigned
+     * @throws IOException if it could not be written
+     */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /** Writes a string as its UTF-8 length and bytes. */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+}
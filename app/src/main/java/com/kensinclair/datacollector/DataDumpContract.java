@@ -28,15 +28,126 @@ final class DataDumpContract {
     /** Prevents an instance from being accidentally instantiated. */
     private DataDumpContract() {}
 
+    /**
+     * Builds a parameterized INSERT statement for a table.
+     * Bind positions follow the order of <code>columns</code>, starting at 1.
+     *
+     * @param table   the name of the table
+     * @param columns the columns to be bound, normally a table's <code>INSERT_COLUMNS</code>
+     * @return        the INSERT SQL
+     */
+    static String insertSql(String table, String[] columns) {
+        StringBuilder sql    = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder values = new StringBuilder(" VALUES (");
+
+        for(int i = 0; i < columns.length; i++) {
+            if(i > 0) {
+                sql.append(',');
+                values.append(',');
+            }
+            sql.append(columns[i]);
+            values.append('?');
+        }
+        return sql.append(')').append(values).append(')').toString();
+    }
+
     /**
      * Accounts table.
      */
 
     public static abstract class AccountsTable implements BaseColumns {
-        public static final String COLUMN_NAME_NAME = "name";
-        public static final String COLUMN_NAME_TIME = "time";
-        public static final String COLUMN_NAME_TYPE = "type";
-        public static final String TABLE_NAME       = "accounts";
+        public static final String COLUMN_NAME_NAME  = "name";
+        public static final String COLUMN_NAME_TIME  = "time";
+        public static final String COLUMN_NAME_TYPE  = "type";
+        public static final String COLUMN_NAME_EVENT = "event";
+        public static final String TABLE_NAME        = "accounts";
+
+        /** A row of the whole account set, written when there is no previous set to diff. */
+        public static final int EVENT_SNAPSHOT = 0;
+        /** An account which was not in the previous set. */
+        public static final int EVENT_ADDED    = 1;
+        /** An account which was in the previous set but is gone. */
+        public static final int EVENT_REMOVED  = 2;
+
+        /** Columns written on insert, in bind order. */
+        static final String[] INSERT_COLUMNS = {
+                COLUMN_NAME_TIME,
+                COLUMN_NAME_NAME,
+                COLUMN_NAME_TYPE,
+                COLUMN_NAME_EVENT
+        };
+    }
+
+    /**
+     * Archive blocks table. Indexes the compressed blocks of rows moved out of
+     * the partitions of each kind into archive files, with the time range of
+     * the rows in each block and where in which file it is stored.
+     */
+
+    public static abstract class ArchiveBlocksTable implements BaseColumns {
+        public static final String COLUMN_NAME_CRC    = "crc";          // Of the stored bytes.
+        public static final String COLUMN_NAME_END    = "end_time";     // Inclusive.
+        public static final String COLUMN_NAME_FILE   = "file";
+        public static final String COLUMN_NAME_KIND   = "kind";         // PartitionsTable.KIND_.
+        public static final String COLUMN_NAME_LENGTH = "byte_length";
+        public static final String COLUMN_NAME_OFFSET = "byte_offset";
+        public static final String COLUMN_NAME_ROWS   = "row_count";
+        public static final String COLUMN_NAME_START  = "start_time";   // Inclusive.
+        public static final String TABLE_NAME         = "archive_blocks";
+
+        /** Columns written on insert, in bind order. */
+        static final String[] INSERT_COLUMNS = {
+                COLUMN_NAME_KIND,
+                COLUMN_NAME_START,
+                COLUMN_NAME_END,
+                COLUMN_NAME_ROWS,
+                COLUMN_NAME_FILE,
+                COLUMN_NAME_OFFSET,
+                COLUMN_NAME_LENGTH,
+                COLUMN_NAME_CRC
+        };
+    }
+
+    /**
+     * Export marks table. One row per exported table, holding the highest
+     * <code>_ID</code> covered by the delta export segments written so far.
+     */
+
+    public static abstract class ExportMarksTable implements BaseColumns {
+        public static final String COLUMN_NAME_LAST_ID = "last_id";
+        public static final String COLUMN_NAME_NAME    = "name";
+        public static final String COLUMN_NAME_SEGMENT = "segment";
+        public static final String COLUMN_NAME_TIME    = "time";
+        public static final String TABLE_NAME          = "export_marks";
+    }
+
+    /**
+     * Hourly rollups table. One row per hour in which anything was collected,
+     * holding exact counts of what was, and an approximate count of the distinct
+     * BSSIDs scanned, kept up to date by <code>HourlyRollups</code> as rows are written.
+     */
+
+    public static abstract class HourlyRollupsTable implements BaseColumns {
+        public static final String COLUMN_NAME_BSSIDS    = "distinct_bssids";  // Estimated.
+        public static final String COLUMN_NAME_HOUR      = "hour";             // Its start.
+        public static final String COLUMN_NAME_LOCATIONS = "locations";
+        public static final String COLUMN_NAME_NETWORK   = "network_changes";
+        public static final String COLUMN_NAME_RESULTS   = "scan_results";
+        public static final String COLUMN_NAME_SCANS     = "scans";
+        public static final String COLUMN_NAME_SKETCH    = "bssid_sketch";     // CardinalitySketch.
+        public static final String COLUMN_NAME_WIFI_CON  = "wifi_connections";
+        public static final String TABLE_NAME            = "hourly_rollups";
+
+        /** Columns read back, the hour first. */
+        static final String[] READ_COLUMNS = {
+                COLUMN_NAME_HOUR,
+                COLUMN_NAME_LOCATIONS,
+                COLUMN_NAME_NETWORK,
+                COLUMN_NAME_WIFI_CON,
+                COLUMN_NAME_SCANS,
+                COLUMN_NAME_RESULTS,
+                COLUMN_NAME_BSSIDS
+        };
     }
 
     /**
@@ -52,19 +163,147 @@ final class DataDumpContract {
         public static final String COLUMN_NAME_SPEED   = "speed";
         public static final String COLUMN_NAME_TIME    = "time";
         public static final String TABLE_NAME          = "location";
+
+        /** Columns written on insert, in bind order. */
+        static final String[] INSERT_COLUMNS = {
+                COLUMN_NAME_TIME,
+                COLUMN_NAME_LAT,
+                COLUMN_NAME_LNG,
+                COLUMN_NAME_BEARING,
+                COLUMN_NAME_SPEED,
+                COLUMN_NAME_ALT,
+                COLUMN_NAME_ACC
+        };
+    }
+
+    /**
+     * Migrations table. One row per schema step and per background unit
+     * of a migration, recording progress and timing.
+     */
+
+    public static abstract class MigrationsTable implements BaseColumns {
+        public static final String COLUMN_NAME_ELAPSED  = "elapsed_ms";
+        public static final String COLUMN_NAME_FINISHED = "finished";
+        public static final String COLUMN_NAME_LAST_ID  = "last_id";
+        public static final String COLUMN_NAME_NAME     = "name";
+        public static final String COLUMN_NAME_ROWS     = "rows";
+        public static final String COLUMN_NAME_STARTED  = "started";
+        public static final String COLUMN_NAME_STATE    = "state";
+        public static final String COLUMN_NAME_UNIT     = "unit";
+        public static final String COLUMN_NAME_VERSION  = "version";
+        public static final String TABLE_NAME           = "migrations";
+
+        public static final int STATE_PENDING = 0;
+        public static final int STATE_DONE    = 1;
+
+        /** Unit name recorded for a migration's schema step. */
+        public static final String UNIT_SCHEMA = "schema";
     }
 
     /**
-     * Network table.
+     * Network table. Rows are written to <code>DATA_TABLE_NAME</code> with their
+     * strings interned, and read from the <code>TABLE_NAME</code> view,
+     * which joins the strings back.
      */
 
     public static abstract class NetworkTable implements BaseColumns {
-        public static final String COLUMN_NAME_REASON  = "reason";
-        public static final String COLUMN_NAME_STATE   = "state";
-        public static final String COLUMN_NAME_SUBTYPE = "subtype";
-        public static final String COLUMN_NAME_TIME    = "time";
+        public static final String COLUMN_NAME_REASON     = "reason";
+        public static final String COLUMN_NAME_REASON_ID  = "reason_id";
+        public static final String COLUMN_NAME_STATE      = "state";
+        public static final String COLUMN_NAME_STATE_ID   = "state_id";
+        public static final String COLUMN_NAME_SUBTYPE    = "subtype";
+        public static final String COLUMN_NAME_SUBTYPE_ID = "subtype_id";
+        public static final String COLUMN_NAME_TIME       = "time";
+        public static final String COLUMN_NAME_TYPE       = "type";
+        public static final String COLUMN_NAME_TYPE_ID    = "type_id";
+        public static final String DATA_TABLE_NAME        = "network_data";
+        public static final String TABLE_NAME             = "network";
+
+        /** Columns written on insert, in bind order. */
+        static final String[] INSERT_COLUMNS = {
+                COLUMN_NAME_TIME,
+                COLUMN_NAME_TYPE_ID,
+                COLUMN_NAME_SUBTYPE_ID,
+                COLUMN_NAME_STATE_ID,
+                COLUMN_NAME_REASON_ID
+        };
+
+        /** Columns read from the view, in the order of <code>INSERT_COLUMNS</code>. */
+        static final String[] READ_COLUMNS = {
+                COLUMN_NAME_TIME,
+                COLUMN_NAME_TYPE,
+                COLUMN_NAME_SUBTYPE,
+                COLUMN_NAME_STATE,
+                COLUMN_NAME_REASON
+        };
+    }
+
+    /**
+     * Network session table. One row per span of time connected to one network,
+     * derived from the network and WiFi connection events by
+     * <code>SessionBuilder</code>. Rows are written to <code>DATA_TABLE_NAME</code>
+     * and read from the <code>TABLE_NAME</code> view, which joins the type back.
+     */
+
+    public static abstract class NetworkSessionTable implements BaseColumns {
+        public static final String COLUMN_NAME_BSSID   = "bssid";
+        public static final String COLUMN_NAME_END     = "end_time";    // NULL while open.
+        public static final String COLUMN_NAME_START   = "start_time";
         public static final String COLUMN_NAME_TYPE    = "type";
-        public static final String TABLE_NAME          = "network";
+        public static final String COLUMN_NAME_TYPE_ID = "type_id";
+        public static final String DATA_TABLE_NAME     = "network_session_data";
+        public static final String TABLE_NAME          = "network_session";
+
+        /** Columns written on insert, in bind order. */
+        static final String[] INSERT_COLUMNS = {
+                COLUMN_NAME_START,
+                COLUMN_NAME_TYPE_ID,
+                COLUMN_NAME_BSSID
+        };
+
+        /** Columns read from the view. */
+        static final String[] READ_COLUMNS = {
+                COLUMN_NAME_START,
+                COLUMN_NAME_END,
+                COLUMN_NAME_TYPE,
+                COLUMN_NAME_BSSID
+        };
+    }
+
+    /**
+     * Partitions table. Registers the tables holding each time-partitioned kind
+     * of data, with the time range each covers. A partition's tables are named
+     * for the kind's unpartitioned ones, followed by its suffix: a
+     * <code>network</code> partition with suffix <code>_p3</code> is written to
+     * <code>network_data_p3</code> and read from <code>network_p3</code>. The
+     * unpartitioned tables themselves are the partition with an empty suffix.
+     * Every partition of a kind is read together through a view named for
+     * the kind followed by <code>ALL_SUFFIX</code>, such as <code>network_all</code>.
+     */
+
+    public static abstract class PartitionsTable implements BaseColumns {
+        public static final String COLUMN_NAME_END    = "end_time";     // Exclusive.
+        public static final String COLUMN_NAME_KIND   = "kind";
+        public static final String COLUMN_NAME_START  = "start_time";   // Inclusive.
+        public static final String COLUMN_NAME_SUFFIX = "suffix";
+        public static final String TABLE_NAME         = "partitions";
+
+        /** Suffix of the view spanning every partition of a kind. */
+        static final String ALL_SUFFIX = "_all";
+
+        /** Kinds of data partitioned by time: the names the data is read from. */
+        static final String KIND_LOCATION  = LocationTable.TABLE_NAME;
+        static final String KIND_NETWORK   = NetworkTable.TABLE_NAME;
+        static final String KIND_WIFI_SCAN = WifiScanTable.TABLE_NAME;
+    }
+
+    /**
+     * Strings table. Each distinct interned string, once.
+     */
+
+    public static abstract class StringsTable implements BaseColumns {
+        public static final String COLUMN_NAME_VALUE = "value";
+        public static final String TABLE_NAME        = "strings";
     }
 
     /**
@@ -79,17 +318,58 @@ final class DataDumpContract {
         public static final String COLUMN_NAME_SSID  = "ssid";
         public static final String COLUMN_NAME_TIME  = "time";
         public static final String TABLE_NAME        = "wifi_connection";
+
+        /** Columns written on insert, in bind order. */
+        static final String[] INSERT_COLUMNS = {
+                COLUMN_NAME_TIME,
+                COLUMN_NAME_IP,
+                COLUMN_NAME_MAC,
+                COLUMN_NAME_BSSID,
+                COLUMN_NAME_SSID,
+                COLUMN_NAME_HID
+        };
     }
 
     /**
-     * WiFi Scan table.
+     * WiFi Scan table. Rows are written to <code>DATA_TABLE_NAME</code> with their
+     * strings interned, and read from the <code>TABLE_NAME</code> view,
+     * which joins the strings back.
      */
 
     public static abstract class WifiScanTable implements BaseColumns {
-        public static final String COLUMN_NAME_BSSID = "bssid";
-        public static final String COLUMN_NAME_SSID  = "ssid";
-        public static final String COLUMN_NAME_CAP   = "capabilities";
-        public static final String COLUMN_NAME_TIME  = "time";
-        public static final String TABLE_NAME        = "wifi_scan";
+        public static final String COLUMN_NAME_BSSID   = "bssid";
+        public static final String COLUMN_NAME_SSID    = "ssid";
+        public static final String COLUMN_NAME_SSID_ID = "ssid_id";
+        public static final String COLUMN_NAME_CAP     = "capabilities";
+        public static final String COLUMN_NAME_CAP_ID  = "capabilities_id";
+        public static final String COLUMN_NAME_TIME    = "time";
+        public static final String COLUMN_NAME_EVENT   = "event";
+        public static final String DATA_TABLE_NAME     = "wifi_scan_data";
+        public static final String TABLE_NAME          = "wifi_scan";
+
+        /** A row of a scan written whole. See <code>ScanDiffer</code>. */
+        public static final int EVENT_KEYFRAME    = 0;
+        /** An access point which was not in the previous scan, or has changed. */
+        public static final int EVENT_APPEARED    = 1;
+        /** An access point which was in the previous scan but not this one. */
+        public static final int EVENT_DISAPPEARED = 2;
+
+        /** Columns written on insert, in bind order. */
+        static final String[] INSERT_COLUMNS = {
+                COLUMN_NAME_TIME,
+                COLUMN_NAME_BSSID,
+                COLUMN_NAME_SSID_ID,
+                COLUMN_NAME_CAP_ID,
+                COLUMN_NAME_EVENT
+        };
+
+        /** Columns read from the view, in the order of <code>INSERT_COLUMNS</code>. */
+        static final String[] READ_COLUMNS = {
+                COLUMN_NAME_TIME,
+                COLUMN_NAME_BSSID,
+                COLUMN_NAME_SSID,
+                COLUMN_NAME_CAP,
+                COLUMN_NAME_EVENT
+        };
     }
 }
@@ -17,9 +17,12 @@
 package com.kensinclair.datacollector;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
 import android.util.Log;
 
 import com.kensinclair.logger.MyLog;
@@ -37,68 +40,153 @@ public class DataDumpDbHelper extends SQLiteOpenHelper {
     private static final String  TAG        = DataDumpDbHelper.class.getSimpleName();
 
     static final String     DATABASE_NAME    = "DataHarvest.db";
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 15;
 
+    private static final String BLOB_TYPE    = " BLOB";
     private static final String BOOLEAN_TYPE = " INTEGER";
+    private static final String CI           = "CREATE INDEX IF NOT EXISTS ";
+    private static final String COUNT_TYPE   = " INTEGER NOT NULL DEFAULT 0";
     private static final String CT           = "CREATE TABLE ";
-    private static final String DATE_TYPE    = " TEXT";
+    private static final String DATE_TYPE    = " INTEGER";    // Epoch milliseconds.
     private static final String DOUBLE_TYPE  = " REAL";
+    private static final String EVENT_TYPE   = " INTEGER NOT NULL DEFAULT 0";   // Whole data.
     private static final String FLOAT_TYPE   = " REAL";
+    private static final String HOUR_TYPE    = " INTEGER NOT NULL UNIQUE";      // Its start.
     private static final String INT_TYPE     = " INTEGER";
+    private static final String MAC_TYPE     = " INTEGER";    // 48 bits. See MacAddresses.
     private static final String PK           = " INTEGER PRIMARY KEY AUTOINCREMENT ";
     private static final String STRING_TYPE  = " TEXT";
     private static final String SEP          = ",";
 
     private static final String SQL_CREATE_ACCOUNTS =
             CT + DataDumpContract.AccountsTable.TABLE_NAME + " (" +
-                    DataDumpContract.AccountsTable._ID              + PK          + SEP +
-                    DataDumpContract.AccountsTable.COLUMN_NAME_TIME + DATE_TYPE   + SEP +
-                    DataDumpContract.AccountsTable.COLUMN_NAME_NAME + STRING_TYPE + SEP +
-                    DataDumpContract.AccountsTable.COLUMN_NAME_TYPE + STRING_TYPE +
+                    DataDumpContract.AccountsTable._ID               + PK          + SEP +
+                    DataDumpContract.AccountsTable.COLUMN_NAME_TIME  + DATE_TYPE   + SEP +
+                    DataDumpContract.AccountsTable.COLUMN_NAME_NAME  + STRING_TYPE + SEP +
+                    DataDumpContract.AccountsTable.COLUMN_NAME_TYPE  + STRING_TYPE + SEP +
+                    DataDumpContract.AccountsTable.COLUMN_NAME_EVENT + EVENT_TYPE  +
             " )";
     private static final String SQL_CREATE_LOC =
-            CT + DataDumpContract.LocationTable.TABLE_NAME + " (" +
-                    DataDumpContract.LocationTable._ID                 + PK          + SEP +
-                    DataDumpContract.LocationTable.COLUMN_NAME_TIME    + DATE_TYPE   + SEP +
-                    DataDumpContract.LocationTable.COLUMN_NAME_LAT     + DOUBLE_TYPE + SEP +
-                    DataDumpContract.LocationTable.COLUMN_NAME_LNG     + DOUBLE_TYPE + SEP +
-                    DataDumpContract.LocationTable.COLUMN_NAME_BEARING + FLOAT_TYPE  + SEP +
-                    DataDumpContract.LocationTable.COLUMN_NAME_SPEED   + FLOAT_TYPE  + SEP +
-                    DataDumpContract.LocationTable.COLUMN_NAME_ALT     + DOUBLE_TYPE + SEP +
-                    DataDumpContract.LocationTable.COLUMN_NAME_ACC     + FLOAT_TYPE  +
-            " )";
+            createLocationSql(DataDumpContract.LocationTable.TABLE_NAME);
     private static final String SQL_CREATE_NET =
-            CT + DataDumpContract.NetworkTable.TABLE_NAME + " (" +
-                    DataDumpContract.NetworkTable._ID                 + PK          + SEP +
-                    DataDumpContract.NetworkTable.COLUMN_NAME_TIME    + DATE_TYPE   + SEP +
-                    DataDumpContract.NetworkTable.COLUMN_NAME_TYPE    + STRING_TYPE + SEP +
-                    DataDumpContract.NetworkTable.COLUMN_NAME_SUBTYPE + STRING_TYPE + SEP +
-                    DataDumpContract.NetworkTable.COLUMN_NAME_STATE   + STRING_TYPE + SEP +
-                    DataDumpContract.NetworkTable.COLUMN_NAME_REASON  + STRING_TYPE +
+            createNetworkSql(DataDumpContract.NetworkTable.DATA_TABLE_NAME);
+    private static final String SQL_CREATE_NET_VIEW = createNetworkViewSql(
+            DataDumpContract.NetworkTable.TABLE_NAME,
+            DataDumpContract.NetworkTable.DATA_TABLE_NAME);
+    private static final String SQL_CREATE_NET_SESSION =
+            CT + DataDumpContract.NetworkSessionTable.DATA_TABLE_NAME + " (" +
+                    DataDumpContract.NetworkSessionTable._ID                 + PK        + SEP +
+                    DataDumpContract.NetworkSessionTable.COLUMN_NAME_START   + DATE_TYPE + SEP +
+                    DataDumpContract.NetworkSessionTable.COLUMN_NAME_END     + DATE_TYPE + SEP +
+                    DataDumpContract.NetworkSessionTable.COLUMN_NAME_TYPE_ID + INT_TYPE  + SEP +
+                    DataDumpContract.NetworkSessionTable.COLUMN_NAME_BSSID   + MAC_TYPE  +
+            " )";
+    private static final String SQL_CREATE_NET_SESSION_VIEW = createStringsViewSql(
+            DataDumpContract.NetworkSessionTable.TABLE_NAME,
+            DataDumpContract.NetworkSessionTable.DATA_TABLE_NAME,
+            new String[] { DataDumpContract.NetworkSessionTable.COLUMN_NAME_START,
+                           DataDumpContract.NetworkSessionTable.COLUMN_NAME_END,
+                           DataDumpContract.NetworkSessionTable.COLUMN_NAME_BSSID },
+            new String[] { DataDumpContract.NetworkSessionTable.COLUMN_NAME_TYPE_ID },
+            new String[] { DataDumpContract.NetworkSessionTable.COLUMN_NAME_TYPE });
+    private static final String SQL_CREATE_NET_SESSION_BSSID_INDEX =
+            CI + DataDumpContract.NetworkSessionTable.DATA_TABLE_NAME + "_bssid_idx ON " +
+            DataDumpContract.NetworkSessionTable.DATA_TABLE_NAME + " (" +
+            DataDumpContract.NetworkSessionTable.COLUMN_NAME_BSSID + SEP +
+            DataDumpContract.NetworkSessionTable.COLUMN_NAME_START + ")";
+    private static final String SQL_CREATE_STRINGS =
+            CT + DataDumpContract.StringsTable.TABLE_NAME + " (" +
+                    DataDumpContract.StringsTable._ID               + PK          + SEP +
+                    DataDumpContract.StringsTable.COLUMN_NAME_VALUE + STRING_TYPE + " UNIQUE" +
             " )";
     private static final String SQL_CREATE_WIFI_CON =
             CT + DataDumpContract.WifiConnectionTable.TABLE_NAME + " (" +
                     DataDumpContract.WifiConnectionTable._ID               + PK           + SEP +
                     DataDumpContract.WifiConnectionTable.COLUMN_NAME_TIME  + DATE_TYPE    + SEP +
                     DataDumpContract.WifiConnectionTable.COLUMN_NAME_IP    + INT_TYPE     + SEP +
-                    DataDumpContract.WifiConnectionTable.COLUMN_NAME_MAC   + STRING_TYPE  + SEP +
-                    DataDumpContract.WifiConnectionTable.COLUMN_NAME_BSSID + STRING_TYPE  + SEP +
+                    DataDumpContract.WifiConnectionTable.COLUMN_NAME_MAC   + MAC_TYPE     + SEP +
+                    DataDumpContract.WifiConnectionTable.COLUMN_NAME_BSSID + MAC_TYPE     + SEP +
                     DataDumpContract.WifiConnectionTable.COLUMN_NAME_SSID  + STRING_TYPE  + SEP +
                     DataDumpContract.WifiConnectionTable.COLUMN_NAME_HID   + BOOLEAN_TYPE +
 
             " )";
-    private static final String SQL_CREATE_WIFI_SCAN =
-            CT + DataDumpContract.WifiScanTable.TABLE_NAME + " (" +
-                    DataDumpContract.WifiScanTable._ID               + PK          + SEP +
-                    DataDumpContract.WifiScanTable.COLUMN_NAME_TIME  + DATE_TYPE   + SEP +
-                    DataDumpContract.WifiScanTable.COLUMN_NAME_BSSID + STRING_TYPE + SEP +
-                    DataDumpContract.WifiScanTable.COLUMN_NAME_SSID  + STRING_TYPE + SEP +
-                    DataDumpContract.WifiScanTable.COLUMN_NAME_CAP   + STRING_TYPE +
+    private static final String SQL_CREATE_ARCHIVE_BLOCKS =
+            CT + DataDumpContract.ArchiveBlocksTable.TABLE_NAME + " (" +
+                    DataDumpContract.ArchiveBlocksTable._ID                + PK          + SEP +
+                    DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_KIND   + STRING_TYPE + SEP +
+                    DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_START  + DATE_TYPE   + SEP +
+                    DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_END    + DATE_TYPE   + SEP +
+                    DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_ROWS   + INT_TYPE    + SEP +
+                    DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_FILE   + STRING_TYPE + SEP +
+                    DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_OFFSET + INT_TYPE    + SEP +
+                    DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_LENGTH + INT_TYPE    + SEP +
+                    DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_CRC    + INT_TYPE    +
+            " )";
+    private static final String SQL_CREATE_ARCHIVE_BLOCKS_INDEX =
+            CI + DataDumpContract.ArchiveBlocksTable.TABLE_NAME + "_kind_idx ON " +
+            DataDumpContract.ArchiveBlocksTable.TABLE_NAME + " (" +
+            DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_KIND + SEP +
+            DataDumpContract.ArchiveBlocksTable.COLUMN_NAME_START + ")";
+    private static final String SQL_CREATE_HOURLY_ROLLUPS =
+            CT + DataDumpContract.HourlyRollupsTable.TABLE_NAME + " (" +
+                    DataDumpContract.HourlyRollupsTable._ID                   + PK         + SEP +
+                    DataDumpContract.HourlyRollupsTable.COLUMN_NAME_HOUR      + HOUR_TYPE  + SEP +
+                    DataDumpContract.HourlyRollupsTable.COLUMN_NAME_LOCATIONS + COUNT_TYPE + SEP +
+                    DataDumpContract.HourlyRollupsTable.COLUMN_NAME_NETWORK   + COUNT_TYPE + SEP +
+                    DataDumpContract.HourlyRollupsTable.COLUMN_NAME_WIFI_CON  + COUNT_TYPE + SEP +
+                    DataDumpContract.HourlyRollupsTable.COLUMN_NAME_SCANS     + COUNT_TYPE + SEP +
+                    DataDumpContract.HourlyRollupsTable.COLUMN_NAME_RESULTS   + COUNT_TYPE + SEP +
+                    DataDumpContract.HourlyRollupsTable.COLUMN_NAME_BSSIDS    + COUNT_TYPE + SEP +
+                    DataDumpContract.HourlyRollupsTable.COLUMN_NAME_SKETCH    + BLOB_TYPE  +
             " )";
+    private static final String SQL_CREATE_PARTITIONS =
+            CT + DataDumpContract.PartitionsTable.TABLE_NAME + " (" +
+                    DataDumpContract.PartitionsTable._ID                + PK          + SEP +
+                    DataDumpContract.PartitionsTable.COLUMN_NAME_KIND   + STRING_TYPE + SEP +
+                    DataDumpContract.PartitionsTable.COLUMN_NAME_START  + DATE_TYPE   + SEP +
+                    DataDumpContract.PartitionsTable.COLUMN_NAME_END    + DATE_TYPE   + SEP +
+                    DataDumpContract.PartitionsTable.COLUMN_NAME_SUFFIX + STRING_TYPE +
+            " )";
+    private static final String SQL_CREATE_PARTITIONS_INDEX =
+            CI + DataDumpContract.PartitionsTable.TABLE_NAME + "_kind_idx ON " +
+            DataDumpContract.PartitionsTable.TABLE_NAME + " (" +
+            DataDumpContract.PartitionsTable.COLUMN_NAME_KIND + SEP +
+            DataDumpContract.PartitionsTable.COLUMN_NAME_START + ")";
+    private static final String SQL_INSERT_BASE_PARTITION =
+            "INSERT INTO " + DataDumpContract.PartitionsTable.TABLE_NAME + " (" +
+            DataDumpContract.PartitionsTable.COLUMN_NAME_KIND + SEP +
+            DataDumpContract.PartitionsTable.COLUMN_NAME_START + SEP +
+            DataDumpContract.PartitionsTable.COLUMN_NAME_END + SEP +
+            DataDumpContract.PartitionsTable.COLUMN_NAME_SUFFIX + ") VALUES (?, " +
+            Long.MIN_VALUE + ", ?, '')";
+    private static final String SQL_CREATE_WIFI_SCAN =
+            createWifiScanSql(DataDumpContract.WifiScanTable.DATA_TABLE_NAME);
+    private static final String SQL_CREATE_WIFI_SCAN_VIEW = createWifiScanViewSql(
+            DataDumpContract.WifiScanTable.TABLE_NAME,
+            DataDumpContract.WifiScanTable.DATA_TABLE_NAME);
+
+    /** Each table's time column, indexed for range queries. Table and column pairs. */
+    private static final String[][] TIME_INDEXES = {
+            { DataDumpContract.AccountsTable.TABLE_NAME,
+              DataDumpContract.AccountsTable.COLUMN_NAME_TIME },
+            { DataDumpContract.LocationTable.TABLE_NAME,
+              DataDumpContract.LocationTable.COLUMN_NAME_TIME },
+            { DataDumpContract.NetworkTable.DATA_TABLE_NAME,
+              DataDumpContract.NetworkTable.COLUMN_NAME_TIME },
+            { DataDumpContract.WifiConnectionTable.TABLE_NAME,
+              DataDumpContract.WifiConnectionTable.COLUMN_NAME_TIME },
+            { DataDumpContract.WifiScanTable.DATA_TABLE_NAME,
+              DataDumpContract.WifiScanTable.COLUMN_NAME_TIME },
+            { DataDumpContract.NetworkSessionTable.DATA_TABLE_NAME,
+              DataDumpContract.NetworkSessionTable.COLUMN_NAME_START }
+    };
+
+    private final Context              mContext;
+    private volatile DurabilityProfile mProfile;
 
     /**
      * Creates a <code>SQLiteOpenHelper</code> with
-     * write-ahead logging enabled.
+     * write-ahead logging enabled and the saved durability profile.
      *
      * @param context provided by system
      */
@@ -106,6 +194,37 @@ public class DataDumpDbHelper extends SQLiteOpenHelper {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         setWriteAheadLoggingEnabled(true);
 
+        mContext = context;
+        mProfile = DurabilityProfile.load(context);
+    }
+
+    /** @return the durability profile applied when the database is configured */
+    DurabilityProfile getProfile() { return mProfile; }
+
+    /**
+     * Saves a durability profile, to be applied whenever the database
+     * is configured from now on.
+     *
+     * @param profile the profile
+     */
+    void setProfile(DurabilityProfile profile) {
+        mProfile = profile;
+        profile.save(mContext);
+    }
+
+    /**
+     * Applies the durability profile to each connection as it opens,
+     * before it is created or upgraded.
+     *
+     * @param db provided by system
+     */
+    @Override public void onConfigure(SQLiteDatabase db) {
+        DurabilityProfile profile = mProfile;
+
+        profile.applyPageSize(db);          // Both ignored unless the file is new.
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");     // See RetentionEngine.
+        profile.apply(db);
+        if(LOCAL_LOGD) new MyLog(TAG).log("Configured with the " + profile + " profile.");
     }
 
     /**
@@ -135,7 +254,7 @@ public class DataDumpDbHelper extends SQLiteOpenHelper {
             db.execSQL(SQL_CREATE_NET);
         } catch (SQLException e) {
             lg.log(e.getMessage() + " when creating table "
-                    + DataDumpContract.NetworkTable.TABLE_NAME);
+                    + DataDumpContract.NetworkTable.DATA_TABLE_NAME);
         }
         try {
             db.execSQL(SQL_CREATE_WIFI_CON);
@@ -147,17 +266,259 @@ public class DataDumpDbHelper extends SQLiteOpenHelper {
             db.execSQL(SQL_CREATE_WIFI_SCAN);
         } catch (SQLException e) {
             lg.log(e.getMessage() + " when creating table "
+                    + DataDumpContract.WifiScanTable.DATA_TABLE_NAME);
+        }
+        try {
+            db.execSQL(SQL_CREATE_NET_SESSION);
+            db.execSQL(SQL_CREATE_NET_SESSION_BSSID_INDEX);
+        } catch (SQLException e) {
+            lg.log(e.getMessage() + " when creating table "
+                    + DataDumpContract.NetworkSessionTable.DATA_TABLE_NAME);
+        }
+        try {
+            db.execSQL(SQL_CREATE_STRINGS);
+        } catch (SQLException e) {
+            lg.log(e.getMessage() + " when creating table "
+                    + DataDumpContract.StringsTable.TABLE_NAME);
+        }
+        try {
+            db.execSQL(SQL_CREATE_PARTITIONS);
+            db.execSQL(SQL_CREATE_PARTITIONS_INDEX);
+
+            long end = PartitionManager.nextWeek(System.currentTimeMillis());
+            for(String kind:PartitionManager.KINDS)
+                db.execSQL(SQL_INSERT_BASE_PARTITION, new Object[] { kind, end });
+        } catch (SQLException e) {
+            lg.log(e.getMessage() + " when creating table "
+                    + DataDumpContract.PartitionsTable.TABLE_NAME);
+        }
+        try {
+            db.execSQL(SQL_CREATE_ARCHIVE_BLOCKS);
+            db.execSQL(SQL_CREATE_ARCHIVE_BLOCKS_INDEX);
+        } catch (SQLException e) {
+            lg.log(e.getMessage() + " when creating table "
+                    + DataDumpContract.ArchiveBlocksTable.TABLE_NAME);
+        }
+        try {
+            db.execSQL(SQL_CREATE_HOURLY_ROLLUPS);
+        } catch (SQLException e) {
+            lg.log(e.getMessage() + " when creating table "
+                    + DataDumpContract.HourlyRollupsTable.TABLE_NAME);
+        }
+        try {
+            db.execSQL(SQL_CREATE_NET_VIEW);
+        } catch (SQLException e) {
+            lg.log(e.getMessage() + " when creating view "
+                    + DataDumpContract.NetworkTable.TABLE_NAME);
+        }
+        try {
+            db.execSQL(SQL_CREATE_WIFI_SCAN_VIEW);
+        } catch (SQLException e) {
+            lg.log(e.getMessage() + " when creating view "
                     + DataDumpContract.WifiScanTable.TABLE_NAME);
         }
+        try {
+            db.execSQL(SQL_CREATE_NET_SESSION_VIEW);
+        } catch (SQLException e) {
+            lg.log(e.getMessage() + " when creating view "
+                    + DataDumpContract.NetworkSessionTable.TABLE_NAME);
+        }
+        for(String kind:PartitionManager.KINDS) {
+            try {
+                PartitionManager.createSpanningView(db, kind);
+            } catch (SQLException e) {
+                lg.log(e.getMessage() + " when creating view "
+                        + kind + DataDumpContract.PartitionsTable.ALL_SUFFIX);
+            }
+        }
+        for(String[] index:TIME_INDEXES) {
+            try {
+                db.execSQL(createIndexSql(index[0], index[1]));
+            } catch (SQLException e) {
+                lg.log(e.getMessage() + " when creating time index on " + index[0]);
+            }
+        }
+        try {
+            db.execSQL(Migrations.SQL_CREATE_MIGRATIONS);
+        } catch (SQLException e) {
+            lg.log(e.getMessage() + " when creating table "
+                    + DataDumpContract.MigrationsTable.TABLE_NAME);
+        }
+        try {
+            db.execSQL(DbExporter.SQL_CREATE_EXPORT_MARKS);
+        } catch (SQLException e) {
+            lg.log(e.getMessage() + " when creating table "
+                    + DataDumpContract.ExportMarksTable.TABLE_NAME);
+        }
+    }
+
+    /**
+     * Builds the statements creating a partition's tables, indexes and view.
+     *
+     * @param kind   one of the <code>PartitionsTable.KIND_</code> constants
+     * @param suffix the partition's suffix
+     * @return       the CREATE SQL, in order
+     */
+    static String[] createPartitionSql(String kind, String suffix) {
+        String data = PartitionManager.dataTable(kind) + suffix;
+        String read = kind + suffix;
+
+        switch(kind) {
+            case DataDumpContract.PartitionsTable.KIND_LOCATION:
+                return new String[] {
+                        createLocationSql(data),
+                        createIndexSql(data, DataDumpContract.LocationTable.COLUMN_NAME_TIME) };
+            case DataDumpContract.PartitionsTable.KIND_NETWORK:
+                return new String[] {
+                        createNetworkSql(data),
+                        createIndexSql(data, DataDumpContract.NetworkTable.COLUMN_NAME_TIME),
+                        createNetworkViewSql(read, data) };
+            case DataDumpContract.PartitionsTable.KIND_WIFI_SCAN:
+                return new String[] {
+                        createWifiScanSql(data),
+                        createIndexSql(data, DataDumpContract.WifiScanTable.COLUMN_NAME_TIME),
+                        createWifiScanViewSql(read, data) };
+            default:
+                throw new IllegalArgumentException("Not partitioned: " + kind);
+        }
+    }
+
+    /**
+     * Builds the statement creating a single-column index,
+     * named <code>&lt;table&gt;_&lt;column&gt;_idx</code>.
+     *
+     * @param table  the indexed table
+     * @param column the indexed column
+     * @return       the CREATE INDEX SQL
+     */
+    static String createIndexSql(String table, String column) {
+        return CI + table + "_" + column + "_idx ON " + table + " (" + column + ")";
+    }
+
+    private static String createLocationSql(String table) {
+        return CT + table + " (" +
+                    DataDumpContract.LocationTable._ID                 + PK          + SEP +
+                    DataDumpContract.LocationTable.COLUMN_NAME_TIME    + DATE_TYPE   + SEP +
+                    DataDumpContract.LocationTable.COLUMN_NAME_LAT     + DOUBLE_TYPE + SEP +
+                    DataDumpContract.LocationTable.COLUMN_NAME_LNG     + DOUBLE_TYPE + SEP +
+                    DataDumpContract.LocationTable.COLUMN_NAME_BEARING + FLOAT_TYPE  + SEP +
+                    DataDumpContract.LocationTable.COLUMN_NAME_SPEED   + FLOAT_TYPE  + SEP +
+                    DataDumpContract.LocationTable.COLUMN_NAME_ALT     + DOUBLE_TYPE + SEP +
+                    DataDumpContract.LocationTable.COLUMN_NAME_ACC     + FLOAT_TYPE  +
+            " )";
+    }
+
+    private static String createNetworkSql(String table) {
+        return CT + table + " (" +
+                    DataDumpContract.NetworkTable._ID                    + PK        + SEP +
+                    DataDumpContract.NetworkTable.COLUMN_NAME_TIME       + DATE_TYPE + SEP +
+                    DataDumpContract.NetworkTable.COLUMN_NAME_TYPE_ID    + INT_TYPE  + SEP +
+                    DataDumpContract.NetworkTable.COLUMN_NAME_SUBTYPE_ID + INT_TYPE  + SEP +
+                    DataDumpContract.NetworkTable.COLUMN_NAME_STATE_ID   + INT_TYPE  + SEP +
+                    DataDumpContract.NetworkTable.COLUMN_NAME_REASON_ID  + INT_TYPE  +
+            " )";
+    }
+
+    private static String createNetworkViewSql(String view, String table) {
+        return createStringsViewSql(view, table,
+            new String[] { DataDumpContract.NetworkTable.COLUMN_NAME_TIME },
+            new String[] { DataDumpContract.NetworkTable.COLUMN_NAME_TYPE_ID,
+                           DataDumpContract.NetworkTable.COLUMN_NAME_SUBTYPE_ID,
+                           DataDumpContract.NetworkTable.COLUMN_NAME_STATE_ID,
+                           DataDumpContract.NetworkTable.COLUMN_NAME_REASON_ID },
+            new String[] { DataDumpContract.NetworkTable.COLUMN_NAME_TYPE,
+                           DataDumpContract.NetworkTable.COLUMN_NAME_SUBTYPE,
+                           DataDumpContract.NetworkTable.COLUMN_NAME_STATE,
+                           DataDumpContract.NetworkTable.COLUMN_NAME_REASON });
+    }
+
+    private static String createWifiScanSql(String table) {
+        return CT + table + " (" +
+                    DataDumpContract.WifiScanTable._ID                 + PK          + SEP +
+                    DataDumpContract.WifiScanTable.COLUMN_NAME_TIME    + DATE_TYPE   + SEP +
+                    DataDumpContract.WifiScanTable.COLUMN_NAME_BSSID   + MAC_TYPE    + SEP +
+                    DataDumpContract.WifiScanTable.COLUMN_NAME_SSID_ID + INT_TYPE    + SEP +
+                    DataDumpContract.WifiScanTable.COLUMN_NAME_CAP_ID  + INT_TYPE    + SEP +
+                    DataDumpContract.WifiScanTable.COLUMN_NAME_EVENT   + EVENT_TYPE  +
+            " )";
+    }
+
+    private static String createWifiScanViewSql(String view, String table) {
+        return createStringsViewSql(view, table,
+            new String[] { DataDumpContract.WifiScanTable.COLUMN_NAME_TIME,
+                           DataDumpContract.WifiScanTable.COLUMN_NAME_BSSID,
+                           DataDumpContract.WifiScanTable.COLUMN_NAME_EVENT },
+            new String[] { DataDumpContract.WifiScanTable.COLUMN_NAME_SSID_ID,
+                           DataDumpContract.WifiScanTable.COLUMN_NAME_CAP_ID },
+            new String[] { DataDumpContract.WifiScanTable.COLUMN_NAME_SSID,
+                           DataDumpContract.WifiScanTable.COLUMN_NAME_CAP });
+    }
+
+    /**
+     * Builds the statement creating a view which reads a table with its
+     * interned strings joined back from the strings table.
+     *
+     * @param view      the view name
+     * @param table     the table storing string IDs
+     * @param columns   the table's columns passed through as they are, after <code>_ID</code>
+     * @param stringIds the table's string ID columns
+     * @param strings   the names the strings take in the view, in the order of
+     *                  <code>stringIds</code>, after <code>columns</code>
+     * @return          the CREATE VIEW SQL
+     */
+    private static String createStringsViewSql(String view, String table, String[] columns,
+                                               String[] stringIds, String[] strings) {
+        StringBuilder sql  = new StringBuilder("CREATE VIEW ").append(view)
+                .append(" AS SELECT d.").append(BaseColumns._ID)
+                .append(" AS ").append(BaseColumns._ID);
+        StringBuilder from = new StringBuilder(" FROM ").append(table).append(" d");
+
+        for(String column:columns) sql.append(", d.").append(column).append(" AS ").append(column);
+        for(int i = 0; i < stringIds.length; i++) {
+            sql.append(", s").append(i).append('.')
+               .append(DataDumpContract.StringsTable.COLUMN_NAME_VALUE)
+               .append(" AS ").append(strings[i]);
+            from.append(" LEFT JOIN ").append(DataDumpContract.StringsTable.TABLE_NAME)
+                .append(" s").append(i).append(" ON s").append(i).append('.')
+                .append(DataDumpContract.StringsTable._ID)
+                .append(" = d.").append(stringIds[i]);
+        }
+        return sql.append(from).toString();
     }
 
     /**
-     * Not concerned about this for this experiment.
-     * Do nothing.
+     * Binds a cursor's column to a statement, keeping its storage class.
      *
-     * @param db         provided by system. Unused
-     * @param oldVersion provided by system. Unused
-     * @param newVersion provided by system. Unused
+     * @param statement the statement being bound
+     * @param index     the 1-based bind position
+     * @param cursor    the cursor positioned on the source row
+     * @param column    the column index in the cursor
      */
-    @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) { }
-}
+    static void bindColumn(SQLiteStatement statement, int index, Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:    statement.bindNull(index);                           break;
+            case Cursor.FIELD_TYPE_INTEGER: statement.bindLong(index, cursor.getLong(column));     break;
+            case Cursor.FIELD_TYPE_FLOAT:   statement.bindDouble(index, cursor.getDouble(column)); break;
+            case Cursor.FIELD_TYPE_BLOB:    statement.bindBlob(index, cursor.getBlob(column));     break;
+            default:                        statement.bindString(index, cursor.getString(column));
+        }
+    }
+
+    /**
+     * Upgrades an existing database, keeping its data. Only the quick schema
+     * changes run here. Copying existing rows is left to background units,
+     * which <code>DbManager</code> runs once the database is open.
+     *
+     * @param db         provided by system
+     * @param oldVersion provided by system
+     * @param newVersion provided by system
+     * @see              com.kensinclair.datacollector.Migrations
+     */
+    @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        MyLog lg = new MyLog(TAG);
+        if(LOCAL_LOGD) lg.log("Upgrading database from version " + oldVersion
+                + " to " + newVersion);
+
+        Migrations.upgrade(db, oldVersion, newVersion);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,949 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import com.kensinclair.logger.MyLog;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Exports a consistent snapshot of the database to a standalone SQLite file
+ * while collection carries on.
+ *
+ * <p>Android exposes neither SQLite's online backup API nor a read transaction
+ * that leaves writers alone, so the snapshot is taken as a cut of row IDs. The
+ * collected tables are append-only and every group commit holds the write lock,
+ * so reading each table's highest <code>_ID</code> under that lock fixes
+ * a point in time no commit straddles. Rows up to those IDs are then copied in
+ * chunks over the pool's read connections, which in WAL mode see committed rows
+ * in both the main file and the -wal file, without blocking writers.</p>
+ *
+ * <p>A few tables are updated in place rather than appended to: the hourly
+ * rollups, the network sessions, whose end is set when they close, and the
+ * migration, partition and watermark bookkeeping. An ID cut doesn't fix their
+ * contents, so they are copied into memory under the same lock. They are
+ * small next to the collected tables. A partition dropped by retention after
+ * the snapshot is skipped, as <code>RangeQuery</code> skips it.</p>
+ *
+ * <p>The copy is written to a temporary file which replaces the target
+ * with a rename only once it is complete, so a reader never sees a torn export.</p>
+ *
+ * <p>A columnar export writes the collected tables in the compact format of
+ * <code>ColumnarWriter</code> instead of as SQLite pages. It keeps every bit
+ * of REAL columns unless the caller asks for a lossy one, which rounds the
+ * location columns to a fixed precision.</p>
+ *
+ * <p>Full and columnar exports also hold the rows moved to the
+ * <code>ColdArchive</code>, each kind's in a table named for it followed by
+ * <code>_archived</code>, in the columns <code>RangeQuery</code> reads. The
+ * archive is held from the snapshot to the end of the export, so no row
+ * moves from a partition to a block in between.</p>
+ *
+ * <p>A delta export copies only the collected rows above per-table watermarks
+ * into the next numbered segment file, then moves the watermarks up.</p>
+ *
+ * @author Ken Sinclair
+ */
+
+final class DbExporter {
+    private static final boolean LOCAL_LOGD = true;
+    private static final String  TAG        = DbExporter.class.getSimpleName();
+
+    private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
+
+    private static final int    CHUNK_SIZE    = 2000;
+    private static final long   FLUSH_TIMEOUT = 2000; // 2 seconds.
+    private static final String TEMP_SUFFIX   = ".tmp";
+
+    private static final String SQL_SCHEMA =
+            "SELECT type, name, sql, tbl_name FROM sqlite_master WHERE sql IS NOT NULL"
+                    + " AND name NOT LIKE 'sqlite_%' AND name != 'android_metadata'";
+
+    static final String SQL_CREATE_EXPORT_MARKS =
+            "CREATE TABLE IF NOT EXISTS " + DataDumpContract.ExportMarksTable.TABLE_NAME + " (" +
+                    DataDumpContract.ExportMarksTable._ID                 + " INTEGER PRIMARY KEY," +
+                    DataDumpContract.ExportMarksTable.COLUMN_NAME_NAME    + " TEXT UNIQUE," +
+                    DataDumpContract.ExportMarksTable.COLUMN_NAME_LAST_ID + " INTEGER," +
+                    DataDumpContract.ExportMarksTable.COLUMN_NAME_SEGMENT + " INTEGER," +
+                    DataDumpContract.ExportMarksTable.COLUMN_NAME_TIME    + " INTEGER" +
+            " )";
+
+    private static final String SQL_MARKS =
+            "SELECT " +
+                    DataDumpContract.ExportMarksTable.COLUMN_NAME_NAME    + "," +
+                    DataDumpContract.ExportMarksTable.COLUMN_NAME_LAST_ID + "," +
+                    DataDumpContract.ExportMarksTable.COLUMN_NAME_SEGMENT +
+            " FROM " + DataDumpContract.ExportMarksTable.TABLE_NAME;
+
+    private static final String SQL_WRITE_MARK = "INSERT OR REPLACE INTO " +
+            DataDumpContract.ExportMarksTable.TABLE_NAME + " (" +
+                    DataDumpContract.ExportMarksTable.COLUMN_NAME_NAME    + "," +
+                    DataDumpContract.ExportMarksTable.COLUMN_NAME_LAST_ID + "," +
+                    DataDumpContract.ExportMarksTable.COLUMN_NAME_SEGMENT + "," +
+                    DataDumpContract.ExportMarksTable.COLUMN_NAME_TIME    +
+            ") VALUES (?,?,?,?)";
+
+    private static final String TIME_COLUMN     = "time";
+    private static final String ARCHIVED_SUFFIX = "_archived";
+
+    /** The kinds of rows the <code>ColdArchive</code> may hold. */
+    private static final String[] ARCHIVED_KINDS = {
+            DataDumpContract.PartitionsTable.KIND_LOCATION,
+            DataDumpContract.PartitionsTable.KIND_NETWORK,
+            DataDumpContract.PartitionsTable.KIND_WIFI_SCAN
+    };
+
+    /** Location columns stored to a fixed precision in a lossy columnar export. */
+    private static final String[] SCALED_COLUMNS = {
+            DataDumpContract.LocationTable.COLUMN_NAME_LAT,
+            DataDumpContract.LocationTable.COLUMN_NAME_LNG,
+            DataDumpContract.LocationTable.COLUMN_NAME_BEARING,
+            DataDumpContract.LocationTable.COLUMN_NAME_SPEED,
+            DataDumpContract.LocationTable.COLUMN_NAME_ALT,
+            DataDumpContract.LocationTable.COLUMN_NAME_ACC
+    };
+    private static final int[] SCALE_DIGITS = {
+            7,      // About 1 cm.
+            7,
+            1,      // Tenths of a degree.
+            2,      // Centimetres per second.
+            1,      // Decimetres.
+            1
+    };
+
+    /**
+     * The tables a delta export covers. Network sessions are left out: a session
+     * is closed after its row is inserted, which a watermark on <code>_ID</code>
+     * would miss. They can be rebuilt from the network and WiFi connection rows.
+     * The time partitions of each table are covered with it.
+     */
+    private static final String[] DELTA_TABLES = {
+            DataDumpContract.AccountsTable.TABLE_NAME,
+            DataDumpContract.LocationTable.TABLE_NAME,
+            DataDumpContract.NetworkTable.DATA_TABLE_NAME,
+            DataDumpContract.StringsTable.TABLE_NAME,
+            DataDumpContract.WifiConnectionTable.TABLE_NAME,
+            DataDumpContract.WifiScanTable.DATA_TABLE_NAME
+    };
+
+    /** Tables with rows updated in place, besides any without <code>_ID</code>. */
+    private static final String[] IN_PLACE_TABLES = {
+            DataDumpContract.ExportMarksTable.TABLE_NAME,
+            DataDumpContract.HourlyRollupsTable.TABLE_NAME,
+            DataDumpContract.MigrationsTable.TABLE_NAME,
+            DataDumpContract.NetworkSessionTable.DATA_TABLE_NAME,
+            DataDumpContract.PartitionsTable.TABLE_NAME
+    };
+
+    /** Tables storing interned strings, and the views joining them back. */
+    private static final String[][] STRINGS_VIEWS = {
+            { DataDumpContract.NetworkTable.DATA_TABLE_NAME,
+              DataDumpContract.NetworkTable.TABLE_NAME },
+            { DataDumpContract.WifiScanTable.DATA_TABLE_NAME,
+              DataDumpContract.WifiScanTable.TABLE_NAME }
+    };
+
+    private DbManager      mDbManager;
+    private IngestionQueue mIngestionQueue;
+
+    /**
+     * Receives progress from a running export.
+     */
+    interface ProgressListener {
+        /**
+         * @param rows      rows copied so far
+         * @param totalRows rows in the snapshot, estimated from each table's ID range
+         */
+        void onProgress(long rows, long totalRows);
+    }
+
+    /**
+     * Outcome of an export.
+     */
+    static final class Result {
+        final File mFile;           // null if there was nothing to export.
+        final long mRows;
+        final long mBytes;
+        final long mElapsed;
+
+        Result(File file, long rows, long elapsed) {
+            mFile    = file;
+            mRows    = rows;
+            mBytes   = file == null ? 0 : file.length();
+            mElapsed = elapsed;
+        }
+
+        /** @return rows copied per second */
+        long getRowsPerSecond()  { return mElapsed == 0 ? mRows : mRows * 1000 / mElapsed; }
+
+        /** @return bytes written per second */
+        long getBytesPerSecond() { return mElapsed == 0 ? mBytes : mBytes * 1000 / mElapsed; }
+    }
+
+    /**
+     * Constructs a <code>DbExporter</code> which reads
+     * through the process-wide <code>DbManager</code>.
+     *
+     * @param c the context of the caller
+     */
+    DbExporter(Context c) {
+        mDbManager      = DbManager.getInstance(c);
+        mIngestionQueue = IngestionQueue.getInstance(c);
+    }
+
+    /**
+     * Exports the whole database. Blocks, so call it off the main thread.
+     * Leaves the delta export watermarks alone.
+     *
+     * @param target   the file to be written. Replaced if it exists
+     * @param listener receives progress. May be <code>null</code>
+     * @return         the outcome
+     * @throws IOException if the export could not be written
+     */
+    Result export(File target, ProgressListener listener) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+
+        mIngestionQueue.flush(FLUSH_TIMEOUT);       // Include whatever was collected up to now.
+
+        SQLiteDatabase source = mDbManager.getDatabase();
+        List<Table>    tables = getTables(source);
+        long           rows;
+
+        tables.addAll(getArchivedTables());
+        snapshot(source, tables);
+        try {
+            rows = write(source, tables, true, target, listener);
+        } finally { mDbManager.getColdArchive().release(); }
+
+        return finish(new Result(target, rows, SystemClock.elapsedRealtime() - start));
+    }
+
+    /**
+     * Exports the rows collected since the last delta export into the next
+     * numbered segment, <code>&lt;database&gt;.&lt;segment&gt;.db</code>.
+     * Blocks, so call it off the main thread.
+     *
+     * <p>The watermarks only move once the segment has been renamed into place.
+     * After a crash the same segment is written again, from the same
+     * watermarks, replacing any copy that made it to the directory.</p>
+     *
+     * @param dir      the directory holding the segments
+     * @param listener receives progress. May be <code>null</code>
+     * @return         the outcome. Its file is <code>null</code> if there was nothing new
+     * @throws IOException if the segment could not be written
+     */
+    Result exportDelta(File dir, ProgressListener listener) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+
+        mIngestionQueue.flush(FLUSH_TIMEOUT);
+
+        SQLiteDatabase source  = mDbManager.getDatabase();
+
+        if(Migrations.isPending(source))            // Rows still being copied into a rebuilt
+            throw new IOException("The database is still being upgraded. Try again later.");
+
+        List<Table>    tables  = getDeltaTables(source);    //    table would land below its mark.
+        int            segment = readMarks(source, tables) + 1;
+        long           total   = 0;
+
+        snapshot(source, tables);
+        for(Table table:tables) total += table.estimateRows();
+
+        if(total == 0) {
+            if(LOCAL_LOGD) sLg.log("Nothing new since segment " + (segment - 1) + ".");
+            return new Result(null, 0, SystemClock.elapsedRealtime() - start);
+        }
+
+        File target = new File(dir, segmentName(segment));
+        long rows   = write(source, tables, false, target, listener);
+
+        writeMarks(source, tables, segment);
+        return finish(new Result(target, rows, SystemClock.elapsedRealtime() - start));
+    }
+
+    /**
+     * Exports the collected tables in the compact format of <code>ColumnarWriter</code>.
+     * Blocks, so call it off the main thread.
+     *
+     * @param target   the file to be written. Replaced if it exists
+     * @param lossy    <code>true</code> to round the location columns to
+     *                 <code>SCALE_DIGITS</code>, which makes the file smaller
+     * @param listener receives progress. May be <code>null</code>
+     * @return         the outcome
+     * @throws IOException if the export could not be written
+     */
+    Result exportColumnar(File target, boolean lossy, ProgressListener listener)
+            throws IOException {
+        long start = SystemClock.elapsedRealtime();
+
+        mIngestionQueue.flush(FLUSH_TIMEOUT);
+
+        SQLiteDatabase source = mDbManager.getDatabase();
+        List<Table>    tables = getColumnarTables(source);
+        long           total  = 0;
+        long           rows   = 0;
+
+        tables.addAll(getArchivedTables());
+        snapshot(source, tables);
+        for(Table table:tables) total += table.estimateRows();
+        if(lossy) Log.i(TAG, "Lossy export: location columns are rounded.");
+
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        try {
+            FileOutputStream file = new FileOutputStream(temp);
+            try {
+                final ColumnarWriter writer = new ColumnarWriter(new BufferedOutputStream(file));
+                Sink                 sink   = new Sink() {
+                    @Override public void write(Table table, Cursor chunk) throws IOException {
+                        while(chunk.moveToNext()) writer.addRow(chunk);
+                    }
+                };
+
+                for(Table table:tables) {
+                    beginColumnarTable(source, writer, table, lossy);
+                    rows = copyTable(source, table, rows, total, listener, sink);
+                    writer.endTable();
+                    if(LOCAL_LOGD) sLg.log("Exported " + table.mName + ".");
+                }
+                writer.finish();                    // Closing would leave nothing to sync.
+                file.getFD().sync();                // The rename is the commit point.
+            } finally { file.close(); }
+        } catch (IOException | SQLException e) {
+            if(!temp.delete()) Log.w(TAG, "Could not delete " + temp + ".");
+            throw new IOException("Error exporting to " + temp + ": " + e.getMessage(), e);
+        } finally { mDbManager.getColdArchive().release(); }
+
+        if(!temp.renameTo(target)) {
+            if(!temp.delete()) Log.w(TAG, "Could not delete " + temp + ".");
+            throw new IOException("Could not rename " + temp + " to " + target + ".");
+        }
+
+        Result result = finish(new Result(target, rows, SystemClock.elapsedRealtime() - start));
+        if(LOCAL_LOGD) sLg.log("Columnar export is " + result.mBytes + " bytes against "
+                + new File(source.getPath()).length() + " for the database file.");
+        return result;
+    }
+
+    /**
+     * Starts a table in a columnar export, typing its columns from their
+     * declared affinity. In a lossy export, known REAL columns are stored to
+     * a fixed precision. An archived kind's columns are typed like the kind's
+     * live ones.
+     *
+     * @param source the live database
+     * @param writer the export being written
+     * @param table  the table
+     * @param lossy  <code>true</code> to round the known REAL columns
+     * @throws IOException if the table header could not be written
+     */
+    private static void beginColumnarTable(SQLiteDatabase source, ColumnarWriter writer,
+                                           Table table, boolean lossy) throws IOException {
+        String       typed  = table.mKind != null ? table.mKind : table.mSource;
+        List<String> names  = new ArrayList<>();
+        List<String> types  = new ArrayList<>();
+        Cursor       cursor = source.rawQuery("PRAGMA table_info(" + typed + ")", null);
+        try {
+            while(cursor.moveToNext()) {
+                names.add(cursor.getString(1));
+                types.add(cursor.getString(2));
+            }
+        } finally { cursor.close(); }
+
+        String[] columns    = table.mKind != null ? archivedColumns(table.mKind)
+                                                  : names.toArray(new String[names.size()]);
+        int[]    codes      = new int[columns.length];
+        int[]    scales     = new int[columns.length];
+        int      timeColumn = -1;
+
+        for(int i = 0; i < columns.length; i++) {
+            int    index = names.indexOf(columns[i]);
+            String type  = index < 0 ? "" : types.get(index).toUpperCase(Locale.US);
+
+            if(MacAddresses.isAddressColumn(columns[i])) {
+                codes[i] = ColumnarWriter.TYPE_STRING;      // Formatted by the writer.
+            } else if(type.contains("INT")) {
+                codes[i] = ColumnarWriter.TYPE_LONG;
+                if(TIME_COLUMN.equals(columns[i])) timeColumn = i;
+            } else if(type.contains("REAL")) {
+                scales[i] = lossy ? getScale(typed, columns[i]) : -1;
+                codes[i]  = scales[i] < 0 ? ColumnarWriter.TYPE_DOUBLE : ColumnarWriter.TYPE_SCALED;
+            } else {
+                codes[i] = ColumnarWriter.TYPE_STRING;
+            }
+        }
+        writer.beginTable(table.mSource, columns, codes, scales, timeColumn);
+    }
+
+    /**
+     * @param table  a table
+     * @param column one of its REAL columns
+     * @return       the decimal digits kept for it in a columnar export,
+     *               or -1 to keep every bit
+     */
+    private static int getScale(String table, String column) {
+        if(!PartitionManager.isPartitionOf(table, DataDumpContract.LocationTable.TABLE_NAME))
+            return -1;
+
+        for(int i = 0; i < SCALED_COLUMNS.length; i++)
+            if(SCALED_COLUMNS[i].equals(column)) return SCALE_DIGITS[i];
+        return -1;
+    }
+
+    /**
+     * @param kind one of the <code>PartitionsTable.KIND_</code> constants
+     * @return     the columns of its archived rows: <code>_ID</code>, then
+     *             the ones <code>RangeQuery</code> reads
+     */
+    private static String[] archivedColumns(String kind) {
+        String[] read    = PartitionManager.readColumns(kind);
+        String[] columns = new String[read.length + 1];
+
+        columns[0] = BaseColumns._ID;
+        System.arraycopy(read, 0, columns, 1, read.length);
+        return columns;
+    }
+
+    /**
+     * Names a delta export segment.
+     *
+     * @param segment the segment number, from 1
+     * @return        the file name
+     */
+    static String segmentName(int segment) {
+        String name = DataDumpDbHelper.DATABASE_NAME;
+        int    dot  = name.lastIndexOf('.');
+
+        return String.format(Locale.US, "%s.%06d%s",
+                name.substring(0, dot), segment, name.substring(dot));
+    }
+
+    /**
+     * Copies the snapshot of some tables, with their indexes, into a new file.
+     * Views are left out of a delta segment, whose strings table holds only
+     * the strings new to it.
+     *
+     * @param source   the live database
+     * @param tables   the tables, with their snapshot bounds
+     * @param views    <code>true</code> to create the views as well
+     * @param target   the file to be written. Replaced if it exists
+     * @param listener receives progress. May be <code>null</code>
+     * @return         the rows copied
+     * @throws IOException if the file could not be written
+     */
+    private static long write(SQLiteDatabase source, List<Table> tables, boolean views,
+                              File target, ProgressListener listener) throws IOException {
+        List<String> later = new ArrayList<>();     // Indexes and views, created after the data.
+        long         total = 0;
+
+        for(Table table:tables) total += table.estimateRows();
+
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        SQLiteDatabase.deleteDatabase(temp);        // Left over from an interrupted export.
+
+        long rows = 0;
+        try {
+            SQLiteDatabase out = SQLiteDatabase.openOrCreateDatabase(temp, null);
+            try {
+                out.execSQL("PRAGMA synchronous = OFF");   // The rename is the commit point.
+
+                Cursor schema = source.rawQuery(SQL_SCHEMA, null);
+                try {
+                    while(schema.moveToNext()) {
+                        if("view".equals(schema.getString(0)) ? !views
+                                : !contains(tables, schema.getString(3))) continue;
+
+                        if("table".equals(schema.getString(0))) out.execSQL(schema.getString(2));
+                        else                                    later.add(schema.getString(2));
+                    }
+                } finally { schema.close(); }
+
+                for(Table table:tables) {
+                    if(table.mKind == null) continue;
+
+                    StringBuilder create = new StringBuilder("CREATE TABLE ")
+                            .append(table.mName).append(" (");
+                    for(String column:archivedColumns(table.mKind))
+                        create.append(column).append(column.equals(BaseColumns._ID)
+                                ? " INTEGER," : ",");
+                    create.setCharAt(create.length() - 1, ')');
+                    out.execSQL(create.toString());
+                }
+
+                Sink sink = new DatabaseSink(out);
+                for(Table table:tables) {
+                    rows = copyTable(source, table, rows, total, listener, sink);
+                    if(LOCAL_LOGD) sLg.log("Exported " + table.mName + ".");
+                }
+                for(String sql:later) out.execSQL(sql);
+            } finally { out.close(); }
+        } catch (SQLException e) {
+            SQLiteDatabase.deleteDatabase(temp);
+            throw new IOException("Error exporting to " + temp + ": " + e.getMessage(), e);
+        }
+
+        if(!temp.renameTo(target)) {
+            SQLiteDatabase.deleteDatabase(temp);
+            throw new IOException("Could not rename " + temp + " to " + target + ".");
+        }
+        return rows;
+    }
+
+    /**
+     * Logs an export's outcome.
+     *
+     * @param result the outcome
+     * @return       <code>result</code>
+     */
+    private static Result finish(Result result) {
+        if(LOCAL_LOGD) sLg.log("Exported " + result.mRows + " rows, " + result.mBytes
+                + " bytes, in " + result.mElapsed + " ms (" + result.getRowsPerSecond()
+                + " rows/s, " + result.getBytesPerSecond() / 1024 + " KB/s) to "
+                + result.mFile + ".");
+        return result;
+    }
+
+    /**
+     * Lists the tables to be exported.
+     *
+     * @param source the live database
+     * @return       the tables
+     */
+    private static List<Table> getTables(SQLiteDatabase source) {
+        List<Table> tables = new ArrayList<>();
+        Cursor      cursor = source.rawQuery(SQL_SCHEMA + " AND type = 'table'", null);
+        try {
+            while(cursor.moveToNext()) tables.add(new Table(cursor.getString(1)));
+        } finally { cursor.close(); }
+
+        for(Table table:tables) {
+            Cursor columns;
+            try {
+                columns = source.rawQuery("SELECT * FROM " + table.mName + " LIMIT 0", null);
+            } catch (SQLiteException e) {
+                if(!isDropped(source, table)) throw e;
+                table.mDropped = true;              // By retention, since it was listed.
+                continue;
+            }
+            try {
+                table.mHasId = columns.getColumnIndex(BaseColumns._ID) != -1;
+            } finally { columns.close(); }
+        }
+        return tables;
+    }
+
+    /**
+     * Lists the tables holding the rows in the <code>ColdArchive</code>,
+     * one per kind. Their blocks are listed by <code>snapshot</code>.
+     *
+     * @return the tables
+     */
+    private List<Table> getArchivedTables() {
+        List<Table> tables = new ArrayList<>();
+
+        for(String kind:ARCHIVED_KINDS)
+            tables.add(new Table(kind + ARCHIVED_SUFFIX, kind, mDbManager.getColdArchive()));
+        return tables;
+    }
+
+    /**
+     * Lists the collected tables, which are the ones a delta export covers.
+     * Their AUTOINCREMENT <code>_ID</code>s only ever grow, so an ID is a sound
+     * watermark. Times are not: rows are stamped when collected, not committed.
+     *
+     * @param source the live database
+     * @return       the tables
+     */
+    private static List<Table> getDeltaTables(SQLiteDatabase source) {
+        List<Table> tables = new ArrayList<>();
+
+        for(Table table:getTables(source))
+            for(String name:DELTA_TABLES)
+                if(PartitionManager.isPartitionOf(table.mName, name)) tables.add(table);
+        return tables;
+    }
+
+    /**
+     * Lists the tables a columnar export covers. Tables storing interned
+     * strings are read through their views, so the export holds the strings.
+     *
+     * @param source the live database
+     * @return       the tables
+     */
+    private static List<Table> getColumnarTables(SQLiteDatabase source) {
+        List<Table> tables = new ArrayList<>();
+
+        for(Table table:getDeltaTables(source)) {
+            if(DataDumpContract.StringsTable.TABLE_NAME.equals(table.mName)) continue;
+
+            for(String[] view:STRINGS_VIEWS) {         // A partition's view takes its suffix.
+                if(PartitionManager.isPartitionOf(table.mName, view[0]))
+                    table.mSource = view[1] + table.mName.substring(view[0].length());
+            }
+            tables.add(table);
+        }
+        return tables;
+    }
+
+    /**
+     * Reads the watermarks into each table's lower bound.
+     *
+     * @param source the live database
+     * @param tables the tables to be exported
+     * @return       the last segment written, or 0 if there is none
+     */
+    private static int readMarks(SQLiteDatabase source, List<Table> tables) {
+        int    segment = 0;
+        Cursor cursor  = source.rawQuery(SQL_MARKS, null);
+        try {
+            while(cursor.moveToNext()) {
+                segment = Math.max(segment, cursor.getInt(2));
+
+                for(Table table:tables)
+                    if(table.mName.equals(cursor.getString(0))) table.mFromId = cursor.getLong(1);
+            }
+        } finally { cursor.close(); }
+
+        return segment;
+    }
+
+    /**
+     * Moves the watermarks up to the snapshot just written, in one transaction.
+     *
+     * @param source  the live database
+     * @param tables  the tables exported
+     * @param segment the segment written
+     */
+    private void writeMarks(SQLiteDatabase source, List<Table> tables, int segment) {
+        long now = System.currentTimeMillis();
+
+        synchronized (mDbManager.getWriteLock()) {
+            source.beginTransactionNonExclusive();
+            try {
+                SQLiteStatement statement = mDbManager.getStatement(SQL_WRITE_MARK);
+
+                for(Table table:tables) {
+                    statement.bindString(1, table.mName);
+                    statement.bindLong(2, Math.max(table.mFromId, table.mMaxId));
+                    statement.bindLong(3, segment);
+                    statement.bindLong(4, now);
+                    statement.executeInsert();
+                }
+                source.setTransactionSuccessful();
+            } finally { source.endTransaction(); }
+        }
+    }
+
+    /**
+     * Fixes the snapshot by reading each table's ID range under the write lock,
+     * so that no group commit is half in and half out of it. Tables updated in
+     * place are copied then. If there are archived tables, their blocks are
+     * listed too, and the archive is held: the caller must release it once the
+     * export is written. A table dropped since it was listed is left empty.
+     *
+     * @param source the live database
+     * @param tables the tables to be exported
+     */
+    private void snapshot(SQLiteDatabase source, List<Table> tables) {
+        synchronized (mDbManager.getWriteLock()) {
+            ColdArchive archive = null;
+
+            for(Table table:tables) {
+                if(table.mKind != null) {
+                    table.mBlocks = ColdArchive.list(source, table.mKind,
+                                                     Long.MIN_VALUE, Long.MAX_VALUE);
+                    archive       = table.mArchive;
+                }
+                if(table.mKind != null || table.mDropped) continue;
+
+                try {
+                    if(table.mHasId) readIdRange(source, table);
+                    if(isInPlace(table)) table.mRows = copyRows(source, table);
+                } catch (SQLiteException e) {
+                    if(!isDropped(source, table)) throw e;
+                    table.mDropped = true;
+                    if(LOCAL_LOGD) sLg.log(table.mName + " was dropped. Skipped.");
+                }
+            }
+            if(archive != null) archive.hold();
+        }
+    }
+
+    /**
+     * Reads a table's lowest and highest <code>_ID</code> into its bounds.
+     *
+     * @param source the live database
+     * @param table  the table
+     */
+    private static void readIdRange(SQLiteDatabase source, Table table) {
+        Cursor cursor = source.rawQuery("SELECT MIN(" + BaseColumns._ID + "), MAX("
+                + BaseColumns._ID + ") FROM " + table.mName, null);
+        try {
+            if(cursor.moveToFirst() && !cursor.isNull(1)) {
+                table.mMinId = cursor.getLong(0);
+                table.mMaxId = cursor.getLong(1);
+            }
+        } finally { cursor.close(); }
+    }
+
+    /**
+     * Copies a table's rows within the snapshot into memory.
+     *
+     * @param source the live database
+     * @param table  the table, with its bounds
+     * @return       the rows
+     */
+    private static Cursor copyRows(SQLiteDatabase source, Table table) {
+        Cursor cursor = table.mHasId
+                ? source.rawQuery("SELECT * FROM " + table.mSource + " WHERE "
+                        + BaseColumns._ID + " > ? AND " + BaseColumns._ID + " <= ?",
+                        new String[] { Long.toString(table.mFromId),
+                                       Long.toString(table.mMaxId) })
+                : source.rawQuery("SELECT * FROM " + table.mSource, null);
+        try {
+            MatrixCursor rows = new MatrixCursor(cursor.getColumnNames(), cursor.getCount());
+            Object[]     row  = new Object[cursor.getColumnCount()];
+
+            while(cursor.moveToNext()) {
+                for(int i = 0; i < row.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:    row[i] = null;                 break;
+                        case Cursor.FIELD_TYPE_INTEGER: row[i] = cursor.getLong(i);    break;
+                        case Cursor.FIELD_TYPE_FLOAT:   row[i] = cursor.getDouble(i);  break;
+                        case Cursor.FIELD_TYPE_BLOB:    row[i] = cursor.getBlob(i);    break;
+                        default:                        row[i] = cursor.getString(i);
+                    }
+                }
+                rows.addRow(row);
+            }
+            return rows;
+        } finally { cursor.close(); }
+    }
+
+    /**
+     * @param table a table being exported
+     * @return      <code>true</code> if its rows are updated in place, not only appended
+     */
+    private static boolean isInPlace(Table table) {
+        if(!table.mHasId) return true;
+        for(String name:IN_PLACE_TABLES) if(name.equals(table.mName)) return true;
+        return false;
+    }
+
+    /**
+     * Tells a query which failed because retention dropped its table from
+     * any other failure.
+     *
+     * @param source the live database
+     * @param table  the table queried
+     * @return       <code>true</code> if the table is gone
+     */
+    private static boolean isDropped(SQLiteDatabase source, Table table) {
+        return DatabaseUtils.queryNumEntries(source, "sqlite_master", "name = ?",
+                                             new String[] { table.mName }) == 0;
+    }
+
+    /**
+     * Reads one table's rows within the snapshot in chunks, handing each to a sink.
+     * A table updated in place hands over the copy taken with the snapshot.
+     * An archived table is read a block at a time. A table dropped since the
+     * snapshot ends the copy with the rows it had.
+     *
+     * @param source   the live database
+     * @param table    the table
+     * @param rows     rows copied before this table
+     * @param total    estimated rows in the snapshot
+     * @param listener receives progress. May be <code>null</code>
+     * @param sink     where the rows go
+     * @return         rows copied including this table
+     * @throws IOException if the sink could not write a chunk
+     */
+    private static long copyTable(SQLiteDatabase source, Table table, long rows, long total,
+                                  ProgressListener listener, Sink sink) throws IOException {
+        if(table.mKind != null) {
+            for(ColdArchive.Block block:table.mBlocks) {
+                Cursor cursor = table.mArchive.read(block, Long.MIN_VALUE, Long.MAX_VALUE);
+                try {
+                    sink.write(table, cursor);
+                    rows += cursor.getCount();
+                    if(listener != null) listener.onProgress(rows, total);
+                } finally { cursor.close(); }
+            }
+            return rows;
+        }
+        if(table.mDropped) return rows;
+
+        if(table.mRows != null) {
+            try {
+                if(table.mRows.getCount() == 0) return rows;
+
+                sink.write(table, table.mRows);
+                rows += table.mRows.getCount();
+                if(listener != null) listener.onProgress(rows, total);
+                return rows;
+            } finally {
+                table.mRows.close();
+                table.mRows = null;
+            }
+        }
+
+        String sql = "SELECT * FROM " + table.mSource + " WHERE " + BaseColumns._ID + " > ? AND "
+                + BaseColumns._ID + " <= " + table.mMaxId + " ORDER BY "
+                + BaseColumns._ID + " LIMIT " + CHUNK_SIZE;
+        long   lastId = table.mFromId;
+
+        while(true) {
+            Cursor cursor;
+            try {
+                cursor = source.rawQuery(sql, new String[] { Long.toString(lastId) });
+            } catch (SQLiteException e) {
+                if(!isDropped(source, table)) throw e;
+                if(LOCAL_LOGD) sLg.log(table.mName + " was dropped. Skipped the rest.");
+                return rows;
+            }
+            try {
+                int count = cursor.getCount();
+                if(count == 0) return rows;
+
+                sink.write(table, cursor);
+                rows += count;
+                if(listener != null) listener.onProgress(rows, total);
+
+                if(count < CHUNK_SIZE) return rows;
+                cursor.moveToLast();
+                lastId = cursor.getLong(cursor.getColumnIndex(BaseColumns._ID));
+            } finally { cursor.close(); }
+        }
+    }
+
+    /**
+     * Copies chunks into another SQLite database, one transaction per chunk.
+     * Addresses are copied formatted, as text.
+     */
+    private static final class DatabaseSink implements Sink {
+        private final SQLiteDatabase mOut;
+
+        DatabaseSink(SQLiteDatabase out) { mOut = out; }
+
+        @Override public void write(Table table, Cursor chunk) {
+            String[]        columns   = chunk.getColumnNames();
+            boolean[]       addresses = new boolean[columns.length];
+            SQLiteStatement insert    = mOut.compileStatement(
+                                            DataDumpContract.insertSql(table.mName, columns));
+
+            for(int i = 0; i < columns.length; i++)
+                addresses[i] = MacAddresses.isAddressColumn(columns[i]);
+
+            mOut.beginTransaction();
+            try {
+                while(chunk.moveToNext()) {
+                    for(int i = 0; i < columns.length; i++) {
+                        String address = addresses[i]
+                                && chunk.getType(i) == Cursor.FIELD_TYPE_INTEGER
+                                ? MacAddresses.format(chunk.getLong(i)) : null;
+
+                        if(address != null) insert.bindString(i + 1, address);
+                        else                DataDumpDbHelper.bindColumn(insert, i + 1, chunk, i);
+                    }
+                    insert.executeInsert();
+                }
+                mOut.setTransactionSuccessful();
+            } finally {
+                mOut.endTransaction();
+                insert.close();
+            }
+        }
+    }
+
+    /**
+     * Where <code>copyTable</code> sends each chunk of rows.
+     */
+    private interface Sink {
+        /**
+         * @param table the table being copied
+         * @param chunk the rows, positioned before the first
+         * @throws IOException if they could not be written
+         */
+        void write(Table table, Cursor chunk) throws IOException;
+    }
+
+    /**
+     * @param tables the tables being exported
+     * @param name   a table name
+     * @return       <code>true</code> if <code>name</code> is one of <code>tables</code>
+     */
+    private static boolean contains(List<Table> tables, String name) {
+        for(Table table:tables) if(table.mName.equals(name)) return true;
+        return false;
+    }
+
+    /**
+     * A table being exported, and its bounds in the snapshot.
+     */
+    private static final class Table {
+        final String      mName;
+        final String      mKind;        // The archived kind. null for a database table.
+        final ColdArchive mArchive;
+        String            mSource;      // The table or view the rows are read from.
+        boolean           mHasId;
+        boolean           mDropped;     // Since it was listed.
+        Cursor            mRows;        // Copied with the snapshot if updated in place.
+        long              mFromId;      // Exclusive.
+        long              mMinId;
+        long              mMaxId = -1;  // Inclusive. -1 while the table is empty.
+
+        List<ColdArchive.Block> mBlocks;    // An archived table's, in the snapshot.
+
+        Table(String name) { this(name, null, null); }
+
+        Table(String name, String kind, ColdArchive archive) {
+            mName    = name;
+            mKind    = kind;
+            mArchive = archive;
+            mSource  = name;
+        }
+
+        long estimateRows() {
+            if(mKind != null) {
+                long rows = 0;
+                for(ColdArchive.Block block:mBlocks) rows += block.mRows;
+                return rows;
+            }
+            if(mRows != null) return mRows.getCount();
+            if(!mHasId)       return 0;
+            if(mMaxId < 0)    return 0;
+            return Math.max(0, mMaxId - Math.max(mMinId - 1, mFromId));
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.kensinclair.logger.MyLog;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Owns the single database connection shared by every collector in the process.
+ * The database is opened lazily on a background thread, and callers block
+ * only if they need it before the open has finished.
+ *
+ * @see com.kensinclair.datacollector.DataDumpDbHelper
+ *
+ * @author Ken Sinclair
+ */
+
+final class DbManager {
+    private static final boolean LOCAL_LOGD = true;
+    private static final String  TAG        = DbManager.class.getSimpleName();
+
+    private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
+
+    private static final int  OPEN_ATTEMPTS      = 6;
+    private static final long OPEN_BACKOFF_START = 100;         // Milliseconds, doubled per retry.
+
+    private static final String ARCHIVE_DIR = "archive";        // In the files directory.
+
+    private static DbManager sInstance;
+
+    private final DataDumpDbHelper             mDbHelper;
+    private final ExecutorService              mExecutor;
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<>(); // Keyed by SQL.
+    private final Object                       mWriteLock  = new Object();
+    private final StringDictionary             mStrings    = new StringDictionary(this);
+    private final ScanDiffer                   mScanDiffer = new ScanDiffer();
+    private final SessionBuilder               mSessions   = new SessionBuilder(this);
+    private final PartitionManager             mPartitions = new PartitionManager(this);
+    private final HourlyRollups                mRollups    = new HourlyRollups(this);
+    private final RetentionEngine              mRetention  = new RetentionEngine(this);
+    private final CheckpointScheduler          mCheckpoints;
+    private final ColdArchive                  mArchive;
+
+    private Future<SQLiteDatabase> mOpenFuture;
+    private int                    mReferences;                 // Guarded by this.
+    private volatile long          mOpenLatency = -1;
+    private volatile long          mOpenRetries;                // Written by the open thread only.
+
+    /**
+     * Constructs the manager and its background thread.
+     *
+     * @param context the application context
+     */
+    private DbManager(Context context) {
+        mDbHelper    = new DataDumpDbHelper(context);
+        mCheckpoints = new CheckpointScheduler(mWriteLock, mDbHelper.getProfile());
+        mArchive     = new ColdArchive(this, new File(context.getFilesDir(), ARCHIVE_DIR));
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Gets the process-wide manager, creating it on first use.
+     *
+     * @param c any context. Only its application context is kept
+     * @return  the shared <code>DbManager</code>
+     */
+    static synchronized DbManager getInstance(Context c) {
+        if(sInstance == null) sInstance = new DbManager(c.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * Starts opening the database on the background thread
+     * if it is not already open or opening. Never blocks.
+     */
+    synchronized void openAsync() {
+        if(mOpenFuture != null) return;
+
+        mOpenFuture = mExecutor.submit(new Callable<SQLiteDatabase>() {
+            @Override public SQLiteDatabase call() { return open(); }
+        });
+    }
+
+    /**
+     * Gets the shared writable database, waiting for
+     * the background open to finish if necessary.
+     *
+     * @return the writable database
+     * @throws SQLiteException if the database could not be opened
+     */
+    SQLiteDatabase getDatabase() {
+        Future<SQLiteDatabase> openFuture;
+
+        synchronized (this) {
+            openAsync();
+            openFuture = mOpenFuture;
+        }
+
+        try {
+            return openFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLiteException("Interrupted while opening " + DataDumpDbHelper.DATABASE_NAME);
+        } catch (ExecutionException e) {
+            synchronized (this) {                      // Let the next caller retry the open rather
+                if(mOpenFuture == openFuture) mOpenFuture = null;   //  than rethrow a stale error.
+            }
+            Throwable cause = e.getCause();
+            if(cause instanceof SQLiteException) throw (SQLiteException) cause;
+            throw new SQLiteException("Error opening " + DataDumpDbHelper.DATABASE_NAME, cause);
+        }
+    }
+
+    /**
+     * Gets the lock every writer holds while it binds and runs statements.
+     * A compiled statement keeps its bindings between calls, so two threads
+     * sharing one would otherwise overwrite each other's arguments. Acquire it
+     * before anything else that synchronizes on this manager.
+     *
+     * @return the write lock
+     */
+    Object getWriteLock() { return mWriteLock; }
+
+    /**
+     * Gets a compiled statement, compiling it on first use.
+     * The caller must hold the write lock for as long as it uses the statement.
+     *
+     * @param sql the statement's SQL
+     * @return    the cached statement
+     * @see       #getWriteLock()
+     */
+    SQLiteStatement getStatement(String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+
+        if(statement == null) {
+            statement = getDatabase().compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Gets the dictionary interning repeated strings.
+     * The caller must hold the write lock while it uses it.
+     *
+     * @return the string dictionary
+     * @see    #getWriteLock()
+     */
+    StringDictionary getStringDictionary() { return mStrings; }
+
+    /**
+     * Gets the differ holding the previous WiFi scan.
+     * The caller must hold the write lock while it uses it.
+     *
+     * @return the scan differ
+     * @see    #getWriteLock()
+     */
+    ScanDiffer getScanDiffer() { return mScanDiffer; }
+
+    /**
+     * Gets the builder turning network events into sessions.
+     * The caller must hold the write lock while it uses it.
+     *
+     * @return the session builder
+     * @see    #getWriteLock()
+     */
+    SessionBuilder getSessionBuilder() { return mSessions; }
+
+    /**
+     * Gets the manager routing rows to time partitions.
+     * The caller must hold the write lock while it uses it.
+     *
+     * @return the partition manager
+     * @see    #getWriteLock()
+     */
+    PartitionManager getPartitionManager() { return mPartitions; }
+
+    /**
+     * Gets the counts kept up to date in the hourly rollups.
+     * The caller must hold the write lock while it uses them.
+     *
+     * @return the hourly rollups
+     * @see    #getWriteLock()
+     */
+    HourlyRollups getHourlyRollups() { return mRollups; }
+
+    /**
+     * Closes the cached statements, so that none holds a table about to be
+     * dropped. They are compiled again on next use. The caller must hold the
+     * write lock.
+     */
+    void closeStatements() {
+        for(SQLiteStatement statement:mStatements.values()) statement.close();
+        mStatements.clear();
+    }
+
+    /**
+     * Gets the scheduler checkpointing the write-ahead log.
+     *
+     * @return the checkpoint scheduler
+     */
+    CheckpointScheduler getCheckpointScheduler() { return mCheckpoints; }
+
+    /**
+     * Gets the engine deleting rows past the retention policy.
+     *
+     * @return the retention engine
+     */
+    RetentionEngine getRetentionEngine() { return mRetention; }
+
+    /**
+     * Gets the archive holding rows moved out of the partitions.
+     *
+     * @return the cold archive
+     */
+    ColdArchive getColdArchive() { return mArchive; }
+
+    /** @return the durability profile in force */
+    DurabilityProfile getDurabilityProfile() { return mDbHelper.getProfile(); }
+
+    /**
+     * Switches the durability profile. It is applied to the open database
+     * at once, and saved for later opens.
+     *
+     * @param profile the profile
+     * @throws SQLiteException if the database could not be opened
+     */
+    void setDurabilityProfile(DurabilityProfile profile) {
+        synchronized (mWriteLock) {             // Keeps it out of any transaction.
+            if(LOCAL_LOGD) sLg.log("Switching to the " + profile + " profile.");
+
+            mDbHelper.setProfile(profile);
+            profile.apply(getDatabase());
+            mCheckpoints.setProfile(profile);
+        }
+    }
+
+    /**
+     * Closes the cached statements and the shared database.
+     * A later call to <code>getDatabase</code> opens it again.
+     */
+    void close() {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                if(LOCAL_LOGD) sLg.log("Closing " + DataDumpDbHelper.DATABASE_NAME + ".");
+
+                mRetention.cancel();            // Scheduled again by the next open.
+                closeStatements();
+                mStrings.invalidate();
+                mScanDiffer.reset();
+                mSessions.invalidate();
+                mPartitions.invalidate();
+                mRollups.invalidate();
+
+                mOpenFuture = null;
+                mDbHelper.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the network session left open by an earlier process, on the
+     * manager's thread once the database is open. Never blocks.
+     */
+    void recoverSessions() {
+        openAsync();                            // Queued ahead of the recovery.
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                synchronized (DbManager.this) {
+                    if(mOpenFuture == null) return;     // Closed meanwhile. Left to the first
+                }                                       //  network event.
+                synchronized (mWriteLock) {
+                    mSessions.recover();
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes a reference to the database, which keeps it open until released.
+     * The activity and each service hold one while they are created.
+     */
+    synchronized void acquireReference() { mReferences++; }
+
+    /**
+     * Releases a reference taken by <code>acquireReference</code>. Once the last
+     * is released, the database is closed on the manager's thread, unless
+     * another is taken meanwhile. Never blocks.
+     */
+    void releaseReference() {
+        synchronized (this) {
+            if(--mReferences > 0) return;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                synchronized (DbManager.this) {
+                    if(mReferences > 0 || mOpenFuture == null) return;
+                }
+                close();
+            }
+        });
+    }
+
+    /**
+     * Gets how long the last database open took.
+     *
+     * @return the open latency in milliseconds,
+     *         or -1 if the database has not been opened
+     */
+    long getOpenLatency() { return mOpenLatency; }
+
+    /** @return the number of times opening the database has been retried */
+    long getOpenRetryCount() { return mOpenRetries; }
+
+    /**
+     * Opens the database. Runs on the manager's thread.
+     *
+     * <p>A database which can't be opened, or only read-only, as when storage
+     * is full or the file is locked, is retried up to <code>OPEN_ATTEMPTS</code>
+     * times, waiting twice as long before each retry. Then the open fails, and
+     * the next caller of <code>getDatabase</code> starts over.</p>
+     *
+     * @return the writable database
+     * @throws SQLiteException if no writable database could be opened
+     */
+    private SQLiteDatabase open() {
+        long start   = SystemClock.elapsedRealtime();
+        long backoff = OPEN_BACKOFF_START;
+
+        SQLiteDatabase  db    = null;
+        SQLiteException error = null;
+        for(int attempt = 1; ; attempt++) {
+            try {
+                db = mDbHelper.getWritableDatabase();
+                if(!db.isReadOnly()) break;
+                error = new SQLiteException(DataDumpDbHelper.DATABASE_NAME + " is read-only");
+            } catch (SQLiteException e) {
+                error = e;
+            }
+            if(attempt == OPEN_ATTEMPTS) {
+                mDbHelper.close();
+                Log.e(TAG, "Giving up opening " + DataDumpDbHelper.DATABASE_NAME + " after "
+                        + attempt + " attempts: " + error.getMessage());
+                throw error;
+            }
+
+            mOpenRetries++;
+            if(LOCAL_LOGD) sLg.log("Opening " + DataDumpDbHelper.DATABASE_NAME + " failed: "
+                    + error.getMessage() + ". Retrying in " + backoff + " ms.");
+            SystemClock.sleep(backoff);
+            backoff *= 2;
+        }
+
+        RetentionEngine.convert(db);            // Before anyone can write.
+
+        mOpenLatency = SystemClock.elapsedRealtime() - start;
+        if(LOCAL_LOGD) sLg.log("Opened " + DataDumpDbHelper.DATABASE_NAME + " in "
+                + mOpenLatency + " ms.");
+
+        final SQLiteDatabase opened = db;
+        mExecutor.execute(new Runnable() {       // Queued behind this open, on the same thread.
+            @Override public void run() {
+                synchronized (DbManager.this) {
+                    if(mOpenFuture == null) return;     // Closed meanwhile. The next open
+                }                                       //  resumes.
+                Migrations.resume(DbManager.this, opened);
+                mRetention.schedule();
+            }
+        });
+        return db;
+    }
+}
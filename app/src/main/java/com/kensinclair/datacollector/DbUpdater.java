@@ -17,22 +17,29 @@
 package com.kensinclair.datacollector;
 
 import android.accounts.Account;
-import android.content.ContentValues;
 import android.content.Context;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
-import android.location.Location;
-import android.net.NetworkInfo;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.database.sqlite.SQLiteDiskIOException;
+import android.database.sqlite.SQLiteFullException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.wifi.ScanResult;
-import android.net.wifi.WifiInfo;
-import android.text.format.DateFormat;
+import android.util.Log;
 
 import com.kensinclair.logger.MyLog;
 
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Provides methods for updating the database.
+ * Rows are written through compiled statements cached by
+ * the <code>DbManager</code>, so the hot path binds primitives
+ * directly instead of building <code>ContentValues</code>.
+ * Locations, network changes, WiFi connections and scans are
+ * counted in the <code>HourlyRollups</code> as they are written,
+ * and the counts updated before the transaction commits.
  *
  * @author Ken Sinclair
  */
@@ -43,8 +50,14 @@ public class DbUpdater {
 
     private static MyLog sLg = new MyLog(TAG);
 
-    private static final CharSequence DATE_FORMAT = "yyyy-MM-dd HH:mm:ss.S z";
-    private Context                   mContext;
+    private static final String INSERT_ACCOUNT   = DataDumpContract.insertSql(
+            DataDumpContract.AccountsTable.TABLE_NAME,
+            DataDumpContract.AccountsTable.INSERT_COLUMNS);
+    private static final String INSERT_WIFI_CON  = DataDumpContract.insertSql(
+            DataDumpContract.WifiConnectionTable.TABLE_NAME,
+            DataDumpContract.WifiConnectionTable.INSERT_COLUMNS);
+
+    private DbManager mDbManager;
 
     /**
      * Prevents the default constructor from being called.
@@ -52,255 +65,361 @@ public class DbUpdater {
     private DbUpdater() {}
 
     /**
-     * Constructs a <code>DbUpdater</code> with
-     * a <code>Context</code> for a <code>DataDumpDbHelper</code>.
+     * Constructs a <code>DbUpdater</code> which writes
+     * through the process-wide <code>DbManager</code>.
      *
      * @param c the context of the caller
      */
-    DbUpdater(Context c) { mContext = c; }
+    DbUpdater(Context c) { mDbManager = DbManager.getInstance(c); }
 
     /**
-     * Updates the accounts table.
+     * Updates the accounts table. All of the accounts
+     * are written in one transaction, or none are.
      *
      * @param accounts the new accounts data
      * @param time     the ime of data collection
-     * @return         <code>true</code> if the database update
-     *                 was successful; <code>false</code> otherwise
+     * @return         <code>true</code> if every account was written;
+     *                 <code>false</code> if the batch was rolled back
      */
     protected boolean updateTable(Account[] accounts, long time) {
-        boolean       retVal    = true;
-        ContentValues row;
-        CharSequence  timestamp = createTimestamp(time);
-
-        SQLiteDatabase db = getDb();
+        return write(new IngestionQueue.AccountsEntry(accounts, time));
+    }
 
-        for(Account account:accounts) {
-            row = createRow(account, timestamp);
+    /**
+     * Updates the scan results table. The whole scan is
+     * written in one transaction, or none of it is.
+     *
+     * @param scanResults the new scan results
+     * @param time        the time of data collection
+     * @return            <code>true</code> if every scan result was written;
+     *                    <code>false</code> if the batch was rolled back
+     */
+    protected boolean updateTable(List<ScanResult> scanResults, long time) {
+        return write(new IngestionQueue.WifiScanEntry(scanResults, time));
+    }
 
-            if(LOCAL_LOGV) sLg.log("Inserting row: " + row);
+    /**
+     * Writes one entry in its own transaction.
+     *
+     * @param entry the entry to be written
+     * @return      <code>true</code> if every row was written;
+     *              <code>false</code> if the entry was rolled back
+     */
+    boolean write(IngestionQueue.Entry entry) {
+        return write(Collections.singletonList(entry));
+    }
 
-            if(db.insert(DataDumpContract.AccountsTable.TABLE_NAME, null, row) == -1)
-                retVal = false;
+    /**
+     * Writes a group of entries in one transaction.
+     * Either every row of every entry is written, or none is.
+     *
+     * @param entries the entries to be written
+     * @return        <code>true</code> if every row was written;
+     *                <code>false</code> if the group was rolled back
+     * @throws android.database.SQLException if the database is full or unavailable.
+     *                The group was rolled back
+     */
+    boolean write(List<? extends IngestionQueue.Entry> entries) {
+        synchronized (mDbManager.getWriteLock()) {
+            SQLiteDatabase db = getDb();
+
+            boolean committed = false;
+
+            db.beginTransactionNonExclusive();
+            try {
+                for(int i = 0, n = entries.size(); i < n; i++)  // Indexed to avoid an Iterator
+                    if(!entries.get(i).write(this))             //                   per group.
+                        return false;   // Ending without marking the transaction successful
+                                        //                             rolls back the whole group.
+                if(!mDbManager.getHourlyRollups().flush()) return false;
+
+                db.setTransactionSuccessful();
+                committed = true;
+                return true;
+            } finally {
+                boolean ended = false;
+                try {
+                    db.endTransaction();        // May throw if the commit itself fails.
+                    ended = true;
+                } finally {
+                    if(!committed || !ended) {  // The strings, scan and sessions it wrote
+                        mDbManager.getStringDictionary().invalidate();      // are gone too.
+                        mDbManager.getScanDiffer().reset();
+                        mDbManager.getSessionBuilder().invalidate();
+                        mDbManager.getPartitionManager().invalidate();
+                        mDbManager.getHourlyRollups().invalidate();
+                    }
+                }
+                if(committed) {
+                    mDbManager.getSessionBuilder().onCommit();
+                    mDbManager.getCheckpointScheduler().onCommit(db);
+                }
+            }
         }
-        return retVal;
     }
 
     /**
-     * Updates the location table.
+     * Inserts a row into the accounts table.
+     * The caller must hold the write lock.
      *
-     * @param location the new location data
-     * @param time     the time of data collection
-     * @return         the row ID of the newly inserted row,
-     *                 or -1 if an error occurred
+     * @param time  the time of data collection, in epoch milliseconds
+     * @param name  the account name
+     * @param type  the account type
+     * @param event one of the <code>AccountsTable.EVENT_</code> constants
+     * @return      the row ID of the newly inserted row,
+     *              or -1 if an error occurred
      */
-    protected long updateTable(Location location, long time) {
-        CharSequence timestamp = createTimestamp(time);
-
-        ContentValues row = createRow(location, timestamp);
+    long insertAccount(long time, String name, String type, int event) {
+        SQLiteStatement statement = mDbManager.getStatement(INSERT_ACCOUNT);
 
-        if(LOCAL_LOGV) sLg.log("Inserting row: " + row);
+        if(LOCAL_LOGV) sLg.log("Inserting account: " + name + " " + type + " " + event);
 
-        return getDb().insert(DataDumpContract.LocationTable.TABLE_NAME, null, row);
+        statement.bindLong(1, time);
+        bindString(statement, 2, name);
+        bindString(statement, 3, type);
+        statement.bindLong(4, event);
+        return executeInsert(statement);
     }
 
     /**
-     * Updates the network table.
+     * Inserts a row into the location table.
+     * The caller must hold the write lock.
      *
-     * @param netInfo the new network data
-     * @param time    the time of data collection
+     * @param time    the time of data collection, in epoch milliseconds
+     * @param lat     latitude in degrees
+     * @param lng     longitude in degrees
+     * @param bearing bearing in degrees
+     * @param speed   speed in meters per second
+     * @param alt     altitude in meters
+     * @param acc     accuracy in meters
      * @return        the row ID of the newly inserted row,
      *                or -1 if an error occurred
      */
-    protected long updateTable(NetworkInfo netInfo, long time) {
-        CharSequence  timestamp = createTimestamp(time);
-
-        ContentValues row = createRow(netInfo, timestamp);
-
-        if(LOCAL_LOGV) sLg.log("Inserting row: " + row);
-
-        return getDb().insert(DataDumpContract.NetworkTable.TABLE_NAME, null, row);
+    long insertLocation(long time, double lat, double lng, float bearing,
+                        float speed, double alt, float acc) {
+        SQLiteStatement statement = getInsert(DataDumpContract.PartitionsTable.KIND_LOCATION,
+                                              time);
+
+        if(LOCAL_LOGV) sLg.log("Inserting location: " + lat + "," + lng);
+
+        statement.bindLong(1, time);
+        statement.bindDouble(2, lat);
+        statement.bindDouble(3, lng);
+        statement.bindDouble(4, bearing);
+        statement.bindDouble(5, speed);
+        statement.bindDouble(6, alt);
+        statement.bindDouble(7, acc);
+
+        long id = executeInsert(statement);
+        if(id != -1) mDbManager.getHourlyRollups().onLocation(time);
+        return id;
     }
 
     /**
-     * Updates the WiFi table.
+     * Inserts a row into the network table and updates the network sessions.
+     * The caller must hold the write lock.
      *
-     * @param wifiInfo the new WiFi data
-     * @param time     the time of data collection
-     * @return         the row ID of the newly inserted row,
-     *                 or -1 if an error occurred
+     * @param time    the time of data collection, in epoch milliseconds
+     * @param type    the network type name
+     * @param subtype the network subtype name
+     * @param state   the detailed network state
+     * @param reason  the reason for the change
+     * @return        the row ID of the newly inserted row,
+     *                or -1 if an error occurred
      */
-    protected long updateTable(WifiInfo wifiInfo, long time) {
-        CharSequence timestamp = createTimestamp(time);
-
-        ContentValues row = createRow(wifiInfo, timestamp);
-
-        if(LOCAL_LOGV) sLg.log("Inserting row: " + row);
-
-        return getDb().insert(DataDumpContract.WifiConnectionTable.TABLE_NAME, null, row);
+    long insertNetwork(long time, String type, String subtype, String state, String reason) {
+        StringDictionary strings   = mDbManager.getStringDictionary();
+        SQLiteStatement  statement = getInsert(DataDumpContract.PartitionsTable.KIND_NETWORK,
+                                               time);
+
+        if(LOCAL_LOGV) sLg.log("Inserting network: " + type + " " + state);
+
+        statement.bindLong(1, time);
+        bindId(statement, 2, strings.intern(type));
+        bindId(statement, 3, strings.intern(subtype));
+        bindId(statement, 4, strings.intern(state));
+        bindId(statement, 5, strings.intern(reason));
+
+        long id = executeInsert(statement);
+        if(id != -1) mDbManager.getHourlyRollups().onNetwork(time);
+        if(id != -1 && !mDbManager.getSessionBuilder().onNetwork(time, type, state)) return -1;
+        return id;
     }
 
     /**
-     * Updates the scan results table.
-     * Since each <code>ScanResult</code> has
-     * its own timestamp, no time parameter is necessary.
+     * Inserts a row into the WiFi connection table and updates the network sessions.
+     * The caller must hold the write lock.
      *
-     * @param scanResults the new scan results
-     * @param time        the time of data collection
-     * @return            <code>true</code> if the database update
-     *                    was successful; <code>false</code> otherwise
+     * @param time   the time of data collection, in epoch milliseconds
+     * @param ip     the IPv4 address
+     * @param mac    the device MAC address, from <code>MacAddresses.parse</code>
+     * @param bssid  the access point's BSSID, from <code>MacAddresses.parse</code>
+     * @param ssid   the network's SSID
+     * @param hidden whether the SSID is hidden
+     * @return       the row ID of the newly inserted row,
+     *               or -1 if an error occurred
      */
-    protected boolean updateTable(List<ScanResult> scanResults, long time) {
-        Iterator<ScanResult> it        = scanResults.iterator();
-        boolean              retVal    = true;
-        ContentValues        row;
-        CharSequence         timestamp = createTimestamp(time);
-
-         SQLiteDatabase db = getDb();
-
-        while (it.hasNext()) {
-            row = createRow(it.next(), timestamp);
-
-            if(LOCAL_LOGV) sLg.log("Inserting row: " + row);
+    long insertWifiConnection(long time, int ip, long mac, long bssid,
+                              String ssid, boolean hidden) {
+        SQLiteStatement statement = mDbManager.getStatement(INSERT_WIFI_CON);
+
+        if(LOCAL_LOGV) sLg.log("Inserting WiFi connection: " + MacAddresses.format(bssid)
+                + " " + ssid);
+
+        statement.bindLong(1, time);
+        statement.bindLong(2, ip);
+        bindMac(statement, 3, mac);
+        bindMac(statement, 4, bssid);
+        bindString(statement, 5, ssid);
+        statement.bindLong(6, hidden ? 1 : 0);
+
+        long id = executeInsert(statement);
+        if(id != -1) mDbManager.getHourlyRollups().onWifiConnection(time);
+        if(id != -1 && !mDbManager.getSessionBuilder().onWifiConnection(time, bssid)) return -1;
+        return id;
+    }
 
-            if (db.insert(DataDumpContract.WifiScanTable.TABLE_NAME, null, row) == -1)
-                retVal = false;
+    /**
+     * Writes a WiFi scan as the rows which differ from the previous scan,
+     * or whole when it is time for a keyframe. The caller must hold the write lock.
+     *
+     * @param time   the time of data collection, in epoch milliseconds
+     * @param bssids each result's BSSID, from <code>MacAddresses.parse</code>
+     * @param ssids  each result's SSID
+     * @param caps   each result's capabilities
+     * @return       <code>true</code> if every row was written
+     * @see    com.kensinclair.datacollector.ScanDiffer
+     */
+    boolean writeWifiScan(long time, long[] bssids, String[] ssids, String[] caps) {
+        ScanDiffer differ = mDbManager.getScanDiffer();
+
+        differ.setPartition(mDbManager.getPartitionManager().forTime(
+                DataDumpContract.PartitionsTable.KIND_WIFI_SCAN, time).mId);
+        differ.diff(time, bssids, ssids, caps);
+        for(int i = 0, n = differ.getSize(); i < n; i++) {
+            if(insertWifiScan(time, differ.getBssid(i), differ.getSsid(i),
+                    differ.getCapabilities(i), differ.getEvent(i)) == -1) return false;
         }
-
-        return retVal;
+        if(LOCAL_LOGV) sLg.log("Scan of " + bssids.length + " results written as "
+                + differ.getSize() + " rows.");
+        return mDbManager.getHourlyRollups().onScan(time, bssids);
     }
 
     /**
-     * Helper function to create a timestamp format
-     * specified by <code>TIME_FORMAT</code>.
+     * Inserts a row into the WiFi scan results table.
+     * The caller must hold the write lock.
      *
-     * @param time the time to be formatted
-     * @return     the formatted time
+     * @param time  the time of data collection, in epoch milliseconds
+     * @param bssid the access point's BSSID, from <code>MacAddresses.parse</code>
+     * @param ssid  the network's SSID
+     * @param cap   the access point's capabilities
+     * @param event one of the <code>WifiScanTable.EVENT_</code> constants
+     * @return      the row ID of the newly inserted row,
+     *              or -1 if an error occurred
      */
-    private CharSequence createTimestamp(long time) {
-        return DateFormat.format(DATE_FORMAT, time);
+    long insertWifiScan(long time, long bssid, String ssid, String cap, int event) {
+        StringDictionary strings   = mDbManager.getStringDictionary();
+        SQLiteStatement  statement = getInsert(DataDumpContract.PartitionsTable.KIND_WIFI_SCAN,
+                                               time);
+
+        if(LOCAL_LOGV) sLg.log("Inserting scan result: " + MacAddresses.format(bssid)
+                + " " + ssid + " " + event);
+
+        statement.bindLong(1, time);
+        bindMac(statement, 2, bssid);
+        bindId(statement, 3, strings.intern(ssid));
+        bindId(statement, 4, strings.intern(cap));
+        statement.bindLong(5, event);
+        return executeInsert(statement);
     }
 
     /**
-     * Creates a row for the accounts table.
+     * Gets the insert statement of the partition a row's time falls in,
+     * creating the partition if there is none yet.
      *
-     * @param account   the <code>Account</code> from which the row is created
-     * @param timestamp the time of data collection
-     * @return          the row created from the <code>Account</code>
+     * @param kind one of the <code>PartitionsTable.KIND_</code> constants
+     * @param time the row's time, in epoch milliseconds
+     * @return     the cached statement
+     * @throws android.database.SQLException if the partition could not be created
      */
-    private ContentValues createRow(Account account, CharSequence timestamp) {
-        ContentValues accountRow = new ContentValues();
-
-        accountRow.put(DataDumpContract.AccountsTable.COLUMN_NAME_TIME, timestamp.toString());
-        accountRow.put(DataDumpContract.AccountsTable.COLUMN_NAME_NAME, account.name);
-        accountRow.put(DataDumpContract.AccountsTable.COLUMN_NAME_TYPE, account.type);
-
-        return accountRow;
+    private SQLiteStatement getInsert(String kind, long time) {
+        return mDbManager.getStatement(
+                mDbManager.getPartitionManager().forTime(kind, time).getInsertSql());
     }
 
     /**
-     * Creates a row for the location table.
+     * Binds an interned string's ID, or NULL for a null string.
      *
-     * @param location  the <code>Location</code> from which the row is created
-     * @param timestamp the time of data collection
-     * @return          the row created from the <code>Location</code>
+     * @param statement the statement being bound
+     * @param index     the 1-based bind position
+     * @param id        the ID from <code>StringDictionary.intern</code>
      */
-    private ContentValues createRow(Location location, CharSequence timestamp) {
-        ContentValues locationRow = new ContentValues();
-
-        locationRow.put(DataDumpContract.LocationTable.COLUMN_NAME_TIME,      timestamp.toString());
-        locationRow.put(DataDumpContract.LocationTable.COLUMN_NAME_LAT,     location.getLatitude());
-        locationRow.put(DataDumpContract.LocationTable.COLUMN_NAME_LNG,
-                                                                           location.getLongitude());
-        locationRow.put(DataDumpContract.LocationTable.COLUMN_NAME_BEARING,  location.getBearing());
-        locationRow.put(DataDumpContract.LocationTable.COLUMN_NAME_SPEED,      location.getSpeed());
-        locationRow.put(DataDumpContract.LocationTable.COLUMN_NAME_ALT,     location.getAltitude());
-        locationRow.put(DataDumpContract.LocationTable.COLUMN_NAME_ACC,     location.getAccuracy());
-
-        return locationRow;
+    private static void bindId(SQLiteStatement statement, int index, long id) {
+        if(id == -1) statement.bindNull(index);
+        else         statement.bindLong(index, id);
     }
 
     /**
-     * Creates a row for the network table.
+     * Binds a string which may be null. <code>SQLiteStatement.bindString</code>
+     * rejects null, where <code>ContentValues</code> stored NULL.
      *
-     * @param netInfo   the <code>NetworkInfo</code> from which the row is created
-     * @param timestamp the time of data collection
-     * @return          the row created from the <code>NetworkInfo</code>
+     * @param statement the statement being bound
+     * @param index     the 1-based bind position
+     * @param value     the value to bind
      */
-    private ContentValues createRow(NetworkInfo netInfo, CharSequence timestamp){
-        ContentValues networkRow = new ContentValues();
-        String reason            = "disconnection"; // If no reason is provided, assume
-        String state             = "";              //                    disconnection.
-        String subtype           = "";
-        String type              = "";
-
-        if(netInfo != null) {                      // If the reason for the signal is disconnection,
-            type    =  netInfo.getTypeName();      //                       the NetworkInfo is null.
-            subtype = netInfo.getSubtypeName();
-            state   = netInfo.getDetailedState().toString();
-            reason  = netInfo.getReason();
-        }
-        networkRow.put(DataDumpContract.NetworkTable.COLUMN_NAME_TIME,    timestamp.toString());
-        networkRow.put(DataDumpContract.NetworkTable.COLUMN_NAME_TYPE,    type);
-        networkRow.put(DataDumpContract.NetworkTable.COLUMN_NAME_SUBTYPE, subtype);
-        networkRow.put(DataDumpContract.NetworkTable.COLUMN_NAME_STATE,   state);
-        networkRow.put(DataDumpContract.NetworkTable.COLUMN_NAME_REASON,  reason);
-
-        return networkRow;
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if(value == null) statement.bindNull(index);
+        else              statement.bindString(index, value);
     }
 
     /**
-     * Creates a row for the WiFi connection table.
+     * Binds a parsed MAC address, or NULL for a missing or malformed one.
      *
-     * @param wifiInfo  the <code>WifiInfo</code> from which the row is created
-     * @param timestamp the time of data collection
-     * @return          the row created from the <code>WifiInfo</code>
+     * @param statement the statement being bound
+     * @param index     the 1-based bind position
+     * @param address   the address from <code>MacAddresses.parse</code>
      */
-    private ContentValues createRow(WifiInfo wifiInfo, CharSequence timestamp) {
-        ContentValues wifiConRow = new ContentValues();
-
-        wifiConRow.put(DataDumpContract.WifiConnectionTable.COLUMN_NAME_TIME,
-                                                                              timestamp.toString());
-        wifiConRow.put(DataDumpContract.WifiConnectionTable.COLUMN_NAME_IP,
-                                                                           wifiInfo.getIpAddress());
-        wifiConRow.put(DataDumpContract.WifiConnectionTable.COLUMN_NAME_MAC,
-                                                                          wifiInfo.getMacAddress());
-        wifiConRow.put(DataDumpContract.WifiConnectionTable.COLUMN_NAME_BSSID, wifiInfo.getBSSID());
-        wifiConRow.put(DataDumpContract.WifiConnectionTable.COLUMN_NAME_SSID,   wifiInfo.getSSID());
-        wifiConRow.put(DataDumpContract.WifiConnectionTable.COLUMN_NAME_HID,
-                                                                          wifiInfo.getHiddenSSID());
-
-        return wifiConRow;
+    private static void bindMac(SQLiteStatement statement, int index, long address) {
+        if(address == MacAddresses.NONE) statement.bindNull(index);
+        else                             statement.bindLong(index, address);
     }
 
     /**
-     * Creates a row for the WiFi scan results table.
+     * Runs a bound insert statement.
      *
-     * @param scanResult the <code>ScanResult</code> from which the row is created
-     * @param timestamp the time of data collection
-     * @return           the row created from the <code>ScanResults</code>
+     * @param statement the bound statement
+     * @return          the row ID of the newly inserted row,
+     *                  or -1 if an error occurred
+     * @throws android.database.SQLException if the database can't be written at all
      */
-    private ContentValues createRow(ScanResult scanResult, CharSequence timestamp) {
-        ContentValues wifiScanRow = new ContentValues();
-
-        wifiScanRow.put(DataDumpContract.WifiScanTable.COLUMN_NAME_TIME,  timestamp.toString());
-        wifiScanRow.put(DataDumpContract.WifiScanTable.COLUMN_NAME_BSSID, scanResult.BSSID);
-        wifiScanRow.put(DataDumpContract.WifiScanTable.COLUMN_NAME_SSID,  scanResult.SSID);
-        wifiScanRow.put(DataDumpContract.WifiScanTable.COLUMN_NAME_CAP,   scanResult.capabilities);
+    private static long executeInsert(SQLiteStatement statement) {
+        try {
+            return statement.executeInsert();
+        } catch (SQLException e) {                         // Match SQLiteDatabase.insert(), which
+            rethrowIfUnavailable(e);                       //       logs and returns -1.
+            Log.e(TAG, "Error inserting row: " + e.getMessage());
+            return -1;
+        }
+    }
 
-        return  wifiScanRow;
+    /**
+     * Rethrows an error which means the database can't be written at all,
+     * rather than that one row is bad, so that <code>IngestionQueue</code>
+     * spills the whole group instead of failing its entries one by one.
+     *
+     * @param e the error caught
+     * @throws android.database.SQLException <code>e</code>, if storage is full,
+     *                                       failing, or the database is locked
+     */
+    static void rethrowIfUnavailable(SQLException e) {
+        if(e instanceof SQLiteFullException || e instanceof SQLiteDiskIOException
+                || e instanceof SQLiteDatabaseLockedException) throw e;
     }
 
     /**
-     * Gets a writable database.
+     * Gets the shared writable database.
      *
      * @return the writable database
      */
-    private SQLiteDatabase getDb() {
-        DataDumpDbHelper dbHelper = new DataDumpDbHelper(mContext);
-
-        SQLiteDatabase db = dbHelper.getWritableDatabase();           //       Continue requesting a
-                                                                      // writable database until the
-        while(db.isReadOnly()) db = dbHelper.getWritableDatabase();   //  dbHelper is able to return
-        return db;                                                    //                        one.
-    }
+    private SQLiteDatabase getDb() { return mDbManager.getDatabase(); }
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A named set of SQLite settings trading durability against write throughput,
+ * and the WAL size and idle time at which <code>CheckpointScheduler</code>
+ * checkpoints.
+ *
+ * <ul>
+ *     <li><code>STRICT</code>: every commit synced to disk. Nothing committed
+ *         is lost, even on power loss.</li>
+ *     <li><code>BALANCED</code>: the WAL is synced at checkpoints only. A power
+ *         loss may lose the last commits, but never corrupts the database.</li>
+ *     <li><code>BULK</code>: nothing is synced, and the WAL may grow large between
+ *         checkpoints. For backfills. A power loss may corrupt the database.</li>
+ * </ul>
+ *
+ * <p>SQLite's own automatic checkpoint is kept only as a backstop, at four times
+ * the scheduler's threshold. The page size only takes effect when the database
+ * file is created. The chosen profile is kept in shared preferences.</p>
+ *
+ * @see com.kensinclair.datacollector.CheckpointScheduler
+ *
+ * @author Ken Sinclair
+ */
+
+final class DurabilityProfile {
+    static final DurabilityProfile STRICT   = new DurabilityProfile(
+            "strict",   "FULL",   4096, 2000, 1024 * 1024,      256 * 1024,      2000);
+    static final DurabilityProfile BALANCED = new DurabilityProfile(
+            "balanced", "NORMAL", 4096, 2000, 4 * 1024 * 1024,  1024 * 1024,     5000);
+    static final DurabilityProfile BULK     = new DurabilityProfile(
+            "bulk",     "OFF",    8192, 8000, 16 * 1024 * 1024, 8 * 1024 * 1024, 30000);
+
+    private static final DurabilityProfile[] PROFILES = { STRICT, BALANCED, BULK };
+
+    private static final String PREFS       = "durability";
+    private static final String KEY_PROFILE = "profile";
+
+    final String mName;
+    final String mSynchronous;          // PRAGMA synchronous.
+    final int    mPageSize;             // Bytes.
+    final int    mCacheSize;            // KiB per connection.
+    final long   mJournalSizeLimit;     // Bytes the WAL is truncated to after a checkpoint.
+    final long   mCheckpointBytes;      // WAL size which makes a checkpoint due.
+    final long   mCheckpointIdle;       // Milliseconds without a commit before it runs.
+
+    private DurabilityProfile(String name, String synchronous, int pageSize, int cacheSize,
+                              long journalSizeLimit, long checkpointBytes, long checkpointIdle) {
+        mName             = name;
+        mSynchronous      = synchronous;
+        mPageSize         = pageSize;
+        mCacheSize        = cacheSize;
+        mJournalSizeLimit = journalSizeLimit;
+        mCheckpointBytes  = checkpointBytes;
+        mCheckpointIdle   = checkpointIdle;
+    }
+
+    /**
+     * Looks a profile up by name.
+     *
+     * @param name the profile's name
+     * @return     the profile, or <code>null</code> if there is none by that name
+     */
+    static DurabilityProfile forName(String name) {
+        for(DurabilityProfile profile:PROFILES) if(profile.mName.equals(name)) return profile;
+        return null;
+    }
+
+    /**
+     * Loads the chosen profile.
+     *
+     * @param c the context of the caller
+     * @return  the profile last saved, or <code>BALANCED</code> if none was
+     */
+    static DurabilityProfile load(Context c) {
+        SharedPreferences prefs   = c.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        DurabilityProfile profile = forName(prefs.getString(KEY_PROFILE, BALANCED.mName));
+
+        return profile != null ? profile : BALANCED;
+    }
+
+    /**
+     * Saves this profile as the chosen one.
+     *
+     * @param c the context of the caller
+     */
+    void save(Context c) {
+        c.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+         .putString(KEY_PROFILE, mName).apply();
+    }
+
+    /**
+     * Sets the page size of a database file not yet written.
+     * Must be called before any table is created.
+     *
+     * @param db the new database
+     */
+    void applyPageSize(SQLiteDatabase db) { db.execSQL("PRAGMA page_size = " + mPageSize); }
+
+    /**
+     * Applies the profile's settings to a connection.
+     * Must not be called inside a transaction.
+     *
+     * @param db the database
+     */
+    void apply(SQLiteDatabase db) {
+        db.execSQL("PRAGMA synchronous = " + mSynchronous);
+        db.execSQL("PRAGMA cache_size = " + -mCacheSize);               // Negative means KiB.
+
+        pragma(db, "PRAGMA journal_size_limit = " + mJournalSizeLimit);
+        pragma(db, "PRAGMA wal_autocheckpoint = " + 4 * mCheckpointBytes / db.getPageSize());
+    }
+
+    @Override public String toString() { return mName; }
+
+    /** Runs a pragma which returns its new value, which <code>execSQL</code> refuses. */
+    private static void pragma(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            cursor.moveToFirst();
+        } finally { cursor.close(); }
+    }
+}
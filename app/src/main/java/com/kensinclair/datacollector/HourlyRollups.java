@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.kensinclair.logger.MyLog;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps the hourly rollups up to date as rows are written: for each hour,
+ * the location fixes, network changes, WiFi connections, scans and scan
+ * results collected, and the distinct BSSIDs scanned. Summaries then read
+ * one row per hour instead of every row collected in it.
+ *
+ * <p><code>DbUpdater</code> counts each row it writes here, and the counts
+ * are added to the hours' rows by <code>flush</code>, in the same transaction
+ * as the rows counted, so they are exact. A rollback discards them with the rows.
+ * The distinct BSSIDs are estimated with a <code>CardinalitySketch</code>
+ * stored in each hour's row, since they can't be counted exactly without
+ * keeping every BSSID. The latest hour's sketch is kept in memory, so most
+ * scans don't read it back, and it is only written when a scan changed it.</p>
+ *
+ * <p>Rollups start from the version 14 upgrade: earlier hours have no row.
+ * Every method must be called with the <code>DbManager</code> write lock held.</p>
+ *
+ * @see com.kensinclair.datacollector.DataDumpContract.HourlyRollupsTable
+ *
+ * @author Ken Sinclair
+ */
+
+final class HourlyRollups {
+    private static final boolean LOCAL_LOGV = false;
+    private static final String  TAG        = HourlyRollups.class.getSimpleName();
+
+    private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
+
+    static final long HOUR = 60 * 60 * 1000;
+
+    private static final String SQL_ADD_HOUR =
+            "INSERT OR IGNORE INTO " + DataDumpContract.HourlyRollupsTable.TABLE_NAME + " (" +
+            DataDumpContract.HourlyRollupsTable.COLUMN_NAME_HOUR + ") VALUES (?)";
+    private static final String SQL_ADD_COUNTS =
+            "UPDATE " + DataDumpContract.HourlyRollupsTable.TABLE_NAME + " SET " +
+            add(DataDumpContract.HourlyRollupsTable.COLUMN_NAME_LOCATIONS) + "," +
+            add(DataDumpContract.HourlyRollupsTable.COLUMN_NAME_NETWORK)   + "," +
+            add(DataDumpContract.HourlyRollupsTable.COLUMN_NAME_WIFI_CON)  + "," +
+            add(DataDumpContract.HourlyRollupsTable.COLUMN_NAME_SCANS)     + "," +
+            add(DataDumpContract.HourlyRollupsTable.COLUMN_NAME_RESULTS)   +
+            " WHERE " + DataDumpContract.HourlyRollupsTable.COLUMN_NAME_HOUR + " = ?";
+    private static final String SQL_SET_SKETCH =
+            "UPDATE " + DataDumpContract.HourlyRollupsTable.TABLE_NAME + " SET " +
+            DataDumpContract.HourlyRollupsTable.COLUMN_NAME_BSSIDS + " = ?," +
+            DataDumpContract.HourlyRollupsTable.COLUMN_NAME_SKETCH + " = ?" +
+            " WHERE " + DataDumpContract.HourlyRollupsTable.COLUMN_NAME_HOUR + " = ?";
+    private static final String SQL_GET_SKETCH =
+            "SELECT " + DataDumpContract.HourlyRollupsTable.COLUMN_NAME_SKETCH +
+            " FROM "  + DataDumpContract.HourlyRollupsTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.HourlyRollupsTable.COLUMN_NAME_HOUR + " = ?";
+    private static final String SQL_SKETCHES =
+            "SELECT " + DataDumpContract.HourlyRollupsTable.COLUMN_NAME_SKETCH +
+            " FROM "  + DataDumpContract.HourlyRollupsTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.HourlyRollupsTable.COLUMN_NAME_HOUR + " >= ? AND " +
+                        DataDumpContract.HourlyRollupsTable.COLUMN_NAME_HOUR + " < ? AND " +
+                        DataDumpContract.HourlyRollupsTable.COLUMN_NAME_SKETCH + " IS NOT NULL";
+
+    private final DbManager         mDbManager;
+    private final Map<Long, Bucket> mBuckets = new HashMap<>();     // Keyed by hour.
+
+    private long mLatest = Long.MIN_VALUE;      // The latest hour counted, whose bucket is kept.
+
+    private long mRowWrites;
+    private long mSketchWrites;
+
+    /**
+     * @param dbManager the manager owning the database and its statement cache
+     */
+    HourlyRollups(DbManager dbManager) { mDbManager = dbManager; }
+
+    /**
+     * Counts a location fix.
+     *
+     * @param time the time of the fix
+     */
+    void onLocation(long time) { bucket(time).mLocations++; }
+
+    /**
+     * Counts a network change.
+     *
+     * @param time the time of the change
+     */
+    void onNetwork(long time) { bucket(time).mNetwork++; }
+
+    /**
+     * Counts a WiFi connection event.
+     *
+     * @param time the time of the event
+     */
+    void onWifiConnection(long time) { bucket(time).mWifiConnections++; }
+
+    /**
+     * Counts a scan, and its results and BSSIDs. The scan is counted whole,
+     * however few rows its diff took.
+     *
+     * @param time   the time of the scan
+     * @param bssids each result's BSSID, from <code>MacAddresses.parse</code>
+     * @return       <code>true</code> if the scan was counted;
+     *               <code>false</code> if its hour's sketch could not be read
+     */
+    boolean onScan(long time, long[] bssids) {
+        Bucket bucket = bucket(time);
+
+        try {
+            if(bucket.mSketch == null) bucket.mSketch = loadSketch(bucket.mHour);
+        } catch (SQLException e) {
+            DbUpdater.rethrowIfUnavailable(e);
+            Log.e(TAG, "Error reading hourly rollups: " + e.getMessage());
+            return false;
+        }
+
+        bucket.mScans++;
+        bucket.mResults += bssids.length;
+        for(long bssid:bssids)
+            if(bssid != MacAddresses.NONE && bucket.mSketch.add(bssid))
+                bucket.mSketchChanged = true;
+        return true;
+    }
+
+    /**
+     * Adds the counts taken since the last flush to the hours' rows. Called in
+     * the transaction which wrote the rows counted, just before it commits, or
+     * just after a row written outside of a transaction.
+     *
+     * @return <code>true</code> if every hour was updated;
+     *         <code>false</code> if an error occurred. The counts not yet added
+     *         are kept, to be added by the next flush unless the transaction
+     *         rolls back
+     */
+    boolean flush() {
+        try {
+            for(Iterator<Bucket> i = mBuckets.values().iterator(); i.hasNext();) {
+                Bucket bucket = i.next();
+
+                if(bucket.isChanged()) write(bucket);
+                if(bucket.mHour != mLatest) i.remove();     // Late rows' hours aren't kept.
+            }
+            return true;
+        } catch (SQLException e) {
+            DbUpdater.rethrowIfUnavailable(e);
+            Log.e(TAG, "Error updating hourly rollups: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Forgets the counts not yet flushed and the sketch kept in memory.
+     * Called after a transaction rolls back, since the rows counted are gone,
+     * and so are the counts and sketch it flushed.
+     */
+    void invalidate() {
+        mBuckets.clear();
+        mLatest = Long.MIN_VALUE;
+    }
+
+    /** @return updates of an hour's row */
+    long getRowWriteCount() { return mRowWrites; }
+
+    /** @return sketches written */
+    long getSketchWriteCount() { return mSketchWrites; }
+
+    /**
+     * Estimates the distinct BSSIDs scanned in the hours starting
+     * in a window, from their sketches merged.
+     *
+     * @param db   the database
+     * @param from the start of the window, inclusive, in epoch milliseconds
+     * @param to   the end of the window, exclusive, in epoch milliseconds
+     * @return     the estimate, counting a BSSID scanned in several hours once
+     */
+    static long distinctBssids(SQLiteDatabase db, long from, long to) {
+        CardinalitySketch merged = new CardinalitySketch();
+
+        Cursor c = db.rawQuery(SQL_SKETCHES, new String[] { Long.toString(from),
+                                                            Long.toString(to) });
+        try {
+            while(c.moveToNext()) merged.merge(CardinalitySketch.fromBytes(c.getBlob(0)));
+        } finally { c.close(); }
+        return merged.estimate();
+    }
+
+    /**
+     * Gets the start of the hour a time falls in.
+     *
+     * @param time the time, in epoch milliseconds
+     * @return     the start of its hour, in epoch milliseconds
+     */
+    static long hourOf(long time) {
+        long offset = time % HOUR;
+        return time - (offset < 0 ? offset + HOUR : offset);
+    }
+
+    /** Gets the bucket counting an hour, creating it if there is none. */
+    private Bucket bucket(long time) {
+        long   hour   = hourOf(time);
+        Bucket bucket = mBuckets.get(hour);
+
+        if(bucket == null) {
+            bucket = new Bucket(hour);
+            mBuckets.put(hour, bucket);
+        }
+        if(hour > mLatest) mLatest = hour;
+        return bucket;
+    }
+
+    /** Adds a bucket's counts, and its sketch if it changed, to its hour's row. */
+    private void write(Bucket bucket) {
+        SQLiteStatement statement = mDbManager.getStatement(SQL_ADD_HOUR);
+
+        statement.bindLong(1, bucket.mHour);
+        statement.executeInsert();
+
+        if(bucket.mSketchChanged) {     // First, since a retry after the counts fail repeats it.
+            statement = mDbManager.getStatement(SQL_SET_SKETCH);
+            statement.bindLong(1, bucket.mSketch.estimate());
+            statement.bindBlob(2, bucket.mSketch.toBytes());
+            statement.bindLong(3, bucket.mHour);
+            statement.executeUpdateDelete();
+            bucket.mSketchChanged = false;
+            mSketchWrites++;
+        }
+
+        if(bucket.hasCounts()) {
+            statement = mDbManager.getStatement(SQL_ADD_COUNTS);
+            statement.bindLong(1, bucket.mLocations);
+            statement.bindLong(2, bucket.mNetwork);
+            statement.bindLong(3, bucket.mWifiConnections);
+            statement.bindLong(4, bucket.mScans);
+            statement.bindLong(5, bucket.mResults);
+            statement.bindLong(6, bucket.mHour);
+            statement.executeUpdateDelete();
+            bucket.clearCounts();
+        }
+        mRowWrites++;
+
+        if(LOCAL_LOGV) sLg.log("Flushed hour " + Timestamps.format(bucket.mHour) + ".");
+    }
+
+    /** Reads an hour's sketch, or starts one if the hour has none. */
+    private CardinalitySketch loadSketch(long hour) {
+        Cursor c = mDbManager.getDatabase().rawQuery(SQL_GET_SKETCH,
+                                                     new String[] { Long.toString(hour) });
+        try {
+            return CardinalitySketch.fromBytes(c.moveToFirst() ? c.getBlob(0) : null);
+        } finally { c.close(); }
+    }
+
+    private static String add(String column) { return column + " = " + column + " + ?"; }
+
+    /**
+     * One hour's counts since the last flush, and its sketch.
+     */
+    private static final class Bucket {
+        final long mHour;
+
+        long mLocations;
+        long mNetwork;
+        long mWifiConnections;
+        long mScans;
+        long mResults;
+
+        CardinalitySketch mSketch;              // Loaded by the hour's first scan.
+        boolean           mSketchChanged;
+
+        Bucket(long hour) { mHour = hour; }
+
+        boolean hasCounts() {
+            return mLocations != 0 || mNetwork != 0 || mWifiConnections != 0 || mScans != 0;
+        }
+
+        boolean isChanged() { return hasCounts() || mSketchChanged; }
+
+        void clearCounts() {
+            mLocations       = 0;
+            mNetwork         = 0;
+            mWifiConnections = 0;
+            mScans           = 0;
+            mResults         = 0;
+        }
+    }
+}
@@ -0,0 +1,830 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.database.SQLException;
+import android.location.Location;
+import android.net.NetworkInfo;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiInfo;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.kensinclair.logger.MyLog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind queue in front of <code>DbUpdater</code>. Collectors enqueue
+ * without blocking. A single writer thread drains the queue and commits
+ * the entries in groups, one transaction per group.
+ *
+ * <p>A group is committed once it holds <code>MAX_BATCH_SIZE</code> entries or
+ * <code>MAX_BATCH_DELAY</code> milliseconds after its first entry arrived,
+ * whichever comes first. When the queue is full, new entries are dropped
+ * and counted rather than blocking the collector.</p>
+ *
+ * <p>When the database can't be written at all, as when storage is full or the
+ * file is locked, groups are appended to a small <code>SpillFile</code> instead,
+ * and the database is retried after a delay which doubles with each failure,
+ * up to <code>RETRY_MAX</code>. Once a retry succeeds, the spilled entries are
+ * replayed in order before anything newer is written.</p>
+ *
+ * @see com.kensinclair.datacollector.DbUpdater
+ *
+ * @author Ken Sinclair
+ */
+
+final class IngestionQueue {
+    private static final boolean LOCAL_LOGD = true;
+    private static final boolean LOCAL_LOGV = false;
+    private static final String  TAG        = IngestionQueue.class.getSimpleName();
+
+    private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
+
+    private static final int  CAPACITY        = 1024;
+    private static final int  MAX_BATCH_SIZE  = 128;
+    private static final long MAX_BATCH_DELAY = 1000; // 1 second.
+
+    private static final String SPILL_FILE      = "ingestion.spill";
+    private static final long   SPILL_MAX_BYTES = 256 * 1024;
+    private static final long   RETRY_MIN       = 1000;             // 1 second.
+    private static final long   RETRY_MAX       = 5 * 60 * 1000;    // 5 minutes.
+
+    private static IngestionQueue sInstance;
+
+    private final BlockingQueue<Entry> mQueue   = new ArrayBlockingQueue<>(CAPACITY);
+    private final AtomicLong           mDropped = new AtomicLong();
+    private final DbUpdater            mDbUpdater;
+    private final SpillFile            mSpill;      // The writer thread's only.
+
+    private long mRetryAt;              // Elapsed realtime. The writer thread's only.
+    private long mRetryDelay;           // 0 while the database is available.
+    private long mSpilledSince = -1;    // Elapsed realtime. -1 while nothing is spilled.
+    private int  mSpillSkip;            // Spilled entries committed, but still in the file.
+
+    private volatile long mCommits;     // Written by the writer thread only.
+    private volatile long mFailed;
+    private volatile long mWritten;
+    private volatile long mRetries;
+    private volatile long mSpilled;
+    private volatile long mReplayed;
+    private volatile long mReplayLatency = -1;
+
+    /**
+     * Constructs the queue and starts its writer thread.
+     *
+     * @param context the application context
+     */
+    private IngestionQueue(Context context) {
+        this(new DbUpdater(context), new File(context.getFilesDir(), SPILL_FILE));
+    }
+
+    /**
+     * Constructs a queue writing through an updater, and starts its writer thread.
+     *
+     * @param updater the database updater
+     * @param spill   the spill file. Entries already in it are written first
+     */
+    IngestionQueue(DbUpdater updater, File spill) {
+        mDbUpdater = updater;
+        mSpill     = new SpillFile(spill, SPILL_MAX_BYTES);
+        if(!mSpill.isEmpty())                   // Left by an earlier process.
+            mSpilledSince = SystemClock.elapsedRealtime();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                drain();
+            }
+        }, TAG);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Gets the process-wide queue, creating it on first use.
+     *
+     * @param c any context. Only its application context is kept
+     * @return  the shared <code>IngestionQueue</code>
+     */
+    static synchronized IngestionQueue getInstance(Context c) {
+        if(sInstance == null) sInstance = new IngestionQueue(c.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * Queues accounts data.
+     *
+     * @param accounts the new accounts data
+     * @param time     the time of data collection
+     * @return         <code>true</code> if queued; <code>false</code> if dropped
+     */
+    boolean enqueue(Account[] accounts, long time) {
+        return enqueue(new AccountsEntry(accounts, time));
+    }
+
+    /**
+     * Queues location data.
+     *
+     * @param location the new location data
+     * @param time     the time of data collection
+     * @return         <code>true</code> if queued; <code>false</code> if dropped
+     */
+    boolean enqueue(Location location, long time) {
+        return enqueue(new LocationEntry(location, time));
+    }
+
+    /**
+     * Queues a batch of locations, written in one transaction.
+     *
+     * @param fixes the locations, oldest first
+     * @return      <code>true</code> if queued; <code>false</code> if dropped
+     */
+    boolean enqueue(List<LocationEntry> fixes) {
+        return enqueue(new LocationBatchEntry(fixes));
+    }
+
+    /**
+     * Queues network data.
+     *
+     * @param netInfo the new network data. <code>null</code> on disconnection
+     * @param time    the time of data collection
+     * @return        <code>true</code> if queued; <code>false</code> if dropped
+     */
+    boolean enqueue(NetworkInfo netInfo, long time) {
+        return enqueue(new NetworkEntry(netInfo, time));
+    }
+
+    /**
+     * Queues WiFi connection data.
+     *
+     * @param wifiInfo the new WiFi data
+     * @param time     the time of data collection
+     * @return         <code>true</code> if queued; <code>false</code> if dropped
+     */
+    boolean enqueue(WifiInfo wifiInfo, long time) {
+        return enqueue(new WifiConnectionEntry(wifiInfo, time));
+    }
+
+    /**
+     * Queues WiFi scan results.
+     *
+     * @param scanResults the new scan results
+     * @param time        the time of data collection
+     * @return            <code>true</code> if queued; <code>false</code> if dropped
+     */
+    boolean enqueue(List<ScanResult> scanResults, long time) {
+        return enqueue(new WifiScanEntry(scanResults, time));
+    }
+
+    /**
+     * Queues an entry without blocking.
+     *
+     * @param entry the entry to be written
+     * @return      <code>true</code> if queued; <code>false</code> if the queue was full
+     */
+    boolean enqueue(Entry entry) {
+        if(mQueue.offer(entry)) return true;
+
+        entry.lost();
+        long dropped = mDropped.incrementAndGet();
+        Log.e(TAG, "Queue full. Dropped " + entry.getClass().getSimpleName()
+                + " (" + dropped + " dropped so far).");
+        return false;
+    }
+
+    /**
+     * Commits everything queued before this call and waits for the commit,
+     * or for the entries to be spilled if the database is unavailable.
+     * Meant for shutdown paths.
+     *
+     * @param timeout the longest to wait, in milliseconds
+     * @return        <code>true</code> if the queue was flushed in time;
+     *                <code>false</code> otherwise
+     */
+    boolean flush(long timeout) {
+        long       deadline = SystemClock.elapsedRealtime() + timeout;
+        FlushEntry flush    = new FlushEntry();
+
+        try {
+            if(!mQueue.offer(flush, timeout, TimeUnit.MILLISECONDS)) return false;
+            return flush.mDone.await(deadline - SystemClock.elapsedRealtime(),
+                                     TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** @return the number of entries waiting to be written */
+    int getDepth() { return mQueue.size(); }
+
+    /** @return the number of entries dropped because the queue was full */
+    long getDroppedCount() { return mDropped.get(); }
+
+    /** @return the number of entries that could not be written */
+    long getFailedCount() { return mFailed; }
+
+    /** @return the number of entries written */
+    long getWrittenCount() { return mWritten; }
+
+    /** @return the number of group commits */
+    long getCommitCount() { return mCommits; }
+
+    /** @return the number of writes which found the database unavailable */
+    long getRetryCount() { return mRetries; }
+
+    /** @return the number of entries spilled to disk */
+    long getSpilledCount() { return mSpilled; }
+
+    /** @return the number of spilled entries replayed into the database */
+    long getReplayedCount() { return mReplayed; }
+
+    /**
+     * @return how long the last spilled entries waited for the database,
+     *         in milliseconds, or -1 if none have been replayed
+     */
+    long getReplayLatency() { return mReplayLatency; }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Takes entries off the queue and commits them in groups.
+     * Runs on the writer thread for the life of the process.
+     */
+    private void drain() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+        while(true) {
+            FlushEntry flush = null;
+
+            try {
+                Entry entry;
+                if(mSpill.isEmpty()) {
+                    entry = mQueue.take();
+                } else {                                // Wake up for the retry even if
+                    long wait = mRetryAt - SystemClock.elapsedRealtime();   // nothing arrives.
+                    entry = mQueue.poll(Math.max(1, wait), TimeUnit.MILLISECONDS);
+                }
+                long deadline = SystemClock.elapsedRealtime() + MAX_BATCH_DELAY;
+
+                while(entry != null) {
+                    if(entry instanceof FlushEntry) {
+                        flush = (FlushEntry) entry;
+                        break;
+                    }
+                    batch.add(entry);
+                    if(batch.size() >= MAX_BATCH_SIZE) break;
+
+                    long wait = deadline - SystemClock.elapsedRealtime();
+                    if(wait <= 0) break;
+
+                    entry = mQueue.poll(wait, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Writer interrupted with " + batch.size() + " entries uncommitted.");
+                return;
+            }
+
+            try {
+                commit(batch);
+            } catch (RuntimeException e) {              // Not an entry's: those are dropped
+                for(Entry failed:batch) failed.lost();  //  singly by write. Keep writing.
+                mFailed += batch.size();
+                Log.e(TAG, "Error committing " + batch.size() + " entries.", e);
+                backOff(null);
+            }
+            batch.clear();
+
+            if(flush != null) flush.mDone.countDown();
+        }
+    }
+
+    /**
+     * Commits a group of entries, after any spilled ones. While the database
+     * is unavailable, or spilled entries are still waiting, the group is
+     * spilled behind them instead.
+     *
+     * @param batch the entries to be committed. May be empty
+     */
+    private void commit(List<Entry> batch) {
+        if(!replay()) {
+            spill(batch, 0);
+            return;
+        }
+        if(batch.isEmpty()) return;
+
+        int handled = write(batch);
+        if(handled < batch.size()) spill(batch, handled);
+    }
+
+    /**
+     * Writes a group of entries in one transaction. If an entry fails or
+     * throws, the group is rolled back and its entries are retried one
+     * transaction each, so a bad entry costs only itself. Only an
+     * <code>SQLException</code> is taken to mean the database is unavailable.
+     *
+     * @param entries the entries to be written
+     * @return        the number of entries written or failed, in order. Fewer than
+     *                all of them only if the database became unavailable
+     */
+    private int write(List<Entry> entries) {
+        int     n = entries.size();
+        boolean written;
+
+        try {
+            written = mDbUpdater.write(entries);
+        } catch (SQLException e) {
+            backOff(e);
+            return 0;
+        } catch (RuntimeException e) {                  // A bad entry. Found singly below.
+            Log.e(TAG, "Error writing a group of " + n + " entries.", e);
+            written = false;
+        }
+        mRetryDelay = 0;
+        if(written) {
+            for(int i = 0; i < n; i++) entries.get(i).committed();
+            mWritten += n;
+            mCommits++;
+            if(LOCAL_LOGV) sLg.log("Committed " + n + " entries.");
+            return n;
+        }
+        if(LOCAL_LOGD) sLg.log("Group of " + n + " rolled back. Retrying singly.");
+
+        for(int i = 0; i < n; i++) {
+            Entry entry = entries.get(i);
+
+            try {
+                written = mDbUpdater.write(entry);
+            } catch (SQLException e) {
+                backOff(e);
+                return i;
+            } catch (RuntimeException e) {              // Only this entry is dropped.
+                Log.e(TAG, "Error writing " + entry.getClass().getSimpleName() + ".", e);
+                written = false;
+            }
+            mCommits++;
+            if(written) {
+                entry.committed();
+                mWritten++;
+            } else {
+                entry.lost();
+                mFailed++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Replays the spilled entries, oldest first, once the retry delay has passed.
+     * The file is rewritten without each group as soon as the group commits,
+     * so a crash part way through replays none of it twice.
+     *
+     * @return <code>true</code> if none are left, so newer entries may be written
+     */
+    private boolean replay() {
+        if(SystemClock.elapsedRealtime() < mRetryAt) return false;
+        if(mSpill.isEmpty()) return true;
+
+        List<Entry> entries = mSpill.readAll();
+        int         n       = entries.size();
+        int         done    = Math.min(mSpillSkip, n);
+
+        while(done < n) {
+            List<Entry> group   = entries.subList(done, Math.min(n, done + MAX_BATCH_SIZE));
+            int         handled = write(group);
+
+            done      += handled;
+            mReplayed += handled;
+            if(handled > 0 && !dropSpilled(entries, done)) return false;
+            if(handled < group.size()) return false;    // Unavailable again.
+        }
+        if(!dropSpilled(entries, n)) return false;
+
+        mReplayLatency = SystemClock.elapsedRealtime() - mSpilledSince;
+        mSpilledSince  = -1;
+        if(LOCAL_LOGD) sLg.log("Replayed " + n + " spilled entries after "
+                + mReplayLatency + " ms.");
+        return true;
+    }
+
+    /**
+     * Rewrites the spill file without the entries replayed so far. If that fails,
+     * they are skipped when the file is next read instead, until it is rewritten.
+     *
+     * @param entries the entries read from the file
+     * @param done    how many of them, from the first, have been handled
+     * @return        <code>true</code> if the file was rewritten
+     */
+    private boolean dropSpilled(List<Entry> entries, int done) {
+        if(mSpill.rewrite(new ArrayList<>(entries.subList(done, entries.size())))) {
+            mSpillSkip = 0;
+            return true;
+        }
+        mSpillSkip = done;
+        backOff(null);                              // Try rewriting it again later.
+        return false;
+    }
+
+    /**
+     * Appends the unwritten tail of a group to the spill file.
+     *
+     * @param batch the group
+     * @param from  the index of its first unwritten entry
+     */
+    private void spill(List<Entry> batch, int from) {
+        int n = batch.size() - from;
+        if(n <= 0) return;
+
+        if(mSpill.isEmpty()) mSpilledSince = SystemClock.elapsedRealtime();
+
+        int spilled = mSpill.append(batch.subList(from, batch.size()));
+        for(int i = 0; i < n; i++) {                // Spilled entries are as good as
+            if(i < spilled) batch.get(from + i).committed();    // committed: they are
+            else            batch.get(from + i).lost();         //  replayed first.
+        }
+        mSpilled += spilled;
+        if(spilled < n) {
+            mFailed += n - spilled;
+            Log.e(TAG, "Spill file full. Lost " + (n - spilled) + " entries.");
+        }
+        if(LOCAL_LOGV) sLg.log("Spilled " + spilled + " entries, " + mSpill.getBytes()
+                + " bytes waiting.");
+    }
+
+    /**
+     * Puts off the next write, doubling the delay each time in a row.
+     *
+     * @param e the error which made the database unavailable. May be <code>null</code>
+     */
+    private void backOff(SQLException e) {
+        mRetries++;
+        mRetryDelay = mRetryDelay == 0 ? RETRY_MIN : Math.min(mRetryDelay * 2, RETRY_MAX);
+        mRetryAt    = SystemClock.elapsedRealtime() + mRetryDelay;
+
+        Log.e(TAG, "Database unavailable" + (e != null ? ": " + e.getMessage() : "")
+                + ". Retrying in " + mRetryDelay + " ms.");
+    }
+
+    /**
+     * Collected data waiting to be written. Entries copy what they need out of
+     * the system objects, so nothing is read from those objects on the writer thread.
+     */
+    abstract static class Entry {
+        final long mTime;
+
+        private Runnable mOnCommit;     // Both set before the entry is queued.
+        private Runnable mOnLost;
+
+        /** @param time the time of data collection */
+        Entry(long time) { mTime = time; }
+
+        /**
+         * Sets what to do once the entry's rows are committed, or once the
+         * entry is spilled, since spilled entries are replayed before anything
+         * newer. Entries are rebuilt from the spill file without their
+         * callbacks, so it runs at most once, on the writer thread.
+         *
+         * @param onCommit the callback. Must be quick
+         */
+        void setOnCommit(Runnable onCommit) { mOnCommit = onCommit; }
+
+        /**
+         * Sets what to do if the entry's rows will never be written: it failed,
+         * or was dropped because the queue or the spill file was full. It runs
+         * on the writer thread, or on the caller's if <code>enqueue</code> drops
+         * the entry. An entry which fails once replayed from the spill file
+         * has no callbacks left.
+         *
+         * @param onLost the callback. Must be quick
+         */
+        void setOnLost(Runnable onLost) { mOnLost = onLost; }
+
+        /** Runs the commit callback, if there is one. */
+        final void committed() {
+            if(mOnCommit != null) mOnCommit.run();
+        }
+
+        /** Runs the lost callback, if there is one. */
+        final void lost() {
+            if(mOnLost != null) mOnLost.run();
+        }
+
+        /**
+         * Writes the entry. The caller holds the write lock and
+         * has a transaction open.
+         *
+         * @param updater the database updater
+         * @return        <code>true</code> if every row was written;
+         *                <code>false</code> otherwise
+         */
+        abstract boolean write(DbUpdater updater);
+    }
+
+    /**
+     * An entry which writes exactly one row.
+     */
+    abstract static class RowEntry extends Entry {
+        /** @param time the time of data collection */
+        RowEntry(long time) { super(time); }
+
+        /**
+         * Inserts the entry's row. The caller holds the write lock.
+         *
+         * @param updater the database updater
+         * @return        the row ID of the newly inserted row,
+         *                or -1 if an error occurred
+         */
+        abstract long insert(DbUpdater updater);
+
+        @Override final boolean write(DbUpdater updater) { return insert(updater) != -1; }
+    }
+
+    /**
+     * Accounts entry.
+     */
+    static final class AccountsEntry extends Entry {
+        final String[] mNames;
+        final String[] mTypes;
+        final int[]    mEvents;
+
+        /**
+         * Writes the whole account set as snapshot rows.
+         *
+         * @param accounts the new accounts data
+         * @param time     the time of data collection
+         */
+        AccountsEntry(Account[] accounts, long time) {
+            super(time);
+            mNames  = new String[accounts.length];
+            mTypes  = new String[accounts.length];
+            mEvents = new int[accounts.length];     // All EVENT_SNAPSHOT.
+
+            for(int i = 0; i < accounts.length; i++) {
+                mNames[i] = accounts[i].name;
+                mTypes[i] = accounts[i].type;
+            }
+        }
+
+        /**
+         * @param names  each account's name
+         * @param types  each account's type
+         * @param events each row's <code>AccountsTable.EVENT_</code> constant
+         * @param time   the time of data collection
+         */
+        AccountsEntry(String[] names, String[] types, int[] events, long time) {
+            super(time);
+            mNames  = names;
+            mTypes  = types;
+            mEvents = events;
+        }
+
+        @Override boolean write(DbUpdater updater) {
+            for(int i = 0; i < mNames.length; i++)
+                if(updater.insertAccount(mTime, mNames[i], mTypes[i], mEvents[i]) == -1)
+                    return false;
+            return true;
+        }
+    }
+
+    /**
+     * Location entry.
+     */
+    static final class LocationEntry extends RowEntry {
+        final double mLat;
+        final double mLng;
+        final float  mBearing;
+        final float  mSpeed;
+        final double mAlt;
+        final float  mAcc;
+
+        /**
+         * @param location the new location data
+         * @param time     the time of data collection
+         */
+        LocationEntry(Location location, long time) {
+            super(time);
+            mLat     = location.getLatitude();
+            mLng     = location.getLongitude();
+            mBearing = location.getBearing();
+            mSpeed   = location.getSpeed();
+            mAlt     = location.getAltitude();
+            mAcc     = location.getAccuracy();
+        }
+
+        /** Rebuilds an entry read back from the spill file. */
+        LocationEntry(long time, double lat, double lng, float bearing, float speed,
+                      double alt, float acc) {
+            super(time);
+            mLat     = lat;
+            mLng     = lng;
+            mBearing = bearing;
+            mSpeed   = speed;
+            mAlt     = alt;
+            mAcc     = acc;
+        }
+
+        @Override long insert(DbUpdater updater) {
+            return updater.insertLocation(mTime, mLat, mLng, mBearing, mSpeed, mAlt, mAcc);
+        }
+    }
+
+    /**
+     * A batch of location entries.
+     */
+    static final class LocationBatchEntry extends Entry {
+        final List<LocationEntry> mFixes;
+
+        /** @param fixes the locations, oldest first. Not copied */
+        LocationBatchEntry(List<LocationEntry> fixes) {
+            super(fixes.isEmpty() ? 0 : fixes.get(0).mTime);
+            mFixes = fixes;
+        }
+
+        @Override boolean write(DbUpdater updater) {
+            for(int i = 0, n = mFixes.size(); i < n; i++)
+                if(mFixes.get(i).insert(updater) == -1) return false;
+            return true;
+        }
+    }
+
+    /**
+     * Network entry.
+     */
+    static final class NetworkEntry extends RowEntry {
+        final String mReason;
+        final String mState;
+        final String mSubtype;
+        final String mType;
+
+        /**
+         * @param netInfo the new network data. <code>null</code> on disconnection
+         * @param time    the time of data collection
+         */
+        NetworkEntry(NetworkInfo netInfo, long time) {
+            super(time);
+            if(netInfo != null) {                   // If the reason for the signal is disconnection,
+                mType    = netInfo.getTypeName();   //                       the NetworkInfo is null.
+                mSubtype = netInfo.getSubtypeName();
+                mState   = netInfo.getDetailedState().toString();
+                mReason  = netInfo.getReason();
+            } else {
+                mType    = "";
+                mSubtype = "";
+                mState   = "";
+                mReason  = "disconnection";         // If no reason is provided, assume disconnection.
+            }
+        }
+
+        /** Rebuilds an entry read back from the spill file. */
+        NetworkEntry(long time, String type, String subtype, String state, String reason) {
+            super(time);
+            mType    = type;
+            mSubtype = subtype;
+            mState   = state;
+            mReason  = reason;
+        }
+
+        @Override long insert(DbUpdater updater) {
+            return updater.insertNetwork(mTime, mType, mSubtype, mState, mReason);
+        }
+
+        /**
+         * @param other another entry. May be <code>null</code>
+         * @return      <code>true</code> if it holds the same state, whatever its time
+         */
+        boolean sameState(NetworkEntry other) {
+            return other != null && equal(mType, other.mType) && equal(mSubtype, other.mSubtype)
+                    && equal(mState, other.mState) && equal(mReason, other.mReason);
+        }
+    }
+
+    /**
+     * WiFi connection entry.
+     */
+    static final class WifiConnectionEntry extends RowEntry {
+        final long    mBssid;
+        final boolean mHidden;
+        final int     mIp;
+        final long    mMac;
+        final String  mSsid;
+
+        /**
+         * @param wifiInfo the new WiFi data
+         * @param time     the time of data collection
+         */
+        WifiConnectionEntry(WifiInfo wifiInfo, long time) {
+            super(time);
+            mIp     = wifiInfo.getIpAddress();
+            mMac    = MacAddresses.parse(wifiInfo.getMacAddress());
+            mBssid  = MacAddresses.parse(wifiInfo.getBSSID());
+            mSsid   = wifiInfo.getSSID();
+            mHidden = wifiInfo.getHiddenSSID();
+        }
+
+        /** Rebuilds an entry read back from the spill file. */
+        WifiConnectionEntry(long time, int ip, long mac, long bssid, String ssid,
+                            boolean hidden) {
+            super(time);
+            mIp     = ip;
+            mMac    = mac;
+            mBssid  = bssid;
+            mSsid   = ssid;
+            mHidden = hidden;
+        }
+
+        @Override long insert(DbUpdater updater) {
+            return updater.insertWifiConnection(mTime, mIp, mMac, mBssid, mSsid, mHidden);
+        }
+
+        /**
+         * @param other another entry. May be <code>null</code>
+         * @return      <code>true</code> if it holds the same state, whatever its time
+         */
+        boolean sameState(WifiConnectionEntry other) {
+            return other != null && mIp == other.mIp && mMac == other.mMac
+                    && mBssid == other.mBssid && mHidden == other.mHidden
+                    && equal(mSsid, other.mSsid);
+        }
+    }
+
+    /**
+     * WiFi scan entry.
+     */
+    static final class WifiScanEntry extends Entry {
+        final long[]   mBssids;
+        final String[] mCaps;
+        final String[] mSsids;
+
+        /**
+         * @param scanResults the new scan results
+         * @param time        the time of data collection
+         */
+        WifiScanEntry(List<ScanResult> scanResults, long time) {
+            super(time);
+            int n = scanResults.size();
+
+            mBssids = new long[n];
+            mSsids  = new String[n];
+            mCaps   = new String[n];
+
+            for(int i = 0; i < n; i++) {
+                ScanResult scanResult = scanResults.get(i);
+
+                mBssids[i] = MacAddresses.parse(scanResult.BSSID);
+                mSsids[i]  = scanResult.SSID;
+                mCaps[i]   = scanResult.capabilities;
+            }
+        }
+
+        /** Rebuilds an entry read back from the spill file. */
+        WifiScanEntry(long time, long[] bssids, String[] ssids, String[] caps) {
+            super(time);
+            mBssids = bssids;
+            mSsids  = ssids;
+            mCaps   = caps;
+        }
+
+        @Override boolean write(DbUpdater updater) {
+            return updater.writeWifiScan(mTime, mBssids, mSsids, mCaps);
+        }
+    }
+
+    /**
+     * Marks a flush request. Never written.
+     */
+    private static final class FlushEntry extends Entry {
+        final CountDownLatch mDone = new CountDownLatch(1);
+
+        FlushEntry() { super(0); }
+
+        @Override boolean write(DbUpdater updater) { return true; }
+    }
+}
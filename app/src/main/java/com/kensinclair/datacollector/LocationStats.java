@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+
+/**
+ * Counts what location collection costs, so that request settings
+ * can be compared: deliveries per hour, each of which wakes the device,
+ * writes queued per hour, and the battery charge used per stored fix.
+ *
+ * <p>The charge is the whole device's, read from the battery's charge
+ * counter, so it is only meaningful when runs are compared under the same
+ * conditions, and it is not available on every device.</p>
+ *
+ * @author Ken Sinclair
+ */
+
+final class LocationStats {
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private final BatteryManager mBattery;
+    private final long           mStart;
+    private final long           mStartCharge;                  // In uAh. -1 if unknown.
+
+    private long mDeliveries;
+    private long mWrites;
+    private long mStored;
+
+    /**
+     * Starts counting.
+     *
+     * @param c the context of the caller
+     */
+    LocationStats(Context c) {
+        mBattery     = (BatteryManager) c.getSystemService(Context.BATTERY_SERVICE);
+        mStart       = SystemClock.elapsedRealtime();
+        mStartCharge = getCharge();
+    }
+
+    /** Counts a delivery of fixes from the location provider. */
+    void onDelivery() { mDeliveries++; }
+
+    /**
+     * Counts a write queued for the database.
+     *
+     * @param fixes the fixes it holds
+     */
+    void onWrite(int fixes) {
+        mWrites++;
+        mStored += fixes;
+    }
+
+    /** @return the counts so far, for the log */
+    String summarize() {
+        long   elapsed = Math.max(1, SystemClock.elapsedRealtime() - mStart);
+        long   charge  = getCharge();
+        String perFix  = mStartCharge < 0 || charge < 0 || mStored == 0
+                ? "unknown"
+                : (mStartCharge - charge) / mStored + " uAh";
+
+        return mDeliveries * HOUR / elapsed + " deliveries/h, "
+                + mWrites * HOUR / elapsed + " writes/h, "
+                + mStored + " fixes stored, " + perFix + " per stored fix";
+    }
+
+    /** @return the battery's remaining charge in uAh, or -1 if it can't be read */
+    private long getCharge() {
+        if(mBattery == null) return -1;
+
+        long charge = mBattery.getLongProperty(BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+        return charge > 0 && charge != Long.MAX_VALUE ? charge : -1;
+    }
+}
@@ -19,6 +19,9 @@ package com.kensinclair.datacollector;
 import android.content.Intent;
 import android.location.Location;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 
 import com.google.android.gms.common.ConnectionResult;
@@ -27,9 +30,23 @@ import com.google.android.gms.location.LocationListener;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Monitors for location changes.
  *
+ * <p>Kept fixes are written in batches, at most <code>MAX_BATCH</code> fixes or
+ * <code>BATCH_WINDOW</code> old. A timer writes a batch once its first fix is
+ * that old, even if no fix arrives after, as when slow updates are requested
+ * while standing still. Until a batch is handed to the
+ * <code>IngestionQueue</code>, each of its fixes is also appended to a
+ * <code>SpillFile</code>, which the next start writes if the process was
+ * killed first. The file is only read and written on a thread of its own,
+ * and isn't synced: it is there to survive the process, not the device.</p>
+ *
  * @see com.google.android.gms.common.api.GoogleApiClient.OnConnectionFailedListener
  * @see android.content.ComponentCallbacks
  * @see com.google.android.gms.location.LocationListener
@@ -41,15 +58,51 @@ import com.google.android.gms.location.LocationServices;
 public class LocationUpdaterService extends    UpdaterService
                                     implements GoogleApiClient.ConnectionCallbacks,
                                                GoogleApiClient.OnConnectionFailedListener,
-                                               LocationListener {
+                                               LocationListener,
+                                               TrajectorySimplifier.Sink {
     private static final boolean LOCAL_LOGD = true;
     private static final boolean LOCAL_LOGV = false;
     private static final String  TAG        = LocationUpdaterService.class.getSimpleName();
 
-    private static final long LOCATION_UPDATE_INTERVAL = 180000; // 3 minutes.
-    private DbUpdater         mDbUpdater;
-    private GoogleApiClient   mLocationApiClient;
-    private LocationRequest   mLocationRequest;
+    private static final long  LOCATION_UPDATE_INTERVAL = 180000; // 3 minutes.
+    private static final int   LOCATION_PRIORITY        = LocationRequest.PRIORITY_HIGH_ACCURACY;
+    private static final long  BATCH_WINDOW             = 300000; // 5 minutes. 0 writes each
+                                                                  //  fix as it arrives.
+    private static final int   MAX_BATCH                = 20;     // Fixes.
+    private static final float SIMPLIFY_TOLERANCE       = 10;     // Meters. 0 keeps every fix.
+    private static final long  SIMPLIFY_MAX_HOLD        = 600000; // 10 minutes.
+
+    private static final String BATCH_FILE           = "locations.batch";
+    private static final long   BATCH_FILE_MAX_BYTES = 64 * 1024;
+
+    /**
+     * Lets <code>SamplingScheduler</code> pick the interval and priority from movement.
+     * <code>false</code> uses <code>LOCATION_UPDATE_INTERVAL</code> and
+     * <code>LOCATION_PRIORITY</code>.
+     */
+    private static final boolean ADAPTIVE_SAMPLING = true;
+
+    private IngestionQueue       mIngestionQueue;
+    private GoogleApiClient      mLocationApiClient;
+    private LocationRequest      mLocationRequest;
+    private TrajectorySimplifier mSimplifier;
+    private LocationStats        mStats;
+    private SamplingScheduler    mScheduler;                      // null when not adaptive.
+    private HandlerThread        mFileThread;
+    private Handler              mFileHandler;
+    private SpillFile            mBatchFile;                      // The file thread's only.
+
+    private List<IngestionQueue.LocationEntry> mBatch = new ArrayList<>();
+
+    private final Handler  mHandler    = new Handler();           // The main thread's.
+    private final Runnable mBatchTimer = new Runnable() {
+        @Override public void run() { writeBatch(); }
+    };
+    private final Runnable mClearBatchFile = new Runnable() {
+        @Override public void run() {
+            mBatchFile.rewrite(Collections.<IngestionQueue.Entry>emptyList());
+        }
+    };
 
     /**
      * Creates and connects location updater objects.
@@ -63,8 +116,13 @@ public class LocationUpdaterService extends    UpdaterService
         sLg.setLevel(Log.VERBOSE);
         if(LOCAL_LOGV) sLg.log("In onStartCommand.");
 
-        mDbUpdater       = new DbUpdater(getBaseContext());
+        mIngestionQueue  = IngestionQueue.getInstance(this);
         mLocationRequest = new LocationRequest();
+        if(mSimplifier == null)
+            mSimplifier = new TrajectorySimplifier(SIMPLIFY_TOLERANCE, SIMPLIFY_MAX_HOLD, this);
+        if(mStats == null)      mStats      = new LocationStats(this);
+        if(mScheduler == null && ADAPTIVE_SAMPLING) mScheduler = new SamplingScheduler(this);
+        if(mFileThread == null) recoverBatch();
 
         if(LOCAL_LOGV) sLg.log("Building LocationServices GoogleApiClient.");
         mLocationApiClient = new GoogleApiClient.Builder(this)
@@ -73,10 +131,7 @@ public class LocationUpdaterService extends    UpdaterService
                 .addApi(LocationServices.API).build();
         if(LOCAL_LOGV) sLg.log("LocationServices GoogleApiClient built.");
 
-        if(LOCAL_LOGV) sLg.log("Setting LocationRequest params.");
-        mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-        mLocationRequest.setInterval(LOCATION_UPDATE_INTERVAL);
-        if(LOCAL_LOGV) sLg.log("LocationRequest params set.");
+        setRequestParams();
 
         sLg.setLevel(Log.DEBUG);
         if(LOCAL_LOGD) sLg.log("API Client connecting.");
@@ -90,14 +145,133 @@ public class LocationUpdaterService extends    UpdaterService
     }
 
     /**
-     * Calls method to update the database.
+     * Passes the location through the simplifier, which keeps
+     * the locations worth storing, and writes the batch once it is due.
      *
      * @param location provided by system
      */
     @Override public void onLocationChanged(Location location) {
         long time = System.currentTimeMillis();
 
-        mDbUpdater.updateTable(location, time);
+        mStats.onDelivery();
+        mSimplifier.offer(location, time);
+
+        if(!mBatch.isEmpty() && (mBatch.size() >= MAX_BATCH
+                || time - mBatch.get(0).mTime >= BATCH_WINDOW)) writeBatch();
+
+        if(mScheduler != null && mScheduler.onLocation(location)) {
+            setRequestParams();
+            if(mLocationApiClient.isConnected())    // Replaces the running request.
+                LocationServices.FusedLocationApi.requestLocationUpdates(mLocationApiClient,
+                        mLocationRequest, this);
+        }
+    }
+
+    /**
+     * Sets the interval and priority, from the scheduler when sampling is adaptive.
+     */
+    private void setRequestParams() {
+        long interval = mScheduler != null ? mScheduler.getInterval() : LOCATION_UPDATE_INTERVAL;
+        int  priority = mScheduler != null ? mScheduler.getPriority() : LOCATION_PRIORITY;
+
+        if(LOCAL_LOGV) sLg.log("Setting LocationRequest params.");
+        mLocationRequest.setPriority(priority);
+        mLocationRequest.setInterval(interval);
+        if(BATCH_WINDOW > 0)                        // Don't take other apps' fixes any sooner.
+            mLocationRequest.setFastestInterval(interval);
+        if(LOCAL_LOGV) sLg.log("LocationRequest params set.");
+    }
+
+    /**
+     * Adds a location the simplifier kept to the batch and its file, or queues
+     * it for the database at once when batching is off. A full file writes the
+     * batch.
+     *
+     * @param location the kept location
+     * @param time     the time of data collection
+     */
+    @Override public void keep(Location location, long time) {
+        if(mScheduler != null) mScheduler.onStored(1);
+
+        if(BATCH_WINDOW <= 0) {
+            if(mIngestionQueue.enqueue(location, time)) mStats.onWrite(1);
+            return;
+        }
+
+        final IngestionQueue.LocationEntry entry =
+                new IngestionQueue.LocationEntry(location, time);
+
+        mBatch.add(entry);
+        if(mBatch.size() == 1) mHandler.postDelayed(mBatchTimer, BATCH_WINDOW);
+
+        mFileHandler.post(new Runnable() {
+            @Override public void run() {
+                if(mBatchFile.append(Collections.singletonList(entry)) == 0)
+                    mHandler.post(mBatchTimer);
+            }
+        });
+    }
+
+    /**
+     * Starts the file thread, which reads the batch a killed process left in
+     * its file and hands it back to be written ahead of any fix kept since.
+     * The file is then kept for this process's batches.
+     */
+    private void recoverBatch() {
+        mFileThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mFileThread.start();
+        mFileHandler = new Handler(mFileThread.getLooper());
+
+        mFileHandler.post(new Runnable() {
+            @Override public void run() {
+                mBatchFile = new SpillFile(new File(getFilesDir(), BATCH_FILE),
+                                           BATCH_FILE_MAX_BYTES, false);
+
+                final List<IngestionQueue.Entry> recovered = mBatchFile.readAll();
+                if(recovered.isEmpty()) return;
+
+                mHandler.post(new Runnable() {
+                    @Override public void run() {
+                        List<IngestionQueue.LocationEntry> batch =
+                                new ArrayList<>(recovered.size() + mBatch.size());
+
+                        for(IngestionQueue.Entry entry:recovered)
+                            batch.add((IngestionQueue.LocationEntry) entry);
+                        batch.addAll(mBatch);
+                        mBatch = batch;
+
+                        sLg.setLevel(Log.DEBUG);
+                        if(LOCAL_LOGD) sLg.log("Recovered a batch of " + recovered.size()
+                                + " locations.");
+                        writeBatch();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Queues the batch as one write, committed in one transaction, and
+     * clears its file: from here on the queue spills it if it must. If the
+     * queue is full, the batch is kept to be written with the next, or when
+     * the timer next fires.
+     */
+    private void writeBatch() {
+        mHandler.removeCallbacks(mBatchTimer);
+        if(mBatch.isEmpty()) return;
+
+        if(LOCAL_LOGV) sLg.log("Writing a batch of " + mBatch.size() + " locations.");
+        if(!mIngestionQueue.enqueue(mBatch)) {
+            mHandler.postDelayed(mBatchTimer, BATCH_WINDOW);
+            return;
+        }
+
+        mStats.onWrite(mBatch.size());
+        mBatch = new ArrayList<>();                 // The queue holds on to the old one.
+        mFileHandler.post(mClearBatchFile);         // After the appends of the batch's fixes.
+
+        sLg.setLevel(Log.DEBUG);
+        if(LOCAL_LOGD) sLg.log(mStats.summarize());
     }
 
     /**
@@ -125,6 +299,8 @@ public class LocationUpdaterService extends    UpdaterService
         sLg.setLevel(Log.VERBOSE);
         if(LOCAL_LOGV) sLg.log("Connection Suspended.");
 
+        mSimplifier.flush();                        // Updates stop, ending the segment.
+        writeBatch();
     }
 
     /**
@@ -137,10 +313,24 @@ public class LocationUpdaterService extends    UpdaterService
     }
 
     /**
-     * Disconnects the <code>GoogleApiClient</code>
+     * Keeps the last location, disconnects the <code>GoogleApiClient</code>
      * and unregisters event listener objects and callbacks.
      */
     @Override public void onDestroy() {
+        if(mSimplifier != null) {
+            mSimplifier.flush();                    // Queued before the service goes.
+            writeBatch();
+
+            sLg.setLevel(Log.DEBUG);
+            if(LOCAL_LOGD) sLg.log("Locations kept: " + mSimplifier.getKeptCount()
+                    + ", dropped: " + mSimplifier.getDroppedCount() + ". "
+                    + mStats.summarize() + ".");
+        }
+        if(mScheduler != null) {
+            mScheduler.save();
+            if(LOCAL_LOGD) sLg.log("Sampling: " + mScheduler.summarize() + ".");
+        }
+        if(mFileThread != null) mFileThread.quitSafely();     // Once the file is cleared.
         super.onDestroy();
         mLocationApiClient.disconnect();
         mLocationApiClient.unregisterConnectionCallbacks(this);
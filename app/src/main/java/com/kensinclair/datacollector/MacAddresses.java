@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+/**
+ * Converts between stored MAC addresses and text. BSSIDs and MAC addresses
+ * are stored as their 48 bits in an INTEGER, and are only formatted
+ * when data is read or exported.
+ *
+ * @author Ken Sinclair
+ */
+
+final class MacAddresses {
+    /** Stands for a missing or malformed address. Stored as NULL. */
+    static final long NONE = -1;
+
+    private static final int    LENGTH = 17;    // "xx:xx:xx:xx:xx:xx"
+    private static final char[] HEX    = "0123456789abcdef".toCharArray();
+
+    /** Prevents an instance from being accidentally instantiated. */
+    private MacAddresses() {}
+
+    /**
+     * Parses an address written as six pairs of hex digits separated
+     * by colons, or by hyphens. Allocates nothing.
+     *
+     * @param text the address. May be <code>null</code>
+     * @return     its 48 bits, or <code>NONE</code> if it is null or malformed
+     */
+    static long parse(String text) {
+        if(text == null || text.length() != LENGTH) return NONE;
+
+        char separator = text.charAt(2);
+        if(separator != ':' && separator != '-') return NONE;
+
+        long address = 0;
+        for(int i = 0; i < LENGTH; i += 3) {
+            int high = Character.digit(text.charAt(i), 16);
+            int low  = Character.digit(text.charAt(i + 1), 16);
+
+            if(high < 0 || low < 0)                              return NONE;
+            if(i + 2 < LENGTH && text.charAt(i + 2) != separator) return NONE;
+
+            address = address << 8 | high << 4 | low;
+        }
+        return address;
+    }
+
+    /**
+     * @param column a column's name
+     * @return       <code>true</code> if a column of that name stores addresses,
+     *               to be formatted when exported
+     */
+    static boolean isAddressColumn(String column) {
+        return DataDumpContract.WifiConnectionTable.COLUMN_NAME_BSSID.equals(column)
+                || DataDumpContract.WifiConnectionTable.COLUMN_NAME_MAC.equals(column);
+    }
+
+    /**
+     * Formats an address as six pairs of lowercase hex digits separated by
+     * colons, as Android reports them.
+     *
+     * @param address the address's 48 bits
+     * @return        the text, or <code>null</code> for <code>NONE</code>
+     */
+    static String format(long address) {
+        if(address == NONE) return null;
+
+        char[] text = new char[LENGTH];
+        for(int i = LENGTH - 2, shift = 0; i >= 0; i -= 3, shift += 8) {
+            int octet = (int) (address >>> shift) & 0xFF;
+
+            text[i]     = HEX[octet >>> 4];
+            text[i + 1] = HEX[octet & 0xF];
+            if(i > 0) text[i - 1] = ':';
+        }
+        return new String(text);
+    }
+}
@@ -18,20 +18,19 @@ package com.kensinclair.datacollector;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.database.sqlite.SQLiteDatabase;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.kensinclair.logger.MyLog;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.lang.ref.WeakReference;
 
 /**
  * Main activity for the DataCollector project.
@@ -48,6 +47,12 @@ public class MainActivity extends Activity {
     private static final boolean LOCAL_LOGV = false;
     private static final String  TAG        = MainActivity.class.getSimpleName();
 
+    private static final int EXPORT_FULL     = 0;   // A copy of the database.
+    private static final int EXPORT_DELTA    = 1;   // The next numbered segment.
+    private static final int EXPORT_COLUMNAR = 2;   // The compact columnar format.
+
+    private static final String COLUMNAR_SUFFIX = ".cols";
+
     private static MyLog sLg = new MyLog(TAG);
 
     /**
@@ -58,6 +63,7 @@ public class MainActivity extends Activity {
     @Override protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         if(LOCAL_LOGV) sLg.log("In onCreate.");
+        DbManager.getInstance(this).acquireReference();     // Released in onDestroy.
 
         if(savedInstanceState != null) {      // If an instance of Datacollector is already running,
             if(LOCAL_LOGD) Log.d(TAG, "Already running.");                            // do nothing.
@@ -67,8 +73,17 @@ public class MainActivity extends Activity {
 
             final Button button = (Button) findViewById(R.id.button);
             button.setOnClickListener(new View.OnClickListener() {
-                public void onClick(View v) { saveDb(); }
+                public void onClick(View v) { saveDb(EXPORT_FULL); }
+            });
+            final Button deltaButton = (Button) findViewById(R.id.button_delta);
+            deltaButton.setOnClickListener(new View.OnClickListener() {
+                public void onClick(View v) { saveDb(EXPORT_DELTA); }
             });
+            final Button columnarButton = (Button) findViewById(R.id.button_columnar);
+            columnarButton.setOnClickListener(new View.OnClickListener() {
+                public void onClick(View v) { saveDb(EXPORT_COLUMNAR); }
+            });
+            DbManager.getInstance(this).openAsync();
             launchServices();
         }
 
@@ -98,48 +113,112 @@ public class MainActivity extends Activity {
         sLg.setLevel(Log.VERBOSE);
     }
 
-    /** Closes the database of harvested user information */
+    /**
+     * Releases the database of harvested user information,
+     * which closes once the services are gone too.
+     */
     @Override protected void onDestroy() {
         super.onDestroy();
-        new DataDumpDbHelper(this).close();
+        DbManager.getInstance(this).releaseReference();
     }
 
     /**
      * Saves the database to a directory the user can access.
-     * Called when "Export" button is clicked.
+     * Called when an export button is clicked. The export runs in the
+     * background from a consistent snapshot while collection carries on.
+     *
+     * @param mode one of the <code>EXPORT_</code> constants
      */
-    private void saveDb() {
-        if(LOCAL_LOGV) sLg.log("Saving database.");
+    private void saveDb(int mode) {
+        if(LOCAL_LOGV) sLg.log("Saving database, mode " + mode + ".");
+
+        File dir     = getExternalFilesDir(null);
+        File outputF = mode == EXPORT_DELTA    ? dir
+                     : mode == EXPORT_COLUMNAR ? new File(dir, DataDumpDbHelper.DATABASE_NAME
+                                                               + COLUMNAR_SUFFIX)
+                     : new File(dir, DataDumpDbHelper.DATABASE_NAME);
+
+        setExportEnabled(false);
+        new ExportTask(this, outputF, mode).execute();
+    }
 
-        SQLiteDatabase db             = new DataDumpDbHelper(this).getReadableDatabase();
-        File           dbFile         = new File(db.getPath());
-        File           outputF;
-        File           outputFileDir  = getExternalFilesDir(null);
-        String         outputFileName = DataDumpDbHelper.DATABASE_NAME;
+    /** Enables or disables the export buttons. */
+    private void setExportEnabled(boolean enabled) {
+        findViewById(R.id.button).setEnabled(enabled);
+        findViewById(R.id.button_delta).setEnabled(enabled);
+        findViewById(R.id.button_columnar).setEnabled(enabled);
+    }
 
-        outputF = new File(outputFileDir, outputFileName);
+    /**
+     * Runs <code>DbExporter</code> off the main thread and
+     * reports its progress and throughput in the activity.
+     * Holds a reference to the database until the export ends,
+     * so it stays open even if the activity is destroyed meanwhile.
+     */
+    private static class ExportTask extends AsyncTask<Void, Long, DbExporter.Result>
+                                    implements DbExporter.ProgressListener {
+        private final WeakReference<MainActivity> mActivity;   // Don't keep a finished
+        private final DbExporter                  mExporter;   //  activity alive.
+        private final DbManager                   mDbManager;
+        private final File                        mOutputF;    // The directory, for a delta.
+        private final int                         mMode;
+
+        private String mError;
+
+        ExportTask(MainActivity activity, File outputF, int mode) {
+            mActivity  = new WeakReference<>(activity);
+            mDbManager = DbManager.getInstance(activity);
+            mExporter  = new DbExporter(activity);
+            mOutputF   = outputF;
+            mMode      = mode;
+            mDbManager.acquireReference();      // Released once the export ends.
+        }
 
-        try {
-            if(outputF.createNewFile()) {
-                if(LOCAL_LOGV) sLg.log("Created new file " + outputF + ".");
-            } else if(LOCAL_LOGV) sLg.log("File " + outputF + " already exists.");
+        @Override protected DbExporter.Result doInBackground(Void... params) {
+            try {
+                switch(mMode) {
+                    case EXPORT_DELTA:    return mExporter.exportDelta(mOutputF, this);
+                    case EXPORT_COLUMNAR: return mExporter.exportColumnar(mOutputF, false, this);
+                    default:              return mExporter.export(mOutputF, this);
+                }
+            } catch (IOException | RuntimeException e) {    // SQLiteException, or the
+                mError = e.getMessage();                    //  database couldn't be opened.
+                Log.e(TAG, "Error creating " + mOutputF.getPath() + ": " + mError + ".");
+                return null;
+            } finally {
+                mDbManager.releaseReference();
+            }
+        }
+
+        @Override public void onProgress(long rows, long totalRows) {
+            publishProgress(rows, totalRows);
+        }
 
-            FileChannel fin = new FileInputStream(dbFile).getChannel();
-            FileChannel fout = new FileOutputStream(outputF).getChannel();
+        @Override protected void onProgressUpdate(Long... progress) {
+            MainActivity activity = mActivity.get();
+            if(activity == null) return;
 
-            fout.transferFrom(fin, 0, fin.size());
+            ((TextView) activity.findViewById(R.id.textView1)).setText(
+                    activity.getString(R.string.export_progress, progress[0], progress[1]));
+        }
 
-            fin.close();
-            fout.close();
+        @Override protected void onPostExecute(DbExporter.Result result) {
+            MainActivity activity = mActivity.get();
+            if(activity == null) return;
 
-            Toast.makeText(this, outputF.getPath(), Toast.LENGTH_LONG).show();
+            ((TextView) activity.findViewById(R.id.textView1)).setText(R.string.export);
+            activity.setExportEnabled(true);
 
-            if(LOCAL_LOGV) sLg.log(outputF.getPath());
+            String text = result == null
+                    ? activity.getString(R.string.export_failed, mError)
+                    : result.mFile == null
+                    ? activity.getString(R.string.export_nothing)
+                    : activity.getString(R.string.export_done, result.mFile.getPath(),
+                            result.mRows, result.mElapsed, result.getRowsPerSecond(),
+                            result.getBytesPerSecond() / 1024);
 
-        } catch (IOException e) {
-            String errorText = "Error creating " + outputF.getPath() + ": " + e.getMessage() + ".";
-            Log.e(TAG, errorText);
-            e.printStackTrace();
+            Toast.makeText(activity, text, Toast.LENGTH_LONG).show();
+            if(LOCAL_LOGV) sLg.log(text);
         }
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step in the chain of database upgrades.
+ *
+ * <p>A step has two phases. <code>upgradeSchema</code> runs inside
+ * <code>onUpgrade</code> and must be quick: DDL only. Anything proportional
+ * to the amount of data goes in background units, which are migrated in
+ * chunks on the <code>DbManager</code> thread after the database opens.
+ * Each chunk commits together with its progress, so an interrupted unit
+ * resumes where it stopped.</p>
+ *
+ * <p>Steps are frozen once released. A step writes the schema of its own
+ * version, not the current one, so that a later step can build on it. An upgrade
+ * spanning several steps runs every schema phase first, so a step must work on
+ * the schema the earlier ones left while their units are still pending. The
+ * units then run in the order their steps were queued.</p>
+ *
+ * @see com.kensinclair.datacollector.Migrations
+ *
+ * @author Ken Sinclair
+ */
+
+abstract class Migration {
+    static final String[] NO_UNITS = {};
+
+    final int    mVersion;
+    final String mName;
+
+    /**
+     * @param version the database version this step upgrades to
+     * @param name    a short description for the log and the migrations table
+     */
+    Migration(int version, String name) {
+        mVersion = version;
+        mName    = name;
+    }
+
+    /**
+     * Changes the schema. Runs in the <code>onUpgrade</code> transaction.
+     *
+     * @param db the database being upgraded
+     */
+    abstract void upgradeSchema(SQLiteDatabase db);
+
+    /**
+     * Names the units of background work this step leaves after
+     * <code>upgradeSchema</code>, usually one per table.
+     *
+     * @return the units, in the order they should run
+     */
+    String[] getUnits() { return NO_UNITS; }
+
+    /**
+     * Migrates the next chunk of a unit. Runs in a transaction,
+     * with the write lock held.
+     *
+     * @param db       the open database
+     * @param unit     the unit being migrated
+     * @param progress where the unit got to. Advanced by the chunk
+     * @param limit    the most rows to migrate
+     * @return         <code>true</code> if the unit is complete;
+     *                 <code>false</code> if there is more to do
+     */
+    boolean migrateChunk(SQLiteDatabase db, String unit, Progress progress, int limit) {
+        return true;
+    }
+
+    /**
+     * Cleans up after a unit completes, in the same
+     * transaction as its last chunk.
+     *
+     * @param db   the open database
+     * @param unit the unit which completed
+     */
+    void finishUnit(SQLiteDatabase db, String unit) {}
+
+    /**
+     * How far a unit has got.
+     */
+    static final class Progress {
+        long mLastId;
+        long mRows;
+    }
+}
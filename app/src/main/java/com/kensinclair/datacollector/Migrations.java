@@ -0,0 +1,738 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.kensinclair.logger.MyLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ordered chain of database upgrades, and the runner
+ * for the background work they leave behind.
+ *
+ * <p>To change the schema, bump <code>DataDumpDbHelper.DATABASE_VERSION</code>,
+ * change the CREATE statements there for new installs, and append a
+ * <code>Migration</code> for the new version to <code>STEPS</code>.</p>
+ *
+ * @see com.kensinclair.datacollector.Migration
+ * @see com.kensinclair.datacollector.DataDumpContract.MigrationsTable
+ *
+ * @author Ken Sinclair
+ */
+
+final class Migrations {
+    private static final boolean LOCAL_LOGD = true;
+    private static final String  TAG        = Migrations.class.getSimpleName();
+
+    private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
+
+    private static final int CHUNK_SIZE = 1000;
+
+    /** Every upgrade step, in version order. */
+    private static final Migration[] STEPS = {
+            new EpochTimeMigration(),
+            new TimeIndexMigration(),
+            new ExportMarksMigration(),
+            new StringDictionaryMigration(),
+            new MacAddressMigration(),
+            new ScanEventMigration(),
+            new AccountEventMigration(),
+            new NetworkSessionMigration(),
+            new PartitionMigration(),
+            new ArchiveMigration(),
+            new HourlyRollupMigration(),
+            new SpanningViewMigration()
+    };
+
+    static final String SQL_CREATE_MIGRATIONS =
+            "CREATE TABLE IF NOT EXISTS " + DataDumpContract.MigrationsTable.TABLE_NAME + " (" +
+                    DataDumpContract.MigrationsTable._ID                  + " INTEGER PRIMARY KEY," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_VERSION  + " INTEGER," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_NAME     + " TEXT," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_UNIT     + " TEXT," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_STATE    + " INTEGER," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_LAST_ID  + " INTEGER," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_ROWS     + " INTEGER," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_STARTED  + " INTEGER," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_FINISHED + " INTEGER," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_ELAPSED  + " INTEGER" +
+            " )";
+
+    private static final String SQL_RECORD = DataDumpContract.insertSql(
+            DataDumpContract.MigrationsTable.TABLE_NAME, new String[] {
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_VERSION,
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_NAME,
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_UNIT,
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_STATE,
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_LAST_ID,
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_ROWS,
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_STARTED,
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_FINISHED,
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_ELAPSED });
+
+    private static final String SQL_PROGRESS =
+            "UPDATE " + DataDumpContract.MigrationsTable.TABLE_NAME + " SET " +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_STATE    + " = ?," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_LAST_ID  + " = ?," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_ROWS     + " = ?," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_STARTED  + " = COALESCE(" +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_STARTED  + ", ?)," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_FINISHED + " = ?," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_ELAPSED  + " = ?" +
+            " WHERE " + DataDumpContract.MigrationsTable._ID + " = ?";
+
+    private static final String SQL_PENDING =
+            "SELECT " +
+                    DataDumpContract.MigrationsTable._ID                 + "," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_VERSION + "," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_UNIT    + "," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_LAST_ID + "," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_ROWS    + "," +
+                    DataDumpContract.MigrationsTable.COLUMN_NAME_ELAPSED +
+            " FROM "  + DataDumpContract.MigrationsTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.MigrationsTable.COLUMN_NAME_STATE + " = " +
+                    DataDumpContract.MigrationsTable.STATE_PENDING +
+            " ORDER BY " + DataDumpContract.MigrationsTable._ID;
+
+    /** Prevents an instance from being accidentally instantiated. */
+    private Migrations() {}
+
+    /**
+     * Runs the schema phase of every step between two versions, and queues
+     * their background units. Called from <code>onUpgrade</code>, in its transaction.
+     *
+     * @param db         the database being upgraded
+     * @param oldVersion the version on disk
+     * @param newVersion the version being upgraded to
+     */
+    static void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL(SQL_CREATE_MIGRATIONS);         // Databases before version 4 have no such table.
+
+        for(Migration step:STEPS) {
+            if(step.mVersion <= oldVersion || step.mVersion > newVersion) continue;
+
+            long start = SystemClock.elapsedRealtime();     // On the schema the steps before
+            step.upgradeSchema(db);                         //  left, their copies still pending.
+            long elapsed = SystemClock.elapsedRealtime() - start;
+
+            record(db, step, DataDumpContract.MigrationsTable.UNIT_SCHEMA,
+                   DataDumpContract.MigrationsTable.STATE_DONE, elapsed);
+            for(String unit:step.getUnits())
+                record(db, step, unit, DataDumpContract.MigrationsTable.STATE_PENDING, 0);
+
+            if(LOCAL_LOGD) sLg.log("Version " + step.mVersion + " (" + step.mName + ") schema in "
+                    + elapsed + " ms, " + step.getUnits().length + " background units queued.");
+        }
+    }
+
+    /**
+     * Runs any pending background units to completion, one chunk per transaction,
+     * releasing the write lock between chunks so collectors keep writing.
+     * Runs on the <code>DbManager</code> thread once the database is open, so
+     * it is given the database rather than waiting on <code>getDatabase</code>,
+     * which would queue a reopen behind itself.
+     *
+     * @param dbManager the manager owning the database
+     * @param db        the database it opened
+     */
+    static void resume(DbManager dbManager, SQLiteDatabase db) {
+        try {
+            resume(db, dbManager.getWriteLock());
+        } catch (SQLException | IllegalStateException e) {  // Closed or unavailable. Progress is
+            Log.e(TAG, "Migration paused: " + e.getMessage());   //    kept, so the next open
+        }                                                        //            picks up from here.
+    }
+
+    /**
+     * Runs any pending background units to completion, one chunk per transaction.
+     * A chunk which fails is rolled back, and the units pick up after the last
+     * chunk committed when this is called again.
+     *
+     * @param db        the open database
+     * @param writeLock held for each chunk
+     * @throws SQLException if a chunk failed
+     */
+    static void resume(SQLiteDatabase db, Object writeLock) {
+        for(Unit unit:getPending(db)) {
+            boolean done = false;
+
+            while(!done) {
+                synchronized (writeLock) {
+                    db.beginTransactionNonExclusive();
+                    try {
+                        done = runChunk(db, unit);
+                        db.setTransactionSuccessful();
+                    } finally { db.endTransaction(); }
+                }
+            }
+            logDone(unit);
+        }
+    }
+
+    /**
+     * Tells whether any background unit is still pending.
+     *
+     * @param db the open database
+     * @return   <code>true</code> if a migration has work left
+     */
+    static boolean isPending(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, DataDumpContract.MigrationsTable.TABLE_NAME,
+                DataDumpContract.MigrationsTable.COLUMN_NAME_STATE + " = "
+                        + DataDumpContract.MigrationsTable.STATE_PENDING) > 0;
+    }
+
+    /**
+     * Names the table a step created now that every step has run. A later step
+     * which rebuilt it renamed it aside, and the table goes by that name until
+     * the later step's copy completes.
+     *
+     * @param table   the table's name as of <code>version</code>
+     * @param version the version of the step which created it
+     * @return        the table's name now
+     */
+    static String currentName(String table, int version) {
+        for(Migration step:STEPS) {
+            if(step.mVersion > version && step instanceof TableRebuildMigration
+                    && ((TableRebuildMigration) step).rebuilds(table))
+                return ((TableRebuildMigration) step).getOldTable(table);
+        }
+        return table;
+    }
+
+    /**
+     * Migrates one chunk of a unit and records the progress.
+     * The caller has a transaction open.
+     *
+     * @param db   the open database
+     * @param unit the unit being migrated
+     * @return     <code>true</code> if the unit is complete
+     */
+    private static boolean runChunk(SQLiteDatabase db, Unit unit) {
+        long    start = SystemClock.elapsedRealtime();
+        boolean done  = unit.mStep.migrateChunk(db, unit.mName, unit.mProgress, CHUNK_SIZE);
+
+        if(done) unit.mStep.finishUnit(db, unit.mName);
+        unit.mElapsed += SystemClock.elapsedRealtime() - start;
+
+        long            now       = System.currentTimeMillis();
+        SQLiteStatement statement = db.compileStatement(SQL_PROGRESS);
+        try {
+            statement.bindLong(1, done ? DataDumpContract.MigrationsTable.STATE_DONE
+                                       : DataDumpContract.MigrationsTable.STATE_PENDING);
+            statement.bindLong(2, unit.mProgress.mLastId);
+            statement.bindLong(3, unit.mProgress.mRows);
+            statement.bindLong(4, now);
+            if(done) statement.bindLong(5, now);
+            else     statement.bindNull(5);
+            statement.bindLong(6, unit.mElapsed);
+            statement.bindLong(7, unit.mId);
+            statement.executeUpdateDelete();
+        } finally { statement.close(); }
+
+        return done;
+    }
+
+    /**
+     * Reads the pending background units.
+     *
+     * @param db the open database
+     * @return   the units, in the order they were queued
+     */
+    private static List<Unit> getPending(SQLiteDatabase db) {
+        List<Unit> units  = new ArrayList<>();
+        Cursor     cursor = db.rawQuery(SQL_PENDING, null);
+        try {
+            while(cursor.moveToNext()) {
+                Migration step = forVersion(cursor.getInt(1));
+
+                if(step == null) {
+                    Log.e(TAG, "No migration for version " + cursor.getInt(1) + ". Skipping.");
+                    continue;
+                }
+                Unit unit = new Unit(cursor.getLong(0), step, cursor.getString(2));
+
+                unit.mProgress.mLastId = cursor.getLong(3);
+                unit.mProgress.mRows   = cursor.getLong(4);
+                unit.mElapsed          = cursor.getLong(5);
+                units.add(unit);
+            }
+        } finally { cursor.close(); }
+
+        return units;
+    }
+
+    /**
+     * Adds a row to the migrations table.
+     *
+     * @param db      the database being upgraded
+     * @param step    the migration step
+     * @param unit    the unit name
+     * @param state   the unit's state
+     * @param elapsed time spent so far, in milliseconds
+     */
+    private static void record(SQLiteDatabase db, Migration step, String unit,
+                               int state, long elapsed) {
+        long            now       = System.currentTimeMillis();
+        boolean         done      = state == DataDumpContract.MigrationsTable.STATE_DONE;
+        SQLiteStatement statement = db.compileStatement(SQL_RECORD);
+        try {
+            statement.bindLong(1, step.mVersion);
+            statement.bindString(2, step.mName);
+            statement.bindString(3, unit);
+            statement.bindLong(4, state);
+            statement.bindLong(5, 0);
+            statement.bindLong(6, 0);
+            if(done) {
+                statement.bindLong(7, now);
+                statement.bindLong(8, now);
+            } else {
+                statement.bindNull(7);
+                statement.bindNull(8);
+            }
+            statement.bindLong(9, elapsed);
+            statement.executeInsert();
+        } finally { statement.close(); }
+    }
+
+    /**
+     * Logs a completed unit.
+     *
+     * @param unit the unit
+     */
+    private static void logDone(Unit unit) {
+        if(LOCAL_LOGD) sLg.log("Version " + unit.mStep.mVersion + " unit " + unit.mName
+                + " migrated " + unit.mProgress.mRows + " rows in " + unit.mElapsed + " ms.");
+    }
+
+    /**
+     * Finds the step for a version.
+     *
+     * @param version the database version
+     * @return        the step, or <code>null</code> if there is none
+     */
+    private static Migration forVersion(int version) {
+        for(Migration step:STEPS) if(step.mVersion == version) return step;
+        return null;
+    }
+
+    /**
+     * A pending background unit.
+     */
+    private static final class Unit {
+        final long               mId;
+        final Migration          mStep;
+        final String             mName;
+        final Migration.Progress mProgress = new Migration.Progress();
+        long                     mElapsed;
+
+        Unit(long id, Migration step, String name) {
+            mId   = id;
+            mStep = step;
+            mName = name;
+        }
+    }
+
+    /**
+     * Version 4. Stores times as INTEGER epoch milliseconds instead of formatted text.
+     * A timestamp which cannot be parsed is stored as NULL.
+     */
+    private static final class EpochTimeMigration extends TableRebuildMigration {
+        private static final String TIME = "time";
+
+        EpochTimeMigration() {
+            super(4, "epoch time", new String[] {
+                    "accounts", "location", "network", "wifi_connection", "wifi_scan"
+            }, new String[] {
+                    "CREATE TABLE accounts (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + "time INTEGER, name TEXT, type TEXT)",
+                    "CREATE TABLE location (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + "time INTEGER, latitude REAL, longitude REAL, bearing REAL, "
+                            + "speed REAL, altitude REAL, accuracy REAL)",
+                    "CREATE TABLE network (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + "time INTEGER, type TEXT, subtype TEXT, state TEXT, reason TEXT)",
+                    "CREATE TABLE wifi_connection (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + "time INTEGER, ip_address INTEGER, mac_address TEXT, bssid TEXT, "
+                            + "ssid TEXT, hidden INTEGER)",
+                    "CREATE TABLE wifi_scan (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + "time INTEGER, bssid TEXT, ssid TEXT, capabilities TEXT)"
+            });
+        }
+
+        @Override void bindRow(String table, SQLiteStatement insert, Cursor row) {
+            int timeIndex = row.getColumnIndexOrThrow(TIME);
+
+            for(int i = 0, n = row.getColumnCount(); i < n; i++) {
+                if(i != timeIndex) {
+                    DataDumpDbHelper.bindColumn(insert, i + 1, row, i);
+                    continue;
+                }
+                long time = Timestamps.parseLegacy(row.getString(i));
+
+                if(time == -1) insert.bindNull(i + 1);
+                else           insert.bindLong(i + 1, time);
+            }
+        }
+    }
+
+    /**
+     * Version 5. Indexes every table's time column. Each index is a background
+     * unit of its own, since building one is proportional to the table's size.
+     * A table a later step has since rebuilt as a view is skipped: the step
+     * indexed its new table itself.
+     */
+    private static final class TimeIndexMigration extends Migration {
+        private static final String[] TABLES = {
+                "accounts", "location", "network", "wifi_connection", "wifi_scan"
+        };
+
+        TimeIndexMigration() { super(5, "time indexes"); }
+
+        @Override void upgradeSchema(SQLiteDatabase db) {}
+
+        @Override String[] getUnits() { return TABLES; }
+
+        @Override boolean migrateChunk(SQLiteDatabase db, String table,
+                                       Progress progress, int limit) {
+            if(DatabaseUtils.queryNumEntries(db, "sqlite_master", "type = 'table' AND name = ?",
+                                             new String[] { table }) == 0) return true;
+
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + table + "_time_idx ON " + table + " (time)");
+            return true;
+        }
+    }
+
+    /**
+     * Version 6. Adds the table holding the delta export watermarks.
+     */
+    private static final class ExportMarksMigration extends Migration {
+        ExportMarksMigration() { super(6, "export marks"); }
+
+        @Override void upgradeSchema(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS export_marks (_id INTEGER PRIMARY KEY, "
+                    + "name TEXT UNIQUE, last_id INTEGER, segment INTEGER, time INTEGER)");
+        }
+    }
+
+    /**
+     * Version 7. Interns the repeated strings of the network and wifi_scan tables
+     * into a strings table. The tables are rebuilt as network_data and wifi_scan_data,
+     * holding string IDs, and views under the old names join the strings back.
+     */
+    private static final class StringDictionaryMigration extends TableRebuildMigration {
+        private static final String[] NETWORK_STRINGS = { "type", "subtype", "state", "reason" };
+        private static final String[] SCAN_STRINGS    = { "ssid", "capabilities" };
+
+        private final Map<String, Long> mCache = new HashMap<>();   // For one chunk.
+
+        private SQLiteStatement mLookup;
+        private SQLiteStatement mInsert;
+
+        StringDictionaryMigration() {
+            super(7, "string dictionary", new String[] {
+                    "network", "wifi_scan"
+            }, new String[] {
+                    "CREATE TABLE network_data (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + "time INTEGER, type_id INTEGER, subtype_id INTEGER, "
+                            + "state_id INTEGER, reason_id INTEGER)",
+                    "CREATE TABLE wifi_scan_data (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + "time INTEGER, bssid TEXT, ssid_id INTEGER, capabilities_id INTEGER)"
+            });
+        }
+
+        @Override void upgradeSchema(SQLiteDatabase db) {
+            super.upgradeSchema(db);
+
+            db.execSQL("CREATE TABLE IF NOT EXISTS strings "
+                    + "(_id INTEGER PRIMARY KEY AUTOINCREMENT, value TEXT UNIQUE)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS network_data_time_idx ON network_data (time)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS wifi_scan_data_time_idx "
+                    + "ON wifi_scan_data (time)");
+            db.execSQL("CREATE VIEW network AS SELECT d._id AS _id, d.time AS time, "
+                    + "s0.value AS type, s1.value AS subtype, s2.value AS state, "
+                    + "s3.value AS reason FROM network_data d "
+                    + "LEFT JOIN strings s0 ON s0._id = d.type_id "
+                    + "LEFT JOIN strings s1 ON s1._id = d.subtype_id "
+                    + "LEFT JOIN strings s2 ON s2._id = d.state_id "
+                    + "LEFT JOIN strings s3 ON s3._id = d.reason_id");
+            db.execSQL("CREATE VIEW wifi_scan AS SELECT d._id AS _id, d.time AS time, "
+                    + "d.bssid AS bssid, s0.value AS ssid, s1.value AS capabilities "
+                    + "FROM wifi_scan_data d "
+                    + "LEFT JOIN strings s0 ON s0._id = d.ssid_id "
+                    + "LEFT JOIN strings s1 ON s1._id = d.capabilities_id");
+
+            db.execSQL("UPDATE export_marks SET name = name || '_data' "  // IDs are kept, so
+                    + "WHERE name IN ('network', 'wifi_scan')");       // the marks still hold.
+        }
+
+        @Override String getNewTable(String table) { return table + "_data"; }
+
+        @Override boolean migrateChunk(SQLiteDatabase db, String table,
+                                       Progress progress, int limit) {
+            mLookup = db.compileStatement("SELECT _id FROM strings WHERE value = ?");
+            mInsert = db.compileStatement("INSERT INTO strings (value) VALUES (?)");
+            try {
+                return super.migrateChunk(db, table, progress, limit);
+            } finally {
+                mLookup.close();
+                mInsert.close();
+                mCache.clear();                     // The chunk may yet roll back.
+            }
+        }
+
+        @Override String[] getInsertColumns(String table, String[] oldColumns) {
+            return "network".equals(table)
+                    ? new String[] { "_id", "time", "type_id", "subtype_id",
+                                     "state_id", "reason_id" }
+                    : new String[] { "_id", "time", "bssid", "ssid_id", "capabilities_id" };
+        }
+
+        @Override void bindRow(String table, SQLiteStatement insert, Cursor row) {
+            String[] strings = "network".equals(table) ? NETWORK_STRINGS : SCAN_STRINGS;
+            int      index   = 1;
+
+            DataDumpDbHelper.bindColumn(insert, index++, row, row.getColumnIndexOrThrow("_id"));
+            DataDumpDbHelper.bindColumn(insert, index++, row, row.getColumnIndexOrThrow("time"));
+            if(strings == SCAN_STRINGS)
+                DataDumpDbHelper.bindColumn(insert, index++, row,
+                                            row.getColumnIndexOrThrow("bssid"));
+
+            for(String column:strings) {
+                String value = row.getString(row.getColumnIndexOrThrow(column));
+
+                if(value == null) insert.bindNull(index++);
+                else              insert.bindLong(index++, intern(value));
+            }
+        }
+
+        /** Gets a string's ID, adding it to the strings table if it is new. */
+        private long intern(String value) {
+            Long id = mCache.get(value);
+            if(id != null) return id;
+
+            mLookup.bindString(1, value);
+            try {
+                id = mLookup.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                mInsert.bindString(1, value);
+                id = mInsert.executeInsert();
+            }
+            mCache.put(value, id);
+            return id;
+        }
+    }
+
+    /**
+     * Version 8. Stores BSSIDs and MAC addresses as their 48 bits in an INTEGER
+     * instead of as text. An address which cannot be parsed is stored as NULL.
+     */
+    private static final class MacAddressMigration extends TableRebuildMigration {
+        private static final String[] ADDRESSES = { "bssid", "mac_address" };
+
+        MacAddressMigration() {
+            super(8, "packed mac addresses", new String[] {
+                    "wifi_connection", "wifi_scan_data"
+            }, new String[] {
+                    "CREATE TABLE wifi_connection (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + "time INTEGER, ip_address INTEGER, mac_address INTEGER, "
+                            + "bssid INTEGER, ssid TEXT, hidden INTEGER)",
+                    "CREATE TABLE wifi_scan_data (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + "time INTEGER, bssid INTEGER, ssid_id INTEGER, "
+                            + "capabilities_id INTEGER)"
+            });
+        }
+
+        @Override void upgradeSchema(SQLiteDatabase db) {
+            db.execSQL("DROP VIEW IF EXISTS wifi_scan");     // Newer SQLite would point it at
+                                                             //  the renamed table.
+            db.execSQL("DROP INDEX IF EXISTS wifi_connection_time_idx");  // Free the names for
+            db.execSQL("DROP INDEX IF EXISTS wifi_scan_data_time_idx");   //  the new tables.
+
+            super.upgradeSchema(db);
+
+            db.execSQL("CREATE INDEX IF NOT EXISTS wifi_connection_time_idx "
+                    + "ON wifi_connection (time)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS wifi_scan_data_time_idx "
+                    + "ON wifi_scan_data (time)");
+            db.execSQL("CREATE VIEW wifi_scan AS SELECT d._id AS _id, d.time AS time, "
+                    + "d.bssid AS bssid, s0.value AS ssid, s1.value AS capabilities "
+                    + "FROM wifi_scan_data d "
+                    + "LEFT JOIN strings s0 ON s0._id = d.ssid_id "
+                    + "LEFT JOIN strings s1 ON s1._id = d.capabilities_id");
+        }
+
+        @Override void bindRow(String table, SQLiteStatement insert, Cursor row) {
+            for(int i = 0, n = row.getColumnCount(); i < n; i++) {
+                if(!isAddress(row.getColumnName(i))) {
+                    DataDumpDbHelper.bindColumn(insert, i + 1, row, i);
+                    continue;
+                }
+                long address = MacAddresses.parse(row.getString(i));
+
+                if(address == MacAddresses.NONE) insert.bindNull(i + 1);
+                else                             insert.bindLong(i + 1, address);
+            }
+        }
+
+        private static boolean isAddress(String column) {
+            for(String address:ADDRESSES) if(address.equals(column)) return true;
+            return false;
+        }
+    }
+
+    /**
+     * Version 9. Adds the event column to wifi_scan_data, so that scans can be
+     * stored as the access points which changed. Every existing row holds a whole
+     * scan, so it becomes a keyframe row.
+     */
+    private static final class ScanEventMigration extends Migration {
+        ScanEventMigration() { super(9, "scan events"); }
+
+        @Override void upgradeSchema(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE wifi_scan_data ADD COLUMN event INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("DROP VIEW IF EXISTS wifi_scan");
+            db.execSQL("CREATE VIEW wifi_scan AS SELECT d._id AS _id, d.time AS time, "
+                    + "d.bssid AS bssid, d.event AS event, s0.value AS ssid, "
+                    + "s1.value AS capabilities "
+                    + "FROM wifi_scan_data d "
+                    + "LEFT JOIN strings s0 ON s0._id = d.ssid_id "
+                    + "LEFT JOIN strings s1 ON s1._id = d.capabilities_id");
+        }
+    }
+
+    /**
+     * Version 10. Adds the event column to accounts, so that only changes to
+     * the account set are stored. Every existing row was written as part of
+     * a whole account set, so it becomes a snapshot row.
+     */
+    private static final class AccountEventMigration extends Migration {
+        AccountEventMigration() { super(10, "account events"); }
+
+        @Override void upgradeSchema(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE accounts ADD COLUMN event INTEGER NOT NULL DEFAULT 0");
+        }
+    }
+
+    /**
+     * Version 11. Adds the network session table and its view. Sessions are built
+     * from the events written from now on; older events are not replayed.
+     */
+    private static final class NetworkSessionMigration extends Migration {
+        NetworkSessionMigration() { super(11, "network sessions"); }
+
+        @Override void upgradeSchema(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS network_session_data (_id INTEGER PRIMARY KEY "
+                    + "AUTOINCREMENT, start_time INTEGER, end_time INTEGER, type_id INTEGER, "
+                    + "bssid INTEGER)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS network_session_data_start_time_idx "
+                    + "ON network_session_data (start_time)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS network_session_data_bssid_idx "
+                    + "ON network_session_data (bssid,start_time)");
+            db.execSQL("DROP VIEW IF EXISTS network_session");
+            db.execSQL("CREATE VIEW network_session AS SELECT d._id AS _id, "
+                    + "d.start_time AS start_time, d.end_time AS end_time, d.bssid AS bssid, "
+                    + "s0.value AS type FROM network_session_data d "
+                    + "LEFT JOIN strings s0 ON s0._id = d.type_id");
+        }
+    }
+
+    /**
+     * Version 12. Adds the partition registry. The existing location, network and
+     * WiFi scan tables become each kind's base partition, holding everything up to
+     * the start of next week; weekly partitions are created as rows arrive after it.
+     */
+    private static final class PartitionMigration extends Migration {
+        private static final long WEEK   = 7 * 24 * 60 * 60 * 1000L;
+        private static final long MONDAY = 4 * 24 * 60 * 60 * 1000L;   // After the epoch.
+
+        PartitionMigration() { super(12, "time partitions"); }
+
+        @Override void upgradeSchema(SQLiteDatabase db) {
+            long now    = System.currentTimeMillis();
+            long offset = (now - MONDAY) % WEEK;
+            long end    = now - (offset < 0 ? offset + WEEK : offset) + WEEK;
+
+            db.execSQL("CREATE TABLE IF NOT EXISTS partitions (_id INTEGER PRIMARY KEY "
+                    + "AUTOINCREMENT, kind TEXT, start_time INTEGER, end_time INTEGER, "
+                    + "suffix TEXT)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS partitions_kind_idx "
+                    + "ON partitions (kind,start_time)");
+            for(String kind:new String[] { "location", "network", "wifi_scan" }) {
+                db.execSQL("INSERT INTO partitions (kind,start_time,end_time,suffix) "
+                        + "VALUES (?, ?, ?, '')", new Object[] { kind, Long.MIN_VALUE, end });
+            }
+        }
+    }
+
+    /**
+     * Version 13. Adds the index of archived blocks. Nothing is archived yet.
+     */
+    private static final class ArchiveMigration extends Migration {
+        ArchiveMigration() { super(13, "cold archive"); }
+
+        @Override void upgradeSchema(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS archive_blocks (_id INTEGER PRIMARY KEY "
+                    + "AUTOINCREMENT, kind TEXT, start_time INTEGER, end_time INTEGER, "
+                    + "row_count INTEGER, file TEXT, byte_offset INTEGER, byte_length INTEGER, "
+                    + "crc INTEGER)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS archive_blocks_kind_idx "
+                    + "ON archive_blocks (kind,start_time)");
+        }
+    }
+
+    /**
+     * Version 14. Adds the hourly rollups. They count from the upgrade on:
+     * scans stored as diffs can't be counted back, so no hour is backfilled.
+     */
+    private static final class HourlyRollupMigration extends Migration {
+        HourlyRollupMigration() { super(14, "hourly rollups"); }
+
+        @Override void upgradeSchema(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS hourly_rollups (_id INTEGER PRIMARY KEY "
+                    + "AUTOINCREMENT, hour INTEGER NOT NULL UNIQUE, "
+                    + "locations INTEGER NOT NULL DEFAULT 0, "
+                    + "network_changes INTEGER NOT NULL DEFAULT 0, "
+                    + "wifi_connections INTEGER NOT NULL DEFAULT 0, "
+                    + "scans INTEGER NOT NULL DEFAULT 0, "
+                    + "scan_results INTEGER NOT NULL DEFAULT 0, "
+                    + "distinct_bssids INTEGER NOT NULL DEFAULT 0, bssid_sketch BLOB)");
+        }
+    }
+
+    /**
+     * Version 15. Adds the views spanning each kind's partitions, which are
+     * rebuilt from the registry as partitions come and go from then on.
+     */
+    private static final class SpanningViewMigration extends Migration {
+        SpanningViewMigration() { super(15, "spanning views"); }
+
+        @Override void upgradeSchema(SQLiteDatabase db) {
+            for(String kind:PartitionManager.KINDS) PartitionManager.createSpanningView(db, kind);
+        }
+    }
+}
@@ -26,9 +26,11 @@ import android.util.Log;
 import com.kensinclair.logger.MyLog;
 
 /**
- * Receives network change broadcasts.
+ * Receives network change broadcasts. Registered by
+ * <code>NetworkUpdaterService</code> while it runs.
  *
  * @see android.content.BroadcastReceiver
+ * @see com.kensinclair.datacollector.NetworkUpdaterService
  *
  * @author Ken Sinclair
  */
@@ -39,8 +41,9 @@ public class NetworkReceiver extends BroadcastReceiver {
 
     private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
     /**
-     * Calls the appropriate database updater method
-     * on receipt of a network change broadcast.
+     * Queues the appropriate data for the database
+     * on receipt of a network change broadcast. State changes
+     * go through the <code>BroadcastCoalescer</code>.
      *
      * @param context provided by system
      * @param intent  provided by system
@@ -48,52 +51,55 @@ public class NetworkReceiver extends BroadcastReceiver {
     @Override public void onReceive(Context context, Intent intent) {
         long time = System.currentTimeMillis();
 
-        DbUpdater dbUpdater= new DbUpdater(context);
+        IngestionQueue ingestionQueue = IngestionQueue.getInstance(context);
 
         String intentAction = intent.getAction();
 
         if(LOCAL_LOGD) sLg.log("Received " + intentAction);
                                                          //  If the Intent is a CONNECTIVITY_ACTION,
         if(intentAction.compareTo(ConnectivityManager.CONNECTIVITY_ACTION) == 0) { //   it came from
-            ConnectivityManager conManager = (ConnectivityManager)          //    the cell radio,and
-                    context.getSystemService(Context.CONNECTIVITY_SERVICE); //  its data is accessed
-                                                                            //           through the
-            dbUpdater.updateTable(conManager.getActiveNetworkInfo(), time); //  ConnectivityManager.
-
+            BroadcastCoalescer.getInstance(context).onBroadcast(    //    the cell radio, and its
+                    BroadcastCoalescer.CHANNEL_NETWORK, time);      //  state is read once the
+                                                                    //         burst is over.
         } else {                                         // Otherwise, the Intent came from the WiFi
                 onReceiveWifiAction((WifiManager)        //   radio and its data is accessed through
                         context.getSystemService(        //                        the WiFi Manager.
-                                Context.WIFI_SERVICE),intentAction, time, dbUpdater);
+                                Context.WIFI_SERVICE),intentAction, time, ingestionQueue,
+                        context);
         }
     }
 
     /**
      * Determines what kind of WiFi action has
-     * been broadcast and calls the appropriate
-     * database updater method.
+     * been broadcast and queues the appropriate
+     * data for the database.
      *
-     * @param wifiManager  the <code>WifiManager</code> provided by <code>Context</code>.
-     *                     Passed from the caller to save overhead of an
-     *                     extra function call
-     * @param intentAction what action triggered the receiver
-     * @param time         time the intent was received
-     * @param dbUpdater    the database updater
-     * @return             <code>true</code> if the database was successfully updated;
-     *                     <code>false</code> otherwise
+     * @param wifiManager    the <code>WifiManager</code> provided by <code>Context</code>.
+     *                       Passed from the caller to save overhead of an
+     *                       extra function call
+     * @param intentAction   what action triggered the receiver
+     * @param time           time the intent was received
+     * @param ingestionQueue the queue in front of the database updater
+     * @param context        the context the broadcast was received in
+     * @return               <code>true</code> if the data was queued, or a state
+     *                       change was passed to the coalescer;
+     *                       <code>false</code> otherwise
      */
-    protected boolean onReceiveWifiAction(WifiManager wifiManager,
-                                        String      intentAction,
-                                        long        time,
-                                        DbUpdater   dbUpdater) {
+    protected boolean onReceiveWifiAction(WifiManager    wifiManager,
+                                          String         intentAction,
+                                          long           time,
+                                          IngestionQueue ingestionQueue,
+                                          Context        context) {
         if(LOCAL_LOGD) sLg.log("Getting Wifi info");
 
         switch (intentAction) {
             case WifiManager.SCAN_RESULTS_AVAILABLE_ACTION:       //     The Intent was a Wifi scan.
-                return dbUpdater.updateTable(wifiManager.getScanResults(), time);
+                return ingestionQueue.enqueue(wifiManager.getScanResults(), time);
 
             case WifiManager.NETWORK_STATE_CHANGED_ACTION:       //  The Intent was a change of WiFi
-                return                                           //                         network.
-                        dbUpdater.updateTable(wifiManager.getConnectionInfo(), time) != -1;
+                BroadcastCoalescer.getInstance(context).onBroadcast(//                      network.
+                        BroadcastCoalescer.CHANNEL_WIFI, time);
+                return true;
 
             default: return false;                              // The intent was an unexpected WiFi
         }                                                       //                           action.
@@ -17,11 +17,18 @@
 package com.kensinclair.datacollector;
 
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.wifi.WifiManager;
 
 /**
- * Creates a <code>NetworkReceiver</code>
+ * Registers a <code>NetworkReceiver</code>
  * to monitor for network changes.
  *
+ * <p>The receiver is registered here rather than in the manifest, so that
+ * broadcasts are only received while the service keeps the process alive,
+ * and the coalescer's quiet window never holds up the broadcast queue.</p>
+ *
  * @see com.kensinclair.datacollector.UpdaterService
  *
  * @author Ken Sinclair
@@ -31,7 +38,23 @@ public class NetworkUpdaterService extends UpdaterService {
     NetworkReceiver mNetworkReceiver;
 
     /**
-     * Creates <code>NetworkReceiver</code>.
+     * Closes the network session left open when the process last ended,
+     * and registers <code>NetworkReceiver</code>.
+     */
+    @Override public void onCreate() {
+        super.onCreate();
+        DbManager.getInstance(this).recoverSessions();
+
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+        filter.addAction(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
+
+        mNetworkReceiver = new NetworkReceiver();
+        registerReceiver(mNetworkReceiver, filter);
+    }
+
+    /**
+     * Keeps the service, and so the receiver, running.
      *
      * @param intent  provided by system. Unused
      * @param flags   provided by system. Unused
@@ -39,7 +62,12 @@ public class NetworkUpdaterService extends UpdaterService {
      * @return        <code>START_STICKY</code>
      */
     @Override public int onStartCommand(Intent intent, int flags, int startId) {
-        mNetworkReceiver = new NetworkReceiver();
         return START_STICKY;
     }
+
+    /** Unregisters <code>NetworkReceiver</code>. */
+    @Override public void onDestroy() {
+        unregisterReceiver(mNetworkReceiver);
+        super.onDestroy();
+    }
 }
\ No newline at end of file
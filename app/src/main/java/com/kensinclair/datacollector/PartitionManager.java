@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import com.kensinclair.logger.MyLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes location, network and WiFi scan rows to weekly partitions, one set
+ * of tables per kind per week, so that expiring old data drops whole tables
+ * instead of deleting rows.
+ *
+ * <p>Weeks start on Monday at 00:00 UTC. A row whose time no partition covers
+ * gets a new one, created in the writer's transaction, covering its week less
+ * any part already covered by a neighbour. The unpartitioned tables of older
+ * versions stay on as the first partition, up to the end of the week the
+ * database was upgraded in. A partition's <code>_ID</code>s start above any its
+ * kind has used, and at no less than its own ID shifted by <code>ID_BITS</code>,
+ * so they are unique within the kind even when late rows go to an older
+ * partition.</p>
+ *
+ * <p>Readers list the partitions overlapping a time window from the
+ * <code>partitions</code> table with <code>list</code>. Outside readers, and
+ * the full export, read all of a kind's rows through its spanning view, a
+ * UNION ALL of every partition, rebuilt whenever a partition is created or
+ * dropped. Everything else must be called with the <code>DbManager</code>
+ * write lock held.</p>
+ *
+ * @see com.kensinclair.datacollector.DataDumpContract.PartitionsTable
+ *
+ * @author Ken Sinclair
+ */
+
+final class PartitionManager {
+    private static final boolean LOCAL_LOGD = true;
+    private static final String  TAG        = PartitionManager.class.getSimpleName();
+
+    private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
+
+    static final long WEEK = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final long MONDAY = 4 * 24 * 60 * 60 * 1000L;   // 1970-01-01 was a Thursday.
+    private static final int  ID_BITS = 32;                         // Row IDs per partition.
+
+    /** The kinds of data partitioned. */
+    static final String[] KINDS = {
+            DataDumpContract.PartitionsTable.KIND_LOCATION,
+            DataDumpContract.PartitionsTable.KIND_NETWORK,
+            DataDumpContract.PartitionsTable.KIND_WIFI_SCAN
+    };
+
+    /** The time column, named alike in every partitioned table. */
+    static final String COLUMN_TIME = DataDumpContract.LocationTable.COLUMN_NAME_TIME;
+
+    private static final String COLUMNS =
+            DataDumpContract.PartitionsTable._ID + ", " +
+            DataDumpContract.PartitionsTable.COLUMN_NAME_KIND + ", " +
+            DataDumpContract.PartitionsTable.COLUMN_NAME_START + ", " +
+            DataDumpContract.PartitionsTable.COLUMN_NAME_END + ", " +
+            DataDumpContract.PartitionsTable.COLUMN_NAME_SUFFIX;
+    private static final String SQL_FIND =
+            "SELECT " + COLUMNS + " FROM " + DataDumpContract.PartitionsTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.PartitionsTable.COLUMN_NAME_KIND + " = ? AND " +
+                        DataDumpContract.PartitionsTable.COLUMN_NAME_START + " <= ? AND " +
+                        DataDumpContract.PartitionsTable.COLUMN_NAME_END + " > ?";
+    private static final String SQL_LIST =
+            "SELECT " + COLUMNS + " FROM " + DataDumpContract.PartitionsTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.PartitionsTable.COLUMN_NAME_KIND + " = ? AND " +
+                        DataDumpContract.PartitionsTable.COLUMN_NAME_END + " > ? AND " +
+                        DataDumpContract.PartitionsTable.COLUMN_NAME_START + " < ?" +
+            " ORDER BY " + DataDumpContract.PartitionsTable.COLUMN_NAME_START;
+    private static final String SQL_PREVIOUS_END =
+            "SELECT MAX(" + DataDumpContract.PartitionsTable.COLUMN_NAME_END + ") FROM " +
+            DataDumpContract.PartitionsTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.PartitionsTable.COLUMN_NAME_KIND + " = ? AND " +
+                        DataDumpContract.PartitionsTable.COLUMN_NAME_END + " <= ?";
+    private static final String SQL_NEXT_START =
+            "SELECT MIN(" + DataDumpContract.PartitionsTable.COLUMN_NAME_START + ") FROM " +
+            DataDumpContract.PartitionsTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.PartitionsTable.COLUMN_NAME_KIND + " = ? AND " +
+                        DataDumpContract.PartitionsTable.COLUMN_NAME_START + " > ?";
+    private static final String SQL_REGISTER =
+            "INSERT INTO " + DataDumpContract.PartitionsTable.TABLE_NAME + " (" +
+            DataDumpContract.PartitionsTable.COLUMN_NAME_KIND + ", " +
+            DataDumpContract.PartitionsTable.COLUMN_NAME_START + ", " +
+            DataDumpContract.PartitionsTable.COLUMN_NAME_END + ") VALUES (?, ?, ?)";
+    private static final String SQL_SET_SUFFIX =
+            "UPDATE " + DataDumpContract.PartitionsTable.TABLE_NAME +
+            " SET "   + DataDumpContract.PartitionsTable.COLUMN_NAME_SUFFIX + " = ?" +
+            " WHERE " + DataDumpContract.PartitionsTable._ID + " = ?";
+    private static final String SQL_UNREGISTER =
+            "DELETE FROM " + DataDumpContract.PartitionsTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.PartitionsTable._ID + " = ?";
+    private static final String SQL_SEQUENCES = "SELECT name, seq FROM sqlite_sequence";
+    private static final String SQL_SEED      =
+            "INSERT INTO sqlite_sequence (name, seq) VALUES (?, ?)";
+
+    private final DbManager              mDbManager;
+    private final Map<String, Partition> mCurrent = new HashMap<>();   // By kind. Last written.
+
+    private long mCreated;
+
+    /**
+     * @param dbManager the manager owning the database and its statement cache
+     */
+    PartitionManager(DbManager dbManager) { mDbManager = dbManager; }
+
+    /**
+     * Gets the partition a row belongs in, creating it if there is none.
+     *
+     * @param kind one of the <code>PartitionsTable.KIND_</code> constants
+     * @param time the row's time, in epoch milliseconds
+     * @return     the partition
+     * @throws android.database.SQLException if the partition could not be created
+     */
+    Partition forTime(String kind, long time) {
+        Partition partition = mCurrent.get(kind);
+        if(partition != null && partition.covers(time)) return partition;
+
+        SQLiteDatabase db = mDbManager.getDatabase();
+        String[]       args = { kind, Long.toString(time), Long.toString(time) };
+
+        partition = null;
+        Cursor c = db.rawQuery(SQL_FIND, args);
+        try {
+            if(c.moveToFirst()) partition = new Partition(c);
+        } finally { c.close(); }
+
+        if(partition == null) partition = create(db, kind, time);
+        mCurrent.put(kind, partition);
+        return partition;
+    }
+
+    /**
+     * Drops a kind's partitions which end at or before a time, with all their rows.
+     * The base partition's tables are kept, since they are named by the schema, and
+     * are emptied instead, then forgotten once nothing is left in them. Does
+     * nothing, not even closing the cached statements, if no partition has
+     * anything to drop. Must not be called inside a transaction.
+     *
+     * @param kind one of the <code>PartitionsTable.KIND_</code> constants
+     * @param time the time, in epoch milliseconds
+     * @return     the number of partitions dropped or emptied
+     */
+    int dropBefore(String kind, long time) {
+        SQLiteDatabase  db      = mDbManager.getDatabase();
+        List<Partition> expired = list(db, kind, Long.MIN_VALUE, time);
+        boolean         drops   = false;
+
+        for(int i = expired.size() - 1; i >= 0; i--) {
+            Partition partition = expired.get(i);
+
+            if(partition.mEnd > time) expired.remove(i);        // Only partly expired.
+            else if(!partition.mSuffix.isEmpty()) drops = true;
+            else if(!hasExpired(db, partition)) expired.remove(i);
+        }
+        if(expired.isEmpty()) return 0;
+
+        if(drops) mDbManager.closeStatements();     // None may hold a table being dropped.
+        mCurrent.remove(kind);
+
+        boolean unregistered = false;
+        db.beginTransactionNonExclusive();
+        try {
+            SQLiteStatement unregister = db.compileStatement(SQL_UNREGISTER);
+            try {
+                for(Partition partition:expired) {
+                    String data = partition.getDataTable();
+
+                    if(partition.mSuffix.isEmpty()) {
+                        db.execSQL("DELETE FROM " + data + " WHERE " + COLUMN_TIME + " < ?",
+                                   new Object[] { partition.mEnd });
+                        if(!isEmpty(db, data)           // Rows with no time are left,
+                                || Migrations.isPending(db)) continue;  // or being copied.
+                    } else {
+                        if(!partition.getReadTable().equals(data))
+                            db.execSQL("DROP VIEW IF EXISTS " + partition.getReadTable());
+                        db.execSQL("DROP TABLE IF EXISTS " + data);
+                    }
+                    unregister.bindLong(1, partition.mId);
+                    unregister.executeUpdateDelete();
+                    unregistered = true;
+                }
+            } finally { unregister.close(); }
+            if(unregistered) createSpanningView(db, kind);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if(LOCAL_LOGD) sLg.log("Dropped " + expired.size() + " " + kind
+                + " partitions ending by " + Timestamps.format(time) + ".");
+        return expired.size();
+    }
+
+    /**
+     * Tells whether the base partition has rows to delete, or is empty
+     * and so may be forgotten.
+     */
+    private static boolean hasExpired(SQLiteDatabase db, Partition base) {
+        String data = base.getDataTable();
+
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM " + data
+                + " WHERE " + COLUMN_TIME + " < ?)", new String[] { Long.toString(base.mEnd) }) != 0
+                || isEmpty(db, data) && !Migrations.isPending(db);
+    }
+
+    private static boolean isEmpty(SQLiteDatabase db, String table) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT NOT EXISTS (SELECT 1 FROM " + table + ")", null) != 0;
+    }
+
+    /**
+     * Forgets the partitions last written, which may have been created by a
+     * transaction that rolled back.
+     */
+    void invalidate() { mCurrent.clear(); }
+
+    /** @return the number of partitions created */
+    long getCreatedCount() { return mCreated; }
+
+    /**
+     * Lists the partitions of a kind overlapping a time window.
+     *
+     * @param db   the database
+     * @param kind one of the <code>PartitionsTable.KIND_</code> constants
+     * @param from the start of the window, inclusive, in epoch milliseconds
+     * @param to   the end of the window, exclusive, in epoch milliseconds
+     * @return     the partitions, oldest first
+     */
+    static List<Partition> list(SQLiteDatabase db, String kind, long from, long to) {
+        List<Partition> partitions = new ArrayList<>();
+
+        Cursor c = db.rawQuery(SQL_LIST,
+                new String[] { kind, Long.toString(from), Long.toString(to) });
+        try {
+            while(c.moveToNext()) partitions.add(new Partition(c));
+        } finally { c.close(); }
+        return partitions;
+    }
+
+    /**
+     * Lists the tables to read a kind's rows in a time window from.
+     *
+     * @param db   the database
+     * @param kind one of the <code>PartitionsTable.KIND_</code> constants
+     * @param from the start of the window, inclusive, in epoch milliseconds
+     * @param to   the end of the window, exclusive, in epoch milliseconds
+     * @return     the tables or views, oldest first
+     */
+    static String[] readTables(SQLiteDatabase db, String kind, long from, long to) {
+        List<Partition> partitions = list(db, kind, from, to);
+        String[]        tables     = new String[partitions.size()];
+
+        for(int i = 0; i < tables.length; i++) tables[i] = partitions.get(i).getReadTable();
+        return tables;
+    }
+
+    /**
+     * (Re)creates the view reading every partition of a kind, oldest first,
+     * in the columns <code>RangeQuery</code> reads.
+     *
+     * @param db   the database
+     * @param kind one of the <code>PartitionsTable.KIND_</code> constants
+     */
+    static void createSpanningView(SQLiteDatabase db, String kind) {
+        String        view   = kind + DataDumpContract.PartitionsTable.ALL_SUFFIX;
+        StringBuilder select = new StringBuilder("SELECT ").append(BaseColumns._ID);
+        StringBuilder create = new StringBuilder("CREATE VIEW ").append(view).append(" AS ");
+
+        for(String column:readColumns(kind)) select.append(',').append(column);
+        select.append(" FROM ");
+
+        String[] tables = readTables(db, kind, Long.MIN_VALUE, Long.MAX_VALUE);
+        for(int i = 0; i < tables.length; i++) {
+            if(i > 0) create.append(" UNION ALL ");
+            create.append(select).append(tables[i]);
+        }
+
+        db.execSQL("DROP VIEW IF EXISTS " + view);
+        if(tables.length > 0) db.execSQL(create.toString());
+    }
+
+    /**
+     * @param kind one of the <code>PartitionsTable.KIND_</code> constants
+     * @return     the kind's unpartitioned table storing the rows
+     */
+    static String dataTable(String kind) {
+        switch(kind) {
+            case DataDumpContract.PartitionsTable.KIND_NETWORK:
+                return DataDumpContract.NetworkTable.DATA_TABLE_NAME;
+            case DataDumpContract.PartitionsTable.KIND_WIFI_SCAN:
+                return DataDumpContract.WifiScanTable.DATA_TABLE_NAME;
+            default:
+                return kind;                // Location rows are read where they are stored.
+        }
+    }
+
+    /**
+     * @param kind one of the <code>PartitionsTable.KIND_</code> constants
+     * @return     the columns <code>RangeQuery</code> reads after <code>_ID</code>,
+     *             the time first
+     */
+    static String[] readColumns(String kind) {
+        switch(kind) {
+            case DataDumpContract.PartitionsTable.KIND_NETWORK:
+                return DataDumpContract.NetworkTable.READ_COLUMNS;
+            case DataDumpContract.PartitionsTable.KIND_WIFI_SCAN:
+                return DataDumpContract.WifiScanTable.READ_COLUMNS;
+            default:
+                return DataDumpContract.LocationTable.INSERT_COLUMNS;
+        }
+    }
+
+    /**
+     * @param table a table's name
+     * @param base  an unpartitioned table's name
+     * @return      <code>true</code> if <code>table</code> is <code>base</code>
+     *              or one of its partitions
+     */
+    static boolean isPartitionOf(String table, String base) {
+        if(table.equals(base)) return true;
+        if(!table.startsWith(base + "_p") || table.length() == base.length() + 2) return false;
+
+        for(int i = base.length() + 2; i < table.length(); i++)
+            if(!Character.isDigit(table.charAt(i))) return false;
+        return true;
+    }
+
+    /**
+     * @param time a time, in epoch milliseconds
+     * @return     the start of the next week after it
+     */
+    static long nextWeek(long time) { return weekOf(time) + WEEK; }
+
+    /** @return the start of the week a time falls in */
+    private static long weekOf(long time) {
+        long offset = (time - MONDAY) % WEEK;
+
+        return time - (offset < 0 ? offset + WEEK : offset);
+    }
+
+    private Partition create(SQLiteDatabase db, String kind, long time) {
+        long start = weekOf(time);
+        long end   = start + WEEK;
+
+        Cursor c = db.rawQuery(SQL_PREVIOUS_END, new String[] { kind, Long.toString(time) });
+        try {
+            if(c.moveToFirst() && !c.isNull(0)) start = Math.max(start, c.getLong(0));
+        } finally { c.close(); }
+        c = db.rawQuery(SQL_NEXT_START, new String[] { kind, Long.toString(time) });
+        try {
+            if(c.moveToFirst() && !c.isNull(0)) end = Math.min(end, c.getLong(0));
+        } finally { c.close(); }
+
+        long   id;
+        String suffix;
+
+        db.beginTransactionNonExclusive();      // Nested in the writer's, if it has one.
+        try {
+            SQLiteStatement register = mDbManager.getStatement(SQL_REGISTER);
+            register.bindString(1, kind);
+            register.bindLong(2, start);
+            register.bindLong(3, end);
+            id = register.executeInsert();
+
+            suffix = "_p" + id;
+            SQLiteStatement setSuffix = mDbManager.getStatement(SQL_SET_SUFFIX);
+            setSuffix.bindString(1, suffix);
+            setSuffix.bindLong(2, id);
+            setSuffix.executeUpdateDelete();
+
+            for(String sql:DataDumpDbHelper.createPartitionSql(kind, suffix)) db.execSQL(sql);
+            db.execSQL(SQL_SEED, new Object[] { dataTable(kind) + suffix, lastId(db, kind, id) });
+            createSpanningView(db, kind);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        mCreated++;
+        if(LOCAL_LOGD) sLg.log("Created " + kind + suffix + " for " + Timestamps.format(start)
+                + " to " + Timestamps.format(end) + ".");
+        return new Partition(id, kind, start, end, suffix);
+    }
+
+    /**
+     * Finds the <code>_ID</code> a new partition's rows follow: the highest
+     * its kind has used, or its own ID shifted by <code>ID_BITS</code>, if higher.
+     *
+     * @param db          the database
+     * @param kind        one of the <code>PartitionsTable.KIND_</code> constants
+     * @param partitionId the new partition's ID
+     * @return            the ID to seed its table's <code>sqlite_sequence</code> with
+     */
+    private static long lastId(SQLiteDatabase db, String kind, long partitionId) {
+        String base = dataTable(kind);
+        long   last = partitionId << ID_BITS;
+
+        Cursor c = db.rawQuery(SQL_SEQUENCES, null);
+        try {
+            while(c.moveToNext())
+                if(isPartitionOf(c.getString(0), base)) last = Math.max(last, c.getLong(1));
+        } finally { c.close(); }
+        return last;
+    }
+
+    /**
+     * One partition of one kind of data.
+     */
+    static final class Partition {
+        final long   mId;
+        final String mKind;
+        final long   mStart;                // Inclusive.
+        final long   mEnd;                  // Exclusive.
+        final String mSuffix;
+
+        private final String mInsertSql;
+
+        private Partition(long id, String kind, long start, long end, String suffix) {
+            mId     = id;
+            mKind   = kind;
+            mStart  = start;
+            mEnd    = end;
+            mSuffix = suffix;
+
+            String[] columns;
+            switch(kind) {
+                case DataDumpContract.PartitionsTable.KIND_NETWORK:
+                    columns = DataDumpContract.NetworkTable.INSERT_COLUMNS;
+                    break;
+                case DataDumpContract.PartitionsTable.KIND_WIFI_SCAN:
+                    columns = DataDumpContract.WifiScanTable.INSERT_COLUMNS;
+                    break;
+                default:
+                    columns = DataDumpContract.LocationTable.INSERT_COLUMNS;
+            }
+            mInsertSql = DataDumpContract.insertSql(getDataTable(), columns);
+        }
+
+        /** Reads a row of the partitions table, in the order of <code>COLUMNS</code>. */
+        private Partition(Cursor c) {
+            this(c.getLong(0), c.getString(1), c.getLong(2), c.getLong(3),
+                 c.isNull(4) ? "" : c.getString(4));
+        }
+
+        boolean covers(long time) { return time >= mStart && time < mEnd; }
+
+        /** @return the table the partition's rows are stored in */
+        String getDataTable() { return dataTable(mKind) + mSuffix; }
+
+        /** @return the table or view the partition's rows are read from */
+        String getReadTable() { return mKind + mSuffix; }
+
+        /** @return the INSERT SQL for the data table, bound in <code>INSERT_COLUMNS</code> order */
+        String getInsertSql() { return mInsertSql; }
+    }
+}
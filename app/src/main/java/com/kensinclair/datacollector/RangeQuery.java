@@ -0,0 +1,554 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.provider.BaseColumns;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Provides methods for reading rows collected within a time window.
+ *
+ * <p>Results are forward-only and paged. Each page is a keyset query over
+ * the table's time index, continuing after the last row read, so only one
+ * page is ever in memory and deep pages cost no more than the first. The SQL
+ * is the same for every page of a query, so the connection's statement cache
+ * reuses the compiled query, and column positions are fixed, so nothing is
+ * looked up per page.</p>
+ *
+ * <pre>
+ * RangeQuery.LocationCursor fixes = new RangeQuery(context).location(from, to);
+ * try {
+ *     while(fixes.moveToNext()) use(fixes.getTime(), fixes.getLatitude(), fixes.getLongitude());
+ * } finally { fixes.close(); }
+ * </pre>
+ *
+ * @see com.kensinclair.datacollector.DbUpdater
+ *
+ * @author Ken Sinclair
+ */
+
+final class RangeQuery {
+    static final int DEFAULT_PAGE_SIZE = 500;
+
+    private DbManager mDbManager;
+    private int       mPageSize = DEFAULT_PAGE_SIZE;
+
+    /**
+     * Constructs a <code>RangeQuery</code> which reads
+     * through the process-wide <code>DbManager</code>.
+     *
+     * @param c the context of the caller
+     */
+    RangeQuery(Context c) { mDbManager = DbManager.getInstance(c); }
+
+    /**
+     * Sets how many rows each page holds.
+     *
+     * @param pageSize rows per page
+     * @return         this query
+     */
+    RangeQuery setPageSize(int pageSize) {
+        mPageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Reads the accounts table.
+     *
+     * @param from the start of the window, inclusive, in epoch milliseconds
+     * @param to   the end of the window, exclusive, in epoch milliseconds
+     * @return     the rows, oldest first
+     */
+    AccountsCursor accounts(long from, long to) {
+        return new AccountsCursor(mDbManager.getDatabase(), from, to, mPageSize);
+    }
+
+    /**
+     * Reads the location table, and the rows archived from it.
+     *
+     * @param from the start of the window, inclusive, in epoch milliseconds
+     * @param to   the end of the window, exclusive, in epoch milliseconds
+     * @return     the rows, oldest first
+     */
+    LocationCursor location(long from, long to) {
+        return new LocationCursor(mDbManager.getDatabase(), mDbManager.getColdArchive(),
+                                  from, to, mPageSize);
+    }
+
+    /**
+     * Reads the network table, and the rows archived from it.
+     *
+     * @param from the start of the window, inclusive, in epoch milliseconds
+     * @param to   the end of the window, exclusive, in epoch milliseconds
+     * @return     the rows, oldest first
+     */
+    NetworkCursor network(long from, long to) {
+        return new NetworkCursor(mDbManager.getDatabase(), mDbManager.getColdArchive(),
+                                 from, to, mPageSize);
+    }
+
+    /**
+     * Reads the network sessions which started in a window. A session still
+     * open has no end.
+     *
+     * @param from the start of the window, inclusive, in epoch milliseconds
+     * @param to   the end of the window, exclusive, in epoch milliseconds
+     * @return     the sessions, oldest first
+     */
+    NetworkSessionCursor networkSession(long from, long to) {
+        return new NetworkSessionCursor(mDbManager.getDatabase(), from, to, mPageSize);
+    }
+
+    /**
+     * Reads the WiFi connection table.
+     *
+     * @param from the start of the window, inclusive, in epoch milliseconds
+     * @param to   the end of the window, exclusive, in epoch milliseconds
+     * @return     the rows, oldest first
+     */
+    WifiConnectionCursor wifiConnection(long from, long to) {
+        return new WifiConnectionCursor(mDbManager.getDatabase(), from, to, mPageSize);
+    }
+
+    /**
+     * Reads the WiFi scan results table, and the rows archived from it.
+     *
+     * @param from the start of the window, inclusive, in epoch milliseconds
+     * @param to   the end of the window, exclusive, in epoch milliseconds
+     * @return     the rows, oldest first
+     */
+    WifiScanCursor wifiScan(long from, long to) {
+        return new WifiScanCursor(mDbManager.getDatabase(), mDbManager.getColdArchive(),
+                                  from, to, mPageSize);
+    }
+
+    /**
+     * Reads the hourly rollups: one row per hour, for the hours which
+     * start in the window and in which anything was collected.
+     *
+     * @param from the start of the window, inclusive, in epoch milliseconds
+     * @param to   the end of the window, exclusive, in epoch milliseconds
+     * @return     the hours, oldest first
+     */
+    HourlyRollupCursor hourlyRollups(long from, long to) {
+        return new HourlyRollupCursor(mDbManager.getDatabase(), from, to, mPageSize);
+    }
+
+    /**
+     * Estimates the distinct BSSIDs scanned in the hours which start in a window,
+     * from the hourly rollups. A BSSID scanned in several hours is counted once.
+     *
+     * @param from the start of the window, inclusive, in epoch milliseconds
+     * @param to   the end of the window, exclusive, in epoch milliseconds
+     * @return     the estimate
+     */
+    long distinctBssids(long from, long to) {
+        return HourlyRollups.distinctBssids(mDbManager.getDatabase(), from, to);
+    }
+
+    /**
+     * Forward-only cursor over one table's rows in a time window, ordered
+     * by time and then <code>_ID</code>. Column 0 is <code>_ID</code> and
+     * column 1 is the time; subclasses name the rest.
+     *
+     * <p>A table split into time partitions is read one partition after another,
+     * oldest first. Partitions don't overlap, so the order is kept. Rows moved to
+     * the <code>ColdArchive</code> are read first, a block at a time; a row which
+     * arrived late, and is still in its partition, is read after them. A partition
+     * which retention drops while it is being read ends where it was dropped.</p>
+     */
+    abstract static class TimeRangeCursor implements Closeable {
+        static final int COLUMN_ID   = 0;
+        static final int COLUMN_TIME = 1;
+
+        private final SQLiteDatabase          mDb;
+        private final ColdArchive             mArchive;
+        private final List<ColdArchive.Block> mBlocks;
+        private final String[]                mSql;         // One per table.
+        private final long                    mFrom;
+        private final long                    mTo;
+        private final int                     mPageSize;
+
+        private int     mBlock;
+        private boolean mArchived;                          // Reading a block.
+        private int     mTable;
+        private Cursor  mPage;
+        private boolean mLastPage;
+        private long    mLastId   = -1;
+        private long    mLastTime;
+        private int     mRowsRead;
+
+        /**
+         * @param db        the database
+         * @param table     the table
+         * @param columns   the columns after <code>_ID</code>. The first must be the time
+         * @param timeCol   the table's time column
+         * @param from      the start of the window, inclusive
+         * @param to        the end of the window, exclusive
+         * @param pageSize  rows per page
+         */
+        TimeRangeCursor(SQLiteDatabase db, String table, String[] columns, String timeCol,
+                        long from, long to, int pageSize) {
+            this(db, table, columns, timeCol, null, from, to, pageSize);
+        }
+
+        /**
+         * @param db        the database
+         * @param table     the table
+         * @param columns   the columns after <code>_ID</code>. The first must be the time
+         * @param timeCol   the table's time column
+         * @param filter    a further condition each row must meet. May be <code>null</code>
+         * @param from      the start of the window, inclusive
+         * @param to        the end of the window, exclusive
+         * @param pageSize  rows per page
+         */
+        TimeRangeCursor(SQLiteDatabase db, String table, String[] columns, String timeCol,
+                        String filter, long from, long to, int pageSize) {
+            this(db, null, Collections.<ColdArchive.Block>emptyList(), new String[] { table },
+                 columns, timeCol, filter, from, to, pageSize);
+        }
+
+        /**
+         * @param db        the database
+         * @param archive   the archive holding the kind's older rows
+         * @param kind      one of the <code>PartitionsTable.KIND_</code> constants
+         * @param timeCol   the partitions' time column
+         * @param from      the start of the window, inclusive
+         * @param to        the end of the window, exclusive
+         * @param pageSize  rows per page
+         */
+        TimeRangeCursor(SQLiteDatabase db, ColdArchive archive, String kind, String timeCol,
+                        long from, long to, int pageSize) {
+            this(db, archive, ColdArchive.list(db, kind, from, to),
+                 PartitionManager.readTables(db, kind, from, to),
+                 PartitionManager.readColumns(kind), timeCol, null, from, to, pageSize);
+        }
+
+        private TimeRangeCursor(SQLiteDatabase db, ColdArchive archive,
+                                List<ColdArchive.Block> blocks, String[] tables,
+                                String[] columns, String timeCol, String filter,
+                                long from, long to, int pageSize) {
+            mDb      = db;
+            mArchive = archive;
+            mBlocks  = blocks;
+            mSql     = new String[tables.length];
+            for(int i = 0; i < tables.length; i++) {
+                StringBuilder sql = new StringBuilder("SELECT ").append(BaseColumns._ID);
+
+                for(String column:columns) sql.append(',').append(column);
+
+                sql.append(" FROM ").append(tables[i])
+                   .append(" WHERE ").append(timeCol).append(" >= ? AND ").append(timeCol)
+                   .append(" < ? AND (").append(timeCol).append(" > ? OR (").append(timeCol)
+                   .append(" = ? AND ").append(BaseColumns._ID).append(" > ?))");
+                if(filter != null) sql.append(" AND (").append(filter).append(')');
+                sql.append(" ORDER BY ").append(timeCol).append(',').append(BaseColumns._ID)
+                   .append(" LIMIT ").append(pageSize);
+                mSql[i] = sql.toString();
+            }
+
+            mFrom     = from;
+            mTo       = to;
+            mPageSize = pageSize;
+            mLastTime = from;
+        }
+
+        /**
+         * Moves to the next row, fetching the next page when needed.
+         *
+         * @return <code>true</code> if there is a row;
+         *         <code>false</code> once the window is exhausted
+         */
+        boolean moveToNext() {
+            while(true) {
+                if(mPage != null) {
+                    if(mPage.moveToNext()) {
+                        mLastId   = mPage.getLong(COLUMN_ID);
+                        mLastTime = mPage.getLong(COLUMN_TIME);
+                        mRowsRead++;
+                        return true;
+                    }
+                    if(!mArchived) mLastPage = mPage.getCount() < mPageSize;
+                    mPage.close();
+                    mPage = null;
+                }
+                if(mBlock < mBlocks.size()) {
+                    mPage     = mArchive.read(mBlocks.get(mBlock++), mFrom, mTo);
+                    mArchived = true;
+                    continue;
+                }
+                if(mArchived) {                 // On to the partitions, from the start.
+                    mArchived = false;
+                    mLastId   = -1;
+                    mLastTime = mFrom;
+                }
+                if(mSql.length == 0) return false;     // No partition overlaps the window.
+
+                if(mLastPage) {
+                    if(mTable == mSql.length - 1) return false;
+
+                    mTable++;                   // On to the next partition, all of it later.
+                    mLastPage = false;
+                    mLastId   = -1;
+                    mLastTime = mFrom;
+                }
+
+                try {
+                    mPage = mDb.rawQuery(mSql[mTable], new String[] {
+                            Long.toString(mFrom),     Long.toString(mTo),
+                            Long.toString(mLastTime), Long.toString(mLastTime),
+                            Long.toString(mLastId) });
+                } catch (SQLiteException e) {
+                    if(!isDropped(e)) throw e;
+                    mLastPage = true;           // Dropped since the query began. Skip it.
+                }
+            }
+        }
+
+        /** @return the number of rows read so far */
+        int getRowsRead() { return mRowsRead; }
+
+        /** @return <code>true</code> if a query failed because its table is gone */
+        private static boolean isDropped(SQLiteException e) {
+            return e.getMessage() != null && e.getMessage().contains("no such table");
+        }
+
+        /** @return the row's <code>_ID</code> */
+        long getId() { return mLastId; }
+
+        /** @return the time of data collection, in epoch milliseconds */
+        long getTime() { return mLastTime; }
+
+        /** @return the time of data collection, formatted for display */
+        String getFormattedTime() { return Timestamps.format(mLastTime); }
+
+        /** Closes the current page. */
+        @Override public void close() {
+            if(mPage != null) mPage.close();
+            mPage     = null;
+            mLastPage = true;
+            mBlock    = mBlocks.size();
+            mArchived = false;
+            mTable    = Math.max(mSql.length - 1, 0);
+        }
+
+        final double  getDouble(int column) { return mPage.getDouble(column); }
+        final float   getFloat(int column)  { return mPage.getFloat(column); }
+        final int     getInt(int column)    { return mPage.getInt(column); }
+        final long    getLong(int column)   { return mPage.getLong(column); }
+        final String  getString(int column) { return mPage.getString(column); }
+        final boolean isNull(int column)    { return mPage.isNull(column); }
+
+        /** @return the address, or <code>MacAddresses.NONE</code> if it is NULL */
+        final long getMac(int column) {
+            return isNull(column) ? MacAddresses.NONE : getLong(column);
+        }
+    }
+
+    /**
+     * Rows of the accounts table.
+     */
+    static final class AccountsCursor extends TimeRangeCursor {
+        private static final int COLUMN_NAME  = 2;
+        private static final int COLUMN_TYPE  = 3;
+        private static final int COLUMN_EVENT = 4;
+
+        AccountsCursor(SQLiteDatabase db, long from, long to, int pageSize) {
+            super(db, DataDumpContract.AccountsTable.TABLE_NAME,
+                  DataDumpContract.AccountsTable.INSERT_COLUMNS,
+                  DataDumpContract.AccountsTable.COLUMN_NAME_TIME, from, to, pageSize);
+        }
+
+        String getName() { return getString(COLUMN_NAME); }
+        String getType() { return getString(COLUMN_TYPE); }
+
+        /** @return one of the <code>AccountsTable.EVENT_</code> constants */
+        int getEvent() { return getInt(COLUMN_EVENT); }
+    }
+
+    /**
+     * Rows of the location table.
+     */
+    static final class LocationCursor extends TimeRangeCursor {
+        private static final int COLUMN_LAT     = 2;
+        private static final int COLUMN_LNG     = 3;
+        private static final int COLUMN_BEARING = 4;
+        private static final int COLUMN_SPEED   = 5;
+        private static final int COLUMN_ALT     = 6;
+        private static final int COLUMN_ACC     = 7;
+
+        LocationCursor(SQLiteDatabase db, ColdArchive archive, long from, long to, int pageSize) {
+            super(db, archive, DataDumpContract.PartitionsTable.KIND_LOCATION,
+                  DataDumpContract.LocationTable.COLUMN_NAME_TIME, from, to, pageSize);
+        }
+
+        double getLatitude()  { return getDouble(COLUMN_LAT); }
+        double getLongitude() { return getDouble(COLUMN_LNG); }
+        float  getBearing()   { return getFloat(COLUMN_BEARING); }
+        float  getSpeed()     { return getFloat(COLUMN_SPEED); }
+        double getAltitude()  { return getDouble(COLUMN_ALT); }
+        float  getAccuracy()  { return getFloat(COLUMN_ACC); }
+    }
+
+    /**
+     * Rows of the network table.
+     */
+    static final class NetworkCursor extends TimeRangeCursor {
+        private static final int COLUMN_TYPE    = 2;
+        private static final int COLUMN_SUBTYPE = 3;
+        private static final int COLUMN_STATE   = 4;
+        private static final int COLUMN_REASON  = 5;
+
+        NetworkCursor(SQLiteDatabase db, ColdArchive archive, long from, long to, int pageSize) {
+            super(db, archive, DataDumpContract.PartitionsTable.KIND_NETWORK,
+                  DataDumpContract.NetworkTable.COLUMN_NAME_TIME, from, to, pageSize);
+        }
+
+        String getType()    { return getString(COLUMN_TYPE); }
+        String getSubtype() { return getString(COLUMN_SUBTYPE); }
+        String getState()   { return getString(COLUMN_STATE); }
+        String getReason()  { return getString(COLUMN_REASON); }
+    }
+
+    /**
+     * Rows of the network session table: every session overlapping the window,
+     * including those which started before it or are still open. The time is
+     * the session's start, and it and the end are clipped to the window.
+     */
+    static final class NetworkSessionCursor extends TimeRangeCursor {
+        private static final int COLUMN_END   = 2;
+        private static final int COLUMN_TYPE  = 3;
+        private static final int COLUMN_BSSID = 4;
+
+        private final long mWindowFrom;
+        private final long mWindowTo;
+
+        NetworkSessionCursor(SQLiteDatabase db, long from, long to, int pageSize) {
+            super(db, DataDumpContract.NetworkSessionTable.TABLE_NAME,
+                  DataDumpContract.NetworkSessionTable.READ_COLUMNS,
+                  DataDumpContract.NetworkSessionTable.COLUMN_NAME_START,
+                  DataDumpContract.NetworkSessionTable.COLUMN_NAME_END + " IS NULL OR "
+                          + DataDumpContract.NetworkSessionTable.COLUMN_NAME_END + " > " + from,
+                  Long.MIN_VALUE, to, pageSize);        // Sessions started before the window
+            mWindowFrom = from;                         //  are read, if they end in it.
+            mWindowTo   = to;
+        }
+
+        /** @return the start of the session, or of the window if it started earlier */
+        @Override long getTime() { return Math.max(super.getTime(), mWindowFrom); }
+
+        @Override String getFormattedTime() { return Timestamps.format(getTime()); }
+
+        /** @return <code>true</code> if the session is still open, and so has no end */
+        boolean isOpen() { return isNull(COLUMN_END); }
+
+        /**
+         * @return the end of the session, or of the window if it ends later
+         *         or is still open, in epoch milliseconds
+         */
+        long getEnd() { return isOpen() ? mWindowTo : Math.min(getLong(COLUMN_END), mWindowTo); }
+
+        String getType()  { return getString(COLUMN_TYPE); }
+        long   getBssid() { return getMac(COLUMN_BSSID); }
+
+        String getFormattedBssid() { return MacAddresses.format(getBssid()); }
+    }
+
+    /**
+     * Rows of the WiFi connection table.
+     */
+    static final class WifiConnectionCursor extends TimeRangeCursor {
+        private static final int COLUMN_IP    = 2;
+        private static final int COLUMN_MAC   = 3;
+        private static final int COLUMN_BSSID = 4;
+        private static final int COLUMN_SSID  = 5;
+        private static final int COLUMN_HID   = 6;
+
+        WifiConnectionCursor(SQLiteDatabase db, long from, long to, int pageSize) {
+            super(db, DataDumpContract.WifiConnectionTable.TABLE_NAME,
+                  DataDumpContract.WifiConnectionTable.INSERT_COLUMNS,
+                  DataDumpContract.WifiConnectionTable.COLUMN_NAME_TIME, from, to, pageSize);
+        }
+
+        int     getIpAddress()  { return getInt(COLUMN_IP); }
+        long    getMacAddress() { return getMac(COLUMN_MAC); }
+        long    getBssid()      { return getMac(COLUMN_BSSID); }
+        String  getSsid()       { return getString(COLUMN_SSID); }
+        boolean isHidden()      { return getInt(COLUMN_HID) != 0; }
+
+        String getFormattedMacAddress() { return MacAddresses.format(getMacAddress()); }
+        String getFormattedBssid()      { return MacAddresses.format(getBssid()); }
+    }
+
+    /**
+     * Rows of the WiFi scan results table.
+     */
+    static final class WifiScanCursor extends TimeRangeCursor {
+        private static final int COLUMN_BSSID = 2;
+        private static final int COLUMN_SSID  = 3;
+        private static final int COLUMN_CAP   = 4;
+        private static final int COLUMN_EVENT = 5;
+
+        WifiScanCursor(SQLiteDatabase db, ColdArchive archive, long from, long to, int pageSize) {
+            super(db, archive, DataDumpContract.PartitionsTable.KIND_WIFI_SCAN,
+                  DataDumpContract.WifiScanTable.COLUMN_NAME_TIME, from, to, pageSize);
+        }
+
+        long   getBssid()        { return getMac(COLUMN_BSSID); }
+        String getSsid()         { return getString(COLUMN_SSID); }
+        String getCapabilities() { return getString(COLUMN_CAP); }
+
+        /** @return one of the <code>WifiScanTable.EVENT_</code> constants */
+        int getEvent() { return getInt(COLUMN_EVENT); }
+
+        String getFormattedBssid() { return MacAddresses.format(getBssid()); }
+    }
+
+    /**
+     * Rows of the hourly rollups table. The time is the start of the hour.
+     */
+    static final class HourlyRollupCursor extends TimeRangeCursor {
+        private static final int COLUMN_LOCATIONS = 2;
+        private static final int COLUMN_NETWORK   = 3;
+        private static final int COLUMN_WIFI_CON  = 4;
+        private static final int COLUMN_SCANS     = 5;
+        private static final int COLUMN_RESULTS   = 6;
+        private static final int COLUMN_BSSIDS    = 7;
+
+        HourlyRollupCursor(SQLiteDatabase db, long from, long to, int pageSize) {
+            super(db, DataDumpContract.HourlyRollupsTable.TABLE_NAME,
+                  DataDumpContract.HourlyRollupsTable.READ_COLUMNS,
+                  DataDumpContract.HourlyRollupsTable.COLUMN_NAME_HOUR, from, to, pageSize);
+        }
+
+        long getLocationCount()       { return getLong(COLUMN_LOCATIONS); }
+        long getNetworkCount()        { return getLong(COLUMN_NETWORK); }
+        long getWifiConnectionCount() { return getLong(COLUMN_WIFI_CON); }
+        long getScanCount()           { return getLong(COLUMN_SCANS); }
+        long getScanResultCount()     { return getLong(COLUMN_RESULTS); }
+
+        /** @return the estimated distinct BSSIDs scanned in the hour */
+        long getDistinctBssids() { return getLong(COLUMN_BSSIDS); }
+    }
+}
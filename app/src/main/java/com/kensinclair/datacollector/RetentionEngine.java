@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import com.kensinclair.logger.MyLog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Enforces the retention policy on a background thread, a minute after the
+ * database opens and every six hours after that.
+ *
+ * <p>First, the partitioned tables' rows past the archive age are moved to the
+ * <code>ColdArchive</code>, once the first run has swept it of any block a crash
+ * left unindexed, and archived blocks past their table's age limit are
+ * dropped. Then each table is cut back to the later of its age and row count
+ * limits, and, while the pages in use exceed the byte budget, every table loses
+ * another day of its oldest rows. Rows are deleted <code>BATCH</code> at a time, and the
+ * pages they leave free are given back <code>VACUUM_STEP</code> at a time with
+ * an incremental vacuum, each step holding the write lock only briefly so
+ * writers are never held up for long. Whole expired partitions are dropped.
+ * WiFi scans are only cut at a keyframe, so the scans kept can be rebuilt.</p>
+ *
+ * <p>Incremental vacuum needs <code>auto_vacuum</code> set before any table is
+ * created. A database created before it was, is converted by a one-off
+ * <code>VACUUM</code>, which rewrites the whole file. It runs as the database
+ * opens, before anyone can write, and only for a file of at most
+ * <code>CONVERT_MAX_BYTES</code> with room for a second copy, so the open is
+ * never held up for long. A database left unconverted reuses its freed pages,
+ * but its file doesn't shrink.</p>
+ *
+ * @see com.kensinclair.datacollector.RetentionPolicy
+ *
+ * @author Ken Sinclair
+ */
+
+final class RetentionEngine {
+    private static final boolean LOCAL_LOGD = true;
+    private static final String  TAG        = RetentionEngine.class.getSimpleName();
+
+    private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
+
+    private static final long FIRST_RUN     = 60 * 1000;                // After the open.
+    private static final long RUN_INTERVAL  = 6 * 60 * 60 * 1000;
+    private static final int  BATCH         = 500;                      // Rows per delete.
+    private static final int  VACUUM_STEP   = 128;                      // Pages per step.
+    private static final int  BUDGET_PASSES = 366;                      // Days trimmed per run.
+
+    private static final long CONVERT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final DbManager mDbManager;
+    private final Handler   mHandler;
+    private final Runnable  mRun = new Runnable() {
+        @Override public void run() { runAndReschedule(); }
+    };
+
+    private volatile RetentionPolicy mPolicy = RetentionPolicy.DEFAULT;
+
+    private boolean mScheduled;             // Guarded by this.
+
+    private volatile long mRuns;            // Written by the engine's thread only.
+    private volatile long mRowsDeleted;
+    private volatile long mBytesReclaimed;
+    private volatile long mLastDuration = -1;
+
+    private boolean mSwept;                 // The archive, once per process.
+
+    /**
+     * Constructs the engine and starts its thread.
+     *
+     * @param dbManager the manager owning the database and its write lock
+     */
+    RetentionEngine(DbManager dbManager) {
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+
+        mDbManager = dbManager;
+        mHandler   = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Schedules the first run, unless it already is.
+     */
+    synchronized void schedule() {
+        if(mScheduled) return;
+
+        mScheduled = true;
+        mHandler.postDelayed(mRun, FIRST_RUN);
+    }
+
+    /**
+     * Cancels the runs not yet started, until <code>schedule</code> is called
+     * again. Called when the database closes. A run already started stops at
+     * its next step.
+     */
+    synchronized void cancel() {
+        mScheduled = false;
+        mHandler.removeCallbacks(mRun);
+    }
+
+    /**
+     * Replaces the policy, from the next run on.
+     *
+     * @param policy the policy
+     */
+    void setPolicy(RetentionPolicy policy) { mPolicy = policy; }
+
+    /** @return the policy in force */
+    RetentionPolicy getPolicy() { return mPolicy; }
+
+    /** @return the number of runs finished */
+    long getRunCount() { return mRuns; }
+
+    /** @return the rows deleted by every run so far */
+    long getRowsDeleted() { return mRowsDeleted; }
+
+    /** @return the bytes the database file has shrunk by, over every run so far */
+    long getBytesReclaimed() { return mBytesReclaimed; }
+
+    /** @return how long the last run took, in milliseconds, or -1 if none finished */
+    long getLastDuration() { return mLastDuration; }
+
+    private void runAndReschedule() {
+        try {
+            run();
+        } catch (RuntimeException e) {      // An SQLException, or the database was closed.
+            Log.e(TAG, "Error enforcing retention: " + e.getMessage());
+        }
+        synchronized (this) {
+            if(mScheduled) mHandler.postDelayed(mRun, RUN_INTERVAL);
+        }
+    }
+
+    /**
+     * Enforces the policy once. Runs on the engine's thread.
+     */
+    private void run() {
+        long            start  = SystemClock.elapsedRealtime();
+        long            now    = System.currentTimeMillis();
+        RetentionPolicy policy = mPolicy;
+        SQLiteDatabase  db     = mDbManager.getDatabase();
+
+        boolean incremental = queryLong(db, "PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL;
+        long    pageSize    = db.getPageSize();
+        long    pagesBefore = queryLong(db, "PRAGMA page_count");
+        long    rows        = 0;
+        long    archived    = 0;
+
+        ColdArchive archive = mDbManager.getColdArchive();
+        if(!mSwept) {                           // Before any block is appended.
+            archive.sweep();
+            mSwept = true;
+        }
+        for(RetentionPolicy.Rule rule:policy.mRules) {
+            if(rule.mKind == null) continue;
+
+            if(policy.mArchiveAge > 0)
+                archived += archive.archive(rule.mKind, now - policy.mArchiveAge);
+            if(rule.mMaxAge > 0) archive.dropBefore(rule.mKind, now - rule.mMaxAge);
+        }
+
+        for(RetentionPolicy.Rule rule:policy.mRules) {
+            long cutoff = rule.mMaxAge > 0 ? now - rule.mMaxAge : Long.MIN_VALUE;
+
+            if(rule.mMaxRows > 0) cutoff = Math.max(cutoff, rowCutoff(db, rule));
+            rows += deleteBefore(db, rule, cutoff);
+        }
+
+        for(int pass = 0; pass < BUDGET_PASSES && policy.mMaxBytes > 0; pass++) {
+            long used = (queryLong(db, "PRAGMA page_count")
+                    - queryLong(db, "PRAGMA freelist_count")) * pageSize;
+            if(used <= policy.mMaxBytes) break;
+
+            long oldest = Long.MAX_VALUE;
+            for(RetentionPolicy.Rule rule:policy.mRules)
+                oldest = Math.min(oldest, oldest(db, rule));
+            if(oldest == Long.MAX_VALUE) break;
+
+            long deleted = 0;
+            for(RetentionPolicy.Rule rule:policy.mRules)
+                deleted += deleteBefore(db, rule, oldest + RetentionPolicy.DAY);
+            rows += deleted;
+            if(deleted == 0) break;             // What is left can't be cut any further.
+        }
+
+        if(incremental) vacuum(db);
+
+        long bytes    = (pagesBefore - queryLong(db, "PRAGMA page_count")) * pageSize;
+        long duration = SystemClock.elapsedRealtime() - start;
+
+        mRuns++;
+        mRowsDeleted    += rows;
+        mBytesReclaimed += bytes;
+        mLastDuration    = duration;
+
+        if(LOCAL_LOGD) sLg.log("Archived " + archived + " rows, deleted " + rows
+                + " rows and reclaimed " + bytes / 1024 + " KiB in " + duration + " ms.");
+    }
+
+    /**
+     * Converts the database to incremental vacuum, if it isn't already, it is
+     * small enough and there is room to. Called by <code>DbManager</code> on
+     * its thread once the database is open, before the open completes, since
+     * the <code>VACUUM</code> holds the only connection until it is done.
+     *
+     * @param db the database just opened
+     * @return   <code>true</code> if the database vacuums incrementally
+     */
+    static boolean convert(SQLiteDatabase db) {
+        if(queryLong(db, "PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL) return true;
+
+        File file = new File(db.getPath());
+        long size = file.length();
+        long room = file.getParentFile().getUsableSpace();
+        if(size > CONVERT_MAX_BYTES
+                || room < 2 * size) {       // The copy, and the WAL it goes through.
+            if(LOCAL_LOGD) sLg.log("Not converting to incremental vacuum: " + room / 1024
+                    + " KiB free for a " + size / 1024 + " KiB database.");
+            return false;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        try {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        } catch (SQLException e) {
+            Log.e(TAG, "Error converting to incremental vacuum: " + e.getMessage());
+            return false;
+        }
+        if(LOCAL_LOGD) sLg.log("Converted to incremental vacuum in "
+                + (SystemClock.elapsedRealtime() - start) + " ms.");
+        return queryLong(db, "PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL;
+    }
+
+    /**
+     * Finds the time before which rows must go for a table to be within its
+     * row count limit.
+     *
+     * @param db   the database
+     * @param rule the table's rule
+     * @return     the time, or <code>Long.MIN_VALUE</code> if it is within its limit
+     */
+    private static long rowCutoff(SQLiteDatabase db, RetentionPolicy.Rule rule) {
+        String[] tables = tables(db, rule);
+        long[]   counts = new long[tables.length];
+        long     excess = -rule.mMaxRows;
+
+        for(int i = 0; i < tables.length; i++) {
+            counts[i] = queryLong(db, "SELECT COUNT(*) FROM " + tables[i]);
+            excess   += counts[i];
+        }
+        for(int i = 0; i < tables.length && excess > 0; i++) {    // Oldest table first.
+            if(excess >= counts[i]) {
+                excess -= counts[i];
+                continue;
+            }
+            return queryLong(db, "SELECT " + rule.mTimeColumn + " FROM " + tables[i]
+                    + " WHERE " + rule.mTimeColumn + " IS NOT NULL ORDER BY "
+                    + rule.mTimeColumn + " LIMIT 1 OFFSET " + excess);
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * @param db   the database
+     * @param rule a table's rule
+     * @return     the time of the table's oldest row, or <code>Long.MAX_VALUE</code>
+     *             if it has none
+     */
+    private static long oldest(SQLiteDatabase db, RetentionPolicy.Rule rule) {
+        for(String table:tables(db, rule)) {
+            Cursor c = db.rawQuery("SELECT MIN(" + rule.mTimeColumn + ") FROM " + table, null);
+            try {
+                if(c.moveToFirst() && !c.isNull(0)) return c.getLong(0);
+            } finally { c.close(); }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Deletes a table's rows older than a time, dropping its partitions
+     * which hold nothing newer.
+     *
+     * @param db     the database
+     * @param rule   the table's rule
+     * @param cutoff the time, in epoch milliseconds
+     * @return       the number of rows deleted
+     */
+    private long deleteBefore(SQLiteDatabase db, RetentionPolicy.Rule rule, long cutoff) {
+        if(cutoff == Long.MIN_VALUE) return 0;
+
+        if(DataDumpContract.PartitionsTable.KIND_WIFI_SCAN.equals(rule.mKind)) {
+            long keyframe = ScanSnapshotReader.lastKeyframe(db, cutoff);
+            if(keyframe != Long.MIN_VALUE) cutoff = keyframe;   // Keep the keyframe.
+        }
+        if(rule.mKind == null) return deleteRows(db, rule.mTable, rule.mTimeColumn, cutoff);
+
+        long rows = 0;
+        for(PartitionManager.Partition partition:
+                PartitionManager.list(db, rule.mKind, Long.MIN_VALUE, cutoff)) {
+            String table = partition.getDataTable();
+
+            if(partition.mEnd <= cutoff && !partition.mSuffix.isEmpty())    // To be dropped.
+                rows += queryLong(db, "SELECT COUNT(*) FROM " + table);
+            else
+                rows += deleteRows(db, table, rule.mTimeColumn, cutoff);
+        }
+        synchronized (mDbManager.getWriteLock()) {
+            mDbManager.getPartitionManager().dropBefore(rule.mKind, cutoff);
+        }
+        return rows;
+    }
+
+    /**
+     * Deletes a table's rows older than a time, <code>BATCH</code> at a time,
+     * letting writers in between batches.
+     *
+     * @param db     the database
+     * @param table  the table
+     * @param column its time column
+     * @param cutoff the time, in epoch milliseconds
+     * @return       the number of rows deleted
+     */
+    private long deleteRows(SQLiteDatabase db, String table, String column, long cutoff) {
+        String sql = "DELETE FROM " + table + " WHERE " + BaseColumns._ID + " IN (SELECT "
+                + BaseColumns._ID + " FROM " + table + " WHERE " + column + " < ? LIMIT "
+                + BATCH + ")";
+        long   rows = 0;
+
+        while(true) {
+            int deleted;
+
+            synchronized (mDbManager.getWriteLock()) {
+                SQLiteStatement statement = mDbManager.getStatement(sql);
+
+                statement.bindLong(1, cutoff);
+                deleted = statement.executeUpdateDelete();
+                if(deleted > 0) mDbManager.getCheckpointScheduler().onCommit(db);
+            }
+            rows += deleted;
+            if(deleted < BATCH) return rows;
+        }
+    }
+
+    /**
+     * Gives the database's free pages back, <code>VACUUM_STEP</code> at a time.
+     *
+     * @param db the database
+     */
+    private void vacuum(SQLiteDatabase db) {
+        long free = queryLong(db, "PRAGMA freelist_count");
+
+        while(free > 0) {
+            synchronized (mDbManager.getWriteLock()) {
+                Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_STEP + ")", null);
+                try {
+                    c.getCount();               // Steps it through every page.
+                } finally { c.close(); }
+                mDbManager.getCheckpointScheduler().onCommit(db);
+            }
+
+            long left = queryLong(db, "PRAGMA freelist_count");
+            if(left >= free) break;             // No progress. Try again next run.
+            free = left;
+        }
+    }
+
+    /**
+     * Lists the tables holding a rule's rows.
+     *
+     * @param db   the database
+     * @param rule the table's rule
+     * @return     the tables, oldest first
+     */
+    private static String[] tables(SQLiteDatabase db, RetentionPolicy.Rule rule) {
+        if(rule.mKind == null) return new String[] { rule.mTable };
+
+        List<String> tables = new ArrayList<>();
+        for(PartitionManager.Partition partition:
+                PartitionManager.list(db, rule.mKind, Long.MIN_VALUE, Long.MAX_VALUE))
+            tables.add(partition.getDataTable());
+        return tables.toArray(new String[tables.size()]);
+    }
+
+    /** @return the first column of the first row, or <code>Long.MIN_VALUE</code> if none */
+    private static long queryLong(SQLiteDatabase db, String sql) {
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : Long.MIN_VALUE;
+        } finally { c.close(); }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+/**
+ * How long collected rows are kept: a maximum age and row count for each
+ * collected table, and a byte budget for the whole database, enforced by
+ * <code>RetentionEngine</code>, and the age at which the partitioned tables'
+ * rows are moved to the <code>ColdArchive</code>. A limit of 0 means none.
+ *
+ * <p>Archived rows are kept to their table's maximum age. Row counts and the
+ * byte budget count rows still in the database only.</p>
+ *
+ * <p>The accounts table has no rule. It is small, and each row is a change to
+ * the account set which needs every one before it. The strings, partitions,
+ * migrations and export marks tables are bookkeeping, and are kept whole. So
+ * are the hourly rollups, which outlive the rows they count.</p>
+ *
+ * @see com.kensinclair.datacollector.RetentionEngine
+ *
+ * @author Ken Sinclair
+ */
+
+final class RetentionPolicy {
+    static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private static final Rule[] DEFAULT_RULES = {
+            new Rule(DataDumpContract.LocationTable.TABLE_NAME,
+                     DataDumpContract.PartitionsTable.KIND_LOCATION,
+                     DataDumpContract.LocationTable.COLUMN_NAME_TIME,       180 * DAY, 2000000),
+            new Rule(DataDumpContract.NetworkTable.DATA_TABLE_NAME,
+                     DataDumpContract.PartitionsTable.KIND_NETWORK,
+                     DataDumpContract.NetworkTable.COLUMN_NAME_TIME,        180 * DAY,  500000),
+            new Rule(DataDumpContract.NetworkSessionTable.DATA_TABLE_NAME, null,
+                     DataDumpContract.NetworkSessionTable.COLUMN_NAME_END,  365 * DAY,       0),
+            new Rule(DataDumpContract.WifiConnectionTable.TABLE_NAME, null,
+                     DataDumpContract.WifiConnectionTable.COLUMN_NAME_TIME, 365 * DAY,       0),
+            new Rule(DataDumpContract.WifiScanTable.DATA_TABLE_NAME,
+                     DataDumpContract.PartitionsTable.KIND_WIFI_SCAN,
+                     DataDumpContract.WifiScanTable.COLUMN_NAME_TIME,        90 * DAY, 3000000)
+    };
+
+    static final RetentionPolicy DEFAULT =
+            new RetentionPolicy(256 * 1024 * 1024, 3 * DAY, DEFAULT_RULES);
+
+    final long   mMaxBytes;             // Pages in use, free pages not counted.
+    final long   mArchiveAge;           // Milliseconds.
+    final Rule[] mRules;
+
+    /**
+     * @param maxBytes   the most the database's pages in use may hold, or 0
+     * @param archiveAge the age at which partitioned rows are archived, in
+     *                   milliseconds, or 0 to keep them in the database
+     * @param rules      the limits of each table
+     */
+    RetentionPolicy(long maxBytes, long archiveAge, Rule[] rules) {
+        mMaxBytes   = maxBytes;
+        mArchiveAge = archiveAge;
+        mRules      = rules;
+    }
+
+    /**
+     * The limits of one table.
+     */
+    static final class Rule {
+        final String mTable;            // The unpartitioned table.
+        final String mKind;             // Its PartitionsTable.KIND_, or null if not partitioned.
+        final String mTimeColumn;       // Rows where it is NULL are never deleted.
+        final long   mMaxAge;           // Milliseconds.
+        final long   mMaxRows;
+
+        /**
+         * @param table      the table storing the rows
+         * @param kind       one of the <code>PartitionsTable.KIND_</code> constants
+         *                   if the table is partitioned, or <code>null</code>
+         * @param timeColumn the column the rows' age is taken from
+         * @param maxAge     the oldest a row may be, in milliseconds, or 0
+         * @param maxRows    the most rows the table may hold, or 0
+         */
+        Rule(String table, String kind, String timeColumn, long maxAge, long maxRows) {
+            mTable      = table;
+            mKind       = kind;
+            mTimeColumn = timeColumn;
+            mMaxAge     = maxAge;
+            mMaxRows    = maxRows;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.location.LocationRequest;
+import com.kensinclair.logger.MyLog;
+
+/**
+ * Picks the location update interval and priority from how the device
+ * has been moving.
+ *
+ * <p>Each fix is compared with the one before it. The speed is the larger of
+ * the speed the fix reports and the distance between the two fixes over the
+ * time between them. A distance within the fixes' accuracy counts as none, and
+ * one beyond it counts as moving however long it took.
+ * A faster speed moves to a faster mode at once. A slower one only moves to a
+ * slower mode after <code>SLOWER_AFTER</code> fixes in a row agree, so one
+ * still fix at a red light doesn't back off.</p>
+ *
+ * <p>The time spent and the fixes stored in each mode, and the number of mode
+ * changes, are kept in shared preferences across restarts. Not thread-safe.</p>
+ *
+ * @author Ken Sinclair
+ */
+
+final class SamplingScheduler {
+    private static final boolean LOCAL_LOGD = true;
+    private static final String  TAG        = SamplingScheduler.class.getSimpleName();
+
+    private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
+
+    static final int MODE_STATIONARY = 0;
+    static final int MODE_MOVING     = 1;
+    static final int MODE_FAST       = 2;
+
+    private static final String[] MODE_NAMES = { "stationary", "moving", "fast" };
+    private static final long[]   INTERVALS  = {
+            600000,                                             // 10 minutes.
+            180000,                                             //  3 minutes.
+             30000                                              // 30 seconds.
+    };
+    private static final int[]    PRIORITIES = {
+            LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY,   // WiFi and cell. No GPS.
+            LocationRequest.PRIORITY_HIGH_ACCURACY,
+            LocationRequest.PRIORITY_HIGH_ACCURACY
+    };
+
+    private static final float MOVING_SPEED = 0.5f;             // m/s. A slow walk.
+    private static final float FAST_SPEED   = 7;                // m/s. About 25 km/h.
+    private static final int   SLOWER_AFTER = 2;                // Fixes in a row.
+
+    private static final String PREFS       = "sampling_scheduler";
+    private static final String KEY_CHANGES = "changes";
+    private static final String KEY_TIME    = "time_";          // Followed by the mode name.
+    private static final String KEY_FIXES   = "fixes_";
+
+    private final SharedPreferences mPrefs;
+    private final long[]            mTime  = new long[MODE_NAMES.length];   // Milliseconds.
+    private final long[]            mFixes = new long[MODE_NAMES.length];
+    private long                    mChanges;
+
+    private int      mMode = MODE_MOVING;                       // The old fixed settings.
+    private long     mModeSince;                                // Elapsed realtime.
+    private int      mSlower;                                   // Fixes in a row wanting it.
+    private Location mLast;
+
+    /**
+     * Loads the recorded time in each mode and starts in <code>MODE_MOVING</code>.
+     *
+     * @param c the context of the caller
+     */
+    SamplingScheduler(Context c) {
+        mPrefs = c.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+
+        for(int i = 0; i < MODE_NAMES.length; i++) {
+            mTime[i]  = mPrefs.getLong(KEY_TIME + MODE_NAMES[i], 0);
+            mFixes[i] = mPrefs.getLong(KEY_FIXES + MODE_NAMES[i], 0);
+        }
+        mChanges   = mPrefs.getLong(KEY_CHANGES, 0);
+        mModeSince = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Takes a new fix into account.
+     *
+     * @param location the fix
+     * @return         <code>true</code> if the mode changed, so updates must be
+     *                 requested again
+     */
+    boolean onLocation(Location location) {
+        Location last = mLast;
+        mLast = location;
+        if(last == null) return false;
+
+        int wanted = modeFor(speed(last, location));
+        if(wanted == mMode) {
+            mSlower = 0;
+            return false;
+        }
+        if(wanted < mMode && ++mSlower < SLOWER_AFTER) return false;
+
+        setMode(wanted);
+        return true;
+    }
+
+    /**
+     * Counts fixes stored while in the current mode.
+     *
+     * @param fixes the number of fixes
+     */
+    void onStored(int fixes) { mFixes[mMode] += fixes; }
+
+    /** @return the current <code>MODE_</code> constant */
+    int getMode() { return mMode; }
+
+    /** @return the update interval for the current mode, in milliseconds */
+    long getInterval() { return INTERVALS[mMode]; }
+
+    /** @return the <code>LocationRequest</code> priority for the current mode */
+    int getPriority() { return PRIORITIES[mMode]; }
+
+    /** Records the time spent in the current mode so far. */
+    void save() {
+        long now = SystemClock.elapsedRealtime();
+
+        mTime[mMode] += now - mModeSince;
+        mModeSince    = now;
+
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for(int i = 0; i < MODE_NAMES.length; i++) {
+            editor.putLong(KEY_TIME + MODE_NAMES[i], mTime[i]);
+            editor.putLong(KEY_FIXES + MODE_NAMES[i], mFixes[i]);
+        }
+        editor.putLong(KEY_CHANGES, mChanges).apply();
+    }
+
+    /** @return the time and fixes in each mode so far, for the log */
+    String summarize() {
+        StringBuilder summary = new StringBuilder().append(mChanges).append(" mode changes");
+
+        for(int i = 0; i < MODE_NAMES.length; i++) {
+            long time = mTime[i] + (i == mMode ? SystemClock.elapsedRealtime() - mModeSince : 0);
+
+            summary.append(", ").append(MODE_NAMES[i]).append(' ').append(time / 60000)
+                   .append(" min ").append(mFixes[i]).append(" fixes");
+        }
+        return summary.toString();
+    }
+
+    private void setMode(int mode) {
+        if(LOCAL_LOGD) sLg.log("Mode " + MODE_NAMES[mMode] + " -> " + MODE_NAMES[mode] + ".");
+
+        save();                                     // Closes out the old mode's time.
+        mMode   = mode;
+        mSlower = 0;
+        mChanges++;
+    }
+
+    private static int modeFor(float speed) {
+        if(speed >= FAST_SPEED)   return MODE_FAST;
+        if(speed >= MOVING_SPEED) return MODE_MOVING;
+        return MODE_STATIONARY;
+    }
+
+    /** @return the speed between two fixes, in m/s */
+    private static float speed(Location from, Location to) {
+        float reported = to.hasSpeed() ? to.getSpeed() : 0;
+        long  elapsed  = (to.getElapsedRealtimeNanos() - from.getElapsedRealtimeNanos()) / 1000000;
+        if(elapsed <= 0) return reported;
+
+        float distance = from.distanceTo(to);
+        float noise    = (from.hasAccuracy() ? from.getAccuracy() : 0)
+                       + (to.hasAccuracy()   ? to.getAccuracy()   : 0);
+
+        if(distance <= noise) return reported;
+        return Math.max(reported, Math.max(MOVING_SPEED, distance * 1000 / elapsed));
+    }
+}
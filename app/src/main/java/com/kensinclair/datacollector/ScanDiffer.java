@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns consecutive WiFi scans into the rows which describe how they differ.
+ *
+ * <p>The first scan, and one at least every <code>KEYFRAME_INTERVAL</code>,
+ * is written whole as a keyframe. Every other scan is written as the access points
+ * which appeared, or changed, and those which disappeared since the scan before.
+ * <code>ScanSnapshotReader</code> rebuilds the full scan for any time from the
+ * latest keyframe before it and the events after.</p>
+ *
+ * <p>The previous scan is kept in memory only, so it is lost with the process.
+ * The first scan after that, or after <code>reset</code>, is a keyframe. A keyframe
+ * of an empty scan writes one marker row with a NULL BSSID. Every method must be
+ * called with the <code>DbManager</code> write lock held.</p>
+ *
+ * @see com.kensinclair.datacollector.ScanSnapshotReader
+ *
+ * @author Ken Sinclair
+ */
+
+final class ScanDiffer {
+    static final long KEYFRAME_INTERVAL = 15 * 60 * 1000;   // 15 minutes.
+
+    private Map<Long, AccessPoint> mPrevious = new HashMap<>();
+    private Map<Long, AccessPoint> mCurrent  = new HashMap<>();
+    private long                   mLastKeyframe = Long.MIN_VALUE;   // None yet.
+    private long                   mPartition    = -1;
+
+    private int      mSize;                     // The last diff, in parallel arrays.
+    private long[]   mBssids = new long[64];
+    private String[] mSsids  = new String[64];
+    private String[] mCaps   = new String[64];
+    private int[]    mEvents = new int[64];
+
+    private long mScans;
+    private long mKeyframes;
+    private long mResults;
+    private long mRows;
+
+    /**
+     * Diffs a scan against the previous one, which it then replaces.
+     * The rows are read with <code>getSize</code> and the getters.
+     *
+     * @param time   the time of the scan
+     * @param bssids each result's BSSID, from <code>MacAddresses.parse</code>
+     * @param ssids  each result's SSID
+     * @param caps   each result's capabilities
+     */
+    void diff(long time, long[] bssids, String[] ssids, String[] caps) {
+        boolean keyframe = mLastKeyframe == Long.MIN_VALUE             // Nothing to diff against,
+                || time - mLastKeyframe >= KEYFRAME_INTERVAL           //         or it's time,
+                || time < mLastKeyframe;                               //  or the clock went back.
+
+        mCurrent.clear();
+        for(int i = 0; i < bssids.length; i++)      // A malformed BSSID can't be followed.
+            if(bssids[i] != MacAddresses.NONE)
+                mCurrent.put(bssids[i], new AccessPoint(ssids[i], caps[i]));
+
+        mSize = 0;
+        if(keyframe) {
+            for(int i = 0; i < bssids.length; i++)
+                add(bssids[i], ssids[i], caps[i], DataDumpContract.WifiScanTable.EVENT_KEYFRAME);
+            if(mSize == 0)
+                add(MacAddresses.NONE, null, null, DataDumpContract.WifiScanTable.EVENT_KEYFRAME);
+
+            mLastKeyframe = time;
+            mKeyframes++;
+        } else {
+            for(Map.Entry<Long, AccessPoint> entry:mCurrent.entrySet()) {
+                AccessPoint previous = mPrevious.get(entry.getKey());
+                AccessPoint current  = entry.getValue();
+
+                if(previous == null || !previous.equals(current))
+                    add(entry.getKey(), current.mSsid, current.mCaps,
+                        DataDumpContract.WifiScanTable.EVENT_APPEARED);
+            }
+            for(Map.Entry<Long, AccessPoint> entry:mPrevious.entrySet()) {
+                if(!mCurrent.containsKey(entry.getKey()))
+                    add(entry.getKey(), entry.getValue().mSsid, entry.getValue().mCaps,
+                        DataDumpContract.WifiScanTable.EVENT_DISAPPEARED);
+            }
+        }
+
+        Map<Long, AccessPoint> swap = mPrevious;    // Reuse the maps rather than reallocate.
+        mPrevious = mCurrent;
+        mCurrent  = swap;
+
+        mScans++;
+        mResults += bssids.length;
+        mRows    += mSize;
+    }
+
+    /**
+     * Forgets the previous scan, so that the next one is a keyframe.
+     * Called after a transaction rolls back, since the rows of the last diff are gone.
+     */
+    void reset() {
+        mPrevious.clear();
+        mLastKeyframe = Long.MIN_VALUE;
+    }
+
+    /**
+     * Notes the partition the next scan is written to. The first scan written
+     * to a partition is a keyframe, so that no partition's diffs depend on an
+     * older one, which may have been dropped.
+     *
+     * @param id the partition's ID
+     */
+    void setPartition(long id) {
+        if(id == mPartition) return;
+
+        reset();
+        mPartition = id;
+    }
+
+    /** @return the number of rows in the last diff */
+    int getSize() { return mSize; }
+
+    long   getBssid(int row)        { return mBssids[row]; }
+    String getSsid(int row)         { return mSsids[row]; }
+    String getCapabilities(int row) { return mCaps[row]; }
+    int    getEvent(int row)        { return mEvents[row]; }
+
+    /** @return scans diffed */
+    long getScanCount() { return mScans; }
+
+    /** @return scans written whole */
+    long getKeyframeCount() { return mKeyframes; }
+
+    /** @return scan results seen, the rows storing every scan whole would take */
+    long getResultCount() { return mResults; }
+
+    /** @return rows the diffs took */
+    long getRowCount() { return mRows; }
+
+    /** Appends a row to the diff. */
+    private void add(long bssid, String ssid, String caps, int event) {
+        if(mSize == mBssids.length) {
+            int length = mSize * 2;
+
+            mBssids = Arrays.copyOf(mBssids, length);
+            mSsids  = Arrays.copyOf(mSsids, length);
+            mCaps   = Arrays.copyOf(mCaps, length);
+            mEvents = Arrays.copyOf(mEvents, length);
+        }
+        mBssids[mSize] = bssid;
+        mSsids[mSize]  = ssid;
+        mCaps[mSize]   = caps;
+        mEvents[mSize] = event;
+        mSize++;
+    }
+
+    /**
+     * What a scan reported for one BSSID.
+     */
+    private static final class AccessPoint {
+        final String mSsid;
+        final String mCaps;
+
+        AccessPoint(String ssid, String caps) {
+            mSsid = ssid;
+            mCaps = caps;
+        }
+
+        @Override public boolean equals(Object o) {
+            if(!(o instanceof AccessPoint)) return false;
+
+            AccessPoint other = (AccessPoint) o;
+            return equal(mSsid, other.mSsid) && equal(mCaps, other.mCaps);
+        }
+
+        @Override public int hashCode() {
+            return 31 * (mSsid == null ? 0 : mSsid.hashCode())
+                      + (mCaps == null ? 0 : mCaps.hashCode());
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
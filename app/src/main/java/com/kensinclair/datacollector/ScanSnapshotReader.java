@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.kensinclair.logger.MyLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebuilds the full WiFi scan as of a given time from the keyframe and
+ * the appear and disappear events written by <code>ScanDiffer</code>.
+ *
+ * <pre>
+ * ScanSnapshotReader.Snapshot scan = new ScanSnapshotReader(context).at(time);
+ * if(scan != null) for(ScanSnapshotReader.AccessPoint ap:scan.getAccessPoints()) use(ap);
+ * </pre>
+ *
+ * @see com.kensinclair.datacollector.ScanDiffer
+ *
+ * @author Ken Sinclair
+ */
+
+final class ScanSnapshotReader {
+    private static final boolean LOCAL_LOGD = true;
+    private static final String  TAG        = ScanSnapshotReader.class.getSimpleName();
+
+    private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
+
+    private static final String SQL_SELECT_TIME =
+            "SELECT " + DataDumpContract.WifiScanTable.COLUMN_NAME_TIME + " FROM ";
+    private static final String SQL_LAST_KEYFRAME =         // After the partition's table.
+            " WHERE " + DataDumpContract.WifiScanTable.COLUMN_NAME_TIME + " <= ? AND " +
+                        DataDumpContract.WifiScanTable.COLUMN_NAME_EVENT + " = " +
+                        DataDumpContract.WifiScanTable.EVENT_KEYFRAME +
+            " ORDER BY " + DataDumpContract.WifiScanTable.COLUMN_NAME_TIME + " DESC LIMIT 1";
+
+    private final DbManager  mDbManager;
+    private final RangeQuery mRangeQuery;
+
+    /**
+     * Constructs a <code>ScanSnapshotReader</code> which reads
+     * through the process-wide <code>DbManager</code>.
+     *
+     * @param c the context of the caller
+     */
+    ScanSnapshotReader(Context c) {
+        mDbManager  = DbManager.getInstance(c);
+        mRangeQuery = new RangeQuery(c);
+    }
+
+    /**
+     * Rebuilds the scan as of a time: the latest keyframe at or before it,
+     * with every event up to and including it applied.
+     *
+     * @param time the time, in epoch milliseconds
+     * @return     the scan, or <code>null</code> if no keyframe was written by then
+     */
+    Snapshot at(long time) {
+        SQLiteDatabase db       = mDbManager.getDatabase();
+        long           keyframe = lastKeyframe(db, time);
+
+        if(keyframe == Long.MIN_VALUE)          // Older than every scan left in the database.
+            keyframe = mDbManager.getColdArchive().lastKeyframe(db, time);
+        if(keyframe == Long.MIN_VALUE) return null;
+
+        Map<Long, AccessPoint> aps = new LinkedHashMap<>();
+        int                    events = 0;
+        boolean                inKeyframe = false;
+
+        RangeQuery.WifiScanCursor rows = mRangeQuery.wifiScan(keyframe, time + 1);
+        try {
+            while(rows.moveToNext()) {
+                int  event = rows.getEvent();
+                long bssid = rows.getBssid();
+
+                if(event == DataDumpContract.WifiScanTable.EVENT_KEYFRAME) {
+                    if(!inKeyframe) aps.clear();    // Drops events written before it at the
+                    inKeyframe = true;              //                      same millisecond.
+                } else {
+                    inKeyframe = false;
+                    events++;
+                }
+                if(bssid == MacAddresses.NONE) continue;    // An empty keyframe's marker.
+
+                if(event == DataDumpContract.WifiScanTable.EVENT_DISAPPEARED) {
+                    aps.remove(bssid);
+                } else {
+                    AccessPoint previous = aps.get(bssid);
+                    long        since    = previous == null ? rows.getTime() : previous.mSince;
+
+                    aps.put(bssid, new AccessPoint(bssid, rows.getSsid(),
+                            rows.getCapabilities(), since));
+                }
+            }
+        } finally { rows.close(); }
+
+        if(LOCAL_LOGD) sLg.log("Scan at " + Timestamps.format(time) + ": " + aps.size()
+                + " access points from the keyframe at " + Timestamps.format(keyframe)
+                + " and " + events + " events.");
+
+        return new Snapshot(time, keyframe, new ArrayList<>(aps.values()));
+    }
+
+    /**
+     * Finds the latest keyframe written at or before a time and still in the
+     * database, not archived.
+     *
+     * @param db   the database
+     * @param time the time, in epoch milliseconds
+     * @return     the keyframe's time, or <code>Long.MIN_VALUE</code> if there is none
+     */
+    static long lastKeyframe(SQLiteDatabase db, long time) {
+        List<PartitionManager.Partition> partitions = PartitionManager.list(
+                db, DataDumpContract.PartitionsTable.KIND_WIFI_SCAN, Long.MIN_VALUE, time + 1);
+        String[]                         args       = { Long.toString(time) };
+
+        for(int i = partitions.size() - 1; i >= 0; i--) {      // Newest partition first.
+            Cursor c = db.rawQuery(SQL_SELECT_TIME + partitions.get(i).getDataTable()
+                    + SQL_LAST_KEYFRAME, args);
+            try {
+                if(c.moveToFirst()) return c.getLong(0);
+            } finally { c.close(); }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * A rebuilt scan.
+     */
+    static final class Snapshot {
+        final long mTime;
+        final long mKeyframeTime;
+
+        private final List<AccessPoint> mAccessPoints;
+
+        private Snapshot(long time, long keyframeTime, List<AccessPoint> accessPoints) {
+            mTime         = time;
+            mKeyframeTime = keyframeTime;
+            mAccessPoints = Collections.unmodifiableList(accessPoints);
+        }
+
+        /** @return the access points in view at the time */
+        List<AccessPoint> getAccessPoints() { return mAccessPoints; }
+    }
+
+    /**
+     * An access point in a rebuilt scan.
+     */
+    static final class AccessPoint {
+        final long   mBssid;
+        final String mSsid;
+        final String mCapabilities;
+        final long   mSince;        // When it was first seen, or the keyframe's time.
+
+        private AccessPoint(long bssid, String ssid, String capabilities, long since) {
+            mBssid        = bssid;
+            mSsid         = ssid;
+            mCapabilities = capabilities;
+            mSince        = since;
+        }
+
+        String getFormattedBssid() { return MacAddresses.format(mBssid); }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.kensinclair.logger.MyLog;
+
+import java.util.List;
+
+/**
+ * Turns network and WiFi connection events into network sessions: one row
+ * per span of time connected to one network, with its start, end, type and,
+ * for WiFi, BSSID.
+ *
+ * <p>A connected network event of a new type closes the open session and opens
+ * another. Any other network event closes it. A WiFi connection event fills in
+ * the open WiFi session's BSSID, or, when the BSSID has changed, closes it and
+ * opens another for the new access point. Sessions are written in the same
+ * transaction as the events which shape them.</p>
+ *
+ * <p>The open session is kept in memory and reloaded from its row, whose end is
+ * NULL, after a rollback. The session an earlier process left open is closed
+ * instead, at the time of the last event stored, since nothing is known of the
+ * connection while the process was gone. <code>recover</code> does so as soon
+ * as the network service starts; failing that, the first event does. It only
+ * counts as done once the close commits. Every method must be called with the
+ * <code>DbManager</code> write lock held.</p>
+ *
+ * @see com.kensinclair.datacollector.DataDumpContract.NetworkSessionTable
+ *
+ * @author Ken Sinclair
+ */
+
+final class SessionBuilder {
+    private static final boolean LOCAL_LOGD = true;
+    private static final String  TAG        = SessionBuilder.class.getSimpleName();
+
+    private static MyLog sLg = new MyLog(TAG, Log.DEBUG);
+
+    private static final String CONNECTED = "CONNECTED";    // NetworkInfo.DetailedState.
+    private static final String WIFI      = "WIFI";         // NetworkInfo.getTypeName().
+
+    private static final String SQL_OPEN = DataDumpContract.insertSql(
+            DataDumpContract.NetworkSessionTable.DATA_TABLE_NAME,
+            DataDumpContract.NetworkSessionTable.INSERT_COLUMNS);
+    private static final String SQL_CLOSE =
+            "UPDATE " + DataDumpContract.NetworkSessionTable.DATA_TABLE_NAME +
+            " SET "   + DataDumpContract.NetworkSessionTable.COLUMN_NAME_END + " = ?" +
+            " WHERE " + DataDumpContract.NetworkSessionTable._ID + " = ?";
+    private static final String SQL_SET_BSSID =
+            "UPDATE " + DataDumpContract.NetworkSessionTable.DATA_TABLE_NAME +
+            " SET "   + DataDumpContract.NetworkSessionTable.COLUMN_NAME_BSSID + " = ?" +
+            " WHERE " + DataDumpContract.NetworkSessionTable._ID + " = ?";
+    private static final String SQL_FIND_OPEN =
+            "SELECT d." + DataDumpContract.NetworkSessionTable._ID +
+            ", d."      + DataDumpContract.NetworkSessionTable.COLUMN_NAME_START +
+            ", s."      + DataDumpContract.StringsTable.COLUMN_NAME_VALUE +
+            ", d."      + DataDumpContract.NetworkSessionTable.COLUMN_NAME_BSSID +
+            " FROM "    + DataDumpContract.NetworkSessionTable.DATA_TABLE_NAME + " d" +
+            " LEFT JOIN " + DataDumpContract.StringsTable.TABLE_NAME + " s ON s." +
+                        DataDumpContract.StringsTable._ID + " = d." +
+                        DataDumpContract.NetworkSessionTable.COLUMN_NAME_TYPE_ID +
+            " WHERE d." + DataDumpContract.NetworkSessionTable.COLUMN_NAME_END + " IS NULL" +
+            " ORDER BY d." + DataDumpContract.NetworkSessionTable._ID + " DESC LIMIT 1";
+    private static final String SQL_LAST_EVENT =            // Then the network partition.
+            "SELECT MAX(t) FROM (" +
+            "SELECT MAX(" + DataDumpContract.WifiConnectionTable.COLUMN_NAME_TIME + ") AS t FROM " +
+                    DataDumpContract.WifiConnectionTable.TABLE_NAME + " UNION ALL " +
+            "SELECT MAX(" + DataDumpContract.NetworkTable.COLUMN_NAME_TIME + ") FROM ";
+
+    private final DbManager mDbManager;
+
+    private boolean mLoaded;
+    private boolean mRecovered;                 // The session left open by an earlier process
+    private boolean mRecovering;                //  closed, and committed or not yet committed.
+    private long    mOpenId = -1;               // -1 when no session is open.
+    private long    mOpenStart;
+    private String  mOpenType;
+    private long    mOpenBssid;
+    private long    mWifiBssid = MacAddresses.NONE;     // The latest WiFi connection's.
+
+    private long mOpened;
+    private long mClosed;
+
+    /**
+     * @param dbManager the manager owning the database and its statement cache
+     */
+    SessionBuilder(DbManager dbManager) { mDbManager = dbManager; }
+
+    /**
+     * Takes a network event into account.
+     *
+     * @param time  the time of the event
+     * @param type  the network type name. Empty on disconnection
+     * @param state the detailed network state
+     * @return      <code>true</code> if the sessions were updated;
+     *              <code>false</code> if an error occurred
+     */
+    boolean onNetwork(long time, String type, String state) {
+        try {
+            load();
+
+            boolean connected = CONNECTED.equals(state) && type != null && !type.isEmpty();
+            if(connected && mOpenId != -1 && type.equals(mOpenType)) return true;
+
+            close(time);
+            if(connected) open(time, type, WIFI.equals(type) ? mWifiBssid : MacAddresses.NONE);
+            return true;
+        } catch (SQLException e) {
+            DbUpdater.rethrowIfUnavailable(e);
+            Log.e(TAG, "Error updating network sessions: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Takes a WiFi connection event into account.
+     *
+     * @param time  the time of the event
+     * @param bssid the access point's BSSID, from <code>MacAddresses.parse</code>
+     * @return      <code>true</code> if the sessions were updated;
+     *              <code>false</code> if an error occurred
+     */
+    boolean onWifiConnection(long time, long bssid) {
+        try {
+            load();
+            mWifiBssid = bssid;
+
+            if(mOpenId == -1 || !WIFI.equals(mOpenType) || bssid == MacAddresses.NONE
+                    || bssid == mOpenBssid) return true;
+
+            if(mOpenBssid == MacAddresses.NONE) {           // Connected before the BSSID was known.
+                SQLiteStatement statement = mDbManager.getStatement(SQL_SET_BSSID);
+
+                statement.bindLong(1, bssid);
+                statement.bindLong(2, mOpenId);
+                statement.executeUpdateDelete();
+                mOpenBssid = bssid;
+            } else {                                        // Roamed to another access point.
+                close(time);
+                open(time, WIFI, bssid);
+            }
+            return true;
+        } catch (SQLException e) {
+            DbUpdater.rethrowIfUnavailable(e);
+            Log.e(TAG, "Error updating network sessions: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Closes the session left open by an earlier process, in a transaction
+     * of its own, unless it already is. Must be called outside of any
+     * transaction.
+     */
+    void recover() {
+        if(mRecovered) return;
+
+        try {
+            SQLiteDatabase db = mDbManager.getDatabase();
+
+            db.beginTransactionNonExclusive();
+            try {
+                load();
+                db.setTransactionSuccessful();
+            } finally { db.endTransaction(); }
+            onCommit();
+        } catch (SQLException e) {          // Left to the first event to retry.
+            invalidate();
+            Log.e(TAG, "Error closing the session left open: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Notes that the sessions written since the last commit or rollback
+     * are committed. Called after a transaction commits.
+     */
+    void onCommit() {
+        if(mRecovering) mRecovered = true;
+        mRecovering = false;
+    }
+
+    /**
+     * Forgets the open session, so that it is reloaded from the database.
+     * Called after a transaction rolls back.
+     */
+    void invalidate() {
+        mLoaded     = false;
+        mRecovering = false;
+    }
+
+    /** @return sessions opened */
+    long getOpenedCount() { return mOpened; }
+
+    /** @return sessions closed */
+    long getClosedCount() { return mClosed; }
+
+    /** Loads the open session, closing the one left by an earlier process until that commits. */
+    private void load() {
+        if(mLoaded) return;
+
+        SQLiteDatabase db = mDbManager.getDatabase();
+
+        mOpenId = -1;
+        Cursor c = db.rawQuery(SQL_FIND_OPEN, null);
+        try {
+            if(c.moveToFirst()) {
+                mOpenId    = c.getLong(0);
+                mOpenStart = c.getLong(1);
+                mOpenType  = c.getString(2);
+                mOpenBssid = c.isNull(3) ? MacAddresses.NONE : c.getLong(3);
+            }
+        } finally { c.close(); }
+
+        if(!mRecovered && !mRecovering) {
+            if(mOpenId != -1) {
+                long                             end        = mOpenStart;
+                List<PartitionManager.Partition> partitions = PartitionManager.list(db,
+                        DataDumpContract.PartitionsTable.KIND_NETWORK, mOpenStart, Long.MAX_VALUE);
+                String                           network    = partitions.isEmpty()
+                        ? DataDumpContract.NetworkTable.DATA_TABLE_NAME
+                        : partitions.get(partitions.size() - 1).getDataTable();
+
+                c = db.rawQuery(SQL_LAST_EVENT + network + ")", null);
+                try {
+                    if(c.moveToFirst() && !c.isNull(0)) end = Math.max(end, c.getLong(0));
+                } finally { c.close(); }
+
+                if(LOCAL_LOGD) sLg.log("Closing the " + mOpenType + " session left open at "
+                        + Timestamps.format(end) + ".");
+                close(end);
+            }
+            mRecovering = true;
+        }
+        mLoaded = true;
+    }
+
+    private void open(long time, String type, long bssid) {
+        SQLiteStatement statement = mDbManager.getStatement(SQL_OPEN);
+
+        statement.bindLong(1, time);
+        statement.bindLong(2, mDbManager.getStringDictionary().intern(type));
+        if(bssid == MacAddresses.NONE) statement.bindNull(3);
+        else                           statement.bindLong(3, bssid);
+
+        mOpenId    = statement.executeInsert();
+        mOpenStart = time;
+        mOpenType  = type;
+        mOpenBssid = bssid;
+        mOpened++;
+    }
+
+    private void close(long time) {
+        if(mOpenId == -1) return;
+
+        SQLiteStatement statement = mDbManager.getStatement(SQL_CLOSE);
+
+        statement.bindLong(1, Math.max(time, mOpenStart));  // Never before it started.
+        statement.bindLong(2, mOpenId);
+        statement.executeUpdateDelete();
+
+        mOpenId = -1;
+        mClosed++;
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Small append-only file holding queued entries while the database
+ * can't be written, so that they survive until it can, even across restarts.
+ *
+ * <p>Each entry is one record: its length, the CRC-32 of its bytes, then the
+ * bytes, which start with the entry's <code>KIND_</code>. Appends are synced
+ * before they return, unless the file is made without syncing: it then survives
+ * the process being killed, but not the device losing power. A record cut short by a crash, or whose CRC doesn't
+ * match, ends the file when it is read back. The file never grows beyond its
+ * limit; entries which would take it past are refused.</p>
+ *
+ * <p>Not thread-safe. The <code>IngestionQueue</code> writer thread uses one,
+ * and <code>LocationUpdaterService</code> keeps its pending batch in another.</p>
+ *
+ * @see com.kensinclair.datacollector.IngestionQueue
+ *
+ * @author Ken Sinclair
+ */
+
+final class SpillFile {
+    private static final String TAG = SpillFile.class.getSimpleName();
+
+    private static final int KIND_ACCOUNTS  = 1;
+    private static final int KIND_LOCATION  = 2;
+    private static final int KIND_LOCATIONS = 3;        // LocationBatchEntry.
+    private static final int KIND_NETWORK   = 4;
+    private static final int KIND_WIFI_CON  = 5;
+    private static final int KIND_WIFI_SCAN = 6;
+
+    private static final int    MAX_RECORD  = 1024 * 1024;  // Anything longer is corruption.
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File    mFile;
+    private final long    mMaxBytes;
+    private final boolean mSync;
+    private long          mBytes;
+
+    /**
+     * @param file     the file. Entries already in it are kept
+     * @param maxBytes the most the file may hold
+     */
+    SpillFile(File file, long maxBytes) { this(file, maxBytes, true); }
+
+    /**
+     * @param file     the file. Entries already in it are kept
+     * @param maxBytes the most the file may hold
+     * @param sync     <code>true</code> to sync each append to storage
+     */
+    SpillFile(File file, long maxBytes, boolean sync) {
+        mFile     = file;
+        mMaxBytes = maxBytes;
+        mSync     = sync;
+        mBytes    = file.length();                      // 0 if it doesn't exist.
+    }
+
+    /** @return <code>true</code> if no entries are waiting */
+    boolean isEmpty() { return mBytes == 0; }
+
+    /** @return the file's length in bytes */
+    long getBytes() { return mBytes; }
+
+    /**
+     * Appends entries, oldest first, and syncs the file if it is synced.
+     *
+     * @param entries the entries
+     * @return        the number appended. The rest didn't fit, or
+     *                couldn't be written
+     */
+    int append(List<? extends IngestionQueue.Entry> entries) {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream      out     = new DataOutputStream(records);
+        int                   fitted  = 0;
+
+        try {
+            for(int i = 0, n = entries.size(); i < n; i++) {
+                byte[] record = encode(entries.get(i));
+                if(mBytes + records.size() + 8 + record.length > mMaxBytes) break;
+
+                CRC32 crc = new CRC32();
+                crc.update(record, 0, record.length);
+
+                out.writeInt(record.length);
+                out.writeInt((int) crc.getValue());
+                out.write(record);
+                fitted++;
+            }
+            if(fitted == 0) return 0;
+
+            FileOutputStream file = new FileOutputStream(mFile, true);
+            try {
+                records.writeTo(file);
+                if(mSync) file.getFD().sync();
+            } finally { file.close(); }
+        } catch (IOException e) {
+            Log.e(TAG, "Error spilling " + entries.size() + " entries: " + e.getMessage());
+            mBytes = mFile.length();                    // Part of it may have been written.
+            return 0;
+        }
+        mBytes += records.size();
+        return fitted;
+    }
+
+    /**
+     * Reads every entry back, oldest first, stopping at the first damaged record.
+     *
+     * @return the entries
+     */
+    List<IngestionQueue.Entry> readAll() {
+        List<IngestionQueue.Entry> entries = new ArrayList<>();
+        if(mBytes == 0) return entries;
+
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                while(true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) { break; }
+
+                    if(length < 0 || length > MAX_RECORD) {
+                        Log.e(TAG, "Damaged record after " + entries.size() + " entries.");
+                        break;
+                    }
+                    int    expected = in.readInt();
+                    byte[] record   = new byte[length];
+                    in.readFully(record);
+
+                    CRC32 crc = new CRC32();
+                    crc.update(record, 0, length);
+                    if((int) crc.getValue() != expected) {
+                        Log.e(TAG, "Bad CRC after " + entries.size() + " entries.");
+                        break;
+                    }
+                    entries.add(decode(record));
+                }
+            } finally { in.close(); }
+        } catch (EOFException e) {
+            Log.e(TAG, "Torn record after " + entries.size() + " entries.");
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading spilled entries: " + e.getMessage());
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the file's contents with the given entries. They are written
+     * to a temporary file which is renamed over the file, so a crash leaves
+     * either the old contents or the new.
+     *
+     * @param entries the entries still waiting. Empty to clear the file
+     * @return        <code>true</code> if the file now holds exactly those entries;
+     *                <code>false</code> if it still holds the old contents
+     */
+    boolean rewrite(List<IngestionQueue.Entry> entries) {
+        if(entries.isEmpty()) {
+            if(!mFile.delete() && mFile.exists()) {
+                Log.e(TAG, "Error deleting " + mFile + ".");
+                return false;
+            }
+            mBytes = 0;
+            return true;
+        }
+
+        SpillFile temp = new SpillFile(new File(mFile.getPath() + TEMP_SUFFIX), mMaxBytes,
+                                       mSync);
+        if(!temp.rewrite(Collections.<IngestionQueue.Entry>emptyList())
+                || temp.append(entries) < entries.size()) return false;
+
+        if(!temp.mFile.renameTo(mFile)) {
+            Log.e(TAG, "Error renaming " + temp.mFile + " to " + mFile + ".");
+            return false;
+        }
+        mBytes = temp.mBytes;
+        return true;
+    }
+
+    private static byte[] encode(IngestionQueue.Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream      out   = new DataOutputStream(bytes);
+
+        if(entry instanceof IngestionQueue.AccountsEntry) {
+            IngestionQueue.AccountsEntry accounts = (IngestionQueue.AccountsEntry) entry;
+
+            out.writeByte(KIND_ACCOUNTS);
+            out.writeLong(accounts.mTime);
+            out.writeInt(accounts.mNames.length);
+            for(int i = 0; i < accounts.mNames.length; i++) {
+                writeString(out, accounts.mNames[i]);
+                writeString(out, accounts.mTypes[i]);
+                out.writeByte(accounts.mEvents[i]);
+            }
+        } else if(entry instanceof IngestionQueue.LocationEntry) {
+            out.writeByte(KIND_LOCATION);
+            writeLocation(out, (IngestionQueue.LocationEntry) entry);
+        } else if(entry instanceof IngestionQueue.LocationBatchEntry) {
+            List<IngestionQueue.LocationEntry> fixes =
+                    ((IngestionQueue.LocationBatchEntry) entry).mFixes;
+
+            out.writeByte(KIND_LOCATIONS);
+            out.writeInt(fixes.size());
+            for(int i = 0, n = fixes.size(); i < n; i++) writeLocation(out, fixes.get(i));
+        } else if(entry instanceof IngestionQueue.NetworkEntry) {
+            IngestionQueue.NetworkEntry network = (IngestionQueue.NetworkEntry) entry;
+
+            out.writeByte(KIND_NETWORK);
+            out.writeLong(network.mTime);
+            writeString(out, network.mType);
+            writeString(out, network.mSubtype);
+            writeString(out, network.mState);
+            writeString(out, network.mReason);
+        } else if(entry instanceof IngestionQueue.WifiConnectionEntry) {
+            IngestionQueue.WifiConnectionEntry wifi = (IngestionQueue.WifiConnectionEntry) entry;
+
+            out.writeByte(KIND_WIFI_CON);
+            out.writeLong(wifi.mTime);
+            out.writeInt(wifi.mIp);
+            out.writeLong(wifi.mMac);
+            out.writeLong(wifi.mBssid);
+            writeString(out, wifi.mSsid);
+            out.writeBoolean(wifi.mHidden);
+        } else if(entry instanceof IngestionQueue.WifiScanEntry) {
+            IngestionQueue.WifiScanEntry scan = (IngestionQueue.WifiScanEntry) entry;
+
+            out.writeByte(KIND_WIFI_SCAN);
+            out.writeLong(scan.mTime);
+            out.writeInt(scan.mBssids.length);
+            for(int i = 0; i < scan.mBssids.length; i++) {
+                out.writeLong(scan.mBssids[i]);
+                writeString(out, scan.mSsids[i]);
+                writeString(out, scan.mCaps[i]);
+            }
+        } else {
+            throw new IOException("Can't spill " + entry.getClass().getSimpleName());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static IngestionQueue.Entry decode(byte[] record) throws IOException {
+        DataInputStream in   = new DataInputStream(new ByteArrayInputStream(record));
+        int             kind = in.readUnsignedByte();
+
+        switch(kind) {
+            case KIND_ACCOUNTS: {
+                long     time   = in.readLong();
+                int      n      = in.readInt();
+                String[] names  = new String[n];
+                String[] types  = new String[n];
+                int[]    events = new int[n];
+
+                for(int i = 0; i < n; i++) {
+                    names[i]  = readString(in);
+                    types[i]  = readString(in);
+                    events[i] = in.readUnsignedByte();
+                }
+                return new IngestionQueue.AccountsEntry(names, types, events, time);
+            }
+            case KIND_LOCATION:
+                return readLocation(in);
+            case KIND_LOCATIONS: {
+                int                                n     = in.readInt();
+                List<IngestionQueue.LocationEntry> fixes = new ArrayList<>(n);
+
+                for(int i = 0; i < n; i++) fixes.add(readLocation(in));
+                return new IngestionQueue.LocationBatchEntry(fixes);
+            }
+            case KIND_NETWORK: {
+                long time = in.readLong();
+
+                return new IngestionQueue.NetworkEntry(time, readString(in), readString(in),
+                                                       readString(in), readString(in));
+            }
+            case KIND_WIFI_CON:
+                return new IngestionQueue.WifiConnectionEntry(in.readLong(), in.readInt(),
+                        in.readLong(), in.readLong(), readString(in), in.readBoolean());
+            case KIND_WIFI_SCAN: {
+                long     time   = in.readLong();
+                int      n      = in.readInt();
+                long[]   bssids = new long[n];
+                String[] ssids  = new String[n];
+                String[] caps   = new String[n];
+
+                for(int i = 0; i < n; i++) {
+                    bssids[i] = in.readLong();
+                    ssids[i]  = readString(in);
+                    caps[i]   = readString(in);
+                }
+                return new IngestionQueue.WifiScanEntry(time, bssids, ssids, caps);
+            }
+            default:
+                throw new IOException("Unknown entry kind " + kind);
+        }
+    }
+
+    private static void writeLocation(DataOutputStream out, IngestionQueue.LocationEntry fix)
+            throws IOException {
+        out.writeLong(fix.mTime);
+        out.writeDouble(fix.mLat);
+        out.writeDouble(fix.mLng);
+        out.writeFloat(fix.mBearing);
+        out.writeFloat(fix.mSpeed);
+        out.writeDouble(fix.mAlt);
+        out.writeFloat(fix.mAcc);
+    }
+
+    private static IngestionQueue.LocationEntry readLocation(DataInputStream in)
+            throws IOException {
+        return new IngestionQueue.LocationEntry(in.readLong(), in.readDouble(), in.readDouble(),
+                in.readFloat(), in.readFloat(), in.readDouble(), in.readFloat());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if(value != null) out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
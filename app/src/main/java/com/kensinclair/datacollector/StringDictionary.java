@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Interns low-cardinality strings, such as SSIDs and network states, into
+ * the strings table so that rows store a small integer ID instead.
+ *
+ * <p>Recently used strings are kept in a bounded LRU cache, so a warm write
+ * needs no lookup query. Every method must be called with the
+ * <code>DbManager</code> write lock held.</p>
+ *
+ * @see com.kensinclair.datacollector.DataDumpContract.StringsTable
+ *
+ * @author Ken Sinclair
+ */
+
+final class StringDictionary {
+    private static final int CACHE_SIZE = 512;
+
+    private static final String SQL_LOOKUP =
+            "SELECT " + DataDumpContract.StringsTable._ID +
+            " FROM "  + DataDumpContract.StringsTable.TABLE_NAME +
+            " WHERE " + DataDumpContract.StringsTable.COLUMN_NAME_VALUE + " = ?";
+    private static final String SQL_INSERT = DataDumpContract.insertSql(
+            DataDumpContract.StringsTable.TABLE_NAME,
+            new String[] { DataDumpContract.StringsTable.COLUMN_NAME_VALUE });
+
+    private final DbManager         mDbManager;
+    private final Map<String, Long> mCache = new LinkedHashMap<String, Long>(
+                                                 CACHE_SIZE * 4 / 3 + 1, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * @param dbManager the manager owning the database and its statement cache
+     */
+    StringDictionary(DbManager dbManager) { mDbManager = dbManager; }
+
+    /**
+     * Gets a string's ID, adding it to the strings table if it is new.
+     *
+     * @param value the string. May be <code>null</code>
+     * @return      its ID, or -1 for <code>null</code>
+     */
+    long intern(String value) {
+        if(value == null) return -1;
+
+        Long id = mCache.get(value);
+        if(id != null) return id;
+
+        SQLiteStatement lookup = mDbManager.getStatement(SQL_LOOKUP);
+        lookup.bindString(1, value);
+        try {
+            id = lookup.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {       // Not there yet.
+            SQLiteStatement insert = mDbManager.getStatement(SQL_INSERT);
+
+            insert.bindString(1, value);
+            id = insert.executeInsert();
+        }
+
+        mCache.put(value, id);
+        return id;
+    }
+
+    /**
+     * Forgets every cached ID. Called after a transaction rolls back,
+     * since a string it added is gone again.
+     */
+    void invalidate() { mCache.clear(); }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+
+/**
+ * Migration which recreates tables with a new definition and copies
+ * their rows across in the background, keeping each row's <code>_ID</code>.
+ *
+ * <p>The schema phase renames each table aside and creates its replacement.
+ * It also moves the AUTOINCREMENT sequence up past the old table's rows, so
+ * rows written while the copy runs cannot take an ID an old row still needs.
+ * Until a table's copy completes, its older rows are only in the renamed table.</p>
+ *
+ * <p>A later step may rebuild a table again before its copy completes, as when
+ * an upgrade spans several steps. The table being filled is then renamed aside
+ * in turn, taking its sequence with it, and the copies run one after another,
+ * in the order the steps were queued: the earlier copy fills the renamed table,
+ * then the later one copies it on into the newest. Each rename takes its step's
+ * version, so the tables set aside never collide.</p>
+ *
+ * @author Ken Sinclair
+ */
+
+abstract class TableRebuildMigration extends Migration {
+    private static final String OLD_SUFFIX = "_old";            // Then the version.
+
+    private final String[] mTables;
+    private final String[] mCreateSql;
+
+    /**
+     * @param version   the database version this step upgrades to
+     * @param name      a short description for the log and the migrations table
+     * @param tables    the tables to be rebuilt
+     * @param createSql each table's CREATE TABLE statement as of <code>version</code>,
+     *                  creating the table named by <code>getNewTable</code>
+     */
+    TableRebuildMigration(int version, String name, String[] tables, String[] createSql) {
+        super(version, name);
+        mTables    = tables;
+        mCreateSql = createSql;
+    }
+
+    @Override void upgradeSchema(SQLiteDatabase db) {
+        for(int i = 0; i < mTables.length; i++) {
+            String table = mTables[i];
+
+            String newTable = getNewTable(table);
+            String oldTable = getOldTable(table);
+
+            db.execSQL("ALTER TABLE " + table + " RENAME TO " + oldTable);
+            db.execSQL(mCreateSql[i]);
+            db.execSQL("DELETE FROM sqlite_sequence WHERE name = '" + newTable + "'");
+            db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" + newTable + "', "
+                    + "MAX(COALESCE(MAX(" + BaseColumns._ID + "), 0), COALESCE((SELECT seq "
+                    + "FROM sqlite_sequence WHERE name = '" + oldTable + "'), 0)) "
+                    + "FROM " + oldTable);      // Its own copy may not have filled it yet.
+        }
+    }
+
+    /**
+     * Tells whether this step rebuilds a table.
+     *
+     * @param table the table's name
+     * @return      <code>true</code> if the table is one of the step's
+     */
+    final boolean rebuilds(String table) {
+        for(String rebuilt:mTables) if(rebuilt.equals(table)) return true;
+        return false;
+    }
+
+    /**
+     * Names the table a rebuilt one is renamed to while its rows are copied.
+     *
+     * @param table the table being rebuilt
+     * @return      the table's name, followed by the old suffix and this step's version
+     */
+    final String getOldTable(String table) { return table + OLD_SUFFIX + mVersion; }
+
+    @Override String[] getUnits() { return mTables; }
+
+    @Override boolean migrateChunk(SQLiteDatabase db, String table,
+                                   Progress progress, int limit) {
+        Cursor cursor = db.rawQuery("SELECT * FROM " + getOldTable(table)
+                + " WHERE " + BaseColumns._ID + " > ? ORDER BY " + BaseColumns._ID
+                + " LIMIT " + limit, new String[] { Long.toString(progress.mLastId) });
+        try {
+            if(cursor.getCount() == 0) return true;
+
+            int             idIndex = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+            SQLiteStatement insert  = db.compileStatement(DataDumpContract.insertSql(
+                                          Migrations.currentName(getNewTable(table), mVersion),
+                                          getInsertColumns(table, cursor.getColumnNames())));
+            try {
+                while(cursor.moveToNext()) {
+                    insert.clearBindings();
+                    bindRow(table, insert, cursor);
+                    insert.executeInsert();
+
+                    progress.mLastId = cursor.getLong(idIndex);
+                    progress.mRows++;
+                }
+            } finally { insert.close(); }
+
+            return cursor.getCount() < limit;
+        } finally { cursor.close(); }
+    }
+
+    @Override void finishUnit(SQLiteDatabase db, String table) {
+        db.execSQL("DROP TABLE IF EXISTS " + getOldTable(table));
+    }
+
+    /**
+     * Names the table which replaces a rebuilt one.
+     * By default, the table keeps its name.
+     *
+     * @param table the table being rebuilt
+     * @return      the name <code>createSql</code> gives its replacement
+     */
+    String getNewTable(String table) { return table; }
+
+    /**
+     * Names the columns written to the new table.
+     * By default, the old table's columns.
+     *
+     * @param table      the table being rebuilt
+     * @param oldColumns the old table's columns
+     * @return           the columns, in bind order
+     */
+    String[] getInsertColumns(String table, String[] oldColumns) { return oldColumns; }
+
+    /**
+     * Binds one old row to the new table's insert statement.
+     * By default, copies every column as it is.
+     *
+     * @param table  the table being rebuilt
+     * @param insert the insert statement, bound in <code>getInsertColumns</code> order
+     * @param row    the cursor positioned on the old row
+     */
+    void bindRow(String table, SQLiteStatement insert, Cursor row) {
+        for(int i = 0, n = row.getColumnCount(); i < n; i++)
+            DataDumpDbHelper.bindColumn(insert, i + 1, row, i);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Converts between stored times and text. Times are stored as epoch
+ * milliseconds, and are only formatted when data is read or exported.
+ *
+ * @author Ken Sinclair
+ */
+
+final class Timestamps {
+    /** Format used for reading and exporting. ISO 8601 with the UTC offset. */
+    static final String DISPLAY_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+
+    /**
+     * Formats written by <code>DbUpdater</code> before version 4. Android's
+     * <code>DateFormat</code> has no <code>S</code> field and wrote it literally,
+     * but a real fraction is accepted too.
+     */
+    private static final String[] LEGACY_FORMATS = {
+            "yyyy-MM-dd HH:mm:ss.'S' z",
+            "yyyy-MM-dd HH:mm:ss.S z",
+            "yyyy-MM-dd HH:mm:ss z",
+            "yyyy-MM-dd HH:mm:ss"
+    };
+
+    private static final ThreadLocal<SimpleDateFormat> sDisplayFormat =
+            new ThreadLocal<SimpleDateFormat>() {
+                @Override protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat(DISPLAY_FORMAT, Locale.US);
+                }
+            };
+
+    private static final ThreadLocal<SimpleDateFormat[]> sLegacyFormats =
+            new ThreadLocal<SimpleDateFormat[]>() {
+                @Override protected SimpleDateFormat[] initialValue() {
+                    SimpleDateFormat[] formats = new SimpleDateFormat[LEGACY_FORMATS.length];
+
+                    for(int i = 0; i < formats.length; i++) {
+                        formats[i] = new SimpleDateFormat(LEGACY_FORMATS[i], Locale.US);
+                        formats[i].setLenient(false);
+                    }
+                    return formats;
+                }
+            };
+
+    /** Prevents an instance from being accidentally instantiated. */
+    private Timestamps() {}
+
+    /**
+     * Formats a stored time for display or export.
+     *
+     * @param time epoch milliseconds
+     * @return     the time in <code>DISPLAY_FORMAT</code>, in the device's time zone
+     */
+    static String format(long time) { return sDisplayFormat.get().format(new Date(time)); }
+
+    /**
+     * Parses a timestamp written before version 4 of the database.
+     *
+     * @param timestamp the stored text
+     * @return          epoch milliseconds, or -1 if the text could not be parsed
+     */
+    static long parseLegacy(String timestamp) {
+        if(timestamp == null) return -1;
+
+        for(SimpleDateFormat format:sLegacyFormats.get()) {
+            ParsePosition position = new ParsePosition(0);
+            Date          date     = format.parse(timestamp, position);
+
+            if(date != null && position.getIndex() == timestamp.length()) return date.getTime();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.location.Location;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drops location fixes which add nothing to the shape of the route,
+ * as they arrive.
+ *
+ * <p>Uses the opening window algorithm. From the last kept fix, the anchor,
+ * the window opens over each new fix for as long as every fix in between lies
+ * within <code>tolerance</code> meters of the line from the anchor to it. When
+ * a new fix breaks that, the fix before it is kept and becomes the anchor.
+ * So no dropped fix is further than the tolerance from the stored route.</p>
+ *
+ * <p>The first fix of a segment is kept at once. The last is held until it
+ * is known whether it is needed, and kept by <code>flush</code>, which ends the
+ * segment. The window is capped at <code>MAX_WINDOW</code> fixes, and at
+ * <code>maxHold</code> milliseconds from its first fix, so a device standing
+ * still still stores a fix now and then, and a process killed mid-segment
+ * loses no more than that much of the route. Not thread-safe.</p>
+ *
+ * @author Ken Sinclair
+ */
+
+final class TrajectorySimplifier {
+    static final int MAX_WINDOW = 100;
+
+    private static final double METERS_PER_DEGREE = 111319.49;  // Along the equator.
+
+    private final Sink      mSink;
+    private final double    mTolerance2;                        // Squared, in meters.
+    private final long      mMaxHold;
+    private final List<Fix> mWindow = new ArrayList<>(MAX_WINDOW);
+
+    private Fix  mAnchor;
+    private long mKept;
+    private long mDropped;
+
+    /**
+     * Receives the fixes which are kept.
+     */
+    interface Sink {
+        /**
+         * @param location the fix
+         * @param time     the time of data collection
+         */
+        void keep(Location location, long time);
+    }
+
+    /**
+     * @param tolerance how far, in meters, a dropped fix may lie from the stored route.
+     *                  0 or less keeps every fix
+     * @param maxHold   the longest, in milliseconds, the window may stay open before
+     *                  its last fix is kept
+     * @param sink      where kept fixes go
+     */
+    TrajectorySimplifier(float tolerance, long maxHold, Sink sink) {
+        mTolerance2 = tolerance > 0 ? (double) tolerance * tolerance : -1;
+        mMaxHold    = maxHold;
+        mSink       = sink;
+    }
+
+    /**
+     * Offers a new fix. It, or the fix before it, may be passed to the sink.
+     *
+     * @param location the fix
+     * @param time     the time of data collection
+     */
+    void offer(Location location, long time) {
+        Fix fix = new Fix(location, time);
+
+        if(mAnchor == null || mTolerance2 < 0) {    // The first fix of a segment.
+            keep(fix);
+            mAnchor = fix;
+            return;
+        }
+        if(!mWindow.isEmpty() && (mWindow.size() == MAX_WINDOW
+                || time - mWindow.get(0).mTime >= mMaxHold || !fits(fix))) {
+            Fix last = mWindow.get(mWindow.size() - 1);
+
+            keep(last);
+            mDropped += mWindow.size() - 1;
+            mWindow.clear();
+            mAnchor = last;
+        }
+        mWindow.add(fix);
+    }
+
+    /**
+     * Ends the segment, keeping its last fix. The next fix offered starts
+     * a new one.
+     */
+    void flush() {
+        if(!mWindow.isEmpty()) {
+            keep(mWindow.get(mWindow.size() - 1));
+            mDropped += mWindow.size() - 1;
+            mWindow.clear();
+        }
+        mAnchor = null;
+    }
+
+    /** @return fixes passed to the sink */
+    long getKeptCount() { return mKept; }
+
+    /** @return fixes dropped */
+    long getDroppedCount() { return mDropped; }
+
+    private void keep(Fix fix) {
+        mKept++;
+        mSink.keep(fix.mLocation, fix.mTime);
+    }
+
+    /**
+     * Checks that every fix in the window lies within the tolerance of the line from
+     * the anchor to a new fix. Uses a flat projection around the anchor, which is close
+     * enough over the distances between fixes.
+     */
+    private boolean fits(Fix end) {
+        double scale = Math.cos(Math.toRadians(mAnchor.mLat)) * METERS_PER_DEGREE;
+        double ex    = x(end, scale);
+        double ey    = y(end);
+        double len2  = ex * ex + ey * ey;
+
+        for(int i = 0, n = mWindow.size(); i < n; i++) {
+            Fix    fix = mWindow.get(i);
+            double px  = x(fix, scale);
+            double py  = y(fix);
+            double t   = len2 == 0 ? 0 : Math.max(0, Math.min(1, (px * ex + py * ey) / len2));
+            double dx  = px - t * ex;               // From the nearest point of the segment.
+            double dy  = py - t * ey;
+
+            if(dx * dx + dy * dy > mTolerance2) return false;
+        }
+        return true;
+    }
+
+    /** @return meters east of the anchor */
+    private double x(Fix fix, double scale) {
+        double dLng = fix.mLng - mAnchor.mLng;
+
+        if(dLng > 180)       dLng -= 360;           // Across the antimeridian.
+        else if(dLng < -180) dLng += 360;
+        return dLng * scale;
+    }
+
+    /** @return meters north of the anchor */
+    private double y(Fix fix) { return (fix.mLat - mAnchor.mLat) * METERS_PER_DEGREE; }
+
+    /**
+     * A fix and the time it was collected.
+     */
+    private static final class Fix {
+        final Location mLocation;
+        final long     mTime;
+        final double   mLat;
+        final double   mLng;
+
+        Fix(Location location, long time) {
+            mLocation = location;
+            mTime     = time;
+            mLat      = location.getLatitude();
+            mLng      = location.getLongitude();
+        }
+    }
+}
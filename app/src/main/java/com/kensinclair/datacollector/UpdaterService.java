@@ -37,4 +37,21 @@ public abstract class UpdaterService extends Service {
      * Does nothing. Prevents method from cluttering up child classes.
      */
     @Override public IBinder onBind(Intent intent) { return null; }
-}
+
+    /**
+     * Keeps the database open while the service runs.
+     */
+    @Override public void onCreate() {
+        super.onCreate();
+        DbManager.getInstance(this).acquireReference();
+    }
+
+    /**
+     * Releases the database. Whatever the service has queued is
+     * committed by the writer thread, without holding up the main thread.
+     */
+    @Override public void onDestroy() {
+        super.onDestroy();
+        DbManager.getInstance(this).releaseReference();
+    }
+}
\ No newline at end of file
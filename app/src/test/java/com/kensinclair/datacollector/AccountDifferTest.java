@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.accounts.Account;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests <code>AccountDiffer</code>: updates are diffed against the set still
+ * being written, only committed sets are saved, and lost rows are written again.
+ *
+ * @author Ken Sinclair
+ */
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class AccountDifferTest {
+    private static final long    T0    = 1433116800000L;   // 2015-06-01 00:00 UTC.
+    private static final Account ALICE = new Account("alice", "com.google");
+    private static final Account BOB   = new Account("bob", "com.google");
+
+    private AccountDiffer mDiffer;
+
+    @Before public void setUp() { mDiffer = new AccountDiffer(RuntimeEnvironment.application); }
+
+    @Test public void firstSetIsSnapshot() {
+        IngestionQueue.AccountsEntry entry = mDiffer.diff(accounts(ALICE, BOB), T0);
+
+        assertEquals(2, entry.mNames.length);
+        assertEquals(DataDumpContract.AccountsTable.EVENT_SNAPSHOT, entry.mEvents[0]);
+    }
+
+    @Test public void updateBeforeCommitIsDiffedAgainstPending() {
+        mDiffer.diff(accounts(ALICE), T0);
+        assertNull(mDiffer.diff(accounts(ALICE), T0 + 1));     // Not committed yet.
+
+        IngestionQueue.AccountsEntry entry = mDiffer.diff(accounts(ALICE, BOB), T0 + 2);
+        assertArrayEquals(new String[] { "bob" }, entry.mNames);
+        assertEquals(DataDumpContract.AccountsTable.EVENT_ADDED, entry.mEvents[0]);
+    }
+
+    @Test public void lostRowsAreWrittenAgain() {
+        mDiffer.diff(accounts(ALICE), T0);
+        mDiffer.commit(accounts(ALICE));
+
+        mDiffer.diff(accounts(ALICE, BOB), T0 + 1);
+        mDiffer.undo();
+
+        IngestionQueue.AccountsEntry entry = mDiffer.diff(accounts(ALICE, BOB), T0 + 2);
+        assertArrayEquals(new String[] { "bob" }, entry.mNames);
+    }
+
+    @Test public void onlyCommittedSetIsSaved() {
+        mDiffer.diff(accounts(ALICE), T0);
+        mDiffer.commit(accounts(ALICE));
+        mDiffer.diff(accounts(ALICE, BOB), T0 + 1);                // Never committed.
+
+        AccountDiffer restarted = new AccountDiffer(RuntimeEnvironment.application);
+        IngestionQueue.AccountsEntry entry = restarted.diff(accounts(ALICE, BOB), T0 + 2);
+        assertArrayEquals(new String[] { "bob" }, entry.mNames);
+    }
+
+    private static Account[] accounts(Account... accounts) { return accounts; }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests <code>CardinalitySketch</code>.
+ *
+ * @author Ken Sinclair
+ */
+
+public class CardinalitySketchTest {
+    private static final double ERROR = 0.05;       // Well over the standard error.
+
+    @Test public void emptySketchEstimatesZero() {
+        assertEquals(0, new CardinalitySketch().estimate());
+    }
+
+    @Test public void repeatedValueDoesNotChangeSketch() {
+        CardinalitySketch sketch = new CardinalitySketch();
+
+        assertTrue(sketch.add(42));
+        assertFalse(sketch.add(42));
+        assertEquals(1, sketch.estimate());
+    }
+
+    @Test public void smallCountIsNearlyExact() {
+        CardinalitySketch sketch = new CardinalitySketch();
+
+        for(long value = 0; value < 100; value++) sketch.add(value);
+        for(long value = 0; value < 100; value++) sketch.add(value);    // Seen twice.
+
+        assertEquals(100, sketch.estimate(), 3);
+    }
+
+    @Test public void largeCountIsWithinError() {
+        CardinalitySketch sketch = new CardinalitySketch();
+
+        for(long value = 0; value < 100000; value++) sketch.add(value * 7919);
+
+        assertEquals(100000, sketch.estimate(), 100000 * ERROR);
+    }
+
+    @Test public void mergeCountsSharedValuesOnce() {
+        CardinalitySketch first  = new CardinalitySketch();
+        CardinalitySketch second = new CardinalitySketch();
+
+        for(long value = 0; value < 6000; value++)     first.add(value);
+        for(long value = 4000; value < 10000; value++) second.add(value);
+        first.merge(second);
+
+        assertEquals(10000, first.estimate(), 10000 * ERROR);
+    }
+
+    @Test public void bytesRestoreTheSketch() {
+        CardinalitySketch sketch = new CardinalitySketch();
+
+        for(long value = 0; value < 5000; value++) sketch.add(value);
+        CardinalitySketch restored = CardinalitySketch.fromBytes(sketch.toBytes());
+
+        assertEquals(sketch.estimate(), restored.estimate());
+        assertFalse(restored.add(1));                   // Already in it.
+    }
+
+    @Test public void missingOrForeignBytesGiveEmptySketch() {
+        assertEquals(0, CardinalitySketch.fromBytes(null).estimate());
+        assertEquals(0, CardinalitySketch.fromBytes(new byte[16]).estimate());
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests <code>ColdArchive</code>: rows moved into blocks read back as they
+ * were, a hold stops the move, rows a delta export has yet to copy stay
+ * live, and a damaged block is skipped. Each test
+ * writes location rows in a month of 2001 of its own, since the database is
+ * shared, and every test archives its rows before it ends.
+ *
+ * @author Ken Sinclair
+ */
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ColdArchiveTest {
+    private static final long   JAN_2001 = 978307200000L;     // 2001-01-01 00:00 UTC.
+    private static final long   FEB_2001 = 980985600000L;
+    private static final long   MAR_2001 = 983404800000L;
+    private static final long   APR_2001 = 986083200000L;
+    private static final long   WINDOW   = 7 * RetentionPolicy.DAY;
+    private static final int    ROWS     = 5000;               // More than a block.
+    private static final String LOCATION = DataDumpContract.PartitionsTable.KIND_LOCATION;
+
+    @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private DbManager      mDbManager;
+    private SQLiteDatabase mDb;
+    private ColdArchive    mArchive;
+
+    @Before public void setUp() {
+        mDbManager = DbManager.getInstance(RuntimeEnvironment.application);
+        mDb        = mDbManager.getDatabase();
+        mArchive   = new ColdArchive(mDbManager, mFolder.getRoot());
+    }
+
+    @After public void tearDown() { mDbManager.close(); }    // Reopened by the next test.
+
+    @Test public void archivedRowsReadBack() {
+        long start = MAR_2001;
+
+        writeLocations(start, ROWS);
+        assertEquals(ROWS, mArchive.archive(LOCATION, start + WINDOW));
+        assertEquals(0, liveRows(start));
+
+        List<ColdArchive.Block> blocks = ColdArchive.list(mDb, LOCATION, start, start + WINDOW);
+        assertEquals(2, blocks.size());
+        assertEquals(start, blocks.get(0).mStart);
+        assertEquals(2, mArchive.getBlocksWritten());
+
+        int read = 0;
+        for(ColdArchive.Block block:blocks) {
+            Cursor c = mArchive.read(block, start, start + WINDOW);
+            try {
+                int lat = c.getColumnIndexOrThrow(DataDumpContract.LocationTable.COLUMN_NAME_LAT);
+                int acc = c.getColumnIndexOrThrow(DataDumpContract.LocationTable.COLUMN_NAME_ACC);
+
+                while(c.moveToNext()) {
+                    assertEquals(start + read * 1000L, c.getLong(1));  // Oldest first.
+                    assertEquals(latitude(read), c.getDouble(lat), 0);
+                    assertEquals(10, c.getFloat(acc), 0);
+                    read++;
+                }
+            } finally { c.close(); }
+        }
+        assertEquals(ROWS, read);
+    }
+
+    @Test public void readLimitsRowsToWindow() {
+        long start = MAR_2001 + 2 * WINDOW;
+
+        writeLocations(start, 100);
+        mArchive.archive(LOCATION, start + WINDOW);
+
+        List<ColdArchive.Block> blocks = ColdArchive.list(mDb, LOCATION, start, start + WINDOW);
+        assertEquals(1, blocks.size());
+
+        Cursor c = mArchive.read(blocks.get(0), start + 10 * 1000L, start + 20 * 1000L);
+        try {
+            assertEquals(10, c.getCount());
+        } finally { c.close(); }
+    }
+
+    @Test public void holdStopsArchiving() {
+        long start = FEB_2001;
+
+        writeLocations(start, 100);
+        synchronized (mDbManager.getWriteLock()) {
+            mArchive.hold();
+        }
+        try {
+            assertEquals(0, mArchive.archive(LOCATION, start + WINDOW));
+            assertEquals(100, liveRows(start));
+            assertEquals(0, ColdArchive.list(mDb, LOCATION, start, start + WINDOW).size());
+        } finally { mArchive.release(); }
+
+        assertEquals(100, mArchive.archive(LOCATION, start + WINDOW));
+        assertEquals(0, liveRows(start));
+        assertEquals(1, ColdArchive.list(mDb, LOCATION, start, start + WINDOW).size());
+    }
+
+    @Test public void rowsAboveExportMarkStayLive() {
+        long start = APR_2001;
+
+        writeLocations(start, 100);
+        String table = PartitionManager.list(mDb, LOCATION, start, start + WINDOW).get(0)
+                                       .getDataTable();
+        long   mark  = DatabaseUtils.longForQuery(mDb, "SELECT _id FROM " + table
+                + " WHERE time = ?", new String[] { Long.toString(start + 39 * 1000L) });
+
+        mDb.execSQL("INSERT INTO " + DataDumpContract.ExportMarksTable.TABLE_NAME + " ("
+                + DataDumpContract.ExportMarksTable.COLUMN_NAME_NAME + ","
+                + DataDumpContract.ExportMarksTable.COLUMN_NAME_LAST_ID + ") VALUES (?,?)",
+                new Object[] { table, mark });
+        try {
+            assertEquals(40, mArchive.archive(LOCATION, start + WINDOW));
+            assertEquals(60, liveRows(start));
+        } finally {
+            mDb.execSQL("DELETE FROM " + DataDumpContract.ExportMarksTable.TABLE_NAME);
+        }
+
+        assertEquals(60, mArchive.archive(LOCATION, start + WINDOW));   // By age alone again.
+        assertEquals(0, liveRows(start));
+    }
+
+    @Test public void damagedBlockIsSkipped() throws IOException {
+        long start = JAN_2001;
+
+        writeLocations(start, 100);
+        assertEquals(100, mArchive.archive(LOCATION, start + WINDOW));
+
+        ColdArchive.Block block = ColdArchive.list(mDb, LOCATION, start, start + WINDOW).get(0);
+        RandomAccessFile  file  = new RandomAccessFile(new File(mFolder.getRoot(), block.mFile),
+                                                       "rw");
+        try {
+            long offset = block.mOffset + 32 + block.mLength / 2;      // Past the header.
+            file.seek(offset);
+            int b = file.read();
+            file.seek(offset);
+            file.write(b ^ 0xff);
+        } finally { file.close(); }
+
+        Cursor c = mArchive.read(block, start, start + WINDOW);
+        try {
+            assertEquals(0, c.getCount());
+        } finally { c.close(); }
+        assertEquals(1, mArchive.getBadBlocks());
+    }
+
+    /** Writes fixes a second apart, in one transaction. */
+    private void writeLocations(long start, int count) {
+        List<IngestionQueue.LocationEntry> fixes = new ArrayList<>(count);
+
+        for(int i = 0; i < count; i++)
+            fixes.add(new IngestionQueue.LocationEntry(start + i * 1000L, latitude(i), -75,
+                                                       0, 0, 100, 10));
+        new DbUpdater(RuntimeEnvironment.application).write(fixes);
+    }
+
+    /** @return the live location rows in the window starting at a time */
+    private long liveRows(long start) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM " + LOCATION
+                + DataDumpContract.PartitionsTable.ALL_SUFFIX + " WHERE time >= ? AND time < ?",
+                new String[] { Long.toString(start), Long.toString(start + WINDOW) });
+    }
+
+    private static double latitude(int i) { return 45 + i / 100000.0; }
+}
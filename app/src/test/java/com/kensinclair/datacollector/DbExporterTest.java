@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests <code>DbExporter</code>: tables updated in place are exported as of
+ * the snapshot, a table dropped during the export is skipped, and a columnar
+ * export only rounds locations when asked to.
+ *
+ * @author Ken Sinclair
+ */
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class DbExporterTest {
+    private static final long   T0      = 1433116800000L;  // 2015-06-01 00:00 UTC.
+    private static final String DROPPED = "dropped_test";  // Created after every other table.
+    private static final double LAT     = 45.123456789012;
+
+    @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private DbManager      mDbManager;
+    private SQLiteDatabase mDb;
+
+    @Before public void setUp() {
+        mDbManager = DbManager.getInstance(RuntimeEnvironment.application);
+        mDb        = mDbManager.getDatabase();
+    }
+
+    @After public void tearDown() {
+        mDb.execSQL("DROP TABLE IF EXISTS " + DROPPED);
+        mDbManager.close();                         // Reopened by the next test.
+    }
+
+    @Test public void inPlaceTablesAreExported() throws IOException {
+        HourlyRollups rollups = new HourlyRollups(mDbManager);
+
+        synchronized (mDbManager.getWriteLock()) {
+            rollups.onLocation(T0);
+            rollups.onLocation(T0 + 1000);
+            assertTrue(rollups.flush());
+        }
+
+        SQLiteDatabase out = export(null);
+        try {
+            assertEquals(count(mDb, DataDumpContract.HourlyRollupsTable.TABLE_NAME),
+                         count(out, DataDumpContract.HourlyRollupsTable.TABLE_NAME));
+            assertEquals(count(mDb, DataDumpContract.PartitionsTable.TABLE_NAME),
+                         count(out, DataDumpContract.PartitionsTable.TABLE_NAME));
+            assertEquals(2, DatabaseUtils.longForQuery(out, "SELECT "
+                    + DataDumpContract.HourlyRollupsTable.COLUMN_NAME_LOCATIONS + " FROM "
+                    + DataDumpContract.HourlyRollupsTable.TABLE_NAME + " WHERE "
+                    + DataDumpContract.HourlyRollupsTable.COLUMN_NAME_HOUR + " = " + T0, null));
+        } finally { out.close(); }
+    }
+
+    @Test public void droppedTableIsSkipped() throws IOException {
+        HourlyRollups rollups = new HourlyRollups(mDbManager);
+
+        synchronized (mDbManager.getWriteLock()) {
+            rollups.onLocation(T0);                 // So there is progress before the drop.
+            assertTrue(rollups.flush());
+        }
+        mDb.execSQL("CREATE TABLE " + DROPPED + " (_id INTEGER PRIMARY KEY, value INTEGER)");
+        for(int i = 0; i < 10; i++) mDb.execSQL("INSERT INTO " + DROPPED + " (value) VALUES (0)");
+
+        SQLiteDatabase out = export(new DbExporter.ProgressListener() {
+            @Override public void onProgress(long rows, long totalRows) {
+                mDb.execSQL("DROP TABLE IF EXISTS " + DROPPED);
+            }
+        });
+        try {
+            assertEquals(0, count(out, DROPPED));
+            assertEquals(count(mDb, DataDumpContract.HourlyRollupsTable.TABLE_NAME),
+                         count(out, DataDumpContract.HourlyRollupsTable.TABLE_NAME));
+        } finally { out.close(); }
+    }
+
+    @Test public void columnarExportIsLosslessUnlessAsked() throws IOException {
+        long time = T0 + 12345;
+
+        assertTrue(new DbUpdater(RuntimeEnvironment.application).write(
+                new IngestionQueue.LocationEntry(time, LAT, -75, 0, 0, 100, 10)));
+
+        assertEquals(LAT, readLatitude(false, time), 0);
+        double rounded = readLatitude(true, time);
+        assertTrue(rounded != LAT);
+        assertEquals(LAT, rounded, 1e-7);
+    }
+
+    /** @return the full export, opened */
+    private SQLiteDatabase export(DbExporter.ProgressListener listener) throws IOException {
+        File target = new File(mFolder.getRoot(), "export.db");
+
+        new DbExporter(RuntimeEnvironment.application).export(target, listener);
+        return SQLiteDatabase.openDatabase(target.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+    }
+
+    /** @return the latitude of the location row at <code>time</code> in a columnar export */
+    private double readLatitude(boolean lossy, long time) throws IOException {
+        File target = new File(mFolder.getRoot(), "export.cols");
+
+        new DbExporter(RuntimeEnvironment.application).exportColumnar(target, lossy, null);
+        InputStream in = new BufferedInputStream(new FileInputStream(target));
+        try {
+            ColumnarReader reader = new ColumnarReader(in);
+            while(reader.nextTable()) {
+                if(!DataDumpContract.LocationTable.TABLE_NAME.equals(reader.getTableName()))
+                    continue;
+
+                int lat = Arrays.asList(reader.getColumnNames())
+                                .indexOf(DataDumpContract.LocationTable.COLUMN_NAME_LAT);
+                for(ColumnarReader.Block block; (block = reader.nextBlock(time, time + 1)) != null;)
+                    for(int row = 0; row < block.mRows; row++)
+                        if(block.getTime(row) == time) return block.getDouble(lat, row);
+            }
+        } finally { in.close(); }
+        throw new AssertionError("No location row at " + time + ".");
+    }
+
+    /** @return the rows in a table */
+    private static long count(SQLiteDatabase db, String table) {
+        return DatabaseUtils.queryNumEntries(db, table);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests <code>HourlyRollups</code>: counts are added with the rows they count,
+ * and a rollback discards them. Each test counts hours of its own, since
+ * the database is shared.
+ *
+ * @author Ken Sinclair
+ */
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class HourlyRollupsTest {
+    private static final long T0 = 1433116800000L;      // 2015-06-01 00:00 UTC.
+
+    private DbManager      mDbManager;
+    private SQLiteDatabase mDb;
+    private HourlyRollups  mRollups;
+
+    @Before public void setUp() {
+        mDbManager = DbManager.getInstance(RuntimeEnvironment.application);
+        mDb        = mDbManager.getDatabase();
+        mRollups   = new HourlyRollups(mDbManager);
+    }
+
+    @After public void tearDown() { mDbManager.close(); }    // Reopened by the next test.
+
+    @Test public void countsCommitWithRows() {
+        long hour = T0;
+
+        synchronized (mDbManager.getWriteLock()) {
+            mDb.beginTransaction();
+            try {
+                mRollups.onLocation(hour + 1000);
+                mRollups.onLocation(hour + 2000);
+                mRollups.onNetwork(hour + 3000);
+                assertTrue(mRollups.onScan(hour + 4000, new long[] { 1, 2, 3 }));
+                assertTrue(mRollups.onScan(hour + 5000, new long[] { 2, 3, 4 }));
+                assertTrue(mRollups.flush());
+                mDb.setTransactionSuccessful();
+            } finally { mDb.endTransaction(); }
+        }
+
+        assertEquals(2, get(hour, DataDumpContract.HourlyRollupsTable.COLUMN_NAME_LOCATIONS));
+        assertEquals(1, get(hour, DataDumpContract.HourlyRollupsTable.COLUMN_NAME_NETWORK));
+        assertEquals(2, get(hour, DataDumpContract.HourlyRollupsTable.COLUMN_NAME_SCANS));
+        assertEquals(6, get(hour, DataDumpContract.HourlyRollupsTable.COLUMN_NAME_RESULTS));
+        assertEquals(4, get(hour, DataDumpContract.HourlyRollupsTable.COLUMN_NAME_BSSIDS));
+    }
+
+    @Test public void rollbackDiscardsCounts() {
+        long hour = T0 + 10 * HourlyRollups.HOUR;
+
+        synchronized (mDbManager.getWriteLock()) {
+            mDb.beginTransaction();
+            try {
+                mRollups.onLocation(hour + 1000);
+                assertTrue(mRollups.onScan(hour + 2000, new long[] { 1 }));
+                assertTrue(mRollups.flush());
+            } finally { mDb.endTransaction(); }         // Rolled back.
+            mRollups.invalidate();
+
+            mDb.beginTransaction();
+            try {
+                mRollups.onLocation(hour + 3000);
+                assertTrue(mRollups.onScan(hour + 4000, new long[] { 5 }));
+                assertTrue(mRollups.flush());
+                mDb.setTransactionSuccessful();
+            } finally { mDb.endTransaction(); }
+        }
+
+        assertEquals(1, get(hour, DataDumpContract.HourlyRollupsTable.COLUMN_NAME_LOCATIONS));
+        assertEquals(1, get(hour, DataDumpContract.HourlyRollupsTable.COLUMN_NAME_SCANS));
+        assertEquals(1, get(hour, DataDumpContract.HourlyRollupsTable.COLUMN_NAME_BSSIDS));
+    }
+
+    @Test public void laterFlushAddsToHour() {
+        long hour = T0 + 20 * HourlyRollups.HOUR;
+
+        synchronized (mDbManager.getWriteLock()) {
+            for(int i = 0; i < 3; i++) {
+                mRollups.onLocation(hour + i * 1000);
+                assertTrue(mRollups.onScan(hour + i * 1000, new long[] { 7 }));
+                assertTrue(mRollups.flush());
+            }
+        }
+
+        assertEquals(3, get(hour, DataDumpContract.HourlyRollupsTable.COLUMN_NAME_LOCATIONS));
+        assertEquals(1, get(hour, DataDumpContract.HourlyRollupsTable.COLUMN_NAME_BSSIDS));
+        assertEquals(1, mRollups.getSketchWriteCount());        // Only the first scan changed it.
+    }
+
+    @Test public void distinctBssidsMergesHours() {
+        long hour = T0 + 30 * HourlyRollups.HOUR;
+
+        synchronized (mDbManager.getWriteLock()) {
+            assertTrue(mRollups.onScan(hour, new long[] { 1, 2, 3 }));
+            assertTrue(mRollups.onScan(hour + HourlyRollups.HOUR, new long[] { 3, 4 }));
+            assertTrue(mRollups.flush());
+        }
+
+        assertEquals(4, HourlyRollups.distinctBssids(mDb, hour, hour + 2 * HourlyRollups.HOUR));
+        assertEquals(3, HourlyRollups.distinctBssids(mDb, hour, hour + HourlyRollups.HOUR));
+    }
+
+    @Test public void hourOfRoundsDown() {
+        assertEquals(T0, HourlyRollups.hourOf(T0));
+        assertEquals(T0, HourlyRollups.hourOf(T0 + HourlyRollups.HOUR - 1));
+        assertEquals(-HourlyRollups.HOUR, HourlyRollups.hourOf(-1));
+    }
+
+    /** @return a column of an hour's row */
+    private long get(long hour, String column) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT " + column + " FROM "
+                + DataDumpContract.HourlyRollupsTable.TABLE_NAME + " WHERE "
+                + DataDumpContract.HourlyRollupsTable.COLUMN_NAME_HOUR + " = ?",
+                new String[] { Long.toString(hour) });
+    }
+}
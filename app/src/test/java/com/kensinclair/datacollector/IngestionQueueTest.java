@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.sqlite.SQLiteFullException;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests <code>IngestionQueue</code>: entries are written in order, spilled
+ * while the database is unavailable, and replayed before anything newer, and
+ * an entry which throws costs only itself.
+ *
+ * @author Ken Sinclair
+ */
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class IngestionQueueTest {
+    private static final long T0      = 1433116800000L; // 2015-06-01 00:00 UTC.
+    private static final long TIMEOUT = 5000;
+    private static final long RETRY   = 2000;           // Past the first retry delay.
+
+    @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FakeUpdater mUpdater;
+    private File        mFile;
+
+    @Before public void setUp() {
+        mUpdater = new FakeUpdater();
+        mFile    = new File(mFolder.getRoot(), "spill");
+    }
+
+    @Test public void entriesAreWrittenInOrder() {
+        IngestionQueue queue = new IngestionQueue(mUpdater, mFile);
+
+        for(int i = 0; i < 5; i++) assertTrue(queue.enqueue(location(i)));
+        assertTrue(queue.flush(TIMEOUT));
+
+        assertWritten(0, 1, 2, 3, 4);
+        assertEquals(5, queue.getWrittenCount());
+        assertEquals(0, queue.getSpilledCount());
+    }
+
+    @Test public void entriesSpillWhileUnavailable() {
+        IngestionQueue queue = new IngestionQueue(mUpdater, mFile);
+
+        mUpdater.mAvailable = false;
+        for(int i = 0; i < 3; i++) queue.enqueue(location(i));
+        assertTrue(queue.flush(TIMEOUT));
+
+        assertWritten();
+        assertEquals(3, queue.getSpilledCount());
+        assertTrue(queue.getRetryCount() > 0);
+        assertEquals(3, new SpillFile(mFile, Long.MAX_VALUE).readAll().size());
+    }
+
+    @Test public void spilledEntriesReplayBeforeNewer() {
+        IngestionQueue queue = new IngestionQueue(mUpdater, mFile);
+
+        mUpdater.mAvailable = false;
+        for(int i = 0; i < 3; i++) queue.enqueue(location(i));
+        assertTrue(queue.flush(TIMEOUT));
+
+        mUpdater.mAvailable = true;
+        queue.enqueue(location(3));
+        assertTrue(queue.flush(TIMEOUT));
+        assertWritten();                                // Still waiting for the retry.
+
+        SystemClock.sleep(RETRY);
+        queue.enqueue(location(4));
+        assertTrue(queue.flush(TIMEOUT));
+
+        assertWritten(0, 1, 2, 3, 4);
+        assertEquals(4, queue.getReplayedCount());
+        assertTrue(queue.getReplayLatency() >= RETRY);
+        assertFalse(mFile.exists());
+    }
+
+    @Test public void leftoverSpillIsWrittenFirst() {
+        new SpillFile(mFile, Long.MAX_VALUE).append(Arrays.asList(location(0), location(1)));
+        IngestionQueue queue = new IngestionQueue(mUpdater, mFile);
+
+        queue.enqueue(location(2));
+        assertTrue(queue.flush(TIMEOUT));
+
+        assertWritten(0, 1, 2);
+        assertEquals(2, queue.getReplayedCount());
+        assertFalse(mFile.exists());
+    }
+
+    @Test public void throwingEntryIsDroppedAlone() {
+        IngestionQueue queue = new IngestionQueue(mUpdater, mFile);
+
+        mUpdater.mBadTime = T0 + 2;
+        for(int i = 0; i < 5; i++) queue.enqueue(location(i));
+        assertTrue(queue.flush(TIMEOUT));
+
+        assertWritten(0, 1, 3, 4);
+        assertEquals(1, queue.getFailedCount());
+        assertEquals(0, queue.getRetryCount());         // Not taken for an unavailable database.
+        assertEquals(0, queue.getSpilledCount());
+    }
+
+    private static IngestionQueue.LocationEntry location(int i) {
+        return new IngestionQueue.LocationEntry(T0 + i, 45, -75, 0, 0, 100, 10);
+    }
+
+    /** Checks that exactly the given entries were written, in order. */
+    private void assertWritten(int... entries) {
+        List<Long> expected = new ArrayList<>();
+
+        for(int i:entries) expected.add(T0 + i);
+        assertEquals(expected, new ArrayList<>(mUpdater.mTimes));
+    }
+
+    /**
+     * Records the times of the entries written instead of writing them,
+     * or fails as a full database would, or throws for a bad entry.
+     */
+    private static final class FakeUpdater extends DbUpdater {
+        final List<Long> mTimes = Collections.synchronizedList(new ArrayList<Long>());
+
+        volatile boolean mAvailable = true;
+        volatile long    mBadTime   = Long.MIN_VALUE;
+
+        FakeUpdater() { super(RuntimeEnvironment.application); }
+
+        @Override boolean write(List<? extends IngestionQueue.Entry> entries) {
+            if(!mAvailable) throw new SQLiteFullException("database or disk is full");
+            for(IngestionQueue.Entry entry:entries)
+                if(entry.mTime == mBadTime) throw new IllegalStateException("bad entry");
+
+            for(IngestionQueue.Entry entry:entries) mTimes.add(entry.mTime);
+            return true;
+        }
+    }
+}
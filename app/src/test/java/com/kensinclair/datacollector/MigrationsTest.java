@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests <code>Migrations</code>: a database at version 3 upgraded to the
+ * current version, with its background copy failing part way and resumed.
+ *
+ * @author Ken Sinclair
+ */
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class MigrationsTest {
+    private static final long T0   = 1433116800000L;    // 2015-06-01 00:00 UTC.
+    private static final int  ROWS = 2500;              // Three chunks.
+
+    private static final String[] SQL_CREATE_V3 = {
+            "CREATE TABLE accounts (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "time TEXT, name TEXT, type TEXT)",
+            "CREATE TABLE location (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "time TEXT, latitude REAL, longitude REAL, bearing REAL, "
+                    + "speed REAL, altitude REAL, accuracy REAL)",
+            "CREATE TABLE network (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "time TEXT, type TEXT, subtype TEXT, state TEXT, reason TEXT)",
+            "CREATE TABLE wifi_connection (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "time TEXT, ip_address INTEGER, mac_address TEXT, bssid TEXT, "
+                    + "ssid TEXT, hidden INTEGER)",
+            "CREATE TABLE wifi_scan (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "time TEXT, bssid TEXT, ssid TEXT, capabilities TEXT)"
+    };
+
+    private final Object mLock = new Object();
+
+    private SQLiteDatabase mDb;
+
+    @Before public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        for(String sql:SQL_CREATE_V3) mDb.execSQL(sql);
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        mDb.beginTransaction();
+        try {
+            for(int i = 1; i <= ROWS; i++) {
+                String time = i == ROWS ? "garbage" : format.format(new Date(T0 + i * 1000L));
+
+                mDb.execSQL("INSERT INTO location (_id,time,latitude,longitude,bearing,speed,"
+                        + "altitude,accuracy) VALUES (?,?,45,-75,0,0,100,10)",
+                        new Object[] { i, time });
+            }
+            mDb.setTransactionSuccessful();
+        } finally { mDb.endTransaction(); }
+
+        mDb.beginTransaction();
+        try {
+            Migrations.upgrade(mDb, 3, DataDumpDbHelper.DATABASE_VERSION);
+            mDb.setTransactionSuccessful();
+        } finally { mDb.endTransaction(); }
+    }
+
+    @After public void tearDown() { mDb.close(); }
+
+    @Test public void upgradeQueuesCopy() {
+        assertTrue(Migrations.isPending(mDb));
+        assertEquals(0, count("location"));
+        assertEquals(ROWS, count("location_old4"));
+    }
+
+    @Test public void resumeCopiesEveryRow() {
+        Migrations.resume(mDb, mLock);
+
+        assertFalse(Migrations.isPending(mDb));
+        assertCopied();
+    }
+
+    @Test public void failedChunkRollsBackAndResumes() {
+        mDb.execSQL("CREATE TRIGGER trap BEFORE INSERT ON location WHEN NEW._id = 1500 "
+                + "BEGIN SELECT RAISE(ABORT, 'trap'); END");
+        try {
+            Migrations.resume(mDb, mLock);
+            fail("The trapped chunk committed.");
+        } catch (SQLException e) {
+            // Expected.
+        }
+        assertTrue(Migrations.isPending(mDb));
+        assertEquals(1000, count("location"));          // Only the first chunk.
+
+        mDb.execSQL("DROP TRIGGER trap");
+        Migrations.resume(mDb, mLock);
+
+        assertFalse(Migrations.isPending(mDb));
+        assertCopied();
+    }
+
+    /** Checks that every row was copied once, its time parsed. */
+    private void assertCopied() {
+        assertEquals(ROWS, count("location"));
+        assertEquals(ROWS, DatabaseUtils.longForQuery(mDb,
+                "SELECT COUNT(DISTINCT _id) FROM location", null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM sqlite_master "
+                + "WHERE name = 'location_old4'", null));
+
+        Cursor cursor = mDb.rawQuery("SELECT _id, time FROM location ORDER BY _id", null);
+        try {
+            while(cursor.moveToNext()) {
+                int id = cursor.getInt(0);
+
+                if(id == ROWS) assertTrue(cursor.isNull(1));   // Unparseable.
+                else           assertEquals(T0 + id * 1000L, cursor.getLong(1));
+            }
+        } finally { cursor.close(); }
+    }
+
+    private long count(String table) { return DatabaseUtils.queryNumEntries(mDb, table); }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests <code>PartitionManager</code>: row IDs stay unique across a kind's
+ * partitions, and expired partitions are dropped once. Each test writes
+ * location rows in weeks of 2100 of its own, past the base partition, since
+ * the database is shared.
+ *
+ * @author Ken Sinclair
+ */
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class PartitionManagerTest {
+    private static final long   WEEK     = PartitionManager.WEEK;
+    private static final long   Y2100    = PartitionManager.nextWeek(4102444800000L);  // Monday.
+    private static final String LOCATION = DataDumpContract.PartitionsTable.KIND_LOCATION;
+
+    private DbManager      mDbManager;
+    private SQLiteDatabase mDb;
+
+    @Before public void setUp() {
+        mDbManager = DbManager.getInstance(RuntimeEnvironment.application);
+        mDb        = mDbManager.getDatabase();
+    }
+
+    @After public void tearDown() { mDbManager.close(); }    // Reopened by the next test.
+
+    @Test public void idsAreUniqueAcrossPartitions() {
+        long week = Y2100;
+
+        writeLocation(week);
+        writeLocation(week + WEEK);
+        writeLocation(week + 1000);                     // Late, to the older partition.
+
+        assertEquals(2, PartitionManager.list(mDb, LOCATION, week, week + 2 * WEEK).size());
+        assertEquals(3, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(DISTINCT _id) FROM "
+                + LOCATION + DataDumpContract.PartitionsTable.ALL_SUFFIX
+                + " WHERE time >= ? AND time < ?",
+                new String[] { Long.toString(week), Long.toString(week + 2 * WEEK) }));
+    }
+
+    @Test public void expiredPartitionIsDroppedOnce() {
+        long week = Y2100 + 10 * WEEK;
+
+        writeLocation(week);
+        assertEquals(1, PartitionManager.list(mDb, LOCATION, week, week + WEEK).size());
+
+        synchronized (mDbManager.getWriteLock()) {
+            PartitionManager partitions = mDbManager.getPartitionManager();
+
+            assertTrue(partitions.dropBefore(LOCATION, week + WEEK) > 0);  // The base, too, if
+            assertEquals(0, partitions.dropBefore(LOCATION, week + WEEK)); //  it has expired.
+        }
+        assertEquals(0, PartitionManager.list(mDb, LOCATION, week, week + WEEK).size());
+    }
+
+    private void writeLocation(long time) {
+        new DbUpdater(RuntimeEnvironment.application).write(Collections.singletonList(
+                new IngestionQueue.LocationEntry(time, 45, -75, 0, 0, 100, 10)));
+    }
+}
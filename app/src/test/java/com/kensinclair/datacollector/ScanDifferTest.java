@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests <code>ScanDiffer</code>: when a scan is written whole as a keyframe,
+ * and the events describing the others.
+ *
+ * @author Ken Sinclair
+ */
+
+public class ScanDifferTest {
+    private static final long T0 = 1433116800000L;      // 2015-06-01 00:00 UTC.
+
+    private static final int KEYFRAME    = DataDumpContract.WifiScanTable.EVENT_KEYFRAME;
+    private static final int APPEARED    = DataDumpContract.WifiScanTable.EVENT_APPEARED;
+    private static final int DISAPPEARED = DataDumpContract.WifiScanTable.EVENT_DISAPPEARED;
+
+    private ScanDiffer mDiffer;
+
+    @Before public void setUp() { mDiffer = new ScanDiffer(); }
+
+    @Test public void firstScanIsKeyframe() {
+        scan(T0, 1, 2, 3);
+
+        assertEquals(3, mDiffer.getSize());
+        for(int row = 0; row < 3; row++) assertEquals(KEYFRAME, mDiffer.getEvent(row));
+        assertEquals(1, mDiffer.getKeyframeCount());
+    }
+
+    @Test public void unchangedScanWritesNothing() {
+        scan(T0, 1, 2, 3);
+        scan(T0 + 1000, 3, 2, 1);
+
+        assertEquals(0, mDiffer.getSize());
+        assertEquals(2, mDiffer.getScanCount());
+        assertEquals(3, mDiffer.getRowCount());
+    }
+
+    @Test public void changesAreWrittenAsEvents() {
+        scan(T0, 1, 2, 3);
+        mDiffer.diff(T0 + 1000, new long[] { 2, 3, 4 },
+                     new String[] { "ap2", "renamed", "ap4" },
+                     new String[] { "[WPA2]", "[WPA2]", "[WPA2]" });
+
+        assertEquals(3, mDiffer.getSize());
+        assertEquals(APPEARED,    eventOf(3));          // Changed.
+        assertEquals(APPEARED,    eventOf(4));
+        assertEquals(DISAPPEARED, eventOf(1));
+    }
+
+    @Test public void keyframeAfterInterval() {
+        scan(T0, 1, 2);
+        scan(T0 + ScanDiffer.KEYFRAME_INTERVAL - 1, 1, 2);
+        assertEquals(0, mDiffer.getSize());
+
+        scan(T0 + ScanDiffer.KEYFRAME_INTERVAL, 1, 2);
+        assertEquals(2, mDiffer.getSize());
+        assertEquals(KEYFRAME, mDiffer.getEvent(0));
+    }
+
+    @Test public void keyframeWhenClockGoesBack() {
+        scan(T0, 1, 2);
+        scan(T0 - 1000, 1, 2);
+
+        assertEquals(2, mDiffer.getSize());
+        assertEquals(KEYFRAME, mDiffer.getEvent(0));
+    }
+
+    @Test public void emptyKeyframeWritesMarker() {
+        scan(T0);
+
+        assertEquals(1, mDiffer.getSize());
+        assertEquals(MacAddresses.NONE, mDiffer.getBssid(0));
+        assertEquals(KEYFRAME, mDiffer.getEvent(0));
+    }
+
+    @Test public void resetForcesKeyframe() {
+        scan(T0, 1, 2);
+        mDiffer.reset();
+        scan(T0 + 1000, 1, 2);
+
+        assertEquals(2, mDiffer.getSize());
+        assertEquals(KEYFRAME, mDiffer.getEvent(0));
+    }
+
+    @Test public void newPartitionForcesKeyframe() {
+        mDiffer.setPartition(1);
+        scan(T0, 1, 2);
+        mDiffer.setPartition(1);
+        scan(T0 + 1000, 1, 2);
+        assertEquals(0, mDiffer.getSize());
+
+        mDiffer.setPartition(2);
+        scan(T0 + 2000, 1, 2);
+        assertEquals(2, mDiffer.getSize());
+        assertEquals(KEYFRAME, mDiffer.getEvent(0));
+    }
+
+    @Test public void malformedBssidIsNotFollowed() {
+        scan(T0, 1, MacAddresses.NONE);
+        assertEquals(2, mDiffer.getSize());             // Kept whole in the keyframe.
+
+        scan(T0 + 1000, 1, MacAddresses.NONE);
+        assertEquals(0, mDiffer.getSize());
+    }
+
+    @Test public void largeScanGrowsRows() {
+        long[] bssids = new long[200];
+        for(int i = 0; i < bssids.length; i++) bssids[i] = i + 1;
+
+        scan(T0, bssids);
+        assertEquals(200, mDiffer.getSize());
+        assertEquals(200, mDiffer.getBssid(199));
+    }
+
+    /** Diffs a scan whose access points are named for their BSSIDs. */
+    private void scan(long time, long... bssids) {
+        String[] ssids = new String[bssids.length];
+        String[] caps  = new String[bssids.length];
+
+        for(int i = 0; i < bssids.length; i++) {
+            ssids[i] = "ap" + bssids[i];
+            caps[i]  = "[WPA2]";
+        }
+        mDiffer.diff(time, bssids, ssids, caps);
+    }
+
+    /** @return the event of the last diff's row for a BSSID */
+    private int eventOf(long bssid) {
+        for(int row = 0; row < mDiffer.getSize(); row++)
+            if(mDiffer.getBssid(row) == bssid) return mDiffer.getEvent(row);
+        throw new AssertionError("No row for " + bssid);
+    }
+}
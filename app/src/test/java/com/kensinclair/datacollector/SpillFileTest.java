@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests <code>SpillFile</code>: entries read back as they were appended,
+ * and damaged records end the file. Run with Robolectric for the logging.
+ *
+ * @author Ken Sinclair
+ */
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class SpillFileTest {
+    private static final long T0 = 1433116800000L;      // 2015-06-01 00:00 UTC.
+
+    @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before public void setUp() { mFile = new File(mFolder.getRoot(), "spill"); }
+
+    @Test public void newFileIsEmpty() {
+        SpillFile spill = new SpillFile(mFile, 4096);
+
+        assertTrue(spill.isEmpty());
+        assertEquals(0, spill.readAll().size());
+    }
+
+    @Test public void entriesReadBackInOrder() {
+        SpillFile spill = new SpillFile(mFile, 4096);
+
+        assertEquals(3, spill.append(Arrays.asList(location(0), location(1), location(2))));
+        List<IngestionQueue.Entry> entries = spill.readAll();
+
+        assertEquals(3, entries.size());
+        for(int i = 0; i < 3; i++) assertLocation(i, entries.get(i));
+        assertEquals(mFile.length(), spill.getBytes());
+    }
+
+    @Test public void unsyncedFileReadsBack() {
+        SpillFile spill = new SpillFile(mFile, 4096, false);
+
+        assertEquals(2, spill.append(Arrays.asList(location(0), location(1))));
+        assertTrue(spill.rewrite(Collections.<IngestionQueue.Entry>singletonList(location(1))));
+
+        List<IngestionQueue.Entry> entries = new SpillFile(mFile, 4096, false).readAll();
+        assertEquals(1, entries.size());
+        assertLocation(1, entries.get(0));
+    }
+
+    @Test public void everyKindRoundTrips() {
+        SpillFile spill = new SpillFile(mFile, 4096);
+        List<IngestionQueue.Entry> entries = new ArrayList<>();
+
+        entries.add(new IngestionQueue.AccountsEntry(new String[] { "ken", "work" },
+                new String[] { "com.google", null }, new int[] { 1, 2 }, T0));
+        entries.add(new IngestionQueue.LocationBatchEntry(Arrays.asList(location(3), location(4))));
+        entries.add(new IngestionQueue.NetworkEntry(T0 + 5, "WIFI", null, "CONNECTED", "none"));
+        entries.add(new IngestionQueue.WifiConnectionEntry(T0 + 6, 0x0100a8c0, 0x112233445566L,
+                0x665544332211L, "home", true));
+        entries.add(new IngestionQueue.WifiScanEntry(T0 + 7, new long[] { 1, 2 },
+                new String[] { "home", null }, new String[] { "[WPA2]", "[ESS]" }));
+        assertEquals(entries.size(), spill.append(entries));
+
+        List<IngestionQueue.Entry> read = new SpillFile(mFile, 4096).readAll();
+        assertEquals(entries.size(), read.size());
+
+        IngestionQueue.AccountsEntry accounts = (IngestionQueue.AccountsEntry) read.get(0);
+        assertEquals(T0, accounts.mTime);
+        assertEquals("work", accounts.mNames[1]);
+        assertNull(accounts.mTypes[1]);
+        assertEquals(2, accounts.mEvents[1]);
+
+        List<IngestionQueue.LocationEntry> fixes =
+                ((IngestionQueue.LocationBatchEntry) read.get(1)).mFixes;
+        assertEquals(2, fixes.size());
+        assertLocation(4, fixes.get(1));
+
+        IngestionQueue.NetworkEntry network = (IngestionQueue.NetworkEntry) read.get(2);
+        assertEquals("WIFI", network.mType);
+        assertNull(network.mSubtype);
+        assertEquals("none", network.mReason);
+
+        IngestionQueue.WifiConnectionEntry wifi = (IngestionQueue.WifiConnectionEntry) read.get(3);
+        assertEquals(0x665544332211L, wifi.mBssid);
+        assertEquals("home", wifi.mSsid);
+        assertTrue(wifi.mHidden);
+
+        IngestionQueue.WifiScanEntry scan = (IngestionQueue.WifiScanEntry) read.get(4);
+        assertArrayEquals(new long[] { 1, 2 }, scan.mBssids);
+        assertNull(scan.mSsids[1]);
+        assertEquals("[ESS]", scan.mCaps[1]);
+    }
+
+    @Test public void entriesPastLimitAreRefused() {
+        SpillFile spill = new SpillFile(mFile, 2 * recordBytes());
+
+        assertEquals(2, spill.append(Arrays.asList(location(0), location(1), location(2))));
+        assertEquals(0, spill.append(Collections.singletonList(location(3))));
+        assertEquals(2, spill.readAll().size());
+    }
+
+    @Test public void badCrcEndsTheFile() throws IOException {
+        SpillFile spill = new SpillFile(mFile, 4096);
+        spill.append(Arrays.asList(location(0), location(1), location(2)));
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            long offset = recordBytes() + 8 + 1;        // Inside the second record's bytes.
+            file.seek(offset);
+            int b = file.read();
+            file.seek(offset);
+            file.write(b ^ 0xff);
+        } finally { file.close(); }
+
+        List<IngestionQueue.Entry> entries = new SpillFile(mFile, 4096).readAll();
+        assertEquals(1, entries.size());
+        assertLocation(0, entries.get(0));
+    }
+
+    @Test public void tornRecordEndsTheFile() throws IOException {
+        SpillFile spill = new SpillFile(mFile, 4096);
+        spill.append(Arrays.asList(location(0), location(1)));
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 3);          // Crashed mid-append.
+        } finally { file.close(); }
+
+        List<IngestionQueue.Entry> entries = new SpillFile(mFile, 4096).readAll();
+        assertEquals(1, entries.size());
+        assertLocation(0, entries.get(0));
+    }
+
+    @Test public void rewriteReplacesContents() {
+        SpillFile spill = new SpillFile(mFile, 4096);
+        spill.append(Arrays.asList(location(0), location(1), location(2)));
+
+        List<IngestionQueue.Entry> rest = new ArrayList<>();
+        rest.add(location(2));
+        assertTrue(spill.rewrite(rest));
+
+        List<IngestionQueue.Entry> entries = spill.readAll();
+        assertEquals(1, entries.size());
+        assertLocation(2, entries.get(0));
+        assertEquals(recordBytes(), spill.getBytes());
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+
+    @Test public void rewriteWithNothingDeletesFile() {
+        SpillFile spill = new SpillFile(mFile, 4096);
+        spill.append(Collections.singletonList(location(0)));
+
+        assertTrue(spill.rewrite(Collections.<IngestionQueue.Entry>emptyList()));
+        assertTrue(spill.isEmpty());
+        assertFalse(mFile.exists());
+    }
+
+    /** @return a fix whose fields all follow from <code>i</code> */
+    private static IngestionQueue.LocationEntry location(int i) {
+        return new IngestionQueue.LocationEntry(T0 + i, 45 + i, -75 - i, i, 2 * i, 100 + i, 10);
+    }
+
+    private static void assertLocation(int i, IngestionQueue.Entry entry) {
+        IngestionQueue.LocationEntry fix = (IngestionQueue.LocationEntry) entry;
+
+        assertEquals(T0 + i, fix.mTime);
+        assertEquals(45 + i, fix.mLat, 0);
+        assertEquals(-75 - i, fix.mLng, 0);
+        assertEquals(2 * i, fix.mSpeed, 0);
+        assertEquals(100 + i, fix.mAlt, 0);
+    }
+
+    /** @return the bytes one fix takes: length, CRC, kind, then its fields */
+    private static long recordBytes() { return 8 + 1 + 8 + 8 + 8 + 4 + 4 + 8 + 4; }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015 Ken Sinclair
+ *
+ * This work is licensed under the Creative Commons
+ * Attribution-NonCommercial-ShareAlike 4.0 International License. To view
+ * a copy of this license, visit
+ *
+ *      http://creativecommons.org/licenses/by-nc-sa/4.0/
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kensinclair.datacollector;
+
+import android.location.Location;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests <code>TrajectorySimplifier</code>: which fixes of a route are kept.
+ *
+ * @author Ken Sinclair
+ */
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class TrajectorySimplifierTest {
+    private static final long   T0        = 1433116800000L; // 2015-06-01 00:00 UTC.
+    private static final float  TOLERANCE = 10;             // Meters.
+    private static final double STEP      = 0.001;          // About 111 meters.
+    private static final long   INTERVAL  = 10000;          // Between fixes.
+    private static final long   NO_HOLD   = Long.MAX_VALUE;
+
+    private final List<Long> mKept = new ArrayList<>();     // Times of kept fixes.
+
+    private final TrajectorySimplifier.Sink mSink = new TrajectorySimplifier.Sink() {
+        @Override public void keep(Location location, long time) { mKept.add(time); }
+    };
+
+    @Test public void firstFixIsKeptAtOnce() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(TOLERANCE, NO_HOLD, mSink);
+
+        offer(simplifier, 0, 0, 0);
+        assertEquals(1, mKept.size());
+    }
+
+    @Test public void straightLineKeepsEnds() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(TOLERANCE, NO_HOLD, mSink);
+
+        for(int i = 0; i < 10; i++) offer(simplifier, i, 0, i * STEP);
+        assertEquals(1, mKept.size());                  // The last is held.
+
+        simplifier.flush();
+        assertKept(0, 9);
+        assertEquals(2, simplifier.getKeptCount());
+        assertEquals(8, simplifier.getDroppedCount());
+    }
+
+    @Test public void cornerIsKept() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(TOLERANCE, NO_HOLD, mSink);
+
+        for(int i = 0; i < 5; i++) offer(simplifier, i, 0, i * STEP);            // East,
+        for(int i = 1; i < 5; i++) offer(simplifier, 4 + i, i * STEP, 4 * STEP); // then north.
+        simplifier.flush();
+
+        assertKept(0, 4, 8);
+        assertEquals(6, simplifier.getDroppedCount());
+    }
+
+    @Test public void smallWobbleIsDropped() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(TOLERANCE, NO_HOLD, mSink);
+
+        for(int i = 0; i < 10; i++)                     // About 3 meters either side.
+            offer(simplifier, i, (i % 2 == 0 ? 1 : -1) * 0.00003, i * STEP);
+        simplifier.flush();
+
+        assertKept(0, 9);
+    }
+
+    @Test public void zeroToleranceKeepsEveryFix() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(0, NO_HOLD, mSink);
+
+        for(int i = 0; i < 5; i++) offer(simplifier, i, 0, i * STEP);
+        assertKept(0, 1, 2, 3, 4);
+    }
+
+    @Test public void windowIsCapped() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(TOLERANCE, NO_HOLD, mSink);
+
+        for(int i = 0; i <= TrajectorySimplifier.MAX_WINDOW; i++) offer(simplifier, i, 0, 0);
+        assertEquals(1, mKept.size());                  // The window is full.
+
+        offer(simplifier, TrajectorySimplifier.MAX_WINDOW + 1, 0, 0);
+        assertKept(0, TrajectorySimplifier.MAX_WINDOW);
+    }
+
+    @Test public void standingStillKeepsFixWithinHold() {
+        long                 hold       = 6 * INTERVAL;
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(TOLERANCE, hold, mSink);
+
+        for(int i = 0; i < 30; i++) offer(simplifier, i, 0, 0);
+
+        assertTrue(mKept.size() > 2);
+        for(int i = 1; i < mKept.size(); i++)
+            assertTrue(mKept.get(i) - mKept.get(i - 1) <= hold + INTERVAL);
+    }
+
+    @Test public void flushStartsNewSegment() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(TOLERANCE, NO_HOLD, mSink);
+
+        offer(simplifier, 0, 0, 0);
+        simplifier.flush();                             // Nothing held.
+        assertKept(0);
+
+        offer(simplifier, 1, 0, STEP);
+        assertKept(0, 1);
+    }
+
+    @Test public void lineAcrossAntimeridianKeepsEnds() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(TOLERANCE, NO_HOLD, mSink);
+
+        for(int i = 0; i < 6; i++) {
+            double lng = 179.997 + i * STEP;
+            offer(simplifier, i, 0, lng > 180 ? lng - 360 : lng);
+        }
+        simplifier.flush();
+
+        assertKept(0, 5);
+    }
+
+    /** Offers the <code>i</code>th fix, <code>INTERVAL</code> after the one before. */
+    private static void offer(TrajectorySimplifier simplifier, int i, double lat, double lng) {
+        Location location = new Location("gps");
+
+        location.setLatitude(lat);
+        location.setLongitude(lng);
+        simplifier.offer(location, T0 + i * INTERVAL);
+    }
+
+    /** Checks that exactly the given fixes were kept, in order. */
+    private void assertKept(int... fixes) {
+        assertEquals(fixes.length, mKept.size());
+        for(int i = 0; i < fixes.length; i++)
+            assertEquals(T0 + fixes[i] * INTERVAL, (long) mKept.get(i));
+    }
+}